@@ -92,18 +92,38 @@ CREATE TABLE job (
     container_runtime_descriptor text,
     end_user text,
     flavour text,
+    locality text,
     job_hash text,
     message_type text,
     status text,
     stderr text,
     stdout text,
     job_uuid text,
-    provision_uuid text
+    provision_uuid text,
+    stdout_offset bigint,
+    stderr_offset bigint
 );
 
 
 ALTER TABLE job OWNER TO queue_user;
 
+--
+-- Name: job_log_chunk; Type: TABLE; Schema: public; Owner: queue_user; Tablespace: 
+--
+
+CREATE TABLE job_log_chunk (
+    job_uuid text NOT NULL,
+    stream text NOT NULL,
+    seq integer NOT NULL,
+    byte_offset bigint NOT NULL,
+    byte_length integer NOT NULL,
+    codec text NOT NULL,
+    bytes bytea NOT NULL
+);
+
+
+ALTER TABLE job_log_chunk OWNER TO queue_user;
+
 --
 -- Name: job_job_id_seq; Type: SEQUENCE; Schema: public; Owner: queue_user
 --
@@ -223,6 +243,14 @@ ALTER TABLE ONLY job
     ADD CONSTRAINT job_pkey PRIMARY KEY (job_id);
 
 
+--
+-- Name: job_log_chunk_pkey; Type: CONSTRAINT; Schema: public; Owner: queue_user; Tablespace: 
+--
+
+ALTER TABLE ONLY job_log_chunk
+    ADD CONSTRAINT job_log_chunk_pkey PRIMARY KEY (job_uuid, stream, seq);
+
+
 --
 -- Name: provision_pkey; Type: CONSTRAINT; Schema: public; Owner: queue_user; Tablespace: 
 --
@@ -247,6 +275,27 @@ ALTER TABLE ONLY consonance_user
     ADD CONSTRAINT uk_i6afhcugr97k0viwvj67wno0j UNIQUE (hashed_password);
 
 
+--
+-- Name: job_status_update_timestamp_idx; Type: INDEX; Schema: public; Owner: queue_user; Tablespace: 
+--
+
+CREATE INDEX job_status_update_timestamp_idx ON job USING btree (status, update_timestamp);
+
+
+--
+-- Name: job_end_user_job_id_idx; Type: INDEX; Schema: public; Owner: queue_user; Tablespace: 
+--
+
+CREATE INDEX job_end_user_job_id_idx ON job USING btree (end_user, job_id);
+
+
+--
+-- Name: job_job_uuid_idx; Type: INDEX; Schema: public; Owner: queue_user; Tablespace: 
+--
+
+CREATE INDEX job_job_uuid_idx ON job USING btree (job_uuid);
+
+
 --
 -- Name: fk_5dtb4x4tewkcfpjw58v68opmb; Type: FK CONSTRAINT; Schema: public; Owner: queue_user
 --
@@ -0,0 +1,135 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Decides how many VMs of each flavour to ask for.
+ *
+ * Every job needs a VM of its flavour. When the total or a flavour's own cap does not allow that, VMs are shared out in proportion to
+ * the weights of the flavours that still want more (weighted max-min fairness). A flavour that needs less than its share leaves the
+ * rest to the others, and no flavour is starved just because another one has a larger backlog.
+ *
+ * @author dyuen
+ */
+final class CapacityPlanner {
+
+    static final int DEFAULT_WEIGHT = 1;
+    private static final Logger LOG = LoggerFactory.getLogger(CapacityPlanner.class);
+
+    private final long maxVMs;
+    private final Map<String, Integer> flavourCaps;
+    private final Map<String, Integer> weights;
+
+    /**
+     * @param maxVMs the most VMs to ask for in total
+     * @param flavourCaps the most VMs to ask for of some flavours, others are only limited by the total
+     * @param weights the share of some flavours relative to others, the rest have {@link #DEFAULT_WEIGHT}
+     */
+    CapacityPlanner(long maxVMs, Map<String, Integer> flavourCaps, Map<String, Integer> weights) {
+        this.maxVMs = maxVMs;
+        this.flavourCaps = flavourCaps;
+        this.weights = weights;
+    }
+
+    /**
+     * Read max_running_containers, flavour_max_containers and flavour_weights from the provision settings. The last two are comma
+     * separated lists of flavour:number, for example m1.xlarge:4, m1.small:10.
+     *
+     * @param settings the provisioner settings
+     * @return a planner for those settings
+     */
+    static CapacityPlanner fromSettings(HierarchicalINIConfiguration settings) {
+        return new CapacityPlanner(settings.getLong(Constants.PROVISION_MAX_RUNNING_CONTAINERS, Integer.MAX_VALUE),
+                perFlavour(settings, Constants.PROVISION_FLAVOUR_MAX_CONTAINERS, 0),
+                perFlavour(settings, Constants.PROVISION_FLAVOUR_WEIGHTS, 1));
+    }
+
+    /**
+     * @param demand the number of jobs that need a VM by flavour
+     * @return the number of VMs to ask for by flavour, leaving out flavours that get none
+     */
+    Map<String, Integer> plan(Map<String, Integer> demand) {
+        // what each flavour could use on its own
+        Map<String, Integer> limits = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            if (entry.getKey() == null) {
+                LOG.warn(entry.getValue() + " jobs have no flavour, no VMs can be asked for them");
+                continue;
+            }
+            final int limit = Math.min(entry.getValue(), flavourCaps.getOrDefault(entry.getKey(), Integer.MAX_VALUE));
+            if (limit > 0) {
+                limits.put(entry.getKey(), limit);
+            }
+        }
+
+        // hand out one VM at a time to the flavour that would be least served after getting it, relative to its weight
+        Map<String, Integer> target = new TreeMap<>();
+        PriorityQueue<String> wanting = new PriorityQueue<>(
+                Comparator.comparingDouble((String flavour) -> (target.getOrDefault(flavour, 0) + 1.0) / weight(flavour))
+                        .thenComparing(Comparator.naturalOrder()));
+        wanting.addAll(limits.keySet());
+        for (long left = maxVMs; left > 0 && !wanting.isEmpty(); left--) {
+            final String flavour = wanting.poll();
+            if (target.merge(flavour, 1, Integer::sum) < limits.get(flavour)) {
+                wanting.add(flavour);
+            }
+        }
+        return target;
+    }
+
+    private int weight(String flavour) {
+        return weights.getOrDefault(flavour, DEFAULT_WEIGHT);
+    }
+
+    /**
+     * Read a setting that lists flavour:number entries, bad entries are logged and left out.
+     */
+    static Map<String, Integer> perFlavour(HierarchicalINIConfiguration settings, String key, int min) {
+        Map<String, Integer> values = new HashMap<>();
+        for (String entry : settings.getStringArray(key)) {
+            final int separator = entry.lastIndexOf(':');
+            Integer value = null;
+            if (separator > 0) {
+                try {
+                    value = Integer.valueOf(entry.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            if (value == null || value < min) {
+                LOG.warn("Ignoring " + key + " entry '" + entry + "', expected flavour:number with a number of at least " + min);
+                continue;
+            }
+            values.put(entry.substring(0, separator).trim(), value);
+        }
+        return values;
+    }
+}
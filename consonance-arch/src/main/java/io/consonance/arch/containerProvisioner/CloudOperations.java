@@ -0,0 +1,180 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import io.cloudbindle.youxia.deployer.Deployer;
+import io.cloudbindle.youxia.reaper.Reaper;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Youxia deployer and reaper one at a time on a thread of their own.
+ *
+ * Deploying and reaping must not overlap, but the threads that ask for them should not wait on each other either. Deployments are
+ * queued and can be waited for. Reaps are queued without waiting, and the VMs of every reap requested before one gets to run are
+ * killed by a single reaper call.
+ *
+ * @author dyuen
+ */
+class CloudOperations {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudOperations.class);
+
+    private final HierarchicalINIConfiguration settings;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "cloud-operations"));
+    /** ip addresses and names of VMs waiting to be reaped */
+    private final List<String> killList = new ArrayList<>();
+    private boolean reapQueued = false;
+
+    /**
+     * @param settings the provisioner settings with the Youxia parameters
+     */
+    CloudOperations(HierarchicalINIConfiguration settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Queue a deployment, after whatever is already queued.
+     *
+     * @param clientTypes how many VMs of each flavour are needed
+     * @return true once the deployer ran without an exception, false if it failed and failed deployments were cleaned up
+     */
+    Future<Boolean> deploy(Map<String, Integer> clientTypes) {
+        return executor.submit(() -> {
+            // serialize clientTypes
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            final String required = gson.toJson(clientTypes);
+            final File tempFile = Files.createTempFile("neededVMs", "json").toFile();
+            FileUtils.write(tempFile, required, StandardCharsets.UTF_8);
+
+            List<String> arguments = parameters(Constants.PROVISION_YOUXIA_DEPLOYER);
+            arguments.add("--instance-types");
+            arguments.add(tempFile.getAbsolutePath());
+            String[] toArray = arguments.toArray(new String[arguments.size()]);
+            LOG.info("Running youxia deployer with following parameters:" + Arrays.toString(toArray));
+            try {
+                runDeployer(toArray);
+                return true;
+            } catch (Exception e) {
+                LOG.error("Youxia deployer threw the following exception", e);
+                // call the reaper to do cleanup when deployment fails
+                reapNow(new String[] {});
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Queue a VM to be reaped and return straight away.
+     *
+     * @param ipAddress the address of the VM
+     * @param vmName the name of the VM
+     */
+    void reap(String ipAddress, String vmName) {
+        synchronized (this) {
+            killList.add(ipAddress);
+            killList.add(vmName);
+            if (reapQueued) {
+                // it will go out with the reap that is already waiting
+                return;
+            }
+            reapQueued = true;
+        }
+        executor.submit(() -> {
+            final String[] targets;
+            synchronized (this) {
+                targets = killList.toArray(new String[killList.size()]);
+                killList.clear();
+                reapQueued = false;
+            }
+            reapNow(targets);
+            return null;
+        });
+    }
+
+    /**
+     * Finish whatever is queued and stop.
+     *
+     * @param timeoutMillis how long to wait for queued operations
+     * @throws InterruptedException when interrupted while waiting
+     */
+    void shutdown(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Youxia operations were still running at shutdown");
+        }
+    }
+
+    /**
+     * Run the reaper on this thread.
+     *
+     * @param targets ip addresses and names of the VMs to kill, or nothing to only clean up failed deployments
+     */
+    private void reapNow(String[] targets) throws IOException {
+        List<String> arguments = parameters(Constants.PROVISION_YOUXIA_REAPER);
+        arguments.add("--kill-list");
+        // we can't use the full set of database records because unlike Amazon, OpenStack reuses private ip addresses (very quickly too)
+        LOG.info("Kill list contains: " + Arrays.asList(targets));
+        final File tempFile = Files.createTempFile("target", "json").toFile();
+        FileUtils.write(tempFile, new Gson().toJson(targets), StandardCharsets.UTF_8);
+        arguments.add(tempFile.getAbsolutePath());
+
+        String[] toArray = arguments.toArray(new String[arguments.size()]);
+        LOG.info("Running youxia reaper with following parameters:" + Arrays.toString(toArray));
+        try {
+            runReaper(toArray);
+        } catch (Exception e) {
+            LOG.error("Youxia reaper threw the following exception", e);
+        }
+    }
+
+    private List<String> parameters(String key) {
+        String param = settings.getString(key);
+        CommandLine parse = CommandLine.parse("dummy " + (param == null ? "" : param));
+        return new ArrayList<>(Arrays.asList(parse.getArguments()));
+    }
+
+    void runDeployer(String[] arguments) throws Exception {
+        Deployer.main(arguments);
+    }
+
+    void runReaper(String[] arguments) throws Exception {
+        Reaper.main(arguments);
+    }
+}
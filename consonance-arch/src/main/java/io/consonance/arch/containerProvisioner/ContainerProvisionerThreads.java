@@ -19,17 +19,14 @@
 
 package io.consonance.arch.containerProvisioner;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
-import io.cloudbindle.youxia.deployer.Deployer;
-import io.cloudbindle.youxia.reaper.Reaper;
 import io.consonance.arch.Base;
-import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.MessageCodec;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.arch.beans.Status;
@@ -41,22 +38,11 @@ import io.consonance.common.Constants;
 import io.consonance.arch.worker.WorkerRunnable;
 import joptsimple.OptionSpecBuilder;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
-import org.apache.commons.exec.CommandLine;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -74,10 +60,9 @@ import java.util.concurrent.TimeoutException;
 public class ContainerProvisionerThreads extends Base {
 
     private static final int DEFAULT_THREADS = 3;
-    private static final int TWO_MINUTE_IN_MILLISECONDS = 2 * 60 * 1000;
+    private static final long DEFAULT_DEMAND_WINDOW_MILLIS = 5000;
 
     private final OptionSpecBuilder testSpec;
-    private static final Logger LOG = LoggerFactory.getLogger(ContainerProvisionerThreads.class);
 
     public static void main(String[] argv) throws Exception {
         ContainerProvisionerThreads containerProvisionerThreads = new ContainerProvisionerThreads(argv);
@@ -92,9 +77,14 @@ public class ContainerProvisionerThreads extends Base {
 
     private void startThreads() throws InterruptedException {
         ExecutorService pool = Executors.newFixedThreadPool(DEFAULT_THREADS);
-        ProcessVMOrders processVMOrders = new ProcessVMOrders(this.configFile, this.options.has(this.endlessSpec));
-        ProvisionVMs provisionVMs = new ProvisionVMs(this.configFile, this.options.has(this.endlessSpec), this.options.has(testSpec));
-        CleanupVMs cleanupVMs = new CleanupVMs(this.configFile, this.options.has(this.endlessSpec));
+        // VM requests and results feed the demand model, provisioning reacts to it
+        DemandModel demand = new DemandModel();
+        // deploying and reaping take turns on a thread of their own
+        CloudOperations cloud = new CloudOperations(CommonTestUtilities.parseConfig(this.configFile));
+        ProcessVMOrders processVMOrders = new ProcessVMOrders(this.configFile, this.options.has(this.endlessSpec), demand);
+        ProvisionVMs provisionVMs = new ProvisionVMs(this.configFile, this.options.has(this.endlessSpec), this.options.has(testSpec),
+                demand, cloud);
+        CleanupVMs cleanupVMs = new CleanupVMs(this.configFile, this.options.has(this.endlessSpec), cloud, demand);
         List<Future<?>> futures = new ArrayList<>();
         futures.add(pool.submit(processVMOrders));
         futures.add(pool.submit(provisionVMs));
@@ -108,22 +98,25 @@ public class ContainerProvisionerThreads extends Base {
             throw new RuntimeException(ex);
         } finally {
             pool.shutdown();
+            cloud.shutdown(TEN_MINUTES_IN_MILLISECONDS);
         }
     }
 
     /**
      * This de-queues the VM requests from the VM queue and stages them in the DB as pending so I can keep a count of what's
-     * running/pending/finished.
+     * running/pending/finished. Each request is also added to the demand model.
      */
     private static class ProcessVMOrders implements Callable<Void> {
 
         static final Logger LOG = LoggerFactory.getLogger(ProcessVMOrders.class);
         private final boolean endless;
         private final String config;
+        private final DemandModel demand;
 
-        ProcessVMOrders(String config, boolean endless) {
+        ProcessVMOrders(String config, boolean endless, DemandModel demand) {
             this.endless = endless;
             this.config = config;
+            this.demand = demand;
         }
 
         @Override
@@ -152,34 +145,36 @@ public class ContainerProvisionerThreads extends Base {
                         continue;
                     }
                     // jchannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    LOG.info(" [x] Received New VM Request '" + message + "'");
-
                     // now parse it as a VM order
-                    Provision p = new Provision();
-                    p.fromJSON(message);
+                    Provision p = MessageCodec.forProperties(delivery.getProperties()).decodeProvision(delivery.getBody());
+                    LOG.info(" [x] Received New VM Request for job " + p.getJobUUID());
                     p.setState(ProvisionState.PENDING);
 
                     // puts it into the DB so I can count it in another thread
                     db.updateProvisionByJobUUID(p.getJobUUID(),p.getProvisionUUID(),p.getState(),p.getIpAddress());
+                    // VM requests do not carry a flavour, the job does
+                    final JobSummary job = db.getJobSummary(p.getJobUUID());
+                    demand.jobQueued(p.getJobUUID(), job == null ? null : job.getFlavour());
                     vmChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
                 } while (endless);
 
             } catch (IOException | InterruptedException | ShutdownSignalException | ConsumerCancelledException ex) {
                 throw new RuntimeException(ex);
             } finally {
-                if (vmChannel != null) {
-                    vmChannel.close();
-                    vmChannel.getConnection().close();
-                }
+                CommonServerTestUtilities.closeChannel(vmChannel);
             }
             return null;
         }
     }
 
     /**
-     * This examines the provision table in the DB to identify the number of running VMs. It then figures out if the number running is less
-     * than the max number. If so it picks the oldest pending, switches to running, and launches a worker thread.
+     * In test mode, this examines the DB to identify the number of running VMs. It then figures out if the number running is less
+     * than the max number. If so it launches a worker thread.
+     *
+     * Otherwise, this asks Youxia for the mix of VMs that pending and running jobs need, as planned by the {@link CapacityPlanner}. It
+     * waits for the demand model to change, lets further changes within a short window settle, and only calls the deployer when the mix
+     * it would ask for is different from the last one. Every so often the model is reloaded from the DB, which catches jobs that changed
+     * state without the provisioner seeing it, and the deployer is called again regardless to replace VMs that went away.
      */
     private static class ProvisionVMs implements Callable<Void> {
         static final Logger LOG = LoggerFactory.getLogger(ProvisionVMs.class);
@@ -187,11 +182,15 @@ public class ContainerProvisionerThreads extends Base {
         private final String configFile;
         private final boolean endless;
         private final boolean testMode;
+        private final DemandModel demand;
+        private final CloudOperations cloud;
 
-        ProvisionVMs(String configFile, boolean endless, boolean testMode) {
+        ProvisionVMs(String configFile, boolean endless, boolean testMode, DemandModel demand, CloudOperations cloud) {
             this.configFile = configFile;
             this.endless = endless;
             this.testMode = testMode;
+            this.demand = demand;
+            this.cloud = cloud;
         }
 
         @Override
@@ -199,118 +198,116 @@ public class ContainerProvisionerThreads extends Base {
             try {
 
                 HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
-                if (!settings.containsKey(Constants.PROVISION_MAX_RUNNING_CONTAINERS)) {
+                // a missing or zero limit turns provisioning off, e.g. when workers are started by hand
+                if (settings.getLong(Constants.PROVISION_MAX_RUNNING_CONTAINERS, 0) <= 0) {
                     LOG.info("No max_running_containers specified, skipping provision ");
                     return null;
                 }
 
                 // writes to DB as well
                 PostgreSQL db = new PostgreSQL(settings);
-
-                // TODO: need threads that each read from orders and another that reads results
-                do {
-
-                    LOG.info("Checking running VMs");
-                    // System.out.println("CHECKING RUNNING VMs");
-
-                    // read from DB
-                    final List<Job> pendingJobs = db.getJobs(JobState.PENDING);
-                    long numberRunningContainers = pendingJobs.size();
-                    final List<Job> runningJobs = db.getJobs(JobState.RUNNING);
-                    long numberPendingContainers = runningJobs.size();
-                    LOG.info("Found " + numberRunningContainers + " pending containers and " + numberPendingContainers + " running containers.");
-
-                    if (testMode) {
-                        LOG.debug("  CHECKING NUMBER OF RUNNING: " + numberRunningContainers);
-                        maxWorkers = settings.getLong(Constants.PROVISION_MAX_RUNNING_CONTAINERS);
-
-                        // if this is true need to launch another container
-                        if (numberRunningContainers < maxWorkers && numberPendingContainers > 0) {
-
-                            LOG.info("  RUNNING CONTAINERS < " + maxWorkers + " SO WILL LAUNCH VM");
-
-                            // TODO: this will obviously get much more complicated when integrated with Youxia launch VM
-                            // fake a uuid
-                            String uuid = UUID.randomUUID().toString().toLowerCase();
-                            // now launch the VM... doing this after the update above to prevent race condition if the worker signals
-                            // finished
-                            // before it's marked as pending
-                            new WorkerRunnable(configFile, uuid, 1).run();
-                            LOG.info("\n\n\nI LAUNCHED A WORKER THREAD FOR VM " + uuid + " AND IT'S RELEASED!!!\n\n");
-                        }
-                    } else {
-                        long requiredVMs = numberRunningContainers + numberPendingContainers;
-                        // determine mix of VMs required
-                        Map<String, Integer> clientTypes = new HashMap<>();
-                        for(Job j : pendingJobs){
-                            clientTypes.compute(j.getFlavour(), (k, v) -> (v == null ? 1 : v + 1));
-                        }
-                        for(Job j : runningJobs){
-                            clientTypes.compute(j.getFlavour(), (k,v) -> (v == null? 1 : v+1));
-                        }
-
-                        // cap the number of VMs
-                        LOG.info("  Desire for " + clientTypes + " VMs");
-                        requiredVMs = Math
-                                .min(requiredVMs, settings.getLong(Constants.PROVISION_MAX_RUNNING_CONTAINERS, Integer.MAX_VALUE));
-                        // cap the types of VMs
-                        final long localRequiredVMs = requiredVMs;
-                        while(clientTypes.size() > requiredVMs){
-                            clientTypes.replaceAll((k,v) -> clientTypes.size() > localRequiredVMs? (v-1) : v);
-                        }
-                        LOG.info("  Capped at " + clientTypes + " VMs");
-                        if (requiredVMs > 0) {
-                            // serialize clientTypes
-                            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                            final String required = gson.toJson(clientTypes);
-                            final File tempFile = Files.createTempFile("neededVMs", "json").toFile();
-                            FileUtils.write(tempFile, required, StandardCharsets.UTF_8);
-
-                            String param = settings.getString(Constants.PROVISION_YOUXIA_DEPLOYER);
-                            CommandLine parse = CommandLine.parse("dummy " + (param == null ? "" : param));
-                            List<String> arguments = new ArrayList<>();
-                            arguments.addAll(Arrays.asList(parse.getArguments()));
-                            arguments.add("--instance-types");
-                            arguments.add(tempFile.getAbsolutePath());
-                            String[] toArray = arguments.toArray(new String[arguments.size()]);
-                            LOG.info("Running youxia deployer with following parameters:" + Arrays.toString(toArray));
-                            // need to make sure reaper and deployer do not overlap
-                            synchronized (ContainerProvisionerThreads.class) {
-                                try {
-                                    Deployer.main(toArray);
-                                } catch (Exception e) {
-                                    LOG.error("Youxia deployer threw the following exception", e);
-                                    // call the reaper to do cleanup when deployment fails
-                                    runReaper(settings, null, null);
-                                }
-                            }
-                        }
-                        if (endless) {
-                            // lengthen time to allow cleanup queue to purge
-                            Thread.sleep(TWO_MINUTE_IN_MILLISECONDS);
-                        }
-                    }
-                } while (endless);
-
+                if (testMode) {
+                    launchTestWorkers(settings, db);
+                } else {
+                    provisionOnDemand(settings, db);
+                }
             } catch (ShutdownSignalException | ConsumerCancelledException ex) {
                 throw new RuntimeException(ex);
             }
             return null;
         }
 
+        private void launchTestWorkers(HierarchicalINIConfiguration settings, PostgreSQL db) {
+            // TODO: need threads that each read from orders and another that reads results
+            do {
+
+                LOG.info("Checking running VMs");
+                // System.out.println("CHECKING RUNNING VMs");
+
+                // read from DB
+                long numberRunningContainers = db.getJobSummaries(JobState.PENDING).size();
+                long numberPendingContainers = db.getJobSummaries(JobState.RUNNING).size();
+                LOG.info("Found " + numberRunningContainers + " pending containers and " + numberPendingContainers + " running containers.");
+
+                LOG.debug("  CHECKING NUMBER OF RUNNING: " + numberRunningContainers);
+                maxWorkers = settings.getLong(Constants.PROVISION_MAX_RUNNING_CONTAINERS);
+
+                // if this is true need to launch another container
+                if (numberRunningContainers < maxWorkers && numberPendingContainers > 0) {
+
+                    LOG.info("  RUNNING CONTAINERS < " + maxWorkers + " SO WILL LAUNCH VM");
+
+                    // TODO: this will obviously get much more complicated when integrated with Youxia launch VM
+                    // fake a uuid
+                    String uuid = UUID.randomUUID().toString().toLowerCase();
+                    // now launch the VM... doing this after the update above to prevent race condition if the worker signals
+                    // finished
+                    // before it's marked as pending
+                    new WorkerRunnable(configFile, uuid, 1).run();
+                    LOG.info("\n\n\nI LAUNCHED A WORKER THREAD FOR VM " + uuid + " AND IT'S RELEASED!!!\n\n");
+                }
+            } while (endless);
+        }
+
+        private void provisionOnDemand(HierarchicalINIConfiguration settings, PostgreSQL db) throws InterruptedException,
+                ExecutionException {
+            final long window = settings.getLong(Constants.PROVISION_DEMAND_WINDOW_MILLIS, DEFAULT_DEMAND_WINDOW_MILLIS);
+            final long resyncInterval = settings.getLong(Constants.PROVISION_DEMAND_RESYNC_MILLIS, TEN_MINUTES_IN_MILLISECONDS);
+            final CapacityPlanner planner = CapacityPlanner.fromSettings(settings);
+            Map<String, Integer> deployed = null;
+            long nextResync = 0;
+            do {
+                boolean resync = false;
+                if (System.currentTimeMillis() >= nextResync) {
+                    List<JobSummary> jobs = new ArrayList<>(db.getJobSummaries(JobState.PENDING));
+                    jobs.addAll(db.getJobSummaries(JobState.RUNNING));
+                    LOG.info("Reloaded " + jobs.size() + " pending and running jobs");
+                    demand.reset(jobs);
+                    nextResync = System.currentTimeMillis() + resyncInterval;
+                    resync = true;
+                } else if (demand.awaitChange(nextResync - System.currentTimeMillis())) {
+                    // a burst of orders or results becomes one pass
+                    Thread.sleep(window);
+                } else {
+                    continue;
+                }
+
+                // determine mix of VMs required
+                Map<String, Integer> required = demand.takeDemand();
+                LOG.info("  Desire for " + required + " VMs");
+                Map<String, Integer> clientTypes = planner.plan(required);
+                LOG.info("  Capped at " + clientTypes + " VMs");
+                if (clientTypes.isEmpty()) {
+                    deployed = clientTypes;
+                } else if (resync || !clientTypes.equals(deployed)) {
+                    // a failed deployment is retried on the next change or reload
+                    deployed = cloud.deploy(clientTypes).get() ? clientTypes : null;
+                } else {
+                    LOG.info("  Already asked for " + deployed + " VMs");
+                }
+            } while (endless);
+        }
+
     }
 
     /**
      * This keeps an eye on the results queue. It updates the database with finished jobs. Presumably it should also kill VMs.
+     * Finished jobs are taken out of the demand model. VMs are handed to the cloud operations to be reaped, so that results keep
+     * flowing while a deployment is running. With a warm pool, VMs whose jobs succeeded are kept for the next job of their flavour
+     * and only reaped once the {@link WarmPool} gives them up.
      */
     private static class CleanupVMs implements Callable<Void> {
         static final Logger LOG = LoggerFactory.getLogger(CleanupVMs.class);
         private final String configFile;
         private final boolean endless;
+        private final CloudOperations cloud;
+        private final DemandModel demand;
 
-        CleanupVMs(String configFile, boolean endless) {
+        CleanupVMs(String configFile, boolean endless, CloudOperations cloud, DemandModel demand) {
             this.configFile = configFile;
             this.endless = endless;
+            this.cloud = cloud;
+            this.demand = demand;
         }
 
         @Override
@@ -336,6 +333,19 @@ public class ContainerProvisionerThreads extends Base {
                 PostgreSQL db = new PostgreSQL(settings);
 
                 boolean reapFailedWorkers = settings.getBoolean(Constants.PROVISION_REAP_FAILED_WORKERS, false);
+                final WarmPool warmPool = WarmPool.fromSettings(settings);
+                if (warmPool.isEnabled()) {
+                    LOG.info("Keeping VMs warm for the next job of their flavour");
+                }
+                // VMs that were idle before a restart are taken back, and reaped straight away if the warm pool is now off
+                final List<Provision> idleProvisions = db.getIdleProvisions();
+                if (!idleProvisions.isEmpty()) {
+                    LOG.info("Taking back " + idleProvisions.size() + " idle VMs");
+                    warmPool.restore(idleProvisions, jobUuid -> {
+                        final JobSummary job = db.getJobSummary(jobUuid);
+                        return job == null ? null : job.getFlavour();
+                    }, System.currentTimeMillis());
+                }
 
                 // TODO: need threads that each read from orders and another that reads results
                 do {
@@ -344,45 +354,63 @@ public class ContainerProvisionerThreads extends Base {
 
                     QueueingConsumer.Delivery delivery = resultsConsumer.nextDelivery(FIVE_SECOND_IN_MILLISECONDS);
                     if (delivery == null) {
+                        reapIdleVMs(warmPool, db);
                         continue;
                     }
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    LOG.info(" [x] RECEIVED RESULT MESSAGE - ContainerProvisioner: '" + message + "'");
-
-                    // now parse it as JSONObj
-                    Status status = new Status().fromJSON(message);
-
-                    // in end states, keep a copy of the results
-                    if (status.getState() == StatusState.SUCCESS || status.getState() == StatusState.FAILED) {
+                    Status status = MessageCodec.forProperties(delivery.getProperties()).decodeStatus(delivery.getBody());
+                    LOG.info(" [x] RECEIVED RESULT MESSAGE - ContainerProvisioner: " + status.getType() + " " + status.getState() + " for job "
+                            + status.getJobUuid());
+
+                    if (status.hasLogDeltas()) {
+                        // newer workers ship output as it is written, append whatever is new
+                        LOG.debug("Appending output " + status.getSequence() + " for job " + status.getJobUuid());
+                        db.appendJobLogs(status.getJobUuid(), status.getStdout(), status.getStdoutOffset(), status.getStderr(),
+                                status.getStderrOffset());
+                    } else if (status.getState() == StatusState.SUCCESS || status.getState() == StatusState.FAILED) {
+                        // in end states, keep a copy of the results
                         db.updateJobMessage(status.getJobUuid(), status.getStdout(), status.getStderr());
                     }
 
                     if (CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
+                        String flavour = null;
+                        if (status.getState() == StatusState.SUCCESS || status.getState() == StatusState.FAILED) {
+                            flavour = demand.jobFinished(status.getJobUuid());
+                        }
                         // now update that DB record to be exited
                         // this is actually finishing the VM and not the work
-                        if (status.getState() == StatusState.SUCCESS) {
+                        if (status.getState() == StatusState.SUCCESS && warmPool.isEnabled()) {
+                            // the VM may run more jobs, so only this job's provision is finished and the VM is idle until reaped
+                            ProvisionState provisionState = ProvisionState.IDLE;
+                            db.updateProvisionByJobUUID(status.getJobUuid(), status.getVmUuid(), provisionState, status.getIpAddress());
+                            warmPool.jobFinished(status.getVmUuid(), status.getIpAddress(), flavour, status.getJobUuid(),
+                                    System.currentTimeMillis());
+                        } else if (status.getState() == StatusState.SUCCESS) {
                             // finishing the container means a success status
                             // this is where it reaps, the job status message also contains the UUID for the VM
                             db.finishContainer(status.getVmUuid());
-                            synchronized (ContainerProvisionerThreads.class) {
-                                runReaper(settings, status.getIpAddress(), status.getVmUuid());
-                            }
+                            cloud.reap(status.getIpAddress(), status.getVmUuid());
                         } else if (reapFailedWorkers && status.getState() == StatusState.FAILED) {
                             // reaped failed workers need to be set to the failed state
                             ProvisionState provisionState = ProvisionState.FAILED;
                             db.updateProvisionByJobUUID(status.getJobUuid(), status.getVmUuid(), provisionState, status.getIpAddress());
-                            synchronized (ContainerProvisionerThreads.class) {
-                                runReaper(settings, status.getIpAddress(), status.getVmUuid());
-                            }
+                            warmPool.forget(status.getVmUuid());
+                            cloud.reap(status.getIpAddress(), status.getVmUuid());
                         } else if (status.getState() == StatusState.RUNNING || status.getState() == StatusState.FAILED
                                 || status.getState() == StatusState.PENDING || status.getState() == StatusState.PROVISIONING) {
                             // deal with running, failed, pending, provisioning
                             // convert from provision state to statestate
                             ProvisionState provisionState = ProvisionState.valueOf(status.getState().toString());
                             db.updateProvisionByJobUUID(status.getJobUuid(), status.getVmUuid(), provisionState, status.getIpAddress());
+                            if (status.getState() == StatusState.RUNNING && demand.jobStarted(status.getJobUuid())) {
+                                warmPool.jobStarted(status.getVmUuid(), status.getJobUuid());
+                            } else if (status.getState() == StatusState.FAILED) {
+                                // failed VMs that are not reaped are left alone for a look at what went wrong
+                                warmPool.forget(status.getVmUuid());
+                            }
                         }
                     }
                     resultsChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    reapIdleVMs(warmPool, db);
                 } while (endless);
 
             } catch (IOException | InterruptedException | ShutdownSignalException | ConsumerCancelledException ex) {
@@ -392,54 +420,17 @@ public class ContainerProvisionerThreads extends Base {
                 LOG.error("CleanupVMs threw the following exception", ex);
                 throw new RuntimeException(ex);
             } finally {
-                if (resultsChannel != null) {
-                    resultsChannel.close();
-                    resultsChannel.getConnection().close();
-                }
+                CommonServerTestUtilities.closeChannel(resultsChannel);
             }
             return null;
         }
-    }
 
-    /**
-     * run the reaper
-     *
-     * @param settings represents a standard properties file
-     * @param ipAddress
-     *            specify an ip address (otherwise cleanup only failed deployments)
-     * @throws IOException
-     */
-    private static void runReaper(HierarchicalINIConfiguration settings, String ipAddress, String vmName) throws IOException {
-        String param = settings.getString(Constants.PROVISION_YOUXIA_REAPER);
-        CommandLine parse = CommandLine.parse("dummy " + (param == null ? "" : param));
-        List<String> arguments = new ArrayList<>();
-        arguments.addAll(Arrays.asList(parse.getArguments()));
-
-        arguments.add("--kill-list");
-        // create a json file with the one targeted ip address
-        Gson gson = new Gson();
-        // we can't use the full set of database records because unlike Amazon, OpenStack reuses private ip addresses (very quickly too)
-        // String[] successfulVMAddresses = db.getSuccessfulVMAddresses();
-        String[] successfulVMAddresses = new String[] {};
-        if (ipAddress != null) {
-            successfulVMAddresses = new String[] { ipAddress, vmName };
-        }
-        LOG.info("Kill list contains: " + Arrays.asList(successfulVMAddresses));
-        Path createTempFile = Files.createTempFile("target", "json");
-        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(createTempFile.toFile()),
-                StandardCharsets.UTF_8))) {
-            gson.toJson(successfulVMAddresses, bw);
-        }
-        arguments.add(createTempFile.toAbsolutePath().toString());
-
-        String[] toArray = arguments.toArray(new String[arguments.size()]);
-        LOG.info("Running youxia reaper with following parameters:" + Arrays.toString(toArray));
-        // need to make sure reaper and deployer do not overlap
-
-        try {
-            Reaper.main(toArray);
-        } catch (Exception e) {
-            LOG.error("Youxia reaper threw the following exception", e);
+        private void reapIdleVMs(WarmPool warmPool, PostgreSQL db) {
+            for (WarmPool.IdleVM vm : warmPool.takeReapable(System.currentTimeMillis(), demand::waiting)) {
+                LOG.info("Reaping idle VM " + vm.getVmUuid() + " of flavour " + vm.getFlavour());
+                db.finishContainer(vm.getVmUuid());
+                cloud.reap(vm.getIpAddress(), vm.getVmUuid());
+            }
         }
     }
 }
@@ -0,0 +1,150 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The jobs that need a VM, pending or running, with their flavours.
+ *
+ * The provisioner keeps this up to date from the VM requests and results it already reads, so that it does not have to reload every
+ * job from the database to notice that demand changed. Whoever decides how many VMs to ask for waits on it for changes.
+ *
+ * @author dyuen
+ */
+class DemandModel {
+
+    /** flavour by job uuid */
+    private final Map<String, String> flavours = new HashMap<>();
+    /** jobs that a worker has picked up */
+    private final Set<String> started = new HashSet<>();
+    private boolean changed = false;
+
+    /**
+     * Replace the whole model, for example with what the database knows.
+     *
+     * @param jobs every job that currently needs a VM
+     */
+    synchronized void reset(Collection<JobSummary> jobs) {
+        flavours.clear();
+        started.clear();
+        for (JobSummary job : jobs) {
+            flavours.put(job.getUuid(), job.getFlavour());
+            if (job.getState() == JobState.RUNNING) {
+                started.add(job.getUuid());
+            }
+        }
+        signal();
+    }
+
+    /**
+     * @param jobUuid a job that a VM was requested for
+     * @param flavour the flavour of VM it needs
+     */
+    synchronized void jobQueued(String jobUuid, String flavour) {
+        final boolean known = flavours.containsKey(jobUuid);
+        final String previous = flavours.put(jobUuid, flavour);
+        if (!known || !Objects.equals(previous, flavour)) {
+            signal();
+        }
+    }
+
+    /**
+     * A worker picked up a job. This does not change the demand, the job still needs its VM.
+     *
+     * @param jobUuid a job that a worker reported as running
+     * @return false if the job is not known, for example when a late heartbeat arrives after the job finished
+     */
+    synchronized boolean jobStarted(String jobUuid) {
+        if (!flavours.containsKey(jobUuid)) {
+            return false;
+        }
+        started.add(jobUuid);
+        return true;
+    }
+
+    /**
+     * @param jobUuid a job that succeeded or failed and no longer needs its VM
+     * @return the flavour the job needed, null if the job is not known
+     */
+    synchronized String jobFinished(String jobUuid) {
+        started.remove(jobUuid);
+        if (!flavours.containsKey(jobUuid)) {
+            return null;
+        }
+        final String flavour = flavours.remove(jobUuid);
+        signal();
+        return flavour;
+    }
+
+    /**
+     * @param flavour a flavour of VM
+     * @return the number of jobs of that flavour that no worker has picked up yet
+     */
+    synchronized int waiting(String flavour) {
+        int waiting = 0;
+        for (Map.Entry<String, String> entry : flavours.entrySet()) {
+            if (Objects.equals(entry.getValue(), flavour) && !started.contains(entry.getKey())) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Wait for the model to change since demand was last taken.
+     *
+     * @param timeoutMillis the longest to wait
+     * @return true if the model changed
+     * @throws InterruptedException when interrupted while waiting
+     */
+    synchronized boolean awaitChange(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (long left = timeoutMillis; !changed && left > 0; left = deadline - System.currentTimeMillis()) {
+            wait(left);
+        }
+        return changed;
+    }
+
+    /**
+     * @return the number of jobs that need a VM by flavour, after which the model counts as unchanged
+     */
+    synchronized Map<String, Integer> takeDemand() {
+        changed = false;
+        Map<String, Integer> demand = new HashMap<>();
+        for (String flavour : flavours.values()) {
+            demand.merge(flavour, 1, Integer::sum);
+        }
+        return demand;
+    }
+
+    private void signal() {
+        changed = true;
+        notifyAll();
+    }
+}
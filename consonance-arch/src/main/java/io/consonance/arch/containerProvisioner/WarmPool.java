@@ -0,0 +1,203 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.arch.beans.Provision;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * The VMs that finished their jobs and are kept around for the next job of their flavour, instead of being reaped straight away.
+ *
+ * A VM is idle once none of its jobs are running. It is handed back to be reaped when it has been idle for longer than the idle
+ * timeout, or when more VMs of its flavour are idle than the warm pool size for that flavour allows, oldest first. While jobs of a
+ * flavour are still waiting for a worker, none of its VMs are reaped since one of them is about to pick the job up.
+ *
+ * This is only used from the thread that reads results and is not thread-safe.
+ *
+ * @author dyuen
+ */
+final class WarmPool {
+
+    private final long idleTimeoutMillis;
+    private final Map<String, Integer> sizes;
+    /** running jobs by VM uuid */
+    private final Map<String, Set<String>> busy = new HashMap<>();
+    /** idle VMs by uuid, in the order they became idle */
+    private final Map<String, IdleVM> idle = new LinkedHashMap<>();
+
+    /**
+     * @param idleTimeoutMillis how long a VM may stay idle, 0 or less turns the warm pool off
+     * @param sizes the most idle VMs to keep of some flavours, others are only limited by the idle timeout
+     */
+    WarmPool(long idleTimeoutMillis, Map<String, Integer> sizes) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Read warm_pool_idle_millis and warm_pool_sizes from the provision settings. The latter is a comma separated list of
+     * flavour:number, for example m1.xlarge:2, m1.small:0.
+     *
+     * @param settings the provisioner settings
+     * @return a warm pool for those settings, turned off unless an idle timeout is set
+     */
+    static WarmPool fromSettings(HierarchicalINIConfiguration settings) {
+        return new WarmPool(settings.getLong(Constants.PROVISION_WARM_POOL_IDLE_MILLIS, 0),
+                CapacityPlanner.perFlavour(settings, Constants.PROVISION_WARM_POOL_SIZES, 0));
+    }
+
+    /**
+     * @return true if VMs are kept after their jobs succeed, false if they are reaped straight away
+     */
+    boolean isEnabled() {
+        return idleTimeoutMillis > 0;
+    }
+
+    /**
+     * @param vmUuid the VM that a worker picked up a job on
+     * @param jobUuid the job
+     */
+    void jobStarted(String vmUuid, String jobUuid) {
+        idle.remove(vmUuid);
+        busy.computeIfAbsent(vmUuid, k -> new HashSet<>()).add(jobUuid);
+    }
+
+    /**
+     * The VM becomes idle once this was its last running job.
+     *
+     * @param vmUuid the VM that a job succeeded on
+     * @param ipAddress the address of the VM, used to reap it
+     * @param flavour the flavour of the VM, null if not known
+     * @param jobUuid the job
+     * @param now the current time in milliseconds
+     */
+    void jobFinished(String vmUuid, String ipAddress, String flavour, String jobUuid, long now) {
+        final Set<String> jobs = busy.get(vmUuid);
+        if (jobs != null) {
+            jobs.remove(jobUuid);
+            if (!jobs.isEmpty()) {
+                return;
+            }
+            busy.remove(vmUuid);
+        }
+        idle.remove(vmUuid);
+        idle.put(vmUuid, new IdleVM(vmUuid, ipAddress, flavour, now));
+    }
+
+    /**
+     * Take back the VMs that were idle when the provisioner stopped, so that they are reaped in time rather than left running. They
+     * count as idle since their provisions were last updated.
+     *
+     * @param provisions the newest idle provision of each VM
+     * @param flavourOfJob looks up the flavour of a job, null if not known
+     * @param now the current time in milliseconds, used when a provision has no update time
+     */
+    void restore(Collection<Provision> provisions, Function<String, String> flavourOfJob, long now) {
+        for (Provision provision : provisions) {
+            final long idleSince = provision.getUpdateTimestamp() == null ? now : provision.getUpdateTimestamp().getTime();
+            jobFinished(provision.getProvisionUUID(), provision.getIpAddress(), flavourOfJob.apply(provision.getJobUUID()),
+                    provision.getJobUUID(), idleSince);
+        }
+    }
+
+    /**
+     * Stop keeping track of a VM, for example one that is reaped for other reasons.
+     *
+     * @param vmUuid the VM
+     */
+    void forget(String vmUuid) {
+        busy.remove(vmUuid);
+        idle.remove(vmUuid);
+    }
+
+    /**
+     * Take the VMs that should be reaped out of the pool.
+     *
+     * @param now the current time in milliseconds
+     * @param waiting the number of jobs by flavour that no worker has picked up yet
+     * @return the VMs to reap, oldest first
+     */
+    List<IdleVM> takeReapable(long now, ToIntFunction<String> waiting) {
+        Map<String, Integer> idleByFlavour = new HashMap<>();
+        for (IdleVM vm : idle.values()) {
+            idleByFlavour.merge(vm.getFlavour(), 1, Integer::sum);
+        }
+        List<IdleVM> reapable = new ArrayList<>();
+        for (Iterator<IdleVM> it = idle.values().iterator(); it.hasNext();) {
+            final IdleVM vm = it.next();
+            if (waiting.applyAsInt(vm.getFlavour()) > 0) {
+                continue;
+            }
+            final int idleOfFlavour = idleByFlavour.get(vm.getFlavour());
+            if (now - vm.getIdleSince() >= idleTimeoutMillis || idleOfFlavour > sizes.getOrDefault(vm.getFlavour(), Integer.MAX_VALUE)) {
+                reapable.add(vm);
+                it.remove();
+                idleByFlavour.put(vm.getFlavour(), idleOfFlavour - 1);
+            }
+        }
+        return reapable;
+    }
+
+    /**
+     * A VM with no running jobs.
+     */
+    static final class IdleVM {
+        private final String vmUuid;
+        private final String ipAddress;
+        private final String flavour;
+        private final long idleSince;
+
+        IdleVM(String vmUuid, String ipAddress, String flavour, long idleSince) {
+            this.vmUuid = vmUuid;
+            this.ipAddress = ipAddress;
+            this.flavour = flavour;
+            this.idleSince = idleSince;
+        }
+
+        String getVmUuid() {
+            return vmUuid;
+        }
+
+        String getIpAddress() {
+            return ipAddress;
+        }
+
+        String getFlavour() {
+            return flavour;
+        }
+
+        long getIdleSince() {
+            return idleSince;
+        }
+    }
+}
@@ -21,17 +21,19 @@ package io.consonance.arch.coordinator;
 
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.MessageCodec;
 import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
 import io.consonance.arch.persistence.PostgreSQL;
 import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.PublishConfirmTracker;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
@@ -39,18 +41,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -70,7 +75,13 @@ import java.util.concurrent.TimeoutException;
  */
 public class Coordinator extends Base {
 
-    private static final int DEFAULT_THREADS = 3;
+    /** one thread each for CleanupJobs and FlagJobs, the rest read orders */
+    private static final int NON_ORDER_THREADS = 2;
+    private static final int DEFAULT_ORDER_CONSUMERS = 1;
+    private static final int DEFAULT_ORDER_PREFETCH = 10;
+    private static final int CONFIRM_POLL_IN_MILLISECONDS = 100;
+    private static final int DEFAULT_RESULTS_BATCH_SIZE = 100;
+    private static final long DEFAULT_RESULTS_BATCH_MILLIS = 500;
 
     public static void main(String[] argv) throws Exception {
         Coordinator coordinator = new Coordinator(argv);
@@ -83,12 +94,21 @@ public class Coordinator extends Base {
     }
 
     public void doWork() throws InterruptedException, ExecutionException {
-        ExecutorService pool = Executors.newFixedThreadPool(DEFAULT_THREADS);
-        CoordinatorOrders coordinatorOrders = new CoordinatorOrders(this.configFile, this.options.has(this.endlessSpec));
-        CleanupJobs cleanupJobs = new CleanupJobs(this.configFile, this.options.has(this.endlessSpec));
+        HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(this.configFile);
+        final int orderConsumers = Math.max(1, settings.getInt(Constants.COORDINATOR_ORDER_CONSUMERS, DEFAULT_ORDER_CONSUMERS));
+        final int orderPrefetch = Math.max(1, settings.getInt(Constants.COORDINATOR_ORDER_PREFETCH, DEFAULT_ORDER_PREFETCH));
+        log.info("Starting " + orderConsumers + " order consumers with a prefetch of " + orderPrefetch);
+        final int resultsBatchSize = Math.max(1, settings.getInt(Constants.COORDINATOR_RESULTS_BATCH_SIZE, DEFAULT_RESULTS_BATCH_SIZE));
+        final long resultsBatchMillis = settings.getLong(Constants.COORDINATOR_RESULTS_BATCH_MILLIS, DEFAULT_RESULTS_BATCH_MILLIS);
+
+        ExecutorService pool = Executors.newFixedThreadPool(orderConsumers + NON_ORDER_THREADS);
+        CleanupJobs cleanupJobs = new CleanupJobs(this.configFile, this.options.has(this.endlessSpec), resultsBatchSize,
+                resultsBatchMillis);
         FlagJobs flagJobs = new FlagJobs(this.configFile, this.options.has(this.endlessSpec));
         List<Future<?>> futures = new ArrayList<>();
-        futures.add(pool.submit(coordinatorOrders));
+        for (int i = 0; i < orderConsumers; i++) {
+            futures.add(pool.submit(new CoordinatorOrders(this.configFile, this.options.has(this.endlessSpec), orderPrefetch)));
+        }
         futures.add(pool.submit(cleanupJobs));
         futures.add(pool.submit(flagJobs));
         try {
@@ -105,6 +125,9 @@ public class Coordinator extends Base {
 
     /**
      * Reads from the Order queue and breaks it up into VMs for the VM queue and jobs for the job queue.
+     *
+     * Several of these can run side by side, each with its own channels. Publishes to the VM queue and the job exchange are confirmed
+     * asynchronously and an order is only acknowledged once both of its publishes have been confirmed by the broker.
      */
     private static class CoordinatorOrders implements Callable<Void> {
 
@@ -115,12 +138,23 @@ public class Coordinator extends Base {
         private String configFile = null;
         private final Logger log = LoggerFactory.getLogger(getClass());
         private Channel jobChannel = null;
+        private PublishConfirmTracker vmConfirms = null;
+        private PublishConfirmTracker jobConfirms = null;
+        private PostgreSQL db = null;
+        private MessageCodec codec = null;
+        private final int prefetch;
 
         private Set<String> existingJobQueues = new HashSet<>();
+        private long localityWaitMillis;
+        private JobRouting routing = null;
+        /** orders whose publishes have been confirmed (or rejected) and can now be acked (or requeued) on the order channel */
+        private final BlockingQueue<ConfirmedOrder> confirmedOrders = new LinkedBlockingQueue<>();
+        private int unacknowledgedOrders = 0;
 
-        CoordinatorOrders(String config, boolean endless) throws InterruptedException {
+        CoordinatorOrders(String config, boolean endless, int prefetch) throws InterruptedException {
             this.endless = endless;
             this.configFile = config;
+            this.prefetch = prefetch;
         }
 
         @Override
@@ -130,74 +164,108 @@ public class Coordinator extends Base {
                 HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
 
                 queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+                codec = MessageCodec.fromSettings(settings);
+                localityWaitMillis = settings.getLong(Constants.RABBIT_LOCALITY_WAIT_MILLIS,
+                        CommonServerTestUtilities.DEFAULT_LOCALITY_WAIT_MILLIS);
+                routing = new JobRouting(localityWaitMillis);
                 // read from
                 orderChannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_orders");
+                orderChannel.basicQos(prefetch);
                 // write to
 
                 // create the job exchange
                 String exchange = queueName + "_job_exchange";
                 jobChannel = CommonServerTestUtilities.setupExchange(settings, exchange, "direct");
+                jobConfirms = new PublishConfirmTracker(jobChannel);
 
                 // full
                 // info
                 // write to
                 vmChannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_vms");
+                vmConfirms = new PublishConfirmTracker(vmChannel);
                 // read from
 
+                db = new PostgreSQL(settings);
+
                 QueueingConsumer consumer = new QueueingConsumer(orderChannel);
                 orderChannel.basicConsume(queueName + "_orders", false, consumer);
 
-                // TODO: need threads that each read from orders and another that reads results
                 do {
-
-                    QueueingConsumer.Delivery delivery = consumer.nextDelivery(FIVE_SECOND_IN_MILLISECONDS);
-                    if (delivery == null) {
-                        continue;
+                    // poll quickly while confirms are outstanding so that acks are not held back behind an idle queue
+                    QueueingConsumer.Delivery delivery = consumer.nextDelivery(unacknowledgedOrders == 0 ? FIVE_SECOND_IN_MILLISECONDS
+                            : CONFIRM_POLL_IN_MILLISECONDS);
+                    if (delivery != null) {
+                        // orders may come in either format, whatever we publish
+                        Order order = MessageCodec.forProperties(delivery.getProperties()).decodeOrder(delivery.getBody());
+                        log.info(" [x] RECEIVED ORDER: " + order.getOrderUUID());
+                        if (log.isDebugEnabled()) {
+                            log.debug(order.toJSON());
+                        }
+
+                        // run the job
+                        CompletableFuture<Void> vmConfirm = requestVm(order.getProvision());
+                        CompletableFuture<Void> jobConfirm = publishJob(exchange, order.getJob());
+
+                        final long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+                        unacknowledgedOrders++;
+                        CompletableFuture.allOf(vmConfirm, jobConfirm).whenComplete(
+                                (result, error) -> confirmedOrders.add(new ConfirmedOrder(deliveryTag, error)));
                     }
-                    // jchannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    log.info(" [x] RECEIVED ORDER:\n'" + message + "'\n");
-
-                    // run the job
-                    Order order = new Order().fromJSON(message);
-
-                    requestVm(order.getProvision().toJSON());
-                    publishJob(settings, exchange, order.getJob().toJSON());
-
-                    log.info("acknowledging " + delivery.getEnvelope().toString());
-                    orderChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    acknowledgeConfirmedOrders(0);
                 } while (endless);
 
+                // give outstanding confirms a chance to arrive before shutting down, anything left will be redelivered
+                while (unacknowledgedOrders > 0 && acknowledgeConfirmedOrders(FIVE_SECOND_IN_MILLISECONDS) > 0) {
+                    log.debug(unacknowledgedOrders + " orders still waiting on publisher confirms");
+                }
+
             } catch (IOException ex) {
                 log.error(ex.getMessage(), ex);
                 throw new RuntimeException(ex);
             } catch (InterruptedException | ShutdownSignalException | ConsumerCancelledException | NullPointerException ex) {
                 log.error(ex.getMessage(), ex);
             } finally {
-                // orderChannel.close();
-                if (orderChannel != null) {
-                    orderChannel.getConnection().close();
-                }
-                // jobChannel.close();
-                if (jobChannel != null) {
-                    jobChannel.getConnection().close();
-                }
-                // vmChannel.close();
-                if (vmChannel != null) {
-                    vmChannel.getConnection().close();
-                }
+                CommonServerTestUtilities.closeChannel(orderChannel);
+                CommonServerTestUtilities.closeChannel(jobChannel);
+                CommonServerTestUtilities.closeChannel(vmChannel);
             }
             return null;
         }
 
+        /**
+         * Ack orders whose VM and job publishes were both confirmed, requeue orders where either publish was rejected.
+         *
+         * @param waitMillis how long to wait for the first confirmed order to show up
+         * @return the number of orders acked or requeued
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private int acknowledgeConfirmedOrders(long waitMillis) throws IOException, InterruptedException {
+            int count = 0;
+            ConfirmedOrder confirmed = waitMillis > 0 ? confirmedOrders.poll(waitMillis, TimeUnit.MILLISECONDS) : confirmedOrders.poll();
+            while (confirmed != null) {
+                if (confirmed.error == null) {
+                    log.info("acknowledging order " + confirmed.deliveryTag);
+                    orderChannel.basicAck(confirmed.deliveryTag, false);
+                } else {
+                    log.error("publish for order " + confirmed.deliveryTag + " was not confirmed, requeuing", confirmed.error);
+                    orderChannel.basicNack(confirmed.deliveryTag, false, true);
+                }
+                unacknowledgedOrders--;
+                count++;
+                confirmed = confirmedOrders.poll();
+            }
+            return count;
+        }
+
         /**
          * Requests a new VM from the VM queue.
          *
-         * @param message
-         *            a JSON representation of a Provision
-         * @return
+         * @param provision
+         *            the provision for the VM
+         * @return a future that completes when the broker confirms the VM request
          */
-        private String requestVm(String message) {
+        private CompletableFuture<Void> requestVm(Provision provision) {
 
             // TODO: should save information to persistent storage
 
@@ -205,37 +273,35 @@ public class Coordinator extends Base {
 
                 log.info(" + SENDING VM ORDER! " + queueName + "_vms");
 
-                int messages = vmChannel.queueDeclarePassive(queueName + "_vms").getMessageCount();
-                log.info("  + VM QUEUE SIZE: " + messages);
-
-                vmChannel.basicPublish("", queueName + "_vms", MessageProperties.PERSISTENT_TEXT_PLAIN,
-                        message.getBytes(StandardCharsets.UTF_8));
-                vmChannel.waitForConfirms();
+                if (log.isDebugEnabled()) {
+                    // this is a synchronous round-trip to the broker, only pay for it when someone is looking
+                    int messages = vmChannel.queueDeclarePassive(queueName + "_vms").getMessageCount();
+                    log.debug("  + VM QUEUE SIZE: " + messages);
+                }
 
-                log.info(" + MESSAGE SENT!\n" + message + "\n");
+                CompletableFuture<Void> confirm = vmConfirms.publish("", queueName + "_vms", codec.persistentProperties(),
+                        codec.encode(provision));
 
-            } catch (IOException | InterruptedException ex) {
+                log.info(" + MESSAGE SENT! " + provision.getJobUUID());
+                return confirm;
+            } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
-
-            return null;
-
         }
 
         /**
-         * This sends a Job message to the job exchange.
+         * This sends a Job message to the job exchange. Jobs with a locality key go to the queue for workers that have it cached, and
+         * from there to the queue for their flavour if none of those workers takes them in time.
          *
-         * @param settings consonance config file
-         * @param message a particular job to schedule
-         * @return
+         * @param exchangeName the job exchange
+         * @param newJob a particular job to schedule
+         * @return a future that completes when the broker confirms the job
          */
-        private String publishJob(HierarchicalINIConfiguration settings, String exchangeName, String message) {
+        private CompletableFuture<Void> publishJob(String exchangeName, Job newJob) {
 
             try {
                 log.info(" + sending job order! " + queueName + "_jobs");
 
-                PostgreSQL db = new PostgreSQL(settings);
-                Job newJob = new Job().fromJSON(message);
                 db.updateJob(newJob.getUuid(), newJob.getVmUuid(), JobState.PENDING);
                 final String routingKey = newJob.getFlavour();
                 // see if a particular queue type exist yet
@@ -245,31 +311,81 @@ public class Coordinator extends Base {
                             .setupQueueOnExchange(jobChannel, queueName + "_jobs", newJob.getFlavour());
                     jobChannel.queueBind(finalQueueName, exchangeName, newJob.getFlavour());
                 }
-                jobChannel.basicPublish(exchangeName, newJob.getFlavour() , MessageProperties.PERSISTENT_TEXT_PLAIN,
-                        message.getBytes(StandardCharsets.UTF_8));
+                final String jobRoutingKey = localityQueueOrFlavour(exchangeName, newJob);
+                CompletableFuture<Void> confirm = jobConfirms.publish(exchangeName, jobRoutingKey,
+                        codec.persistentProperties(), codec.encode(newJob));
 
-                log.info(" + message sent!\n" + message + "\n");
-                return message;
+                log.info(" + message sent! " + newJob.getUuid());
+                return confirm;
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
         }
 
+        /**
+         * Make sure the locality queue for a job exists before publishing to it. The queue is declared on a channel of its own since a
+         * failed declare closes the channel, and the job goes to the queue for its flavour when that fails.
+         *
+         * @param exchangeName the job exchange
+         * @param newJob the job to publish
+         * @return the routing key to publish the job with
+         */
+        private String localityQueueOrFlavour(String exchangeName, Job newJob) {
+            final String jobRoutingKey = routing.routingKey(newJob);
+            if (!routing.isLocal(newJob) || !routing.declareDue(jobRoutingKey, System.currentTimeMillis())) {
+                return jobRoutingKey;
+            }
+            Channel declareChannel = null;
+            try {
+                declareChannel = jobChannel.getConnection().createChannel();
+                CommonServerTestUtilities.setupLocalityQueueOnExchange(declareChannel, queueName + "_jobs", exchangeName,
+                        newJob.getFlavour(), newJob.getLocality(), localityWaitMillis);
+                return jobRoutingKey;
+            } catch (IOException | RuntimeException ex) {
+                log.error("Could not set up the locality queue " + jobRoutingKey + ", sending job " + newJob.getUuid()
+                        + " to the queue for its flavour", ex);
+                routing.declareFailed(jobRoutingKey);
+                return newJob.getFlavour();
+            } finally {
+                CommonServerTestUtilities.closeChannel(declareChannel);
+            }
+        }
+
+        /**
+         * An order whose publishes have all been confirmed by the broker (error is null) or at least one was rejected.
+         */
+        private static final class ConfirmedOrder {
+            private final long deliveryTag;
+            private final Throwable error;
+
+            ConfirmedOrder(long deliveryTag, Throwable error) {
+                this.deliveryTag = deliveryTag;
+                this.error = error;
+            }
+        }
+
     }
 
     /**
      * This de-queues the VM requests and stages them in the DB as pending so I can keep a count of what's running/pending/finished.
      *
+     * Results are drained in micro-batches, heartbeats for the same job are coalesced down to the latest state and the whole batch is
+     * written in one transaction and acknowledged with a single multiple ack.
+     *
      * This looks like a duplicate class from ContainerProvisionerThreads.
      */
     private static class CleanupJobs implements Callable<Void> {
         static final Logger LOG = LoggerFactory.getLogger(CleanupJobs.class);
         private final boolean endless;
         private String configFile = null;
+        private final int batchSize;
+        private final long batchMillis;
 
-        CleanupJobs(String config, boolean endless) throws InterruptedException {
+        CleanupJobs(String config, boolean endless, int batchSize, long batchMillis) throws InterruptedException {
             this.endless = endless;
             this.configFile = config;
+            this.batchSize = batchSize;
+            this.batchMillis = batchMillis;
         }
 
         @Override
@@ -293,40 +409,32 @@ public class Coordinator extends Base {
                 // writes to DB as well
                 PostgreSQL db = new PostgreSQL(settings);
 
-                // TODO: need threads that each read from orders and another that reads results
                 do {
 
                     QueueingConsumer.Delivery delivery = resultsConsumer.nextDelivery(FIVE_SECOND_IN_MILLISECONDS);
                     if (delivery == null) {
                         continue;
                     }
-                    // jchannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    LOG.info(" [x] RECEIVED RESULT MESSAGE - Coordinator: '" + message + "'");
-
-                    // now parse it as JSONObj
-                    Status status = new Status().fromJSON(message);
-
-                    // now update that DB record to be exited
-                    // this is actually finishing the VM and not the work
-                    if (status.getState() == StatusState.SUCCESS && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
-                        // this is where it reaps, the job status message also contains the UUID for the VM
-                        LOG.info("\n\n\nFINISHING THE JOB!!!!!!!!!!!!!!!\n\n");
-                        db.finishJob(status.getJobUuid());
-                    } else if ((status.getState() == StatusState.RUNNING || status.getState() == StatusState.FAILED || status.getState() == StatusState.PENDING)
-                            && CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
-                        // this is where it reaps, the job status message also contains the UUID for the VM
-                        // convert from StatusState to JobState
-                        JobState valueOf = JobState.valueOf(status.getState().toString());
-                        db.updateJob(status.getJobUuid(), status.getVmUuid(), valueOf);
-                    }
 
-                    // TODO: deal with other situations here like
+                    // drain up to batchSize deliveries or whatever arrives within batchMillis, keeping the latest state per job
+                    final long deadline = System.currentTimeMillis() + batchMillis;
+                    Map<String, Job> latestStates = new LinkedHashMap<>();
+                    long lastDeliveryTag = delivery.getEnvelope().getDeliveryTag();
+                    int batched = 0;
+                    while (delivery != null) {
+                        batched++;
+                        lastDeliveryTag = delivery.getEnvelope().getDeliveryTag();
+                        coalesce(latestStates, delivery);
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (batched >= batchSize || remaining <= 0) {
+                            break;
+                        }
+                        delivery = resultsConsumer.nextDelivery(remaining);
+                    }
 
-                    /*
-                     * try { // pause Thread.sleep(5000); } catch (InterruptedException ex) { //log.error(ex.toString()); }
-                     */
-                    resultsChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    LOG.info("Applying " + latestStates.size() + " job updates from " + batched + " result messages");
+                    db.updateJobs(latestStates.values());
+                    resultsChannel.basicAck(lastDeliveryTag, true);
                 } while (endless);
 
             } catch (IOException ex) {
@@ -334,16 +442,57 @@ public class Coordinator extends Base {
             } catch (InterruptedException | ShutdownSignalException | ConsumerCancelledException ex) {
                 throw new RuntimeException(ex);
             } finally {
-                if (resultsChannel != null) {
-                    resultsChannel.close();
-                    resultsChannel.getConnection().close();
-                }
+                CommonServerTestUtilities.closeChannel(resultsChannel);
             }
             // log.error(ex.toString());
             // log.error(ex.toString());
             return null;
         }
 
+        /**
+         * Fold one result message into the pending batch.
+         *
+         * A terminal state (success or failure) already seen for a job in this batch is not overwritten by a late heartbeat.
+         *
+         * @param latestStates job uuid to the latest state seen for it in the current batch
+         * @param delivery the result message
+         */
+        private void coalesce(Map<String, Job> latestStates, QueueingConsumer.Delivery delivery) {
+            final Status status;
+            try {
+                status = MessageCodec.forProperties(delivery.getProperties()).decodeStatus(delivery.getBody());
+            } catch (IOException e) {
+                LOG.warn("Ignoring result that is not a status: " + e.getMessage());
+                return;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(" [x] RECEIVED RESULT MESSAGE - Coordinator: '" + status.toJSON() + "'");
+            }
+
+            if (!CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
+                // TODO: deal with other situations here
+                return;
+            }
+            if (status.getState() == StatusState.SUCCESS || status.getState() == StatusState.RUNNING
+                    || status.getState() == StatusState.FAILED || status.getState() == StatusState.PENDING) {
+                // convert from StatusState to JobState
+                JobState newState = JobState.valueOf(status.getState().toString());
+                Job previous = latestStates.get(status.getJobUuid());
+                if (previous != null && (previous.getState() == JobState.SUCCESS || previous.getState() == JobState.FAILED)
+                        && (newState == JobState.RUNNING || newState == JobState.PENDING)) {
+                    return;
+                }
+                if (newState == JobState.SUCCESS) {
+                    LOG.info("FINISHING THE JOB " + status.getJobUuid());
+                }
+                Job update = new Job();
+                update.setUuid(status.getJobUuid());
+                update.setVmUuid(status.getVmUuid());
+                update.setState(newState);
+                latestStates.put(status.getJobUuid(), update);
+            }
+        }
+
     }
 
     /**
@@ -367,39 +516,29 @@ public class Coordinator extends Base {
             // writes to DB as well
             PostgreSQL db = new PostgreSQL(settings);
 
-            // TODO: need threads that each read from orders and another that reads results
-            do {
+            // how long before we call something lost?
+            // it is tempting to un-lose jobs here, but the problem is that we only have the update timestamp and that is modified when
+            // jobs are lost, meaning they instantly flip back
+            final long secBeforeLost = settings.getLong(Constants.COORDINATOR_SECONDS_BEFORE_LOST);
 
-                // checks the jobs in the database and sees if any have become "lost"
-                List<Job> jobs = db.getJobs(JobState.RUNNING);
-
-                // how long before we call something lost?
-                // it is tempting to un-lose jobs here, but the problem is that we only have the update timestamp and that is modified when
-                // jobs are lost, meaning they instantly flip back
-                long secBeforeLost = settings.getLong(Constants.COORDINATOR_SECONDS_BEFORE_LOST);
-
-                for (Job job : jobs) {
-                    Timestamp nowTs = new Timestamp(new Date().getTime());
-                    Timestamp updateTs = job.getUpdateTimestamp();
-
-                    long diff = nowTs.getTime() - updateTs.getTime();
-                    long diffSec = Math.abs(diff / Base.ONE_SECOND_IN_MILLISECONDS);
-
-                    log.info(job.getUuid() + " DIFF SEC: " + diffSec + " MAX: " + secBeforeLost);
-
-                    JobState state = job.getState();
-                    // if this is true need to mark the job as lost!
-                    if (state == JobState.RUNNING && diffSec > secBeforeLost) {
-                        // it must be lost
-                        log.error("Running job " + job.getUuid() + " not seen in " + diffSec + " > " + secBeforeLost + " MARKING AS LOST!");
-                        db.updateJob(job.getUuid(), job.getVmUuid(), JobState.LOST);
-                    }
+            do {
 
+                // flags running jobs that have become "lost" in one pass over the (status, update_timestamp) index
+                List<String> lostJobs = db.flagLostJobs(secBeforeLost);
+                for (String jobUuid : lostJobs) {
+                    log.error("Running job " + jobUuid + " not seen in over " + secBeforeLost + " seconds, MARKED AS LOST!");
                 }
 
+                // sleep until the oldest running job could expire, a job that starts running while we sleep cannot expire before
+                // secBeforeLost has passed so that is the longest we need to wait
+                Double secondsUntilNext = db.getSecondsUntilNextLostJob(secBeforeLost);
+                long sleepSeconds = secondsUntilNext == null ? secBeforeLost : (long) Math.ceil(secondsUntilNext);
+                sleepSeconds = Math.max(1, Math.min(sleepSeconds, secBeforeLost));
+                log.debug("Next lost job check in " + sleepSeconds + " seconds");
+
                 try {
                     // pause
-                    Thread.sleep(Base.FIVE_SECOND_IN_MILLISECONDS);
+                    Thread.sleep(sleepSeconds * Base.ONE_SECOND_IN_MILLISECONDS);
                 } catch (InterruptedException ex) {
                     throw new RuntimeException(ex);
                 }
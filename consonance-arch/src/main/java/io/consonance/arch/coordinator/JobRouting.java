@@ -0,0 +1,91 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.coordinator;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the routing key that a job is published with, and when the locality queue behind it has to be declared again.
+ *
+ * Jobs with a locality key go to the queue for workers that have it cached. Those queues expire when nothing uses them, so they are
+ * declared again once they have not been declared for longer than a job waits in them.
+ *
+ * This is only used from the thread that publishes jobs and is not thread-safe.
+ *
+ * @author dyuen
+ */
+final class JobRouting {
+
+    private final long localityWaitMillis;
+    /** when each locality queue was last declared, by routing key */
+    private final Map<String, Long> declared = new HashMap<>();
+
+    /**
+     * @param localityWaitMillis how long a job waits for a worker with its locality key cached, 0 or less turns locality off
+     */
+    JobRouting(long localityWaitMillis) {
+        this.localityWaitMillis = localityWaitMillis;
+    }
+
+    /**
+     * @param job a job to publish
+     * @return true if the job goes to a locality queue first, jobs whose key cannot be part of a queue name go to their flavour
+     */
+    boolean isLocal(Job job) {
+        return localityWaitMillis > 0 && CommonServerTestUtilities.isValidLocality(job.getLocality());
+    }
+
+    /**
+     * @param job a job to publish
+     * @return the routing key of its locality queue, or its flavour
+     */
+    String routingKey(Job job) {
+        return isLocal(job) ? CommonServerTestUtilities.localityRoutingKey(job.getFlavour(), job.getLocality()) : job.getFlavour();
+    }
+
+    /**
+     * Check whether a locality queue has to be declared before publishing to it, and if so count it as declared now.
+     *
+     * @param routingKey the routing key of the locality queue
+     * @param now the current time in milliseconds
+     * @return true if the queue has not been declared yet, or not for longer than a job waits in it
+     */
+    boolean declareDue(String routingKey, long now) {
+        final Long last = declared.get(routingKey);
+        if (last != null && now - last <= localityWaitMillis) {
+            return false;
+        }
+        declared.put(routingKey, now);
+        return true;
+    }
+
+    /**
+     * Forget that a locality queue was declared after declaring it failed, so that the next job with its key tries again.
+     *
+     * @param routingKey the routing key of the locality queue
+     */
+    void declareFailed(String routingKey) {
+        declared.remove(routingKey);
+    }
+}
@@ -20,9 +20,9 @@
 package io.consonance.arch.jobGenerator;
 
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.MessageCodec;
 import io.consonance.arch.beans.Order;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.utils.CommonServerTestUtilities;
@@ -37,7 +37,6 @@ import org.apache.tools.ant.DirectoryScanner;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -139,11 +138,7 @@ public class JobGenerator extends Base {
             }
         }
 
-        try {
-            jchannel.getConnection().close(FIVE_SECOND_IN_MILLISECONDS);
-        } catch (IOException ex) {
-            log.error(ex.toString());
-        }
+        CommonServerTestUtilities.closeChannel(jchannel);
 
     }
 
@@ -156,7 +151,7 @@ public class JobGenerator extends Base {
         Order o = generateNewJob(iniFile, extraFiles);
         // enqueue new job
         if (o != null) {
-            enqueueNewJobs(o.toJSON());
+            enqueueNewJobs(o);
         }
         try {
             // pause
@@ -208,12 +203,15 @@ public class JobGenerator extends Base {
         return newOrder;
     }
 
-    private void enqueueNewJobs(String job) {
+    private void enqueueNewJobs(Order order) {
 
         try {
-            log.info("\nSENDING JOB:\n '" + job + "'\n" + this.jchannel + " \n");
-            this.jchannel.basicPublish("", queueName + "_orders", MessageProperties.PERSISTENT_TEXT_PLAIN,
-                    job.getBytes(StandardCharsets.UTF_8));
+            log.info("Sending job " + order.getJob().getUuid() + " on " + this.jchannel);
+            if (log.isDebugEnabled()) {
+                log.debug("Order body: " + order.toJSON());
+            }
+            final MessageCodec codec = MessageCodec.fromSettings(settings);
+            this.jchannel.basicPublish("", queueName + "_orders", codec.persistentProperties(), codec.encode(order));
             jchannel.waitForConfirms();
         } catch (IOException | InterruptedException ex) {
             log.error(ex.toString());
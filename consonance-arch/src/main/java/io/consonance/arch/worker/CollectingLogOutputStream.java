@@ -20,22 +20,72 @@
 package io.consonance.arch.worker;
 
 import org.apache.commons.exec.LogOutputStream;
-import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A log output stream to use with Apache Exec.
  *
+ * Only the most recent lines are kept in memory, in a fixed size ring buffer. When a spill file is given, every line is also appended to
+ * it so the full log survives on disk.
+ *
+ * Every line also has a byte offset, its position in the UTF-8 encoded stream with a \n after each line, so that readers can ask for
+ * only what was written after the point they have already seen.
+ *
  * @author sshorser
  *
  */
 public class CollectingLogOutputStream extends LogOutputStream {
-    private final List<String> lines = new LinkedList<>();
+
+    /**
+     * How many lines are kept in memory when no capacity is given.
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+    private static final Logger LOG = LoggerFactory.getLogger(CollectingLogOutputStream.class);
+
+    private final String[] ring;
+    /** the byte offset of each line held in ring */
+    private final long[] ringOffsets;
+    private final Path spillFile;
+    private Writer spillWriter;
+    private boolean spilling;
+    /** total number of lines seen, the next line goes into ring[lineCount % ring.length] */
+    private long lineCount = 0;
+    /** total number of bytes seen, counting a \n after every line */
+    private long byteCount = 0;
+
+    public CollectingLogOutputStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many of the most recent lines to keep in memory
+     */
+    public CollectingLogOutputStream(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity how many of the most recent lines to keep in memory
+     * @param spillFile a file that every line is appended to, null to keep only the lines in memory
+     */
+    public CollectingLogOutputStream(int capacity, Path spillFile) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+        }
+        this.ring = new String[capacity];
+        this.ringOffsets = new long[capacity];
+        this.spillFile = spillFile;
+        this.spilling = spillFile != null;
+    }
 
     /**
      * Process a line.
@@ -46,29 +96,45 @@ public class CollectingLogOutputStream extends LogOutputStream {
      *            - a logging level. Not used in this implementation.
      */
     @Override
-    protected void processLine(String line, int level) {
-        Lock lock = new ReentrantLock();
-        lock.lock();
+    protected synchronized void processLine(String line, int level) {
         // workaround for dcc-storage, break up on carriage returns as well
         String[] splitLines = line.split("\r");
         for(String lineSegment: splitLines){
-            lines.add(lineSegment);
+            ring[(int)(lineCount % ring.length)] = lineSegment;
+            ringOffsets[(int)(lineCount % ring.length)] = byteCount;
+            lineCount++;
+            byteCount += lineSegment.getBytes(StandardCharsets.UTF_8).length + 1;
+            spill(lineSegment);
+        }
+    }
+
+    private void spill(String line) {
+        if (!spilling) {
+            return;
+        }
+        try {
+            if (spillWriter == null) {
+                spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8);
+            }
+            spillWriter.write(line);
+            spillWriter.write('\n');
+        } catch (IOException e) {
+            // keep collecting in memory, losing the copy on disk should not fail the job
+            LOG.error("Could not write to log spill file " + spillFile + ", no longer spilling", e);
+            closeSpill();
         }
-        lock.unlock();
     }
 
     /**
-     * Get all the lines concatenated into a single string, with \n between each line.
+     * Get all the lines still held in memory concatenated into a single string, with \n between each line.
+     *
+     * When more lines than the capacity were written, only the most recent ones are returned, the full log is in the spill file.
      * 
-     * @return
+     * @return the lines held in memory
      */
     public String getAllLinesAsString() {
-        Lock lock = new ReentrantLock();
-        lock.lock();
         // TODO: Add functionality to allow other join characters besides \n ? (not urgent)
-        String allTheLines = StringUtils.join(this.lines, "\n");
-        lock.unlock();
-        return allTheLines;
+        return String.join("\n", getLastNLines(ring.length));
     }
 
     /**
@@ -76,19 +142,137 @@ public class CollectingLogOutputStream extends LogOutputStream {
      * 
      * @param n
      *            - The number of lines to get.
-     * @return A list of strings.
+     * @return A copy of the lines, oldest first, which may be fewer than n when fewer lines are held.
      */
-    public List<String> getLastNLines(int n) {
-        Lock lock = new ReentrantLock();
-        lock.lock();
-        List<String> nlines = new ArrayList<String>(n);
-        int start, end;
-        end = this.lines.size();
-        start = Math.max(0, this.lines.size() - n);
-        if (end > start && start >= 0) {
-            nlines = this.lines.subList(start, end);
+    public synchronized List<String> getLastNLines(int n) {
+        final int available = (int)Math.min(lineCount, ring.length);
+        final int count = Math.max(0, Math.min(n, available));
+        List<String> nlines = new ArrayList<>(count);
+        for (long i = lineCount - count; i < lineCount; i++) {
+            nlines.add(ring[(int)(i % ring.length)]);
         }
-        lock.unlock();
         return nlines;
     }
+
+    /**
+     * @return how many lines were written in total, including ones no longer held in memory
+     */
+    public synchronized long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return how many bytes were written in total, counting a \n after every line
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Read the lines written at or after a byte offset.
+     *
+     * Only whole lines are returned. When lines after the offset were already pushed out of memory the chunk starts at the oldest line
+     * still held, so its offset is then greater than the one asked for.
+     *
+     * @param offset the byte offset to read from, usually the end of the previous chunk
+     * @param maxBytes roughly how many bytes to return, at least one line is returned when there is one even if it is longer
+     * @return the lines, each followed by \n, which is empty when nothing was written at or after the offset
+     */
+    public synchronized LogChunk readFrom(long offset, int maxBytes) {
+        final long oldest = lineCount - Math.min(lineCount, ring.length);
+        // find the first line held in memory that starts at or after the offset
+        long low = oldest;
+        long high = lineCount;
+        while (low < high) {
+            final long mid = (low + high) >>> 1;
+            if (ringOffsets[(int)(mid % ring.length)] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == lineCount) {
+            return new LogChunk(offset, offset, "");
+        }
+        final long start = ringOffsets[(int)(low % ring.length)];
+        StringBuilder text = new StringBuilder();
+        long end = start;
+        for (long i = low; i < lineCount && (i == low || end - start < maxBytes); i++) {
+            final String line = ring[(int)(i % ring.length)];
+            text.append(line).append('\n');
+            end += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        return new LogChunk(start, end, text.toString());
+    }
+
+    /**
+     * @return the file that every line is appended to, or null when not spilling
+     */
+    public Path getSpillFile() {
+        return spillFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // flushes any partial last line through processLine before the spill file goes away
+        super.close();
+        synchronized (this) {
+            closeSpill();
+        }
+    }
+
+    private void closeSpill() {
+        spilling = false;
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                LOG.error("Could not close log spill file " + spillFile, e);
+            }
+            spillWriter = null;
+        }
+    }
+
+    /**
+     * A run of whole lines and where they sit in the stream.
+     */
+    public static final class LogChunk {
+        private final long offset;
+        private final long end;
+        private final String text;
+
+        LogChunk(long offset, long end, String text) {
+            this.offset = offset;
+            this.end = end;
+            this.text = text;
+        }
+
+        /**
+         * @return the byte offset of the first line
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the byte offset just after the last line, where the next read should start
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the lines, each followed by \n
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return whether there are no lines in this chunk
+         */
+        public boolean isEmpty() {
+            return end == offset;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.QueueingConsumer;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Consumes jobs and knows when the broker is done cancelling its subscriptions. The broker hands over every delivery for a
+ * subscription before it confirms the cancellation, so once all of them are confirmed nothing more can arrive here.
+ *
+ * @author dyuen
+ */
+final class JobConsumer extends QueueingConsumer {
+
+    private final Set<String> cancelled = new HashSet<>();
+
+    JobConsumer(Channel channel) {
+        super(channel);
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        super.handleCancelOk(consumerTag);
+        synchronized (cancelled) {
+            cancelled.add(consumerTag);
+            cancelled.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the broker to confirm that subscriptions were cancelled.
+     *
+     * @param consumerTags the subscriptions
+     * @param timeoutMillis how long to wait
+     * @return true if all of them were confirmed in time
+     * @throws InterruptedException when interrupted while waiting
+     */
+    boolean awaitCancelled(Collection<String> consumerTags, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (cancelled) {
+            while (!cancelled.containsAll(consumerTags)) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                cancelled.wait(remaining);
+            }
+            return true;
+        }
+    }
+}
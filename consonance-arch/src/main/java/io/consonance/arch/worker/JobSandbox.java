@@ -0,0 +1,152 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Job;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+/**
+ * A directory that holds the descriptors and extra files of a single job, named for the job uuid.
+ *
+ * Jobs in the same JVM do not see each other's files, and nothing is left behind for the next job. Extra files with relative paths are
+ * written inside the sandbox, absolute paths are written where they point and are never cleaned up.
+ *
+ * @author dyuen
+ */
+class JobSandbox {
+
+    static final String IMAGE_DESCRIPTOR = "image-descriptor.cwl";
+    static final String RUN_DESCRIPTOR = "run-descriptor.json";
+    static final String LAUNCHER_CONFIG = "cwl-launcher.config";
+    private static final Logger LOG = LoggerFactory.getLogger(JobSandbox.class);
+
+    private final Path directory;
+    private final Set<Path> kept = new HashSet<>();
+
+    private JobSandbox(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create and fill in a sandbox for a job.
+     *
+     * @param root the directory that sandboxes are created in, this can be on a tmpfs
+     * @param job the job
+     * @param launcherConfig a launcher config to copy into the sandbox, an empty one is created when this does not exist
+     * @return the sandbox
+     * @throws IOException thrown when the sandbox cannot be written
+     */
+    static JobSandbox create(Path root, Job job, Path launcherConfig) throws IOException {
+        JobSandbox sandbox = new JobSandbox(Files.createDirectories(root.resolve(job.getUuid())));
+        if (Files.exists(launcherConfig)) {
+            Files.copy(launcherConfig, sandbox.getLauncherConfig(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.createFile(sandbox.getLauncherConfig());
+        }
+        FileUtils.writeStringToFile(sandbox.getImageDescriptor().toFile(), job.getContainerImageDescriptor(), StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(sandbox.getRunDescriptor().toFile(), job.getContainerRuntimeDescriptor(), StandardCharsets.UTF_8);
+        for (Map.Entry<String, Job.ExtraFile> entry : job.getExtraFiles().entrySet()) {
+            final Path target = sandbox.directory.resolve(entry.getKey()).normalize();
+            FileUtils.write(target.toFile(), entry.getValue().getContents(), StandardCharsets.UTF_8);
+            if (entry.getValue().isKeep()) {
+                sandbox.kept.add(target);
+            }
+        }
+        return sandbox;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    Path getImageDescriptor() {
+        return directory.resolve(IMAGE_DESCRIPTOR);
+    }
+
+    Path getRunDescriptor() {
+        return directory.resolve(RUN_DESCRIPTOR);
+    }
+
+    Path getLauncherConfig() {
+        return directory.resolve(LAUNCHER_CONFIG);
+    }
+
+    /**
+     * Delete the sandbox in the background, keeping extra files that asked to be kept along with the directories holding them.
+     *
+     * @param cleaner runs the deletion off the job's critical path
+     * @return completes once the sandbox is cleaned up
+     */
+    CompletableFuture<Void> cleanup(Executor cleaner) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                delete();
+            } catch (IOException e) {
+                LOG.error("Could not clean up sandbox " + directory + ": " + e.getMessage(), e);
+            }
+        }, cleaner);
+    }
+
+    void delete() throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!kept.contains(file.normalize())) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                try (Stream<Path> children = Files.list(dir)) {
+                    if (!children.findAny().isPresent()) {
+                        Files.delete(dir);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        LOG.debug("Cleaned up sandbox " + directory);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The locality keys a worker advertises, standing for data it has cached such as reference data sets. The worker consumes from the
+ * queue for each of them, so jobs with one of these keys come to it before they go to any worker of its flavour.
+ *
+ * The keys are the ones in its settings, which never change, and the ones of jobs it ran successfully, of which only the most recent
+ * are kept.
+ *
+ * @author dyuen
+ */
+final class LocalityKeys {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalityKeys.class);
+
+    static final int MAX_LEARNED_KEYS = 16;
+
+    private final Set<String> configured = new LinkedHashSet<>();
+    /** keys of jobs that ran here, least recently used first */
+    private final Set<String> learned = new LinkedHashSet<>();
+    private final int maxLearned;
+
+    /**
+     * @param configured the keys this worker always advertises
+     * @param maxLearned the most keys to remember from jobs that ran here
+     */
+    LocalityKeys(Collection<String> configured, int maxLearned) {
+        this.configured.addAll(configured);
+        this.maxLearned = maxLearned;
+    }
+
+    /**
+     * Read localityKeys from the worker settings, a comma separated list of keys for data that is on this worker's VM from the
+     * start.
+     *
+     * @param settings the worker settings
+     * @return the keys to advertise
+     */
+    static LocalityKeys fromSettings(HierarchicalINIConfiguration settings) {
+        List<String> keys = new ArrayList<>();
+        for (String key : settings.getStringArray(Constants.WORKER_LOCALITY_KEYS)) {
+            if (CommonServerTestUtilities.isValidLocality(key.trim())) {
+                keys.add(key.trim());
+            } else if (!key.trim().isEmpty()) {
+                LOG.warn("Ignoring locality key " + key.trim() + ", it cannot be part of a queue name");
+            }
+        }
+        return new LocalityKeys(keys, MAX_LEARNED_KEYS);
+    }
+
+    /**
+     * Remember the key of a job that ran successfully here, its data is now likely to be cached.
+     *
+     * @param key the locality key of the job, may be null, keys that cannot be part of a queue name are skipped
+     */
+    synchronized void learn(String key) {
+        if (!CommonServerTestUtilities.isValidLocality(key) || configured.contains(key)) {
+            return;
+        }
+        learned.remove(key);
+        learned.add(key);
+        final Iterator<String> oldest = learned.iterator();
+        while (learned.size() > maxLearned) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return the keys to advertise, configured ones first
+     */
+    synchronized List<String> keys() {
+        List<String> keys = new ArrayList<>(configured);
+        keys.addAll(learned);
+        return keys;
+    }
+}
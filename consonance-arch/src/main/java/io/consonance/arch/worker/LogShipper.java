@@ -0,0 +1,125 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out which part of a job's output still has to be sent to the launcher.
+ *
+ * Output goes out as deltas: each status carries the lines written since the last offset the launcher is known to have received, tagged with
+ * the byte offset they start at and a sequence number. The launcher appends a delta to what it already stored and skips any bytes it
+ * already has, so a delta that is sent twice or that arrives after a later one does no harm.
+ *
+ * @author dyuen
+ */
+class LogShipper {
+
+    /**
+     * Roughly the most output a single heartbeat carries, anything beyond this goes out with the next one.
+     */
+    static final int MAX_CHUNK_BYTES = 256 * 1024;
+    private static final Logger LOG = LoggerFactory.getLogger(LogShipper.class);
+
+    private final String jobUuid;
+    private final WorkflowRunner source;
+    /** the launcher has all output before these offsets */
+    private long stdOutAcked = 0;
+    private long stdErrAcked = 0;
+    /** the end of the output in the last status filled in, which becomes acknowledged once that status is confirmed */
+    private long stdOutSent = 0;
+    private long stdErrSent = 0;
+    private long sequence = 0;
+
+    LogShipper(String jobUuid, WorkflowRunner source) {
+        this.jobUuid = jobUuid;
+        this.source = source;
+    }
+
+    /**
+     * Add the output that was not acknowledged yet to a heartbeat.
+     *
+     * @param status the heartbeat
+     * @return whether output was added, false when nothing new was written or the source cannot be read by offset
+     */
+    synchronized boolean fill(Status status) {
+        CollectingLogOutputStream.LogChunk stdout = source.readStdOut(stdOutAcked, MAX_CHUNK_BYTES);
+        CollectingLogOutputStream.LogChunk stderr = source.readStdErr(stdErrAcked, MAX_CHUNK_BYTES);
+        if (stdout == null || stderr == null || (stdout.isEmpty() && stderr.isEmpty())) {
+            return false;
+        }
+        sequence++;
+        status.setSequence(sequence);
+        if (!stdout.isEmpty()) {
+            status.setStdout(stdout.getText());
+            status.setStdoutOffset(stdout.getOffset());
+        }
+        if (!stderr.isEmpty()) {
+            status.setStderr(stderr.getText());
+            status.setStderrOffset(stderr.getOffset());
+        }
+        stdOutSent = checkGap("stdout", stdOutAcked, stdout);
+        stdErrSent = checkGap("stderr", stdErrAcked, stderr);
+        return true;
+    }
+
+    /**
+     * Mark the output in the last heartbeat filled in as received, call this once the heartbeat was confirmed by the broker.
+     */
+    synchronized void confirm() {
+        stdOutAcked = Math.max(stdOutAcked, stdOutSent);
+        stdErrAcked = Math.max(stdErrAcked, stdErrSent);
+    }
+
+    /**
+     * Add all the output that was not acknowledged yet to the result of a finished job. The offsets are always set, even when there is
+     * nothing left to send, so that the result is not mistaken for a snapshot that replaces what the launcher stored.
+     *
+     * @param result the result of the job, left alone when the source cannot be read by offset
+     */
+    synchronized void fillFinal(WorkflowResult result) {
+        CollectingLogOutputStream.LogChunk stdout = source.readStdOut(stdOutAcked, Integer.MAX_VALUE);
+        CollectingLogOutputStream.LogChunk stderr = source.readStdErr(stdErrAcked, Integer.MAX_VALUE);
+        if (stdout == null || stderr == null) {
+            return;
+        }
+        sequence++;
+        result.setSequence(sequence);
+        result.setWorkflowStdout(stdout.getText());
+        result.setStdoutOffset(stdout.getOffset());
+        result.setWorkflowStdErr(stderr.getText());
+        result.setStderrOffset(stderr.getOffset());
+        stdOutSent = checkGap("stdout", stdOutAcked, stdout);
+        stdErrSent = checkGap("stderr", stdErrAcked, stderr);
+    }
+
+    /**
+     * @return where the chunk ends
+     */
+    private long checkGap(String stream, long acked, CollectingLogOutputStream.LogChunk chunk) {
+        if (chunk.getOffset() > acked) {
+            LOG.warn((chunk.getOffset() - acked) + " bytes of " + stream + " from job " + jobUuid
+                    + " were pushed out of memory before they could be sent, the full log is only kept in the spill file if there is one");
+        }
+        return chunk.getEnd();
+    }
+}
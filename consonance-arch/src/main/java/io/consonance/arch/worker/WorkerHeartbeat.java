@@ -21,8 +21,8 @@ package io.consonance.arch.worker;
 
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import io.consonance.arch.Base;
+import io.consonance.arch.beans.MessageCodec;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
 import io.consonance.arch.utils.CommonServerTestUtilities;
@@ -31,105 +31,237 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * This class will send a "heartbeat" message. How often it is sent can be configured via setSecondsDelay. The default delay is 2 seconds.
- * The destination queue for the messages, and the body of the messages can also be configured via setter methods.
+ * This class will send "heartbeat" messages for every job running on a worker. How often they are sent can be configured via
+ * setSecondsDelay. The default delay is 30 seconds. The destination queue for the messages can also be configured via setter methods.
+ *
+ * One heartbeat serves the whole worker. Running jobs are registered with it, and on each beat a status for every one of them is published
+ * on a single channel and confirmed together. Output is only included when the job has written something since the output the launcher
+ * last received, and then only the new lines are sent, see {@link LogShipper}.
+ *
+ * Setting up the reporting channel can block for as long as the broker is unreachable, so it happens on a separate thread. Beats that
+ * come round while there is no channel are skipped rather than queued up behind the connection attempt.
  *
  * @author sshorser
  *
  */
-class WorkerHeartbeat implements Runnable {
+class WorkerHeartbeat {
 
     private String queueName;
     private double secondsDelay = DEFAULT_DELAY;
     static final double DEFAULT_DELAY = 30.0;
-    private static final int DEFAULT_SNIP_SIZE = 10;
-    private WorkflowRunner statusSource;
+    private static final long STOP_WAIT_SECONDS = 10;
+    private final Map<String, LogShipper> running = new ConcurrentHashMap<>();
     private String networkID;
     private String vmUuid;
-    private String jobUuid;
     private HierarchicalINIConfiguration settings;
+    private MessageCodec codec = MessageCodec.JSON;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService connectExecutor;
+    /** opens the reporting channel, this may block until the broker is reachable */
+    private Callable<Channel> channelOpener = () -> CommonServerTestUtilities.setupExchange(settings, this.queueName);
+    /** where channelOpener runs, never the scheduler thread */
+    private Executor connector;
+    /** only used from the scheduler thread */
+    private Channel reportingChannel;
+    /** only used from the scheduler thread, a channel that is still being set up */
+    private CompletableFuture<Channel> pendingChannel;
+    private long confirmWaitMillis = (long)(DEFAULT_DELAY * Base.ONE_SECOND_IN_MILLISECONDS);
 
     private static final Logger LOG = LoggerFactory.getLogger(WorkerHeartbeat.class);
 
-    @Override
-    public void run() {
+    /**
+     * Start sending heartbeats, this should be called once before jobs are registered.
+     */
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (secondsDelay <= 0) {
+            LOG.warn("Ignoring heartbeat delay of " + secondsDelay + " seconds, using " + DEFAULT_DELAY);
+            secondsDelay = DEFAULT_DELAY;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (connector == null) {
+            connectExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "worker-heartbeat-connect");
+                thread.setDaemon(true);
+                return thread;
+            });
+            connector = connectExecutor;
+        }
+        final long periodMillis = (long)(secondsDelay * Base.ONE_SECOND_IN_MILLISECONDS);
+        // a beat should not wait on confirms for longer than it takes the next one to come round
+        confirmWaitMillis = periodMillis;
+        LOG.info("starting heartbeat thread, will send heartbeat messages every " + secondsDelay + " seconds.");
+        // start setting up the channel now so that it is usually ready by the time the first job is registered
+        scheduler.execute(this::haveChannel);
+        scheduler.scheduleAtFixedRate(this::beat, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
 
-        Channel reportingChannel;
+    /**
+     * Stop sending heartbeats and give back the reporting channel.
+     */
+    synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
         try {
-            reportingChannel = CommonServerTestUtilities.setupExchange(settings, this.queueName);
+            scheduler.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            LOG.info("Caught interrupt signal, heartbeat shutting down.", e);
-            return;
         }
+        scheduler = null;
+        if (connectExecutor != null) {
+            // interrupts a connection attempt that is still waiting on the broker
+            connectExecutor.shutdownNow();
+            connectExecutor = null;
+            connector = null;
+        }
+        // the connection is shared, only give back the channel
+        CommonServerTestUtilities.closeChannel(reportingChannel);
+        reportingChannel = null;
+        if (pendingChannel != null) {
+            pendingChannel.thenAccept(CommonServerTestUtilities::closeChannel);
+            pendingChannel = null;
+        }
+        LOG.info("Heartbeat shutting down.");
+    }
 
-        LOG.info("starting heartbeat thread, will send heartbeat message ever " + secondsDelay + " seconds.");
-        while (!Thread.interrupted()) {
-            // byte[] stdOut = this.getMessageBody().getBytes(StandardCharsets.UTF_8);
-            try {
-                try {
-                    Status heartbeatStatus = new Status();
-                    heartbeatStatus.setJobUuid(this.jobUuid);
-                    heartbeatStatus.setMessage("job is running; IP address: " + networkID);
-                    heartbeatStatus.setState(StatusState.RUNNING);
-                    heartbeatStatus.setType(CommonServerTestUtilities.JOB_MESSAGE_TYPE);
-                    heartbeatStatus.setVmUuid(this.vmUuid);
-                    heartbeatStatus.setIpAddress(networkID);
-
-                    // String stdOut = this.statusSource.getStdOut();
-                    Lock lock = new ReentrantLock();
-                    lock.lock();
-                    String stdOut = this.statusSource.getStdOut(DEFAULT_SNIP_SIZE);
-                    String stdErr = this.statusSource.getStdErr(DEFAULT_SNIP_SIZE);
-                    lock.unlock();
-                    heartbeatStatus.setStdout(stdOut);
-                    heartbeatStatus.setStderr(stdErr);
-                    String heartBeatMessage = heartbeatStatus.toJSON();
-                    LOG.debug("Sending heartbeat message to " + queueName + ", with body: " + heartBeatMessage);
-                    reportingChannel.basicPublish(queueName, queueName, MessageProperties.PERSISTENT_TEXT_PLAIN,
-                            heartBeatMessage.getBytes(StandardCharsets.UTF_8));
-                    reportingChannel.waitForConfirms();
-
-                    Thread.sleep(Base.ONE_SECOND_IN_MILLISECONDS);
-                } catch (IOException | AlreadyClosedException e) {
-                    LOG.error("IOException caught! Message may not have been published. Exception is: " + e.getMessage(), e);
-                    // retry after a minute, do not die simply because the launcher is unavailable, it may come back
-                    Thread.sleep(Base.ONE_MINUTE_IN_MILLISECONDS);
-                }
-            } catch (InterruptedException e) {
-                LOG.info("Heartbeat shutting down.");
-                if (reportingChannel.getConnection().isOpen()) {
-                    try {
-                        reportingChannel.getConnection().close();
-                    } catch (IOException e1) {
-                        LOG.error("Error closing reportingChannel connection: " + e1.getMessage(), e1);
-                    }
+    /**
+     * Report on a job until it is unregistered.
+     *
+     * @param jobUuid the job
+     * @param runner where the job's output is collected
+     */
+    void register(String jobUuid, WorkflowRunner runner) {
+        running.put(jobUuid, new LogShipper(jobUuid, runner));
+    }
+
+    /**
+     * Stop reporting on a job.
+     *
+     * @param jobUuid the job
+     * @return what was shipped of the job's output, for sending the rest with the final status, null when the job was not registered
+     */
+    LogShipper unregister(String jobUuid) {
+        return running.remove(jobUuid);
+    }
+
+    /**
+     * Send one heartbeat for each running job. Exceptions are caught so that one failed beat does not cancel the schedule.
+     *
+     * When there is no reporting channel a new one is set up on the connect thread and this beat is skipped, the output that would
+     * have been sent goes with the next beat instead.
+     */
+    void beat() {
+        if (running.isEmpty() || !haveChannel()) {
+            return;
+        }
+        try {
+            List<LogShipper> shipped = new ArrayList<>();
+            for (Map.Entry<String, LogShipper> entry : running.entrySet()) {
+                Status heartbeatStatus = createStatus(entry.getKey());
+                if (entry.getValue().fill(heartbeatStatus)) {
+                    shipped.add(entry.getValue());
                 }
-                if (reportingChannel.isOpen()) {
-                    try {
-                        reportingChannel.close();
-                    } catch (IOException e1) {
-                        LOG.error("Error (IOException) closing reportingChannel: " + e1.getMessage(), e1);
-                    } catch (TimeoutException e1) {
-                        LOG.error("Error (TimeoutException) closing reportingChannel: " + e1.getMessage(), e1);
-                    }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Sending heartbeat message to " + queueName + ", with body: " + heartbeatStatus.toCompactJSON());
                 }
-                LOG.debug("reporting channel open: "+reportingChannel.isOpen());
-                LOG.debug("reporting channel connection open: "+reportingChannel.getConnection().isOpen());
-
-                Thread.currentThread().interrupt();
+                reportingChannel.basicPublish(queueName, queueName, codec.persistentProperties(), codec.encode(heartbeatStatus));
             }
+            // one confirm round for the whole beat, output is only known to be received after it
+            if (reportingChannel.waitForConfirms(confirmWaitMillis)) {
+                shipped.forEach(LogShipper::confirm);
+            }
+        } catch (TimeoutException e) {
+            LOG.warn("Heartbeat was not confirmed within " + confirmWaitMillis + " ms, its output will be sent again with the next one");
+        } catch (IOException | AlreadyClosedException e) {
+            LOG.error("IOException caught! Message may not have been published. Exception is: " + e.getMessage(), e);
+            // do not die simply because the launcher is unavailable, it may come back, the next beat sets up a new channel
+            CommonServerTestUtilities.closeChannel(reportingChannel);
+            reportingChannel = null;
+        } catch (InterruptedException e) {
+            LOG.info("Heartbeat interrupted.");
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Could not send heartbeat: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Check for an open reporting channel, starting to set one up on the connect thread when there is none.
+     *
+     * @return true when there is a channel that a beat can publish on
+     */
+    private boolean haveChannel() {
+        if (reportingChannel != null && reportingChannel.isOpen()) {
+            return true;
+        }
+        reportingChannel = null;
+        if (pendingChannel == null) {
+            pendingChannel = openChannel();
+        }
+        if (!pendingChannel.isDone()) {
+            LOG.info("Still waiting for a channel to the launcher, heartbeats are skipped until it is ready");
+            return false;
+        }
+        try {
+            reportingChannel = pendingChannel.get();
+        } catch (ExecutionException e) {
+            LOG.error("Could not set up the heartbeat channel: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pendingChannel = null;
+        }
+        return reportingChannel != null;
+    }
+
+    private CompletableFuture<Channel> openChannel() {
+        CompletableFuture<Channel> channel = new CompletableFuture<>();
+        try {
+            connector.execute(() -> {
+                try {
+                    channel.complete(channelOpener.call());
+                } catch (Exception e) {
+                    channel.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            channel.completeExceptionally(e);
         }
+        return channel;
     }
 
-    void setStatusSource(WorkflowRunner runner) {
-        this.statusSource = runner;
+    private Status createStatus(String jobUuid) {
+        Status heartbeatStatus = new Status();
+        heartbeatStatus.setJobUuid(jobUuid);
+        heartbeatStatus.setMessage("job is running; IP address: " + networkID);
+        heartbeatStatus.setState(StatusState.RUNNING);
+        heartbeatStatus.setType(CommonServerTestUtilities.JOB_MESSAGE_TYPE);
+        heartbeatStatus.setVmUuid(this.vmUuid);
+        heartbeatStatus.setIpAddress(networkID);
+        return heartbeatStatus;
     }
 
     void setQueueName(String queueName) {
@@ -140,6 +272,21 @@ class WorkerHeartbeat implements Runnable {
         this.secondsDelay = secondsDelay;
     }
 
+    /**
+     * Replace how the reporting channel is set up.
+     *
+     * @param channelOpener opens a channel for the heartbeat exchange
+     * @param connector runs channelOpener
+     */
+    void setChannelOpener(Callable<Channel> channelOpener, Executor connector) {
+        this.channelOpener = channelOpener;
+        this.connector = connector;
+    }
+
+    void setConfirmWaitMillis(long confirmWaitMillis) {
+        this.confirmWaitMillis = confirmWaitMillis;
+    }
+
     void setNetworkID(String networkID) {
         this.networkID = networkID;
     }
@@ -148,16 +295,13 @@ class WorkerHeartbeat implements Runnable {
         this.vmUuid = vmUuid;
     }
 
-    void setJobUuid(String jobUuid) {
-        this.jobUuid = jobUuid;
-    }
-
     /**
      * @param settings
      *            the settings to set
      */
     void setSettings(HierarchicalINIConfiguration settings) {
         this.settings = settings;
+        this.codec = MessageCodec.fromSettings(settings);
     }
 
 }
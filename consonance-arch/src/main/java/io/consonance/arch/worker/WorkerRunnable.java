@@ -21,18 +21,17 @@ package io.consonance.arch.worker;
 
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.QueueingConsumer;
 import io.cloudbindle.youxia.util.Log;
 import io.consonance.arch.Base;
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.MessageCodec;
 import io.consonance.arch.beans.Status;
 import io.consonance.arch.beans.StatusState;
 import io.consonance.arch.utils.CommonServerTestUtilities;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -42,20 +41,27 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class represents a WorkerRunnable, in the Architecture 3 design.
@@ -68,6 +74,7 @@ public class WorkerRunnable implements Runnable {
     private static final String NO_MESSAGE_FROM_QUEUE_MESSAGE = " [x] Job request came back null/empty! ";
     protected final Logger log = LoggerFactory.getLogger(getClass());
     private HierarchicalINIConfiguration settings = null;
+    private MessageCodec codec = MessageCodec.JSON;
     private Channel resultsChannel = null;
     private String queueName = null;
     private String jobQueueName;
@@ -78,8 +85,23 @@ public class WorkerRunnable implements Runnable {
     private boolean endless = false;
     public static final int DEFAULT_PRESLEEP = 1;
     public static final int DEFAULT_POSTSLEEP = 1;
+    public static final int DEFAULT_PREFETCH = 1;
+    /** how long to wait for the broker to confirm that job subscriptions were cancelled */
+    private static final long CANCEL_WAIT_MILLIS = 10000;
+    public static final String DEFAULT_SANDBOX_ROOT = "sandboxes";
+    private static final long SANDBOX_CLEANUP_WAIT_SECONDS = 60;
     private String networkAddress;
     private String flavour = null;
+    private String flavourQueueName = null;
+    private LocalityKeys localityKeys = null;
+    private long localityWaitMillis;
+    private WorkerHeartbeat heartbeat = null;
+    /** writes and deletes job sandboxes off the critical path of the job */
+    private final ExecutorService sandboxExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "job-sandbox");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Create a new Worker.
@@ -125,6 +147,7 @@ public class WorkerRunnable implements Runnable {
         // ((ch.qos.logback.classic.Logger)log).getAppender("FILE_APPENDER");
         // appender.setFile("SomePath");
 
+        this.codec = MessageCodec.fromSettings(settings);
         this.queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
         if (this.queueName == null) {
             throw new NullPointerException(
@@ -144,6 +167,9 @@ public class WorkerRunnable implements Runnable {
         this.maxRuns = maxRuns;
         this.testMode = testMode;
         this.flavour = flavourOverride;
+        this.localityKeys = LocalityKeys.fromSettings(settings);
+        this.localityWaitMillis = settings.getLong(Constants.RABBIT_LOCALITY_WAIT_MILLIS,
+                CommonServerTestUtilities.DEFAULT_LOCALITY_WAIT_MILLIS);
     }
 
     @Override
@@ -159,24 +185,7 @@ public class WorkerRunnable implements Runnable {
             // the VM UUID
             log.info(" WORKER VM UUID provided as: '" + vmUuid + "'");
 
-            HttpClient client = new DefaultHttpClient();
-            // make really sure that we get a flavour
-            while (flavour == null) {
-                String responseBody;
-                // if no OpenStack uuid is found, grab a normal instance_id from AWS
-                String instanceTypeURL = "http://169.254.169.254/latest/meta-data/instance-type";
-                final HttpGet method = new HttpGet(instanceTypeURL);
-                try {
-                    final HttpResponse execute = client.execute(method);
-                    responseBody = IOUtils.toString(execute.getEntity().getContent(), StandardCharsets.UTF_8);
-                    if (responseBody != null && execute.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                        flavour = responseBody;
-                        log.info(" flavour chosen using cloud ini meta-data as: '" + flavour + "'");
-                    }
-                } catch (IOException ioe) {
-                    Log.warn("Unable to connect to '" + instanceTypeURL + "'");
-                }
-            }
+            detectFlavour();
 
             // write to
             // TODO: Add some sort of "local debug" mode so that developers working on their local
@@ -184,7 +193,29 @@ public class WorkerRunnable implements Runnable {
             // created by the Coordinator.
             resultsChannel = CommonServerTestUtilities.setupExchange(settings, this.resultsQueueName);
 
+            // one heartbeat reports on every job this worker runs
+            heartbeat = new WorkerHeartbeat();
+            heartbeat.setQueueName(this.resultsQueueName);
+            heartbeat.setSettings(settings);
+            heartbeat.setSecondsDelay(settings.getDouble(Constants.WORKER_HEARTBEAT_RATE, WorkerHeartbeat.DEFAULT_DELAY));
+            heartbeat.setVmUuid(this.vmUuid);
+            heartbeat.setNetworkID(this.networkAddress);
+            heartbeat.start();
+
+            // in persistent mode one job channel lives as long as the worker, the consumer is cancelled and re-subscribed around each job
+            final boolean persistent = settings.getBoolean(Constants.WORKER_PERSISTENT_CHANNEL, false);
+            final String exchange = queueName + "_job_exchange";
+            Channel jobChannel = null;
+            // with more than one slot, jobs run on their own threads and the loop only waits for a free slot before pulling another
+            final int slots = WorkerSlots.fromSettings(settings);
+            final ExecutorService slotExecutor = slots > 1 ? Executors.newFixedThreadPool(slots) : null;
+            final BlockingQueue<Integer> freeSlots = new ArrayBlockingQueue<>(slots);
+            for (int i = 0; i < slots; i++) {
+                freeSlots.add(i);
+            }
+            log.info(" WORKER WILL RUN UP TO " + slots + " JOBS AT ONCE");
             while ((max > 0 || this.endless)) {
+                final int slot = freeSlots.take();
                 log.debug(max + " remaining jobs will be executed");
                 log.info(" WORKER IS PREPARING TO PULL JOB FROM QUEUE " + this.jobQueueName);
 
@@ -192,37 +223,39 @@ public class WorkerRunnable implements Runnable {
                     max--;
                 }
 
-                // jobChannel needs to be created inside the loop because it is closed inside the loop, and it is closed inside this loop to
-                // prevent pre-fetching.
-
-                // create the job exchange
-                String exchange = queueName + "_job_exchange";
-                Channel jobChannel = CommonServerTestUtilities.setupExchange(settings, exchange, "direct");
-                if (jobChannel == null) {
-                    throw new NullPointerException("jobChannel is null for queue: " + this.jobQueueName
-                            + ". Something bad must have happened while trying to set up the queue connections. Please ensure that your configuration is correct.");
+                // otherwise jobChannel needs to be created inside the loop because it is closed inside the loop, and it is closed inside
+                // this loop to prevent pre-fetching.
+                if (!persistent || jobChannel == null || !jobChannel.isOpen()) {
+                    jobChannel = openJobChannel(exchange, persistent);
                 }
-                final String finalQueueName = CommonServerTestUtilities.setupQueueOnExchange(jobChannel, queueName + "_jobs", flavour);
-                jobChannel.queueBind(finalQueueName, exchange,flavour);
 
-                QueueingConsumer consumer = new QueueingConsumer(jobChannel);
-                jobChannel.basicConsume(finalQueueName, false, consumer);
+                JobConsumer consumer = new JobConsumer(jobChannel);
+                final List<String> consumerTags = consumeLocalityQueues(jobChannel, exchange, consumer);
+                consumerTags.add(jobChannel.basicConsume(flavourQueueName, false, consumer));
 
                 QueueingConsumer.Delivery delivery = consumer.nextDelivery();
                 log.info(vmUuid + "  received " + delivery.getEnvelope().toString());
+                boolean stragglers = false;
+                if (persistent) {
+                    // stop the broker from handing this worker more jobs while it is busy
+                    for (String consumerTag : consumerTags) {
+                        jobChannel.basicCancel(consumerTag);
+                    }
+                    stragglers = !requeueExtraDeliveries(jobChannel, consumer, consumerTags);
+                }
                 if (delivery.getBody() != null) {
-                    String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    if (message.trim().length() > 0) {
-
-                        log.info(" [x] Received JOBS REQUEST '" + message + "' @ " + vmUuid);
+                    if (delivery.getBody().length > 0) {
 
-                        Job job = new Job().fromJSON(message);
+                        Job job = MessageCodec.forProperties(delivery.getProperties()).decodeJob(delivery.getBody());
+                        log.info(" [x] Received JOBS REQUEST for job " + job.getUuid() + " in state " + job.getState() + " @ " + vmUuid);
+                        if (log.isDebugEnabled()) {
+                            log.debug("Job request body: " + job.toJSON());
+                        }
 
                         Status status = new Status(vmUuid, job.getUuid(), StatusState.RUNNING, CommonServerTestUtilities.JOB_MESSAGE_TYPE,
                                 "job is starting", this.networkAddress);
                         status.setStderr("");
                         status.setStdout("");
-                        String statusJSON = status.toJSON();
 
                         log.info(" WORKER LAUNCHING JOB");
 
@@ -230,139 +263,346 @@ public class WorkerRunnable implements Runnable {
                         // environments
                         log.info(vmUuid + " acknowledges " + delivery.getEnvelope().toString());
                         jobChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                        // we need to close the channel IMMEDIATELY to complete the ACK.
-                        jobChannel.close();
-                        // Close the connection object as well, or the main thread may not exit because of still-open-and-in-use resources.
-                        jobChannel.getConnection().close();
-
-                        WorkflowResult workflowResult = new WorkflowResult();
-                        if (testMode) {
-                            workflowResult.setWorkflowStdout("everything is awesome");
-                            workflowResult.setExitCode(0);
-                        } else {
-                            workflowResult = launchJob(statusJSON, job);
+                        if (!persistent) {
+                            // we need to close the channel IMMEDIATELY to complete the ACK.
+                            CommonServerTestUtilities.closeChannel(jobChannel);
                         }
 
-                        status = new Status(vmUuid, job.getUuid(),
-                                workflowResult.getExitCode() == 0 ? StatusState.SUCCESS : StatusState.FAILED, CommonServerTestUtilities.JOB_MESSAGE_TYPE,
-                                "job is finished", networkAddress);
-                        status.setStderr(workflowResult.getWorkflowStdErr());
-                        status.setStdout(workflowResult.getWorkflowStdout());
-                        statusJSON = status.toJSON();
-
-                        log.info(" WORKER FINISHING JOB");
-
-                        finishJob(statusJSON);
+                        if (slotExecutor == null) {
+                            executeJob(job, status, resultsChannel);
+                            freeSlots.add(slot);
+                        } else {
+                            slotExecutor.submit(() -> executeJobInSlot(job, status, slot, freeSlots));
+                        }
                     } else {
                         log.info(NO_MESSAGE_FROM_QUEUE_MESSAGE);
+                        discardEmptyDelivery(jobChannel, delivery, persistent);
+                        freeSlots.add(slot);
                     }
-                    // we need to close the channel *conditionally*
-                    if (jobChannel.isOpen()) {
-                        jobChannel.close();
-                    }
-                    // Close the connection object as well, or the main thread may not exit because of still-open-and-in-use resources.
-                    if (jobChannel.getConnection().isOpen()) {
-                        jobChannel.getConnection().close();
+                    if (!persistent) {
+                        // we need to close the channel *conditionally*
+                        CommonServerTestUtilities.closeChannel(jobChannel);
                     }
                 } else {
                     log.info(NO_MESSAGE_FROM_QUEUE_MESSAGE);
+                    discardEmptyDelivery(jobChannel, delivery, persistent);
+                    freeSlots.add(slot);
                 }
+                if (stragglers) {
+                    // jobs may still arrive for the cancelled consumer, closing the channel hands them back and the next job opens another
+                    CommonServerTestUtilities.closeChannel(jobChannel);
+                }
+            }
+            if (slotExecutor != null) {
+                slotExecutor.shutdown();
+                slotExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            heartbeat.stop();
+            // give the last sandbox cleanups a chance to finish
+            sandboxExecutor.shutdown();
+            sandboxExecutor.awaitTermination(SANDBOX_CLEANUP_WAIT_SECONDS, TimeUnit.SECONDS);
+            if (persistent) {
+                CommonServerTestUtilities.closeChannel(jobChannel);
             }
             log.info(" \n\n\nWORKER FOR VM UUID HAS FINISHED!!!: '" + vmUuid + "'\n\n");
             // turns out this is needed when multiple threads are reading from the same
             // queue otherwise you end up with multiple unacknowledged messages being undeliverable to other workers!!!
-            if (resultsChannel != null && resultsChannel.isOpen()) {
-                resultsChannel.close();
-                resultsChannel.getConnection().close();
-            }
+            CommonServerTestUtilities.closeChannel(resultsChannel);
             log.debug("result channel open: " + (resultsChannel != null ? resultsChannel.isOpen() : null));
-            log.debug("result channel connection open: " + (resultsChannel != null ? resultsChannel.getConnection().isOpen() : null));
         } catch (Exception ex) {
             log.error(ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Work out the flavour of this VM from cloud meta-data unless it was given, retrying until it is known.
+     */
+    private void detectFlavour() {
+        HttpClient client = new DefaultHttpClient();
+        // make really sure that we get a flavour
+        while (flavour == null) {
+            String responseBody;
+            // if no OpenStack uuid is found, grab a normal instance_id from AWS
+            String instanceTypeURL = "http://169.254.169.254/latest/meta-data/instance-type";
+            final HttpGet method = new HttpGet(instanceTypeURL);
+            try {
+                final HttpResponse execute = client.execute(method);
+                responseBody = IOUtils.toString(execute.getEntity().getContent(), StandardCharsets.UTF_8);
+                if (responseBody != null && execute.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    flavour = responseBody;
+                    log.info(" flavour chosen using cloud ini meta-data as: '" + flavour + "'");
+                }
+            } catch (IOException ioe) {
+                Log.warn("Unable to connect to '" + instanceTypeURL + "'");
+            }
+        }
+    }
+
+    /**
+     * Run a job that has already been acknowledged and report how it finished.
+     *
+     * @param job the job to run
+     * @param started the status to publish when the job starts
+     * @param results the channel to publish statuses on
+     */
+    private void executeJob(Job job, Status started, Channel results) {
+        WorkflowResult workflowResult = new WorkflowResult();
+        if (testMode) {
+            // nothing is launched, but the job still goes through RUNNING so that test runs can time it
+            try {
+                startJob(started, results);
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Start message may have been interrupted: " + e.getMessage(), e);
+            }
+            workflowResult.setWorkflowStdout("everything is awesome");
+            workflowResult.setExitCode(0);
+        } else {
+            try {
+                workflowResult = launchJob(started, job, results);
+            } catch (RuntimeException e) {
+                log.error("Job " + job.getUuid() + " could not be run: " + e.getMessage(), e);
+                workflowResult = failedResult("job could not be run: " + e.getMessage());
+            }
+        }
+        if (workflowResult.getExitCode() == 0) {
+            // whatever the job staged is likely to be cached here now
+            localityKeys.learn(job.getLocality());
+        }
+
+        Status status = new Status(vmUuid, job.getUuid(),
+                workflowResult.getExitCode() == 0 ? StatusState.SUCCESS : StatusState.FAILED, CommonServerTestUtilities.JOB_MESSAGE_TYPE,
+                "job is finished", networkAddress);
+        status.setStderr(workflowResult.getWorkflowStdErr());
+        status.setStdout(workflowResult.getWorkflowStdout());
+        status.setStdoutOffset(workflowResult.getStdoutOffset());
+        status.setStderrOffset(workflowResult.getStderrOffset());
+        status.setSequence(workflowResult.getSequence());
+
+        log.info(" WORKER FINISHING JOB");
+
+        finishJob(status, results);
+    }
+
+    /**
+     * Run a job in one of several slots, each slot has its own results channel.
+     *
+     * @param job the job to run
+     * @param started the status to publish when the job starts
+     * @param slot the slot the job runs in
+     * @param freeSlots where the slot is handed back once the job is done
+     */
+    private void executeJobInSlot(Job job, Status started, int slot, BlockingQueue<Integer> freeSlots) {
+        Channel slotResults = null;
+        try {
+            // channels should not be shared between threads https://www.rabbitmq.com/api-guide.html#channel-threads
+            slotResults = CommonServerTestUtilities.setupExchange(settings, this.resultsQueueName);
+            executeJob(job, started, slotResults);
+        } catch (RuntimeException e) {
+            log.error("Slot " + slot + " could not run job " + job.getUuid() + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Slot " + slot + " was interrupted running job " + job.getUuid(), e);
+        } finally {
+            CommonServerTestUtilities.closeChannel(slotResults);
+            freeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Open a channel on the job exchange and make sure the queue for this worker's flavour exists and is bound to it.
+     *
+     * @param exchange the job exchange
+     * @param persistent whether the channel will be kept across jobs, in which case its prefetch is limited
+     * @return a channel to consume jobs on
+     * @throws IOException thrown when the queue cannot be set up
+     */
+    private Channel openJobChannel(String exchange, boolean persistent) throws IOException {
+        Channel jobChannel = CommonServerTestUtilities.setupExchange(settings, exchange, "direct");
+        if (jobChannel == null) {
+            throw new NullPointerException("jobChannel is null for queue: " + this.jobQueueName
+                    + ". Something bad must have happened while trying to set up the queue connections. Please ensure that your configuration is correct.");
+        }
+        flavourQueueName = CommonServerTestUtilities.setupQueueOnExchange(jobChannel, queueName + "_jobs", flavour);
+        jobChannel.queueBind(flavourQueueName, exchange, flavour);
+        if (persistent) {
+            jobChannel.basicQos(settings.getInt(Constants.WORKER_PREFETCH, DEFAULT_PREFETCH));
+        }
+        return jobChannel;
+    }
+
+    /**
+     * Consume from the queue of every locality key this worker advertises, so that jobs for data it has cached come here first. The
+     * queues are declared each time to keep them from expiring.
+     *
+     * @return the consumer tags
+     */
+    private List<String> consumeLocalityQueues(Channel jobChannel, String exchange, QueueingConsumer consumer) throws IOException {
+        List<String> consumerTags = new ArrayList<>();
+        final List<String> keys = localityWaitMillis > 0 ? localityKeys.keys() : Collections.emptyList();
+        if (keys.isEmpty()) {
+            return consumerTags;
+        }
+        // every consumer would otherwise be handed a job, and all but the first would sit unacknowledged until the job is done
+        jobChannel.basicQos(1, true);
+        for (String key : keys) {
+            final String localityQueueName = CommonServerTestUtilities.setupLocalityQueueOnExchange(jobChannel, queueName + "_jobs",
+                    exchange, flavour, key, localityWaitMillis);
+            consumerTags.add(jobChannel.basicConsume(localityQueueName, false, consumer));
+        }
+        return consumerTags;
+    }
+
+    /**
+     * Hand back jobs that the broker pushed to a persistent channel after the first one and before the consumer was cancelled. This
+     * only happens when prefetch is not limited to one. Deliveries arrive in the background, so this waits until the broker confirmed
+     * the cancellations and no more can show up.
+     *
+     * @return false if the broker did not confirm the cancellations in time, so that more jobs may still arrive
+     */
+    private boolean requeueExtraDeliveries(Channel jobChannel, JobConsumer consumer, List<String> consumerTags) throws IOException,
+            InterruptedException {
+        final boolean cancelled = consumer.awaitCancelled(consumerTags, CANCEL_WAIT_MILLIS);
+        if (!cancelled) {
+            log.warn(vmUuid + " was not told that its job subscriptions were cancelled, the job channel will be reopened");
+        }
+        for (QueueingConsumer.Delivery extra = consumer.nextDelivery(0); extra != null; extra = consumer.nextDelivery(0)) {
+            log.info(vmUuid + " requeues prefetched " + extra.getEnvelope().toString());
+            jobChannel.basicReject(extra.getEnvelope().getDeliveryTag(), true);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Closing the channel used to hand empty deliveries back to the broker. A persistent channel stays open, so drop them instead of
+     * leaving them unacknowledged.
+     */
+    private void discardEmptyDelivery(Channel jobChannel, QueueingConsumer.Delivery delivery, boolean persistent) throws IOException {
+        if (persistent) {
+            jobChannel.basicReject(delivery.getEnvelope().getDeliveryTag(), false);
+        }
+    }
+
     // TODO: obviously, this will need to launch something using Youxia in the future
     /**
      * This function will execute a workflow, based on the content of the Job object that is passed in.
      *
-     * @param message
-     *            - The message that will be published on the queue when the worker starts running the job.
+     * @param started
+     *            - The status that will be published on the queue when the worker starts running the job.
      * @param job
      *            - The job contains information about what workflow to execute, and how.
-     * @return The complete stdout and stderr from the workflow execution will be returned.
+     * @param results
+     *            - The channel to publish the start message on.
+     * @return The stdout and stderr from the workflow execution that the heartbeat has not sent yet will be returned, or a failed result
+     *         when the workflow could not be run.
      */
-    private WorkflowResult launchJob(String message, Job job) {
-        WorkflowResult workflowResult = null;
-        ExecutorService exService = Executors.newFixedThreadPool(2);
+    private WorkflowResult launchJob(Status started, Job job, Channel results) {
+        WorkflowResult workflowResult;
+        ExecutorService exService = Executors.newSingleThreadExecutor();
         WorkflowRunner workflowRunner = new WorkflowRunner();
+        // write out descriptors and extra files while the start message goes out
+        final Path sandboxRoot = Paths.get(settings.getString(Constants.WORKER_SANDBOX_ROOT, DEFAULT_SANDBOX_ROOT));
+        // dockstore-launcher has a separate config file, each job gets a copy of it if there is one
+        final Path launcherConfig = Paths.get(System.getProperty("user.dir"), JobSandbox.LAUNCHER_CONFIG);
+        CompletableFuture<JobSandbox> sandboxFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return JobSandbox.create(sandboxRoot, job, launcherConfig);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, sandboxExecutor);
+        JobSandbox sandbox = null;
         try {
 
-            resultsChannel.basicPublish(this.resultsQueueName, this.resultsQueueName, MessageProperties.PERSISTENT_TEXT_PLAIN,
-                    message.getBytes(StandardCharsets.UTF_8));
-            resultsChannel.waitForConfirms();
-
-            WorkerHeartbeat heartbeat = new WorkerHeartbeat();
-            heartbeat.setQueueName(this.resultsQueueName);
-            // channels should not be shared between threads https://www.rabbitmq.com/api-guide.html#channel-threads
-            // heartbeat.setReportingChannel(resultsChannel);
-            heartbeat.setSettings(settings);
-            heartbeat.setSecondsDelay(settings.getDouble(Constants.WORKER_HEARTBEAT_RATE, WorkerHeartbeat.DEFAULT_DELAY));
-            heartbeat.setJobUuid(job.getUuid());
-            heartbeat.setVmUuid(this.vmUuid);
-            heartbeat.setNetworkID(this.networkAddress);
-            heartbeat.setStatusSource(workflowRunner);
+            startJob(started, results);
 
             long presleep = settings.getLong(Constants.WORKER_PREWORKER_SLEEP, WorkerRunnable.DEFAULT_PRESLEEP);
             long postsleep = settings.getLong(Constants.WORKER_POSTWORKER_SLEEP, WorkerRunnable.DEFAULT_POSTSLEEP);
             long presleepMillis = Base.ONE_SECOND_IN_MILLISECONDS * presleep;
             long postsleepMillis = Base.ONE_SECOND_IN_MILLISECONDS * postsleep;
 
-            // dockstore-launcher has a separate config file
-            File dockstoreLauncherConfig = new File("cwl-launcher.config");
-            if (!dockstoreLauncherConfig.exists()){
-                // if it doesn't exist, just create an empty one
-                dockstoreLauncherConfig.createNewFile();
-            }
-            workflowRunner.setConfigFilePath(dockstoreLauncherConfig.getAbsolutePath());
-            // write out descriptors from message
-            final Path imageDescriptor = new File(System.getProperty("user.dir"), "image-descriptor.cwl").toPath();
-            final Path runDescriptor = new File(System.getProperty("user.dir"), "run-descriptor.json").toPath();
-            FileUtils.writeStringToFile(imageDescriptor.toFile(), job.getContainerImageDescriptor(), StandardCharsets.UTF_8);
-            FileUtils.writeStringToFile(runDescriptor.toFile(), job.getContainerRuntimeDescriptor(), StandardCharsets.UTF_8);
-            workflowRunner.setImageDescriptorPath(imageDescriptor.toFile().getAbsolutePath());
-            workflowRunner.setRuntimeDescriptorPath(runDescriptor.toFile().getAbsolutePath());
-
-            // write out extra files
-            for(Map.Entry<String, Job.ExtraFile> entry : job.getExtraFiles().entrySet()){
-                FileUtils.write(new File(entry.getKey()), entry.getValue().getContents(), StandardCharsets.UTF_8);
-            }
+            sandbox = sandboxFuture.get();
+            workflowRunner.setConfigFilePath(sandbox.getLauncherConfig().toAbsolutePath().toString());
+            workflowRunner.setImageDescriptorPath(sandbox.getImageDescriptor().toAbsolutePath().toString());
+            workflowRunner.setRuntimeDescriptorPath(sandbox.getRunDescriptor().toAbsolutePath().toString());
 
+            final String spillDirectory = settings.getString(Constants.WORKER_LOG_SPILL_DIRECTORY, null);
+            workflowRunner.setLogCapture(settings.getInt(Constants.WORKER_LOG_BUFFER_LINES, CollectingLogOutputStream.DEFAULT_CAPACITY),
+                    spillDirectory == null ? null : Files.createDirectories(Paths.get(spillDirectory, job.getUuid())));
             workflowRunner.setPreworkDelay(presleepMillis);
             workflowRunner.setPostworkDelay(postsleepMillis);
-            // We will never actually do submit.get(), because the heartbeat should keep running until it is terminated by
-            // exService.shutdownNow().
-            Future<?> submit = exService.submit(heartbeat);
+            // the worker's heartbeat reports on the job until it is unregistered
+            heartbeat.register(job.getUuid(), workflowRunner);
             Future<WorkflowResult> workflowResultFuture = exService.submit(workflowRunner);
-            // make sure both are complete
             workflowResult = workflowResultFuture.get();
-            // don't get the heartbeat if the workflow is complete already
 
             log.info("Docker execution result: " + workflowResult.getWorkflowStdout());
+            // the heartbeat already sent part of the output, the final status carries the rest
+            LogShipper logShipper = heartbeat.unregister(job.getUuid());
+            if (logShipper != null) {
+                logShipper.fillFinal(workflowResult);
+            }
         } catch (IOException e) {
             // This could be caused by a problem writing the file, or publishing a message to the queue.
             log.error(e.getMessage(), e);
+            workflowResult = failedResult("job could not be run: " + e.getMessage());
         } catch (ExecutionException e) {
             log.error("Error executing workflow: " + e.getMessage(), e);
+            workflowResult = failedResult("error executing workflow: " + e.getMessage());
         } catch (InterruptedException e) {
             log.error("Workflow may have been interrupted: " + e.getMessage(), e);
+            workflowResult = failedResult("workflow was interrupted");
         } finally {
+            heartbeat.unregister(job.getUuid());
             exService.shutdownNow();
+            if (sandbox == null) {
+                // the sandbox may still be written after a failure, clean it up whenever it is ready
+                sandboxFuture.thenAccept(this::cleanupSandbox);
+            } else {
+                cleanupSandbox(sandbox);
+            }
         }
 
         return workflowResult;
     }
 
+    /**
+     * @param message why the job failed
+     * @return the result of a job that failed before its workflow finished, so that it is still reported
+     */
+    private static WorkflowResult failedResult(String message) {
+        WorkflowResult workflowResult = new WorkflowResult();
+        workflowResult.setExitCode(1);
+        workflowResult.setWorkflowStdout("");
+        workflowResult.setWorkflowStdErr(message);
+        return workflowResult;
+    }
+
+    /**
+     * Publish a message stating that the job has started.
+     *
+     * @param started
+     *            - The status to publish.
+     * @param results
+     *            - The channel to publish the message on.
+     * @throws IOException thrown when the message cannot be published
+     * @throws InterruptedException thrown when interrupted while waiting for the broker to confirm the message
+     */
+    private void startJob(Status started, Channel results) throws IOException, InterruptedException {
+        results.basicPublish(this.resultsQueueName, this.resultsQueueName, codec.persistentProperties(), codec.encode(started));
+        results.waitForConfirms();
+    }
+
+    private void cleanupSandbox(JobSandbox sandbox) {
+        if (settings.getBoolean(Constants.WORKER_KEEP_SANDBOX, false)) {
+            log.info("Keeping sandbox " + sandbox.getDirectory());
+            return;
+        }
+        sandbox.cleanup(sandboxExecutor);
+    }
+
     /**
      * Get the IP address of this machine, preference is given to returning an IPv4 address, if there is one.
      *
@@ -408,18 +648,24 @@ public class WorkerRunnable implements Runnable {
     /**
      * Publish a message stating that the job is finished.
      *
-     * @param message
-     *            - The actual message to publish.
+     * @param finished
+     *            - The status to publish.
+     * @param results
+     *            - The channel to publish the message on.
      */
-    private void finishJob(String message) {
-        log.info("Publishing worker results to results channel " + this.resultsQueueName + ": " + message);
+    private void finishJob(Status finished, Channel results) {
+        log.info("Publishing worker results to results channel " + this.resultsQueueName + " for job " + finished.getJobUuid() + " in state "
+                + finished.getState());
+        if (log.isDebugEnabled()) {
+            log.debug("Worker results body: " + finished.toJSON());
+        }
+        final byte[] message = codec.encode(finished);
         try {
             boolean success = false;
             do {
                 try {
-                    resultsChannel.basicPublish(this.resultsQueueName, this.resultsQueueName, MessageProperties.PERSISTENT_TEXT_PLAIN,
-                            message.getBytes(StandardCharsets.UTF_8));
-                    resultsChannel.waitForConfirms();
+                    results.basicPublish(this.resultsQueueName, this.resultsQueueName, codec.persistentProperties(), message);
+                    results.waitForConfirms();
                     success = true;
                 } catch (AlreadyClosedException e) {
                     // retry indefinitely if the connection is down
@@ -0,0 +1,107 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Provision;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+
+/**
+ * Works out how many jobs a worker can run side by side on its VM.
+ *
+ * @author dyuen
+ */
+final class WorkerSlots {
+
+    static final String AUTO = "auto";
+    static final int DEFAULT_SLOT_CORES = 4;
+    static final int DEFAULT_SLOT_MEMORY_GB = 8;
+    private static final long BYTES_PER_GB = 1024L * 1024L * 1024L;
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerSlots.class);
+
+    private WorkerSlots() {
+        // utility class
+    }
+
+    /**
+     * Read the number of slots from the worker settings. A number is used as is, "auto" sizes the slots from the resources of this
+     * machine and the resources each job asks for, and anything else means one slot.
+     *
+     * @param settings the worker settings
+     * @return the number of jobs to run at once, at least one
+     */
+    static int fromSettings(HierarchicalINIConfiguration settings) {
+        final String slots = settings.getString(Constants.WORKER_SLOTS, "1");
+        if (AUTO.equalsIgnoreCase(slots)) {
+            Provision request = new Provision(settings.getInt(Constants.WORKER_SLOT_CORES, DEFAULT_SLOT_CORES),
+                    settings.getInt(Constants.WORKER_SLOT_MEMORY_GB, DEFAULT_SLOT_MEMORY_GB), 0, new ArrayList<>());
+            final int computed = slotsFor(detectCapacity(), request);
+            LOG.info("Sized worker to " + computed + " slots of " + request.getCores() + " cores and " + request.getMemGb() + " GB");
+            return computed;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(slots.trim()));
+        } catch (NumberFormatException e) {
+            LOG.error("Could not understand " + Constants.WORKER_SLOTS + " = " + slots + ", running one job at a time");
+            return 1;
+        }
+    }
+
+    /**
+     * @param capacity the cores and memory of the whole VM
+     * @param request the cores and memory each job needs
+     * @return how many requests fit into the capacity, at least one
+     */
+    static int slotsFor(Provision capacity, Provision request) {
+        long slots = Long.MAX_VALUE;
+        if (request.getCores() > 0) {
+            slots = Math.min(slots, capacity.getCores() / request.getCores());
+        }
+        if (request.getMemGb() > 0) {
+            slots = Math.min(slots, capacity.getMemGb() / request.getMemGb());
+        }
+        if (slots == Long.MAX_VALUE) {
+            return 1;
+        }
+        return (int)Math.max(1, Math.min(slots, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the cores and physical memory of this machine
+     */
+    static Provision detectCapacity() {
+        Provision capacity = new Provision();
+        capacity.setCores(Runtime.getRuntime().availableProcessors());
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            capacity.setMemGb(((com.sun.management.OperatingSystemMXBean)os).getTotalPhysicalMemorySize() / BYTES_PER_GB);
+        } else {
+            // without a memory figure only cores limit the number of slots
+            capacity.setMemGb(Long.MAX_VALUE);
+        }
+        return capacity;
+    }
+}
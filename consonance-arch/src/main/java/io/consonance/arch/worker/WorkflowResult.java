@@ -26,6 +26,9 @@ class WorkflowResult {
     private String workflowStdout = "no stdout";
     private String workflowStdErr = "no stderr";
     private int exitCode = Integer.MIN_VALUE;
+    private Long stdoutOffset = null;
+    private Long stderrOffset = null;
+    private Long sequence = null;
 
     /**
      * @return the workflowStdout
@@ -71,4 +74,46 @@ class WorkflowResult {
         this.workflowStdErr = workflowStdErr;
     }
 
+    /**
+     * @return where workflowStdout starts in the stdout stream, null when it is a snapshot of the whole output
+     */
+    Long getStdoutOffset() {
+        return stdoutOffset;
+    }
+
+    /**
+     * @param stdoutOffset the stdoutOffset to set
+     */
+    void setStdoutOffset(Long stdoutOffset) {
+        this.stdoutOffset = stdoutOffset;
+    }
+
+    /**
+     * @return where workflowStdErr starts in the stderr stream, null when it is a snapshot of the whole output
+     */
+    Long getStderrOffset() {
+        return stderrOffset;
+    }
+
+    /**
+     * @param stderrOffset the stderrOffset to set
+     */
+    void setStderrOffset(Long stderrOffset) {
+        this.stderrOffset = stderrOffset;
+    }
+
+    /**
+     * @return the sequence number of the output in this result
+     */
+    Long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param sequence the sequence to set
+     */
+    void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
 }
@@ -27,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.concurrent.Callable;
 
 /**
@@ -41,8 +42,8 @@ public class WorkflowRunner implements Callable<WorkflowResult> {
     private static final Logger LOG = LoggerFactory.getLogger(WorkflowRunner.class);
     private long preworkDelay;
     private long postworkDelay;
-    private final CollectingLogOutputStream outputStream = new CollectingLogOutputStream();
-    private final CollectingLogOutputStream errorStream = new CollectingLogOutputStream();
+    private CollectingLogOutputStream outputStream = new CollectingLogOutputStream();
+    private CollectingLogOutputStream errorStream = new CollectingLogOutputStream();
     private String configFilePath;
     private String imageDescriptorPath;
     private String runtimeDescriptorPath;
@@ -70,6 +71,28 @@ public class WorkflowRunner implements Callable<WorkflowResult> {
         return StringUtils.join(this.errorStream.getLastNLines(n), "\n");
     }
 
+    /**
+     * Read the output written at or after a byte offset.
+     *
+     * @param offset the byte offset to read from
+     * @param maxBytes roughly how many bytes to read
+     * @return whole lines of output
+     */
+    CollectingLogOutputStream.LogChunk readStdOut(long offset, int maxBytes) {
+        return this.outputStream.readFrom(offset, maxBytes);
+    }
+
+    /**
+     * Read the error output written at or after a byte offset.
+     *
+     * @param offset the byte offset to read from
+     * @param maxBytes roughly how many bytes to read
+     * @return whole lines of error output
+     */
+    CollectingLogOutputStream.LogChunk readStdErr(long offset, int maxBytes) {
+        return this.errorStream.readFrom(offset, maxBytes);
+    }
+
 
     @Override
     public WorkflowResult call() throws IOException, ConfigurationException {
@@ -128,4 +151,15 @@ public class WorkflowRunner implements Callable<WorkflowResult> {
     void setRuntimeDescriptorPath(String runtimeDescriptorPath) {
         this.runtimeDescriptorPath = runtimeDescriptorPath;
     }
+
+    /**
+     * Configure how output is captured, this should be called before the workflow runs.
+     *
+     * @param bufferLines how many of the most recent lines of stdout and stderr to keep in memory
+     * @param spillDirectory a directory to write the full stdout.log and stderr.log to, null to keep only the lines in memory
+     */
+    void setLogCapture(int bufferLines, Path spillDirectory) {
+        this.outputStream = new CollectingLogOutputStream(bufferLines, spillDirectory == null ? null : spillDirectory.resolve("stdout.log"));
+        this.errorStream = new CollectingLogOutputStream(bufferLines, spillDirectory == null ? null : spillDirectory.resolve("stderr.log"));
+    }
 }
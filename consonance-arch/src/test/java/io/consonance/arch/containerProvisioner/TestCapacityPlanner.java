@@ -0,0 +1,110 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestCapacityPlanner {
+
+    /**
+     * Without limits every job gets a VM.
+     */
+    @Test
+    public void testUnlimited() {
+        CapacityPlanner planner = new CapacityPlanner(Integer.MAX_VALUE, Collections.emptyMap(), Collections.emptyMap());
+        assertEquals(mix("m1.xlarge", 3, "m1.small", 1), planner.plan(mix("m1.xlarge", 3, "m1.small", 1)));
+        assertEquals(Collections.emptyMap(), planner.plan(mix("m1.xlarge", 0, "m1.small", 0)));
+    }
+
+    /**
+     * A total that is too small is shared out by weight.
+     */
+    @Test
+    public void testWeights() {
+        CapacityPlanner even = new CapacityPlanner(6, Collections.emptyMap(), Collections.emptyMap());
+        assertEquals(mix("m1.xlarge", 3, "m1.small", 3), even.plan(mix("m1.xlarge", 10, "m1.small", 10)));
+        CapacityPlanner weighted = new CapacityPlanner(6, Collections.emptyMap(), mix("m1.xlarge", 2, "m1.small", 1));
+        assertEquals(mix("m1.xlarge", 4, "m1.small", 2), weighted.plan(mix("m1.xlarge", 10, "m1.small", 10)));
+        // more flavours than VMs, the heavier ones go first
+        CapacityPlanner one = new CapacityPlanner(1, Collections.emptyMap(), mix("m1.xlarge", 2, "m1.small", 1));
+        assertEquals(Collections.singletonMap("m1.xlarge", 1), one.plan(mix("m1.xlarge", 10, "m1.small", 10)));
+    }
+
+    /**
+     * What a flavour cannot use, because it needs less or is capped, goes to the others.
+     */
+    @Test
+    public void testLeftovers() {
+        CapacityPlanner planner = new CapacityPlanner(6, Collections.emptyMap(), Collections.emptyMap());
+        assertEquals(mix("m1.xlarge", 1, "m1.small", 5), planner.plan(mix("m1.xlarge", 1, "m1.small", 10)));
+        CapacityPlanner capped = new CapacityPlanner(6, Collections.singletonMap("m1.small", 2), Collections.emptyMap());
+        assertEquals(mix("m1.xlarge", 4, "m1.small", 2), capped.plan(mix("m1.xlarge", 10, "m1.small", 10)));
+        // a flavour capped at zero gets nothing
+        CapacityPlanner off = new CapacityPlanner(6, Collections.singletonMap("m1.small", 0), Collections.emptyMap());
+        assertEquals(Collections.singletonMap("m1.xlarge", 6), off.plan(mix("m1.xlarge", 10, "m1.small", 10)));
+    }
+
+    /**
+     * Jobs without a flavour cannot be provisioned for.
+     */
+    @Test
+    public void testNoFlavour() {
+        CapacityPlanner planner = new CapacityPlanner(Integer.MAX_VALUE, Collections.emptyMap(), Collections.emptyMap());
+        Map<String, Integer> demand = mix("m1.xlarge", 1, "m1.small", 1);
+        demand.put(null, 2);
+        assertEquals(mix("m1.xlarge", 1, "m1.small", 1), planner.plan(demand));
+    }
+
+    /**
+     * Caps and weights are read as flavour:number lists, broken entries are left out.
+     */
+    @Test
+    public void testFromSettings() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        settings.setProperty(Constants.PROVISION_MAX_RUNNING_CONTAINERS, "10");
+        settings.setProperty(Constants.PROVISION_FLAVOUR_MAX_CONTAINERS, "m1.small:2, m1.large:lots");
+        settings.setProperty(Constants.PROVISION_FLAVOUR_WEIGHTS, "m1.xlarge:2, m1.medium:0, m1.large");
+        CapacityPlanner planner = CapacityPlanner.fromSettings(settings);
+        Map<String, Integer> demand = mix("m1.xlarge", 10, "m1.small", 10);
+        demand.put("m1.large", 10);
+        Map<String, Integer> expected = mix("m1.xlarge", 5, "m1.small", 2);
+        expected.put("m1.large", 3);
+        assertEquals(expected, planner.plan(demand));
+    }
+
+    private static Map<String, Integer> mix(String flavour, int count, String otherFlavour, int otherCount) {
+        Map<String, Integer> mix = new HashMap<>();
+        mix.put(flavour, count);
+        mix.put(otherFlavour, otherCount);
+        return mix;
+    }
+}
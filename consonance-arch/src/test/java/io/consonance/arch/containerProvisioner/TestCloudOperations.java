@@ -0,0 +1,116 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import com.google.gson.Gson;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestCloudOperations {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Reaps asked for during a deployment return straight away and go out together once it is done.
+     */
+    @Test
+    public void testReapsWaitForDeployAndAreCoalesced() throws Exception {
+        CountDownLatch deploying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingCloudOperations cloud = new RecordingCloudOperations(deploying, release, false);
+
+        Future<Boolean> deployed = cloud.deploy(Collections.singletonMap("m1.xlarge", 2));
+        deploying.await();
+        cloud.reap("10.0.0.1", "vm1");
+        cloud.reap("10.0.0.2", "vm2");
+        assertTrue(cloud.killLists.isEmpty());
+
+        release.countDown();
+        assertTrue(deployed.get());
+        cloud.shutdown(TIMEOUT_MILLIS);
+        assertEquals(1, cloud.killLists.size());
+        assertArrayEquals(new String[] { "10.0.0.1", "vm1", "10.0.0.2", "vm2" }, cloud.killLists.get(0));
+    }
+
+    /**
+     * A failed deployment is cleaned up by a reap with an empty kill list.
+     */
+    @Test
+    public void testFailedDeploy() throws Exception {
+        RecordingCloudOperations cloud = new RecordingCloudOperations(new CountDownLatch(1), new CountDownLatch(0), true);
+        assertFalse(cloud.deploy(Collections.singletonMap("m1.xlarge", 1)).get());
+        cloud.shutdown(TIMEOUT_MILLIS);
+        assertEquals(1, cloud.killLists.size());
+        assertEquals(0, cloud.killLists.get(0).length);
+    }
+
+    /**
+     * Stands in for Youxia, the deployer waits until it is released.
+     */
+    private static class RecordingCloudOperations extends CloudOperations {
+        private final CountDownLatch deploying;
+        private final CountDownLatch release;
+        private final boolean failDeploy;
+        private final List<String[]> killLists = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingCloudOperations(CountDownLatch deploying, CountDownLatch release, boolean failDeploy) {
+            super(new HierarchicalINIConfiguration());
+            this.deploying = deploying;
+            this.release = release;
+            this.failDeploy = failDeploy;
+        }
+
+        @Override
+        void runDeployer(String[] arguments) throws Exception {
+            deploying.countDown();
+            release.await();
+            if (failDeploy) {
+                throw new IllegalStateException("no capacity");
+            }
+        }
+
+        @Override
+        void runReaper(String[] arguments) throws IOException {
+            List<String> list = Arrays.asList(arguments);
+            File killList = new File(list.get(list.indexOf("--kill-list") + 1));
+            killLists.add(new Gson().fromJson(FileUtils.readFileToString(killList, StandardCharsets.UTF_8), String[].class));
+        }
+    }
+}
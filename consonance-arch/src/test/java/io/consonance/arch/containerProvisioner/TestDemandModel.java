@@ -0,0 +1,118 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestDemandModel {
+
+    /**
+     * Queued jobs add to the demand for their flavour, finished ones take away from it.
+     */
+    @Test
+    public void testDemandByFlavour() throws InterruptedException {
+        DemandModel demand = new DemandModel();
+        demand.reset(Arrays.asList(job("a", "m1.xlarge"), job("b", "m1.xlarge")));
+        demand.jobQueued("c", "m1.small");
+        demand.jobFinished("a");
+        assertTrue(demand.awaitChange(0));
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("m1.xlarge", 1);
+        expected.put("m1.small", 1);
+        assertEquals(expected, demand.takeDemand());
+        assertFalse(demand.awaitChange(0));
+    }
+
+    /**
+     * Repeated requests and results for jobs that are not known do not count as changes.
+     */
+    @Test
+    public void testNoChange() throws InterruptedException {
+        DemandModel demand = new DemandModel();
+        demand.jobQueued("a", "m1.xlarge");
+        demand.takeDemand();
+        demand.jobQueued("a", "m1.xlarge");
+        demand.jobFinished("unknown");
+        assertFalse(demand.awaitChange(1));
+
+        demand.jobFinished("a");
+        assertTrue(demand.awaitChange(1));
+        assertTrue(demand.takeDemand().isEmpty());
+    }
+
+    /**
+     * A change made on another thread wakes up a waiting thread.
+     */
+    @Test
+    public void testAwaitChange() throws InterruptedException {
+        DemandModel demand = new DemandModel();
+        Thread orders = new Thread(() -> demand.jobQueued("a", "m1.xlarge"));
+        orders.start();
+        assertTrue(demand.awaitChange(Long.MAX_VALUE / 2));
+        orders.join();
+    }
+
+    /**
+     * Jobs wait until a worker picks them up, late reports for finished jobs are ignored.
+     */
+    @Test
+    public void testWaiting() throws InterruptedException {
+        DemandModel demand = new DemandModel();
+        JobSummary running = job("a", "m1.xlarge");
+        running.setState(JobState.RUNNING);
+        demand.reset(Arrays.asList(running, job("b", "m1.xlarge")));
+        demand.jobQueued("c", "m1.small");
+        assertEquals(1, demand.waiting("m1.xlarge"));
+        assertEquals(1, demand.waiting("m1.small"));
+
+        demand.takeDemand();
+        assertTrue(demand.jobStarted("b"));
+        assertFalse(demand.awaitChange(0));
+        assertEquals(0, demand.waiting("m1.xlarge"));
+
+        assertEquals("m1.xlarge", demand.jobFinished("b"));
+        assertFalse(demand.jobStarted("b"));
+        assertNull(demand.jobFinished("b"));
+        assertEquals(0, demand.waiting("m1.xlarge"));
+    }
+
+    private static JobSummary job(String uuid, String flavour) {
+        JobSummary job = new JobSummary();
+        job.setUuid(uuid);
+        job.setFlavour(flavour);
+        return job;
+    }
+}
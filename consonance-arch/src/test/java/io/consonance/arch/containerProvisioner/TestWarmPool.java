@@ -0,0 +1,166 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.containerProvisioner;
+
+import io.consonance.arch.beans.Provision;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestWarmPool {
+
+    private static final long TIMEOUT = 1000;
+
+    /**
+     * VMs stay in the pool until they have been idle for longer than the timeout.
+     */
+    @Test
+    public void testIdleTimeout() {
+        WarmPool pool = new WarmPool(TIMEOUT, Collections.emptyMap());
+        assertTrue(pool.isEnabled());
+        pool.jobStarted("vm1", "a");
+        pool.jobFinished("vm1", "10.0.0.1", "m1.xlarge", "a", 0);
+
+        assertTrue(pool.takeReapable(TIMEOUT - 1, flavour -> 0).isEmpty());
+        List<WarmPool.IdleVM> reapable = pool.takeReapable(TIMEOUT, flavour -> 0);
+        assertEquals(1, reapable.size());
+        assertEquals("vm1", reapable.get(0).getVmUuid());
+        assertEquals("10.0.0.1", reapable.get(0).getIpAddress());
+        assertTrue(pool.takeReapable(TIMEOUT * 2, flavour -> 0).isEmpty());
+    }
+
+    /**
+     * A VM that picks up another job is no longer idle, and one with several jobs is idle only once all of them are done.
+     */
+    @Test
+    public void testReuse() {
+        WarmPool pool = new WarmPool(TIMEOUT, Collections.emptyMap());
+        pool.jobStarted("vm1", "a");
+        pool.jobFinished("vm1", "10.0.0.1", "m1.xlarge", "a", 0);
+        pool.jobStarted("vm1", "b");
+        pool.jobStarted("vm1", "c");
+        pool.jobFinished("vm1", "10.0.0.1", "m1.xlarge", "b", 0);
+        assertTrue(pool.takeReapable(TIMEOUT, flavour -> 0).isEmpty());
+
+        pool.jobFinished("vm1", "10.0.0.1", "m1.xlarge", "c", TIMEOUT);
+        assertTrue(pool.takeReapable(TIMEOUT * 2 - 1, flavour -> 0).isEmpty());
+        assertEquals(1, pool.takeReapable(TIMEOUT * 2, flavour -> 0).size());
+    }
+
+    /**
+     * The oldest idle VMs beyond the size of their flavour's pool are reaped straight away, other flavours are left alone.
+     */
+    @Test
+    public void testPoolSize() {
+        Map<String, Integer> sizes = new HashMap<>();
+        sizes.put("m1.xlarge", 1);
+        WarmPool pool = new WarmPool(TIMEOUT, sizes);
+        pool.jobFinished("vm1", "10.0.0.1", "m1.xlarge", "a", 0);
+        pool.jobFinished("vm2", "10.0.0.2", "m1.small", "b", 1);
+        pool.jobFinished("vm3", "10.0.0.3", "m1.xlarge", "c", 2);
+        pool.jobFinished("vm4", "10.0.0.4", "m1.xlarge", "d", 3);
+
+        assertEquals(vms("vm1", "vm3"), uuids(pool.takeReapable(4, flavour -> 0)));
+        assertTrue(pool.takeReapable(4, flavour -> 0).isEmpty());
+    }
+
+    /**
+     * Nothing of a flavour is reaped while jobs of that flavour wait for a worker, and forgotten VMs are never handed back.
+     */
+    @Test
+    public void testWaitingAndForget() {
+        WarmPool pool = new WarmPool(TIMEOUT, Collections.singletonMap("m1.xlarge", 0));
+        pool.jobFinished("vm1", "10.0.0.1", "m1.xlarge", "a", 0);
+        pool.jobFinished("vm2", "10.0.0.2", "m1.small", "b", 0);
+        pool.jobFinished("vm3", "10.0.0.3", "m1.small", "c", 0);
+        pool.forget("vm3");
+
+        assertTrue(pool.takeReapable(TIMEOUT, flavour -> 1).isEmpty());
+        assertEquals(vms("vm2"), uuids(pool.takeReapable(TIMEOUT, flavour -> "m1.xlarge".equals(flavour) ? 1 : 0)));
+        assertEquals(vms("vm1"), uuids(pool.takeReapable(0, flavour -> 0)));
+    }
+
+    /**
+     * VMs taken back after a restart keep the time they became idle, and are reaped straight away when the pool is off.
+     */
+    @Test
+    public void testRestore() {
+        List<Provision> provisions = new ArrayList<>();
+        provisions.add(provision("vm1", "a", new Timestamp(0)));
+        provisions.add(provision("vm2", "b", null));
+        Map<String, String> flavours = new HashMap<>();
+        flavours.put("a", "m1.xlarge");
+
+        WarmPool pool = new WarmPool(TIMEOUT, Collections.emptyMap());
+        pool.restore(provisions, flavours::get, TIMEOUT);
+        List<WarmPool.IdleVM> reapable = pool.takeReapable(TIMEOUT, flavour -> 0);
+        assertEquals(vms("vm1"), uuids(reapable));
+        assertEquals("m1.xlarge", reapable.get(0).getFlavour());
+        assertEquals(vms("vm2"), uuids(pool.takeReapable(TIMEOUT * 2, flavour -> 0)));
+
+        WarmPool disabled = new WarmPool(0, Collections.emptyMap());
+        disabled.restore(provisions, flavours::get, TIMEOUT);
+        assertEquals(vms("vm1", "vm2"), uuids(disabled.takeReapable(TIMEOUT, flavour -> 0)));
+    }
+
+    /**
+     * Without an idle timeout the warm pool is turned off.
+     */
+    @Test
+    public void testDisabled() {
+        assertFalse(new WarmPool(0, Collections.emptyMap()).isEnabled());
+    }
+
+    private static Provision provision(String vmUuid, String jobUuid, Timestamp updated) {
+        Provision provision = new Provision();
+        provision.setProvisionUUID(vmUuid);
+        provision.setJobUUID(jobUuid);
+        provision.setIpAddress("10.0.0.1");
+        provision.setUpdateTimestamp(updated);
+        return provision;
+    }
+
+    private static List<String> vms(String... uuids) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, uuids);
+        return list;
+    }
+
+    private static List<String> uuids(List<WarmPool.IdleVM> vms) {
+        List<String> list = new ArrayList<>();
+        for (WarmPool.IdleVM vm : vms) {
+            list.add(vm.getVmUuid());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.coordinator;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestJobRouting {
+
+    private static final long WAIT = 1000;
+
+    /**
+     * Jobs with a locality key go to their locality queue, others to the queue for their flavour.
+     */
+    @Test
+    public void testRoutingKey() {
+        JobRouting routing = new JobRouting(WAIT);
+        assertEquals("m1.xlarge@hg19", routing.routingKey(job("hg19")));
+        assertTrue(routing.isLocal(job("hg19")));
+        assertEquals("m1.xlarge", routing.routingKey(job(null)));
+        assertFalse(routing.isLocal(job(null)));
+    }
+
+    /**
+     * Keys that cannot be part of a queue name are ignored.
+     */
+    @Test
+    public void testInvalidLocality() {
+        JobRouting routing = new JobRouting(WAIT);
+        assertEquals("m1.xlarge", routing.routingKey(job("hg 19")));
+        assertFalse(routing.isLocal(job(String.join("", Collections.nCopies(CommonServerTestUtilities.MAX_LOCALITY_LENGTH + 1, "x")))));
+    }
+
+    /**
+     * Without a wait, locality keys are ignored.
+     */
+    @Test
+    public void testLocalityOff() {
+        JobRouting routing = new JobRouting(0);
+        assertEquals("m1.xlarge", routing.routingKey(job("hg19")));
+        assertFalse(routing.isLocal(job("hg19")));
+    }
+
+    /**
+     * A locality queue is declared for its first job, again once it has not been declared for longer than the wait, and again after
+     * a declare failed.
+     */
+    @Test
+    public void testRedeclare() {
+        JobRouting routing = new JobRouting(WAIT);
+        assertTrue(routing.declareDue("m1.xlarge@hg19", 0));
+        assertFalse(routing.declareDue("m1.xlarge@hg19", WAIT));
+        assertTrue(routing.declareDue("m1.xlarge@grch38", WAIT));
+        assertTrue(routing.declareDue("m1.xlarge@hg19", WAIT + 1));
+        assertFalse(routing.declareDue("m1.xlarge@hg19", WAIT * 2));
+
+        routing.declareFailed("m1.xlarge@hg19");
+        assertTrue(routing.declareDue("m1.xlarge@hg19", WAIT * 2));
+    }
+
+    private static Job job(String locality) {
+        Job job = new Job();
+        job.setFlavour("m1.xlarge");
+        job.setLocality(locality);
+        return job;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.test;
+
+import com.google.gson.Gson;
+import com.rabbitmq.client.MessageProperties;
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestMessageCodec {
+
+    /**
+     * Statuses from workers that still use Gson must be readable, and what we write must be readable by them.
+     */
+    @Test
+    public void testStatusMatchesGson() throws IOException {
+        Status status = new Status("vm123456", "job123", StatusState.RUNNING, CommonServerTestUtilities.JOB_MESSAGE_TYPE, "job is running",
+                "10.0.0.1");
+        status.setStdout("iteration: 0\n");
+        status.setStdoutOffset(13L);
+        final Gson gson = new Gson();
+
+        Status fromGson = MessageCodec.JSON.decodeStatus(gson.toJson(status).getBytes(StandardCharsets.UTF_8));
+        assertStatusEquals(status, fromGson);
+        assertNull(fromGson.getStderr());
+
+        Status toGson = gson.fromJson(new String(MessageCodec.JSON.encode(status), StandardCharsets.UTF_8), Status.class);
+        assertStatusEquals(status, toGson);
+
+        // fields added later should not trip up older readers, nor should unknown fields trip us up
+        Status unknown = MessageCodec.JSON.decodeStatus("{\"state\":\"FAILED\",\"shinyNewField\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(StatusState.FAILED, unknown.getState());
+    }
+
+    /**
+     * Every kind of message should survive a trip through either format.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        Job job = new Job("asdlk2390aso12jvrej");
+        job.setUuid("job123");
+        job.setFlavour("m1.xlarge");
+        job.setContainerRuntimeDescriptor("{\"message\": \"hello\"}");
+        job.getExtraFiles().put("node-engine.cwl", new Job.ExtraFile("#!/usr/bin/env node", true));
+        Provision provision = new Provision(4, 8, 100, new ArrayList<>());
+        provision.setJobUUID("job123");
+        Order order = new Order();
+        order.setJob(job);
+        order.setProvision(provision);
+        Status status = new Status("vm123456", "job123", StatusState.SUCCESS, CommonServerTestUtilities.JOB_MESSAGE_TYPE, "job is finished",
+                "10.0.0.1");
+
+        for (MessageCodec codec : MessageCodec.values()) {
+            assertEquals(job, codec.decodeJob(codec.encode(job)));
+            assertEquals(4, codec.decodeProvision(codec.encode(provision)).getCores());
+            assertStatusEquals(status, codec.decodeStatus(codec.encode(status)));
+            Order decoded = codec.decodeOrder(codec.encode(order));
+            assertEquals(order.getOrderUUID(), decoded.getOrderUUID());
+            assertEquals(job, decoded.getJob());
+            assertEquals("job123", decoded.getProvision().getJobUUID());
+        }
+        assertTrue(MessageCodec.SMILE.encode(order).length < MessageCodec.JSON.encode(order).length);
+        // the text forms are still there for logs
+        assertEquals(order.getOrderUUID(), new Order().fromJSON(order.toJSON()).getOrderUUID());
+        assertStatusEquals(status, new Status().fromJSON(status.toJSON()));
+    }
+
+    /**
+     * Consumers go by content type, anything they do not recognise is JSON.
+     */
+    @Test
+    public void testForProperties() {
+        assertEquals(MessageCodec.SMILE, MessageCodec.forProperties(MessageCodec.SMILE.persistentProperties()));
+        assertEquals(MessageCodec.JSON, MessageCodec.forProperties(MessageCodec.JSON.persistentProperties()));
+        assertEquals(MessageCodec.JSON, MessageCodec.forProperties(MessageProperties.PERSISTENT_TEXT_PLAIN));
+        assertEquals(MessageCodec.JSON, MessageCodec.forProperties(null));
+    }
+
+    @Test
+    public void testFromSettings() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        assertEquals(MessageCodec.JSON, MessageCodec.fromSettings(settings));
+        settings.setProperty(Constants.RABBIT_MESSAGE_FORMAT, "smile");
+        assertEquals(MessageCodec.SMILE, MessageCodec.fromSettings(settings));
+        settings.setProperty(Constants.RABBIT_MESSAGE_FORMAT, "xml");
+        assertEquals(MessageCodec.JSON, MessageCodec.fromSettings(settings));
+    }
+
+    private static void assertStatusEquals(Status expected, Status actual) {
+        assertEquals(expected.getVmUuid(), actual.getVmUuid());
+        assertEquals(expected.getJobUuid(), actual.getJobUuid());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(expected.getIpAddress(), actual.getIpAddress());
+        assertEquals(expected.getStdout(), actual.getStdout());
+        assertEquals(expected.getStdoutOffset(), actual.getStdoutOffset());
+    }
+}
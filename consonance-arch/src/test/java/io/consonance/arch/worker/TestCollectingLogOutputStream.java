@@ -18,10 +18,17 @@
  */
 package io.consonance.arch.worker;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -30,6 +37,9 @@ import static org.junit.Assert.assertTrue;
  */
 public class TestCollectingLogOutputStream {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     /**
      * Test of processLine method, of class CollectingLogOutputStream.
      */
@@ -63,4 +73,76 @@ public class TestCollectingLogOutputStream {
         assertTrue("output does not match", output.size() == 1 && output.get(0).contains("groovy"));
     }
 
+    /**
+     * Only the most recent lines should be held once the buffer wraps around.
+     */
+    @Test
+    public void testRingBufferWrapsAround() {
+        final int capacity = 3;
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(capacity);
+        for (int i = 0; i < capacity * 2 + 1; i++) {
+            instance.processLine("line " + i, 1);
+        }
+        assertEquals(capacity * 2 + 1, instance.getLineCount());
+        assertEquals(Arrays.asList("line 4", "line 5", "line 6"), instance.getLastNLines(capacity * 2));
+        assertEquals(Arrays.asList("line 5", "line 6"), instance.getLastNLines(2));
+        assertEquals("line 4\nline 5\nline 6", instance.getAllLinesAsString());
+        assertTrue(instance.getLastNLines(0).isEmpty());
+    }
+
+    /**
+     * Tails should be copies that do not change as more output arrives.
+     */
+    @Test
+    public void testTailIsACopy() {
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(2);
+        instance.processLine("first", 1);
+        List<String> tail = instance.getLastNLines(2);
+        instance.processLine("second\rthird", 1);
+        assertEquals(Arrays.asList("first"), tail);
+        assertEquals(Arrays.asList("second", "third"), instance.getLastNLines(2));
+    }
+
+    /**
+     * The spill file should hold every line even after the buffer wraps around.
+     */
+    @Test
+    public void testSpillFileKeepsFullLog() throws Exception {
+        final Path spill = folder.getRoot().toPath().resolve("stdout.log");
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(1, spill);
+        instance.processLine("funky", 1);
+        instance.processLine("groovy", 1);
+        instance.close();
+        assertEquals(Arrays.asList("groovy"), instance.getLastNLines(2));
+        assertEquals(Arrays.asList("funky", "groovy"), Files.readAllLines(spill, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads by offset should return whole lines written after the offset, and skip ahead when lines were pushed out of memory.
+     */
+    @Test
+    public void testReadFrom() {
+        CollectingLogOutputStream instance = new CollectingLogOutputStream(3);
+        instance.processLine("one", 1);
+        instance.processLine("tw\u00f6", 1);
+        CollectingLogOutputStream.LogChunk chunk = instance.readFrom(0, Integer.MAX_VALUE);
+        assertEquals(0, chunk.getOffset());
+        assertEquals("one\ntw\u00f6\n", chunk.getText());
+        assertEquals(instance.getByteCount(), chunk.getEnd());
+
+        // nothing new
+        CollectingLogOutputStream.LogChunk empty = instance.readFrom(chunk.getEnd(), Integer.MAX_VALUE);
+        assertTrue(empty.isEmpty());
+        assertEquals(chunk.getEnd(), empty.getOffset());
+
+        // at least one line is returned however small the limit
+        assertEquals("one\n", instance.readFrom(0, 1).getText());
+
+        instance.processLine("three", 1);
+        instance.processLine("four", 1);
+        CollectingLogOutputStream.LogChunk gap = instance.readFrom(0, Integer.MAX_VALUE);
+        assertEquals("one\n".length(), gap.getOffset());
+        assertEquals("tw\u00f6\nthree\nfour\n", gap.getText());
+        assertEquals("three\nfour\n", instance.readFrom(chunk.getEnd(), Integer.MAX_VALUE).getText());
+    }
 }
@@ -0,0 +1,49 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.worker;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestJobConsumer {
+
+    /**
+     * Waiting ends once every subscription was confirmed cancelled, even when the confirmations come from another thread.
+     */
+    @Test
+    public void testAwaitCancelled() throws InterruptedException {
+        JobConsumer consumer = new JobConsumer(null);
+        consumer.handleCancelOk("flavour");
+        assertFalse(consumer.awaitCancelled(Arrays.asList("flavour", "locality"), 1));
+
+        Thread broker = new Thread(() -> consumer.handleCancelOk("locality"));
+        broker.start();
+        assertTrue(consumer.awaitCancelled(Arrays.asList("flavour", "locality"), 10000));
+        broker.join();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Job;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestJobSandbox {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Job createJob() {
+        Job job = new Job();
+        job.setContainerImageDescriptor("cwlVersion: v1.0");
+        job.setContainerRuntimeDescriptor("{}");
+        job.getExtraFiles().put("secrets/token", new Job.ExtraFile("hush", false));
+        job.getExtraFiles().put("outputs/keep.txt", new Job.ExtraFile("keep me", true));
+        return job;
+    }
+
+    /**
+     * Each job should get its own directory with its descriptors and extra files.
+     */
+    @Test
+    public void testCreate() throws Exception {
+        final Path root = folder.getRoot().toPath();
+        JobSandbox first = JobSandbox.create(root, createJob(), root.resolve("missing.config"));
+        JobSandbox second = JobSandbox.create(root, createJob(), root.resolve("missing.config"));
+        assertNotEquals(first.getDirectory(), second.getDirectory());
+        assertEquals("cwlVersion: v1.0", new String(Files.readAllBytes(first.getImageDescriptor()), StandardCharsets.UTF_8));
+        assertEquals("{}", new String(Files.readAllBytes(first.getRunDescriptor()), StandardCharsets.UTF_8));
+        assertTrue(Files.exists(first.getLauncherConfig()));
+        assertTrue(Files.exists(first.getDirectory().resolve("secrets/token")));
+    }
+
+    /**
+     * Cleaning up should only leave files that asked to be kept.
+     */
+    @Test
+    public void testCleanupKeepsKeptFiles() throws Exception {
+        final Path root = folder.getRoot().toPath();
+        JobSandbox sandbox = JobSandbox.create(root, createJob(), root.resolve("missing.config"));
+        sandbox.cleanup(Runnable::run).get();
+        assertFalse(Files.exists(sandbox.getImageDescriptor()));
+        assertFalse(Files.exists(sandbox.getDirectory().resolve("secrets")));
+        assertTrue(Files.exists(sandbox.getDirectory().resolve("outputs/keep.txt")));
+    }
+
+    /**
+     * A sandbox with nothing to keep should disappear completely.
+     */
+    @Test
+    public void testCleanupRemovesSandbox() throws Exception {
+        final Path root = folder.getRoot().toPath();
+        Job job = createJob();
+        job.getExtraFiles().remove("outputs/keep.txt");
+        JobSandbox sandbox = JobSandbox.create(root, job, root.resolve("missing.config"));
+        sandbox.cleanup(Runnable::run).get();
+        assertFalse(Files.exists(sandbox.getDirectory()));
+    }
+}
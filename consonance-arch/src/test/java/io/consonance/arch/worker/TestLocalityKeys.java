@@ -0,0 +1,64 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.worker;
+
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestLocalityKeys {
+
+    /**
+     * Keys from the settings come first, blank and invalid entries are skipped.
+     */
+    @Test
+    public void testFromSettings() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        settings.setProperty(Constants.WORKER_LOCALITY_KEYS, "hg19, , grch38, not a key");
+        LocalityKeys keys = LocalityKeys.fromSettings(settings);
+        keys.learn("dbsnp");
+        assertEquals(Arrays.asList("hg19", "grch38", "dbsnp"), keys.keys());
+    }
+
+    /**
+     * Only the most recently used learned keys are kept, configured keys, missing keys and keys that cannot be part of a queue name
+     * are not learned.
+     */
+    @Test
+    public void testLearn() {
+        LocalityKeys keys = new LocalityKeys(Collections.singletonList("hg19"), 2);
+        keys.learn(null);
+        keys.learn("../etc");
+        keys.learn("hg19");
+        keys.learn("a");
+        keys.learn("b");
+        keys.learn("a");
+        keys.learn("c");
+        assertEquals(Arrays.asList("hg19", "a", "c"), keys.keys());
+    }
+}
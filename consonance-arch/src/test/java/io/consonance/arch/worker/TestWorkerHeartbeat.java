@@ -0,0 +1,205 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.worker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestWorkerHeartbeat {
+
+    private static final String EXCHANGE = "consonance_arch_results";
+    private WorkerHeartbeat heartbeat;
+    private Channel channel;
+    private AtomicInteger opened;
+    private final AtomicInteger publishes = new AtomicInteger();
+    private ExecutorService connectThread;
+
+    @Before
+    public void setUp() throws Exception {
+        channel = openChannel();
+        opened = new AtomicInteger();
+        heartbeat = new WorkerHeartbeat();
+        heartbeat.setQueueName(EXCHANGE);
+        heartbeat.setConfirmWaitMillis(1000);
+        heartbeat.setChannelOpener(() -> {
+            opened.incrementAndGet();
+            return channel;
+        }, Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        if (connectThread != null) {
+            connectThread.shutdownNow();
+        }
+    }
+
+    /**
+     * Without running jobs there is nothing to report, so no channel is needed either.
+     */
+    @Test
+    public void testNoJobs() {
+        heartbeat.beat();
+        assertEquals(0, opened.get());
+    }
+
+    /**
+     * A beat publishes one status per job and waits for one round of confirms.
+     */
+    @Test
+    public void testOneConfirmPerBeat() throws Exception {
+        heartbeat.register("job1", mock(WorkflowRunner.class));
+        heartbeat.register("job2", mock(WorkflowRunner.class));
+        heartbeat.beat();
+        heartbeat.beat();
+        assertEquals(1, opened.get());
+        verify(channel, times(4)).basicPublish(eq(EXCHANGE), eq(EXCHANGE), any(AMQP.BasicProperties.class), any(byte[].class));
+        verify(channel, times(2)).waitForConfirms(1000);
+
+        heartbeat.unregister("job1");
+        heartbeat.unregister("job2");
+        heartbeat.beat();
+        verify(channel, times(2)).waitForConfirms(anyLong());
+    }
+
+    /**
+     * Setting up the channel must not hold up the scheduler thread, beats are skipped until the channel is ready.
+     */
+    @Test
+    public void testBeatDoesNotWaitForChannel() throws Exception {
+        CountDownLatch brokerUp = new CountDownLatch(1);
+        CountDownLatch channelReady = new CountDownLatch(1);
+        connectThread = Executors.newSingleThreadExecutor();
+        heartbeat.setChannelOpener(() -> {
+            brokerUp.await();
+            channelReady.countDown();
+            return channel;
+        }, connectThread);
+        heartbeat.register("job1", mock(WorkflowRunner.class));
+
+        long start = System.nanoTime();
+        heartbeat.beat();
+        heartbeat.beat();
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 1);
+        assertFalse(published());
+
+        brokerUp.countDown();
+        assertTrue(channelReady.await(10, TimeUnit.SECONDS));
+        // the channel may not be handed over the moment the opener returns
+        for (int i = 0; i < 100 && !published(); i++) {
+            heartbeat.beat();
+            Thread.sleep(10);
+        }
+        assertTrue(published());
+    }
+
+    /**
+     * A channel that could not be set up is tried again on the next beat.
+     */
+    @Test
+    public void testFailedSetupIsRetried() throws Exception {
+        heartbeat.setChannelOpener(() -> {
+            if (opened.incrementAndGet() == 1) {
+                throw new IOException("connection refused");
+            }
+            return channel;
+        }, Runnable::run);
+        heartbeat.register("job1", mock(WorkflowRunner.class));
+        heartbeat.beat();
+        assertFalse(published());
+        heartbeat.beat();
+        assertEquals(2, opened.get());
+        assertTrue(published());
+    }
+
+    /**
+     * A publish that fails drops the channel, the next beat sets up a new one.
+     */
+    @Test
+    public void testFailedPublishReplacesChannel() throws Exception {
+        doThrow(new IOException("connection reset")).when(channel)
+                .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        heartbeat.register("job1", mock(WorkflowRunner.class));
+        heartbeat.beat();
+        verify(channel).close();
+
+        Channel replacement = openChannel();
+        channel = replacement;
+        heartbeat.beat();
+        assertEquals(2, opened.get());
+        verify(replacement).basicPublish(eq(EXCHANGE), eq(EXCHANGE), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    /**
+     * A confirm that takes too long is given up on without dropping the channel.
+     */
+    @Test
+    public void testConfirmTimeoutKeepsChannel() throws Exception {
+        when(channel.waitForConfirms(anyLong())).thenThrow(new TimeoutException()).thenReturn(true);
+        heartbeat.register("job1", mock(WorkflowRunner.class));
+        heartbeat.beat();
+        heartbeat.beat();
+        assertEquals(1, opened.get());
+        verify(channel, never()).close();
+        verify(channel, times(2)).waitForConfirms(anyLong());
+    }
+
+    private boolean published() {
+        return publishes.get() > 0;
+    }
+
+    private Channel openChannel() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        doAnswer(invocation -> publishes.incrementAndGet()).when(channel)
+                .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        when(channel.waitForConfirms(anyLong())).thenReturn(true);
+        return channel;
+    }
+}
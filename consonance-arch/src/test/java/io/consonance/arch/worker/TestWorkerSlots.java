@@ -0,0 +1,68 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.worker;
+
+import io.consonance.arch.beans.Provision;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestWorkerSlots {
+
+    /**
+     * The scarcer of cores and memory should decide how many jobs fit.
+     */
+    @Test
+    public void testSlotsFor() {
+        Provision capacity = new Provision(64, 256, 0, new ArrayList<>());
+        assertEquals(16, WorkerSlots.slotsFor(capacity, new Provision(4, 8, 0, new ArrayList<>())));
+        assertEquals(8, WorkerSlots.slotsFor(capacity, new Provision(4, 32, 0, new ArrayList<>())));
+        // a job bigger than the VM still gets one slot
+        assertEquals(1, WorkerSlots.slotsFor(capacity, new Provision(128, 8, 0, new ArrayList<>())));
+        // a request without resources does not limit anything
+        assertEquals(1, WorkerSlots.slotsFor(capacity, new Provision(0, 0, 0, new ArrayList<>())));
+    }
+
+    /**
+     * Settings may give a number, auto, or nothing at all.
+     */
+    @Test
+    public void testFromSettings() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        assertEquals(1, WorkerSlots.fromSettings(settings));
+        settings.setProperty(Constants.WORKER_SLOTS, "3");
+        assertEquals(3, WorkerSlots.fromSettings(settings));
+        settings.setProperty(Constants.WORKER_SLOTS, "lots");
+        assertEquals(1, WorkerSlots.fromSettings(settings));
+        settings.setProperty(Constants.WORKER_SLOTS, WorkerSlots.AUTO);
+        settings.setProperty(Constants.WORKER_SLOT_CORES, "1");
+        settings.setProperty(Constants.WORKER_SLOT_MEMORY_GB, "0");
+        assertEquals(Runtime.getRuntime().availableProcessors(), WorkerSlots.fromSettings(settings));
+        assertTrue(WorkerSlots.detectCapacity().getCores() > 0);
+    }
+}
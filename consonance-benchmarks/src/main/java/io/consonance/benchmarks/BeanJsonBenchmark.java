@@ -0,0 +1,67 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The text forms of the beans, used for logs, the webservice and older peers.
+ *
+ * @author dyuen
+ */
+@State(Scope.Benchmark)
+public class BeanJsonBenchmark {
+
+    private String jobJSON;
+    private Status status;
+    private Order order;
+
+    @Setup
+    public void setup() {
+        jobJSON = Fixtures.job().toJSON();
+        status = Fixtures.heartbeat();
+        order = Fixtures.order();
+    }
+
+    @Benchmark
+    public Job jobFromJSON() {
+        return new Job().fromJSON(jobJSON);
+    }
+
+    @Benchmark
+    public String statusToJSON() {
+        return status.toJSON();
+    }
+
+    @Benchmark
+    public String statusToCompactJSON() {
+        return status.toCompactJSON();
+    }
+
+    @Benchmark
+    public Order orderRoundTrip() {
+        return new Order().fromJSON(order.toJSON());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the scores of a benchmark run against a baseline, both as written by JMH with -rf json.
+ *
+ * Throughput may not drop, and time per operation may not grow, by more than the tolerance once the score error JMH reports for
+ * both runs is taken into account, so that noise between single-fork runs is not reported. Benchmarks missing from either side are
+ * skipped, so adding or removing one does not break the comparison.
+ *
+ * @author dyuen
+ */
+public final class CompareBaseline {
+
+    private static final double DEFAULT_TOLERANCE = 0.10;
+    private static final int PERCENT = 100;
+
+    private CompareBaseline() {
+        // command line only
+    }
+
+    /**
+     * @param args the baseline file, the current file and optionally the tolerance as a fraction
+     * @throws IOException if either file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("usage: CompareBaseline baseline.json current.json [tolerance]");
+        }
+        final double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+        ObjectMapper mapper = new ObjectMapper();
+        List<String> regressions = compare(mapper.readTree(new File(args[0])), mapper.readTree(new File(args[1])), tolerance);
+        if (!regressions.isEmpty()) {
+            // thrown rather than exiting, so that the build running this fails cleanly
+            throw new IllegalStateException(regressions.size() + " benchmarks regressed:\n" + String.join("\n", regressions));
+        }
+        System.out.println("No benchmark regressed by more than " + Math.round(tolerance * PERCENT) + "%");
+    }
+
+    /**
+     * @param baseline the baseline results
+     * @param current the results to check
+     * @param tolerance how much worse a score may get, as a fraction of the baseline
+     * @return a description of each benchmark that got worse by more than the tolerance plus the error of both scores
+     */
+    static List<String> compare(JsonNode baseline, JsonNode current, double tolerance) {
+        Map<String, JsonNode> before = new HashMap<>();
+        for (JsonNode result : baseline) {
+            before.put(key(result), result);
+        }
+        List<String> regressions = new ArrayList<>();
+        for (JsonNode result : current) {
+            JsonNode old = before.get(key(result));
+            final double was = old == null ? 0 : old.path("primaryMetric").path("score").asDouble();
+            if (was <= 0) {
+                continue;
+            }
+            final double now = result.path("primaryMetric").path("score").asDouble();
+            // only count what is left once both scores are moved towards each other by their error bounds
+            final double noise = error(old) + error(result);
+            // throughput is better when higher, every other mode measures time
+            final boolean higherIsBetter = "thrpt".equals(result.path("mode").asText());
+            final double worse = (higherIsBetter ? was - now : now - was) - noise;
+            if (worse > tolerance * was) {
+                final String unit = result.path("primaryMetric").path("scoreUnit").asText();
+                regressions.add(key(result) + ": " + was + " -> " + now + " " + unit + " (error " + noise + ")");
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * @return the half-width of the confidence interval JMH reports for a score, zero when it could not compute one
+     */
+    private static double error(JsonNode result) {
+        // JMH writes NaN when there were too few iterations to estimate the error
+        final double error = result.path("primaryMetric").path("scoreError").asDouble();
+        return Double.isNaN(error) || Double.isInfinite(error) ? 0 : Math.abs(error);
+    }
+
+    private static String key(JsonNode result) {
+        return result.path("benchmark").asText() + " " + result.path("mode").asText() + " " + result.path("params");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Messages shaped like the ones the system sends, so that benchmarks measure realistic sizes.
+ *
+ * @author dyuen
+ */
+final class Fixtures {
+
+    /** roughly the size of a small CWL tool description */
+    static final int DESCRIPTOR_LINES = 120;
+    /** lines of output in a heartbeat */
+    static final int OUTPUT_LINES = 200;
+    private static final int CORES = 8;
+    private static final int MEMORY_GB = 32;
+    private static final int STORAGE_GB = 500;
+
+    private Fixtures() {
+        // static helpers only
+    }
+
+    static Job job() {
+        Job job = new Job("4c8a1c5d2e7f");
+        job.setUuid("1b9e2a7c-3f4d-4e5a-8b6c-7d8e9f0a1b2c");
+        job.setVmUuid("vm-0f1e2d3c");
+        job.setState(JobState.RUNNING);
+        job.setFlavour("m1.xlarge");
+        job.setEndUser("player1");
+        job.setContainerImageDescriptor(lines("inputs: {id: \"#reference\", type: File, doc: \"indexed reference genome\"}", DESCRIPTOR_LINES));
+        job.setContainerRuntimeDescriptor("{\"reference\": {\"class\": \"File\", \"path\": \"s3://bucket/reference.fa\"}}");
+        job.getExtraFiles().put("node-engine.cwl", new Job.ExtraFile(lines("#!/usr/bin/env node", DESCRIPTOR_LINES), true));
+        return job;
+    }
+
+    static Provision provision() {
+        Provision provision = new Provision(CORES, MEMORY_GB, STORAGE_GB, new ArrayList<>(Collections.singletonList("site.yml")));
+        provision.setJobUUID(job().getUuid());
+        provision.setProvisionUUID("vm-0f1e2d3c");
+        return provision;
+    }
+
+    static Order order() {
+        Order order = new Order();
+        order.setJob(job());
+        order.setProvision(provision());
+        return order;
+    }
+
+    static Status heartbeat() {
+        Status status = new Status("vm-0f1e2d3c", job().getUuid(), StatusState.RUNNING, CommonServerTestUtilities.JOB_MESSAGE_TYPE,
+                "job is running", "10.0.0.17");
+        status.setStdout(lines("[job bwa] 2016-09-30 12:00:00 processed 1000000 reads in 12.3 s", OUTPUT_LINES));
+        status.setStderr("");
+        status.setStdoutOffset(0L);
+        status.setStderrOffset(0L);
+        status.setSequence(1L);
+        return status;
+    }
+
+    static String lines(String line, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(line).append(' ').append(i).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.persistence.JobHandler;
+import io.consonance.arch.persistence.JobSummaryHandler;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Turning rows of the job table into beans, as PostgreSQL.getJobs and getJobSummaries do.
+ *
+ * @author dyuen
+ */
+@State(Scope.Benchmark)
+public class JobMappingBenchmark {
+
+    private static final String[] LABELS = {"job_uuid", "provision_uuid", "status", "job_hash", "stdout", "stderr", "flavour",
+            "create_timestamp", "update_timestamp" };
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    private final ResultSetHandler<List<Job>> jobHandler = new JobHandler();
+    private final ResultSetHandler<List<JobSummary>> summaryHandler = new JobSummaryHandler();
+    private Object[][] table;
+
+    @Setup
+    public void setup() {
+        final String output = Fixtures.lines("processed 1000000 reads", Fixtures.OUTPUT_LINES);
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        final JobState[] states = JobState.values();
+        table = new Object[rows][];
+        for (int i = 0; i < rows; i++) {
+            table[i] = new Object[] {"job-" + i, "vm-" + i, states[i % states.length].toString(), "hash-" + i, output, "", "m1.xlarge",
+                    now, now };
+        }
+    }
+
+    @Benchmark
+    public List<Job> getJobs() throws SQLException {
+        return jobHandler.handle(StubResultSet.of(LABELS, table));
+    }
+
+    @Benchmark
+    public List<JobSummary> getJobSummaries() throws SQLException {
+        return summaryHandler.handle(StubResultSet.of(LABELS, table));
+    }
+}
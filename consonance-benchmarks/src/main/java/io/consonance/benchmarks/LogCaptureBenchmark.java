@@ -0,0 +1,83 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import io.consonance.arch.worker.CollectingLogOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Capturing a job's output on the worker and reading it back for heartbeats.
+ *
+ * @author dyuen
+ */
+@State(Scope.Thread)
+public class LogCaptureBenchmark {
+
+    /** how much a heartbeat ships at most */
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+    @Param({"100", "1000"})
+    public int lastLines;
+
+    private CollectingLogOutputStream stream;
+    private byte[] line;
+
+    @Setup
+    public void setup() throws IOException {
+        stream = new CollectingLogOutputStream(CollectingLogOutputStream.DEFAULT_CAPACITY);
+        line = "[job bwa] 2016-09-30 12:00:00 processed 1000000 reads in 12.3 s\n".getBytes(StandardCharsets.UTF_8);
+        // start full, so that every line written evicts one
+        for (int i = 0; i < CollectingLogOutputStream.DEFAULT_CAPACITY; i++) {
+            stream.write(line);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Each write ends a line, so this measures processLine plus the line splitting in front of it.
+     */
+    @Benchmark
+    public long processLine() throws IOException {
+        stream.write(line);
+        return stream.getLineCount();
+    }
+
+    @Benchmark
+    public List<String> getLastNLines() {
+        return stream.getLastNLines(lastLines);
+    }
+
+    @Benchmark
+    public CollectingLogOutputStream.LogChunk readFrom() {
+        return stream.readFrom(stream.getByteCount() - (long)lastLines * line.length, CHUNK_BYTES);
+    }
+}
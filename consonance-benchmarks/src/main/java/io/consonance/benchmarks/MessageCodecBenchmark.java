@@ -0,0 +1,83 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Status;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * What goes over the queues, in each format a publisher can pick.
+ *
+ * @author dyuen
+ */
+@State(Scope.Benchmark)
+public class MessageCodecBenchmark {
+
+    @Param({"JSON", "SMILE"})
+    public MessageCodec codec;
+
+    private Job job;
+    private byte[] jobBytes;
+    private Status status;
+    private byte[] statusBytes;
+    private Order order;
+
+    @Setup
+    public void setup() {
+        job = Fixtures.job();
+        jobBytes = codec.encode(job);
+        status = Fixtures.heartbeat();
+        statusBytes = codec.encode(status);
+        order = Fixtures.order();
+    }
+
+    @Benchmark
+    public byte[] encodeJob() {
+        return codec.encode(job);
+    }
+
+    @Benchmark
+    public Job decodeJob() throws IOException {
+        return codec.decodeJob(jobBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeStatus() {
+        return codec.encode(status);
+    }
+
+    @Benchmark
+    public Status decodeStatus() throws IOException {
+        return codec.decodeStatus(statusBytes);
+    }
+
+    @Benchmark
+    public Order orderRoundTrip() throws IOException {
+        return codec.decodeOrder(codec.encode(order));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A forward-only result set over rows held in memory, so that row mapping can be measured without a database.
+ *
+ * Only the calls the handlers make are answered: next, the getters by column label, wasNull and close.
+ *
+ * @author dyuen
+ */
+final class StubResultSet implements InvocationHandler {
+
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final Object[][] rows;
+    private int row = -1;
+    private boolean lastWasNull = false;
+
+    private StubResultSet(String[] labels, Object[][] rows) {
+        for (int i = 0; i < labels.length; i++) {
+            columns.put(labels[i], i);
+        }
+        this.rows = rows;
+    }
+
+    /**
+     * @param labels the column labels, in the order values appear in each row
+     * @param rows the values of each row
+     * @return a result set positioned before the first row
+     */
+    static ResultSet of(String[] labels, Object[][] rows) {
+        return (ResultSet)Proxy.newProxyInstance(StubResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class },
+                new StubResultSet(labels, rows));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "next":
+            row++;
+            return row < rows.length;
+        case "wasNull":
+            return lastWasNull;
+        case "close":
+            return null;
+        case "getString":
+        case "getTimestamp":
+        case "getObject":
+            Object value = rows[row][columns.get((String)args[0])];
+            lastWasNull = value == null;
+            return value;
+        default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks.throughput;
+
+import org.apache.qpid.server.Broker;
+import org.apache.qpid.server.BrokerOptions;
+
+import java.io.File;
+
+/**
+ * An AMQP 0-9-1 broker running in this JVM, so that a load test does not need a RabbitMQ server.
+ *
+ * Everything is kept in memory and there is a single guest/guest user, as on a fresh RabbitMQ. This is Qpid rather than RabbitMQ, so
+ * numbers measured against it say how fast Consonance is, not how fast a production broker is.
+ *
+ * @author dyuen
+ */
+final class EmbeddedBroker implements AutoCloseable {
+
+    static final String USER = "guest";
+    static final String PASSWORD = "guest";
+    private static final String INITIAL_CONFIG = "qpid-initial-config.json";
+
+    private final Broker broker;
+
+    private EmbeddedBroker(Broker broker) {
+        this.broker = broker;
+    }
+
+    /**
+     * @param port the port to accept AMQP connections on
+     * @param workDirectory where the broker may write its own files
+     * @return the running broker
+     * @throws Exception thrown by Qpid when the broker cannot start
+     */
+    static EmbeddedBroker start(int port, File workDirectory) throws Exception {
+        BrokerOptions options = new BrokerOptions();
+        options.setConfigurationStoreType("Memory");
+        options.setInitialConfigurationLocation(EmbeddedBroker.class.getResource(INITIAL_CONFIG).toExternalForm());
+        options.setConfigProperty("qpid.amqp_port", String.valueOf(port));
+        options.setConfigProperty("qpid.work_dir", workDirectory.getAbsolutePath());
+        options.setStartupLoggedToSystemOut(false);
+        Broker broker = new Broker();
+        broker.startup(options);
+        return new EmbeddedBroker(broker);
+    }
+
+    @Override
+    public void close() {
+        broker.shutdown();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks.throughput;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A PostgreSQL server running from a temporary directory, set up like the install instructions with a queue_user that owns a
+ * queue_status database loaded from the consonance-arch schema.
+ *
+ * @author dyuen
+ */
+final class EmbeddedDatabase implements AutoCloseable {
+
+    static final String USER = "queue_user";
+    static final String PASSWORD = "queue";
+    static final String NAME = "queue_status";
+    /** copied from consonance-arch/sql by the build */
+    private static final String SCHEMA = "schema.sql";
+
+    private final EmbeddedPostgres postgres;
+
+    private EmbeddedDatabase(EmbeddedPostgres postgres) {
+        this.postgres = postgres;
+    }
+
+    /**
+     * @return a running database with an empty schema
+     * @throws IOException thrown when the server cannot start or the schema cannot be read
+     * @throws SQLException thrown when the database cannot be set up
+     */
+    static EmbeddedDatabase start() throws IOException, SQLException {
+        EmbeddedPostgres postgres = EmbeddedPostgres.start();
+        try {
+            try (Connection connection = postgres.getPostgresDatabase().getConnection();
+                    Statement statement = connection.createStatement()) {
+                statement.execute("CREATE ROLE " + USER + " LOGIN PASSWORD '" + PASSWORD + "'");
+                statement.execute("CREATE DATABASE " + NAME + " OWNER " + USER);
+            }
+            final String schema;
+            try (InputStream stream = EmbeddedDatabase.class.getResourceAsStream(SCHEMA)) {
+                schema = IOUtils.toString(stream, StandardCharsets.UTF_8);
+            }
+            // the dump hands its tables over to queue_user, so it is loaded as the superuser
+            try (Connection connection = postgres.getDatabase("postgres", NAME).getConnection();
+                    Statement statement = connection.createStatement()) {
+                statement.execute(schema);
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            postgres.close();
+            throw e;
+        }
+        return new EmbeddedDatabase(postgres);
+    }
+
+    /**
+     * @return the host and port to use as postgresHost
+     */
+    String getHost() {
+        return "localhost:" + postgres.getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        postgres.close();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks.throughput;
+
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times each job from the moment its order is submitted to the first RUNNING and the first finished status seen on the results
+ * exchange.
+ *
+ * @author dyuen
+ */
+final class LatencyRecorder {
+
+    private final Map<String, Long> submitted = new ConcurrentHashMap<>();
+    private final Map<String, Long> running = new ConcurrentHashMap<>();
+    private final Map<String, Long> finished = new ConcurrentHashMap<>();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final CountDownLatch outstanding;
+
+    /**
+     * @param orders how many orders will be submitted
+     */
+    LatencyRecorder(int orders) {
+        this.outstanding = new CountDownLatch(orders);
+    }
+
+    /**
+     * Call before publishing the order, so that its statuses cannot arrive first.
+     *
+     * @param jobUuid the job in the order
+     */
+    void submitted(String jobUuid) {
+        submitted.put(jobUuid, System.nanoTime());
+    }
+
+    /**
+     * Heartbeats, repeated statuses and statuses for jobs this run did not submit are ignored.
+     *
+     * @param status a status from the results exchange
+     */
+    void received(Status status) {
+        final long now = System.nanoTime();
+        final String jobUuid = status.getJobUuid();
+        if (jobUuid == null || !submitted.containsKey(jobUuid)) {
+            return;
+        }
+        if (status.getState() == StatusState.RUNNING) {
+            running.putIfAbsent(jobUuid, now);
+        } else if (status.getState() == StatusState.SUCCESS || status.getState() == StatusState.FAILED) {
+            if (finished.putIfAbsent(jobUuid, now) == null) {
+                if (status.getState() == StatusState.FAILED) {
+                    failed.incrementAndGet();
+                }
+                outstanding.countDown();
+            }
+        }
+    }
+
+    /**
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return true if every submitted job finished in time
+     * @throws InterruptedException when interrupted while waiting
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return outstanding.await(timeout, unit);
+    }
+
+    int getFinished() {
+        return finished.size();
+    }
+
+    int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return nanoseconds from the first order being submitted to the last job finishing
+     */
+    long getElapsed() {
+        if (submitted.isEmpty() || finished.isEmpty()) {
+            return 0;
+        }
+        return finished.values().stream().mapToLong(Long::longValue).max().getAsLong()
+                - submitted.values().stream().mapToLong(Long::longValue).min().getAsLong();
+    }
+
+    /**
+     * @return nanoseconds from submission to RUNNING for each job that got there, in ascending order
+     */
+    long[] getRunningLatencies() {
+        return latencies(running);
+    }
+
+    /**
+     * @return nanoseconds from submission to SUCCESS or FAILED for each job that got there, in ascending order
+     */
+    long[] getFinishedLatencies() {
+        return latencies(finished);
+    }
+
+    private long[] latencies(Map<String, Long> reached) {
+        long[] latencies = reached.entrySet().stream().mapToLong(e -> e.getValue() - submitted.get(e.getKey())).toArray();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * @param sorted latencies in ascending order
+     * @param fraction the percentile wanted, as a fraction
+     * @return the nearest-rank percentile, or 0 when there are no latencies
+     */
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.benchmarks.throughput;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.consonance.arch.Base;
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.containerProvisioner.ContainerProvisionerThreads;
+import io.consonance.arch.coordinator.Coordinator;
+import io.consonance.arch.persistence.PostgreSQL;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.worker.Worker;
+import io.consonance.common.CommonTestUtilities;
+import io.consonance.common.Constants;
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpecBuilder;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many orders per second the coordinator, the container provisioner and a number of test-mode workers can get through
+ * together.
+ *
+ * Everything runs in this JVM against an embedded broker and database, so nothing needs to be installed. Orders are stored and
+ * published the way the web service does it, then timed until their jobs report RUNNING and SUCCESS on the results exchange.
+ *
+ * @author dyuen
+ */
+public final class ThroughputHarness {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThroughputHarness.class);
+
+    private static final String QUEUE_NAME = "consonance_throughput";
+    private static final String FLAVOUR = "throughput";
+    private static final int DEFAULT_ORDERS = 1000;
+    private static final int DEFAULT_WORKERS = 8;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 600;
+    /** each worker holds channels for jobs, results and its heartbeat */
+    private static final int CHANNELS_PER_WORKER = 4;
+    private static final int SPARE_CHANNELS = 64;
+    private static final int DATABASE_CONNECTIONS = 20;
+    /** long enough that no job is flagged as lost during a run */
+    private static final long SECONDS_BEFORE_LOST = 3600;
+    /** orders published between waits for the broker's confirms */
+    private static final int CONFIRM_BATCH = 100;
+    private static final long DATABASE_POLL_MILLISECONDS = 500;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99"};
+    private static final double NANOSECONDS_PER_MILLISECOND = 1e6;
+    private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+    private ThroughputHarness() {
+        // command line only
+    }
+
+    /**
+     * @param argv see --help
+     * @throws Exception thrown when the broker, the database or a run cannot be set up
+     */
+    public static void main(String[] argv) throws Exception {
+        OptionParser parser = new OptionParser();
+        ArgumentAcceptingOptionSpec<Integer> ordersSpec = parser.accepts("orders", "how many orders to submit").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(DEFAULT_ORDERS);
+        ArgumentAcceptingOptionSpec<Integer> workersSpec = parser.accepts("workers", "how many test-mode workers to run").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(DEFAULT_WORKERS);
+        ArgumentAcceptingOptionSpec<Double> rateSpec = parser
+                .accepts("rate", "orders per second to submit, 0 submits as fast as the broker confirms them").withRequiredArg()
+                .ofType(Double.class).defaultsTo(0.0);
+        ArgumentAcceptingOptionSpec<String> formatSpec = parser.accepts("format", "queue message format, json or smile").withRequiredArg()
+                .ofType(String.class).defaultsTo("json");
+        ArgumentAcceptingOptionSpec<Integer> timeoutSpec = parser.accepts("timeout", "seconds to wait for every job to finish")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_TIMEOUT_SECONDS);
+        OptionSpecBuilder helpSpec = parser.accepts("help", "print this message");
+        final OptionSet options;
+        try {
+            options = parser.parse(argv);
+        } catch (OptionException ex) {
+            parser.printHelpOn(System.out);
+            throw ex;
+        }
+        if (options.has(helpSpec)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        final int orders = options.valueOf(ordersSpec);
+        final int workers = options.valueOf(workersSpec);
+        final File workDirectory = Files.createTempDirectory("consonance-throughput").toFile();
+        final int port = freePort();
+        boolean complete;
+        try (EmbeddedBroker broker = EmbeddedBroker.start(port, workDirectory);
+                EmbeddedDatabase database = EmbeddedDatabase.start()) {
+            File configFile = writeConfig(workDirectory, port, database, workers, options.valueOf(formatSpec));
+            complete = run(configFile.getAbsolutePath(), orders, workers, options.valueOf(rateSpec), options.valueOf(timeoutSpec));
+        } finally {
+            FileUtils.deleteQuietly(workDirectory);
+        }
+        // the coordinator and workers run endlessly and the AMQP client keeps trying to reconnect to the stopped broker
+        System.exit(complete ? 0 : 1);
+    }
+
+    /**
+     * Start the components, submit the orders and report on them.
+     *
+     * @return true if every job finished successfully and made it to the database
+     */
+    private static boolean run(String configFile, int orders, int workers, double rate, int timeoutSeconds) throws Exception {
+        HierarchicalINIConfiguration settings = CommonTestUtilities.parseConfig(configFile);
+        ExecutorService components = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "throughput-component");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LatencyRecorder recorder = new LatencyRecorder(orders);
+        // listen before anything is submitted so that no status is missed
+        Channel results = listen(settings, recorder);
+        try {
+            launch(components, "coordinator", () -> {
+                new Coordinator(new String[] { "--config", configFile, "--endless" }).doWork();
+                return null;
+            });
+            launch(components, "container provisioner", () -> {
+                ContainerProvisionerThreads.main(new String[] { "--config", configFile, "--endless", "--test" });
+                return null;
+            });
+            for (int i = 0; i < workers; i++) {
+                final String vmUuid = "throughput-worker-" + i;
+                launch(components, vmUuid, () -> {
+                    Worker.main(new String[] { "--config", configFile, "--uuid", vmUuid, "--test", "--endless", "--flavour", FLAVOUR });
+                    return null;
+                });
+            }
+
+            PostgreSQL db = new PostgreSQL(settings);
+            submit(settings, db, recorder, orders, rate);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            final boolean finished = recorder.await(timeoutSeconds, TimeUnit.SECONDS);
+            // the coordinator writes results in batches, give it until the deadline to catch up
+            final int expected = recorder.getFinished() - recorder.getFailed();
+            int stored = db.getJobSummaries(JobState.SUCCESS).size();
+            while (stored < expected && System.nanoTime() < deadline) {
+                Thread.sleep(DATABASE_POLL_MILLISECONDS);
+                stored = db.getJobSummaries(JobState.SUCCESS).size();
+            }
+
+            report(settings, orders, workers, recorder, stored);
+            return finished && recorder.getFailed() == 0 && stored == orders;
+        } finally {
+            CommonServerTestUtilities.closeChannel(results);
+            components.shutdownNow();
+        }
+    }
+
+    private static void launch(ExecutorService components, String name, Callable<Void> component) {
+        components.submit(() -> {
+            try {
+                component.call();
+            } catch (Exception e) {
+                LOG.error(name + " stopped: " + e.getMessage(), e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Follow the results exchange on a queue of our own, next to the coordinator's.
+     */
+    private static Channel listen(HierarchicalINIConfiguration settings, LatencyRecorder recorder) throws IOException,
+            InterruptedException {
+        final String exchange = settings.getString(Constants.RABBIT_QUEUE_NAME) + "_results";
+        Channel channel = CommonServerTestUtilities.setupExchange(settings, exchange);
+        final String queue = channel.queueDeclare().getQueue();
+        channel.queueBind(queue, exchange, "");
+        channel.basicConsume(queue, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                try {
+                    recorder.received(MessageCodec.forProperties(properties).decodeStatus(body));
+                } catch (IOException e) {
+                    LOG.error("Could not read status: " + e.getMessage(), e);
+                }
+            }
+        });
+        return channel;
+    }
+
+    /**
+     * Store each job and publish its order, like the web service does.
+     */
+    private static void submit(HierarchicalINIConfiguration settings, PostgreSQL db, LatencyRecorder recorder, int orders, double rate)
+            throws IOException, InterruptedException {
+        final MessageCodec codec = MessageCodec.fromSettings(settings);
+        final String queue = settings.getString(Constants.RABBIT_QUEUE_NAME) + "_orders";
+        Channel channel = CommonServerTestUtilities.setupQueue(settings, queue);
+        try {
+            final long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                if (rate > 0) {
+                    TimeUnit.NANOSECONDS.sleep(start + (long) (i * NANOSECONDS_PER_SECOND / rate) - System.nanoTime());
+                }
+                Order order = newOrder();
+                recorder.submitted(order.getJob().getUuid());
+                db.createJob(order.getJob());
+                db.createProvision(order.getProvision());
+                channel.basicPublish("", queue, codec.persistentProperties(), codec.encode(order));
+                if ((i + 1) % CONFIRM_BATCH == 0) {
+                    channel.waitForConfirmsOrDie();
+                }
+            }
+            channel.waitForConfirmsOrDie();
+        } finally {
+            CommonServerTestUtilities.closeChannel(channel);
+        }
+        LOG.info("Submitted " + orders + " orders");
+    }
+
+    private static Order newOrder() {
+        final Job job = new Job("");
+        job.setFlavour(FLAVOUR);
+        job.setEndUser(QUEUE_NAME);
+        Provision provision = new Provision(Base.DEFAULT_NUM_CORES, Base.DEFAULT_MEMORY, Base.DEFAULT_DISKSPACE, new ArrayList<>());
+        provision.setJobUUID(job.getUuid());
+        Order order = new Order();
+        order.setJob(job);
+        order.setProvision(provision);
+        return order;
+    }
+
+    private static File writeConfig(File workDirectory, int port, EmbeddedDatabase database, int workers, String format)
+            throws ConfigurationException {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        settings.setProperty(Constants.RABBIT_HOST, "localhost");
+        settings.setProperty(Constants.RABBIT_PORT, port);
+        settings.setProperty(Constants.RABBIT_USERNAME, EmbeddedBroker.USER);
+        settings.setProperty(Constants.RABBIT_PASSWORD, EmbeddedBroker.PASSWORD);
+        settings.setProperty(Constants.RABBIT_QUEUE_NAME, QUEUE_NAME);
+        settings.setProperty(Constants.RABBIT_MAX_CHANNELS, workers * CHANNELS_PER_WORKER + SPARE_CHANNELS);
+        settings.setProperty(Constants.RABBIT_MESSAGE_FORMAT, format);
+        settings.setProperty(Constants.POSTGRES_HOST, database.getHost());
+        settings.setProperty(Constants.POSTGRES_USERNAME, EmbeddedDatabase.USER);
+        settings.setProperty(Constants.POSTGRES_PASSWORD, EmbeddedDatabase.PASSWORD);
+        settings.setProperty(Constants.POSTGRES_DBNAME, EmbeddedDatabase.NAME);
+        settings.setProperty(Constants.POSTGRES_MAX_CONNECTIONS, DATABASE_CONNECTIONS);
+        settings.setProperty(Constants.COORDINATOR_SECONDS_BEFORE_LOST, SECONDS_BEFORE_LOST);
+        // a limit of zero turns the provisioner's worker launching off, workers are started by the harness itself
+        settings.setProperty(Constants.PROVISION_MAX_RUNNING_CONTAINERS, 0);
+        File configFile = new File(workDirectory, "config");
+        settings.save(configFile);
+        return configFile;
+    }
+
+    private static void report(HierarchicalINIConfiguration settings, int orders, int workers, LatencyRecorder recorder, int stored) {
+        final double seconds = recorder.getElapsed() / NANOSECONDS_PER_SECOND;
+        System.out.println("Orders:            " + orders + " to " + workers + " workers as "
+                + settings.getString(Constants.RABBIT_MESSAGE_FORMAT));
+        System.out.println(String.format(Locale.ROOT, "Finished:          %d in %.1f s, %.1f orders/s, %d failed", recorder.getFinished(),
+                seconds, seconds > 0 ? recorder.getFinished() / seconds : 0, recorder.getFailed()));
+        System.out.println("Submit to RUNNING: " + percentiles(recorder.getRunningLatencies()));
+        System.out.println("Submit to SUCCESS: " + percentiles(recorder.getFinishedLatencies()));
+        System.out.println("Stored as SUCCESS: " + stored);
+    }
+
+    private static String percentiles(long[] sorted) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            builder.append(String.format(Locale.ROOT, "%s %.1f ms, ", PERCENTILE_NAMES[i],
+                    LatencyRecorder.percentile(sorted, PERCENTILES[i]) / NANOSECONDS_PER_MILLISECOND));
+        }
+        builder.append(String.format(Locale.ROOT, "max %.1f ms",
+                (sorted.length == 0 ? 0 : sorted[sorted.length - 1]) / NANOSECONDS_PER_MILLISECOND));
+        return builder.toString();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
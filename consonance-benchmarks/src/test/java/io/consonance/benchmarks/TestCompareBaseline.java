@@ -0,0 +1,135 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestCompareBaseline {
+
+    private static final double TOLERANCE = 0.25;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Throughput regresses when it drops by more than the tolerance.
+     */
+    @Test
+    public void testThroughput() {
+        JsonNode baseline = results(result("a", "thrpt", 100, 0));
+        assertTrue(CompareBaseline.compare(baseline, results(result("a", "thrpt", 80, 0)), TOLERANCE).isEmpty());
+        assertTrue(CompareBaseline.compare(baseline, results(result("a", "thrpt", 200, 0)), TOLERANCE).isEmpty());
+        assertEquals(1, CompareBaseline.compare(baseline, results(result("a", "thrpt", 70, 0)), TOLERANCE).size());
+    }
+
+    /**
+     * Time per operation regresses when it grows by more than the tolerance.
+     */
+    @Test
+    public void testTime() {
+        JsonNode baseline = results(result("a", "avgt", 100, 0), result("a", "sample", 100, 0));
+        assertTrue(CompareBaseline.compare(baseline, results(result("a", "avgt", 120, 0), result("a", "sample", 50, 0)), TOLERANCE)
+                .isEmpty());
+        List<String> regressions = CompareBaseline.compare(baseline, results(result("a", "avgt", 130, 0), result("a", "sample", 70, 0)),
+                TOLERANCE);
+        assertEquals(1, regressions.size());
+        assertTrue(regressions.get(0).startsWith("a avgt"));
+    }
+
+    /**
+     * Benchmarks without a baseline are skipped.
+     */
+    @Test
+    public void testMissingBaseline() {
+        JsonNode baseline = results(result("a", "thrpt", 100, 0));
+        assertTrue(CompareBaseline.compare(baseline, results(result("b", "thrpt", 1, 0), result("a", "avgt", 1000, 0)), TOLERANCE)
+                .isEmpty());
+        assertTrue(CompareBaseline.compare(results(), results(result("a", "thrpt", 1, 0)), TOLERANCE).isEmpty());
+    }
+
+    /**
+     * Getting worse by exactly the tolerance is still allowed.
+     */
+    @Test
+    public void testToleranceBoundary() {
+        JsonNode baseline = results(result("a", "thrpt", 100, 0), result("b", "avgt", 100, 0));
+        assertTrue(CompareBaseline.compare(baseline, results(result("a", "thrpt", 75, 0), result("b", "avgt", 125, 0)), TOLERANCE)
+                .isEmpty());
+        assertEquals(2, CompareBaseline.compare(baseline, results(result("a", "thrpt", 74, 0), result("b", "avgt", 126, 0)), TOLERANCE)
+                .size());
+    }
+
+    /**
+     * The errors of both runs are given to the current run before it is compared.
+     */
+    @Test
+    public void testErrorBounds() {
+        JsonNode baseline = results(result("a", "thrpt", 100, 5), result("b", "avgt", 100, 5));
+        assertTrue(CompareBaseline.compare(baseline, results(result("a", "thrpt", 65, 5), result("b", "avgt", 135, 5)), TOLERANCE)
+                .isEmpty());
+        assertEquals(2, CompareBaseline.compare(baseline, results(result("a", "thrpt", 65, 4), result("b", "avgt", 135, 4)), TOLERANCE)
+                .size());
+    }
+
+    /**
+     * A score without an error estimate is compared as is.
+     */
+    @Test
+    public void testUnknownError() {
+        JsonNode baseline = results(result("a", "thrpt", 100, Double.NaN));
+        assertTrue(CompareBaseline.compare(baseline, results(result("a", "thrpt", 75, Double.NaN)), TOLERANCE).isEmpty());
+        assertEquals(1, CompareBaseline.compare(baseline, results(result("a", "thrpt", 74, Double.NaN)), TOLERANCE).size());
+    }
+
+    private static JsonNode results(ObjectNode... results) {
+        ArrayNode array = MAPPER.createArrayNode();
+        for (ObjectNode result : results) {
+            array.add(result);
+        }
+        return array;
+    }
+
+    private static ObjectNode result(String benchmark, String mode, double score, double scoreError) {
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("benchmark", benchmark);
+        result.put("mode", mode);
+        ObjectNode metric = result.putObject("primaryMetric");
+        metric.put("score", score);
+        // JMH writes a missing error as the string NaN
+        if (Double.isNaN(scoreError)) {
+            metric.put("scoreError", "NaN");
+        } else {
+            metric.put("scoreError", scoreError);
+        }
+        metric.put("scoreUnit", "ops/s");
+        return result;
+    }
+}
@@ -21,9 +21,16 @@ package io.consonance.client;
 
 import io.consonance.common.Constants;
 import io.swagger.client.ApiClient;
+import io.swagger.client.ApiException;
+import io.swagger.client.Pair;
+import io.swagger.client.TypeRef;
+import io.swagger.client.model.Job;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -42,4 +49,19 @@ public class WebClient extends ApiClient {
         setBasePath(basePath);
         addDefaultHeader("Authorization", "Bearer " + token);
     }
+
+    /**
+     * Schedule many orders in one request.
+     *
+     * @param jobs the jobs to schedule
+     * @return the scheduled jobs, as stored by the web service
+     * @throws ApiException thrown when the web service rejects the batch
+     */
+    public List<Job> addOrders(List<Job> jobs) throws ApiException {
+        final String[] accepts = { "application/json" };
+        final String[] contentTypes = { "application/json" };
+        TypeRef returnType = new TypeRef<List<Job>>() { };
+        return invokeAPI("/order/batch", "POST", new ArrayList<Pair>(), jobs, new HashMap<>(), new HashMap<>(), selectHeaderAccept(accepts),
+                selectHeaderContentType(contentTypes), new String[] {}, returnType);
+    }
 }
@@ -41,6 +41,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.validator.routines.UrlValidator;
 
 import javax.naming.OperationNotSupportedException;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -74,6 +75,10 @@ public class Main {
         CONFIG = Utilities.parseConfig(configFile.getAbsolutePath());
     }
 
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    /** the most jobs the web service accepts in one request, larger batches are refused with 413 */
+    static final int MAX_BATCH_SIZE = 1000;
+
     private WebClient webClient = null;
 
     private static void out(String format, Object... args) {
@@ -92,7 +97,7 @@ public class Main {
         this.webClient = webClient;
     }
 
-    private static class Kill extends RuntimeException {
+    static class Kill extends RuntimeException {
     }
 
     private static void kill(String format, Object... args) {
@@ -248,7 +253,7 @@ public class Main {
         }
     }
 
-    private static void jobSchedule(List<String> args, OrderApi jobApi) {
+    private static void jobSchedule(List<String> args, OrderApi jobApi, WebClient client) {
         if (isHelp(args, true)) {
             out("");
             out("Usage: consonance run --help");
@@ -266,82 +271,25 @@ public class Main {
             out("  --flavour <flavour>              The type of machine that the job should execute on");
             out("  --run-descriptor <file>          Path to the runtime descriptor, supports http");
             out("Optional parameters:");
+            out("  --locality <key>                 Data the job reads, such as a reference data set; workers that have it cached "
+                    + "get the job first");
             out("  --extra-file <path=file=keep>    The path where a particular file should be provisioned, a path to the contents "
                     + "of that file, and whether this file should be kept after execution. Can repeat to specify multiple files");
             out("");
+            out("Batch mode:");
+            out("  --batch <manifest>               Schedule many jobs, each line of the manifest holds the parameters above for one job");
+            out("  --batch-size <count>             How many jobs to send per request in batch mode, defaults to " + DEFAULT_BATCH_SIZE
+                    + ", at most " + MAX_BATCH_SIZE);
+            out("");
         } else {
-            String flavour = reqVal(args, "--flavour");
-            String imageDescriptor = optVal(args, "--image-descriptor", "/foobar");
-            String runDescriptor = reqVal(args, "--run-descriptor");
-            List<String> extraFiles = optVals(args, "--extra-file");
+            String manifest = optVal(args, "--batch", null);
+            if (manifest != null) {
+                int batchSize = batchSize(args);
+                batchSchedule(manifest, batchSize, client);
+                return;
+            }
             try {
-                Job job = new Job();
-                job.setFlavour(flavour);
-                // attempt to read descriptors from URIs
-                UrlValidator urlValidator = new UrlValidator();
-                if (Files.exists(Paths.get(imageDescriptor))){
-                    // if we're dealing with a local file
-                    job.setContainerImageDescriptor(FileUtils.readFileToString(new File(imageDescriptor), StandardCharsets.UTF_8));
-                } else if (urlValidator.isValid(imageDescriptor)){
-                    // if we're dealing with a URL
-                    URL jobURL = new URL(imageDescriptor);
-                    final Path tempFile = Files.createTempFile("image", "cwl");
-                    FileUtils.copyURLToFile(jobURL, tempFile.toFile());
-                    job.setContainerImageDescriptor(FileUtils.readFileToString(tempFile.toFile(), StandardCharsets.UTF_8));
-                } else{
-                    // if we're dealing with a Dockstore id
-                    String toolDockstoreID = optVal(args, "--tool-dockstore-id", null);
-                    String workflowDockstoreID = optVal(args, "--workflow-dockstore-id", null);
-                    Client client = new Client();
-                    try {
-                        client.setupClientEnvironment(Lists.newArrayList());
-                    } catch (ConfigurationException e) {
-                        kill("consonance: need dockstore config file to schedule dockstore entries");
-                    }
-                    final File tempDir = Files.createTempDirectory("tmp").toFile();
-                    AbstractEntryClient actualClient = null;
-                    if (toolDockstoreID != null){
-                        actualClient = client.getToolClient();
-                    } else if (workflowDockstoreID != null){
-                        actualClient = client.getWorkflowClient();
-                    } else{
-                        kill("consonance: missing required parameter for scheduling jobs");
-                    }
-                    // TODO: this should determine whether we want to launch a cwl or wdl version of a tool
-                    final SourceFile cwlFromServer = actualClient.getDescriptorFromServer(toolDockstoreID, "cwl");
-                    job.setContainerImageDescriptor(cwlFromServer.getContent());
-                    final List<SourceFile> descriptors = actualClient.downloadDescriptors(toolDockstoreID, "cwl", tempDir);
-                    for(SourceFile file : descriptors) {
-                        ExtraFile extraFile = new ExtraFile();
-                        extraFile.setContents(file.getContent());
-                        extraFile.setKeep(true);
-                        job.getExtraFiles().put(file.getPath(), extraFile);
-                    }
-                }
-
-                if (Files.exists(Paths.get(runDescriptor))){
-                    // if we're dealing with a local file
-                    job.setContainerRuntimeDescriptor(FileUtils.readFileToString(new File(runDescriptor), StandardCharsets.UTF_8));
-                } else if (urlValidator.isValid(imageDescriptor)){
-                    // if we're dealing with a URL
-                    URL runURL = new URL(runDescriptor);
-                    final Path tempFile = Files.createTempFile("run", "json");
-                    FileUtils.copyURLToFile(runURL, tempFile.toFile());
-                    job.setContainerRuntimeDescriptor(FileUtils.readFileToString(tempFile.toFile(), StandardCharsets.UTF_8));
-                }
-
-                // grab extra files from this run
-                for(String extraFile : extraFiles){
-                    parseExtraFiles(job, extraFile);
-                }
-                // grab globally defined extra files
-                CONFIG.setListDelimiter(',');
-                final String[] extraFilesGlobal = CONFIG.getStringArray(Constants.WEBSERVICE_EXTRA_FILES);
-                for(String extraFile : extraFilesGlobal){
-                    parseExtraFiles(job, extraFile);
-                }
-
-                final Job workflowRun = jobApi.addOrder(job);
+                final Job workflowRun = jobApi.addOrder(createJob(args));
                 if (workflowRun == null){
                     kill("consonance: failure reading back scheduled job");
                 }
@@ -354,6 +302,160 @@ public class Main {
         }
     }
 
+    /**
+     * @param args the remaining arguments
+     * @return the value of --batch-size, or the default when it is not given
+     */
+    static int batchSize(List<String> args) {
+        final String val = optVal(args, "--batch-size", String.valueOf(DEFAULT_BATCH_SIZE));
+        int batchSize = 0;
+        try {
+            batchSize = Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            kill("consonance: '--batch-size' must be a number, not '%s'.", val);
+        }
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            kill("consonance: '--batch-size' must be between 1 and %d, not %d.", MAX_BATCH_SIZE, batchSize);
+        }
+        return batchSize;
+    }
+
+    /**
+     * Schedule the jobs in a manifest, reading it a line at a time and sending batchSize jobs per request.
+     *
+     * Blank lines and lines starting with # are skipped.
+     *
+     * @param manifest path to a file with the run parameters for one job per line
+     * @param batchSize how many jobs to send per request
+     * @param client the client to send the jobs with
+     */
+    private static void batchSchedule(String manifest, int batchSize, WebClient client) {
+        int lineNumber = 0;
+        int scheduled = 0;
+        List<Job> batch = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(manifest), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                List<String> lineArgs = new ArrayList<>(Arrays.asList(trimmed.split("\\s+")));
+                batch.add(createJob(lineArgs));
+                if (batch.size() >= batchSize) {
+                    scheduled += sendBatch(batch, client);
+                }
+            }
+            scheduled += sendBatch(batch, client);
+        } catch (ApiException e) {
+            kill("consonance: could not schedule batch ending at line %d of '%s', %d jobs were scheduled before it", lineNumber, manifest,
+                    scheduled);
+        } catch (IOException e) {
+            kill("consonance: could not read file for line %d of '%s'", lineNumber, manifest);
+        }
+        out("consonance: scheduled %d jobs", scheduled);
+    }
+
+    private static int sendBatch(List<Job> batch, WebClient client) throws ApiException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final List<Job> workflowRuns = client.addOrders(batch);
+        if (workflowRuns == null) {
+            kill("consonance: failure reading back scheduled jobs");
+        }
+        if (!QUIET.get()) {
+            for (Job workflowRun : workflowRuns) {
+                outWithoutFormatting(serialize(workflowRun));
+            }
+        }
+        final int sent = batch.size();
+        batch.clear();
+        return sent;
+    }
+
+    /**
+     * Build a job from run parameters.
+     *
+     * @param args the parameters for the job
+     * @return a job ready to be scheduled
+     * @throws IOException thrown when a descriptor or extra file cannot be read
+     */
+    private static Job createJob(List<String> args) throws IOException {
+        String flavour = reqVal(args, "--flavour");
+        String imageDescriptor = optVal(args, "--image-descriptor", "/foobar");
+        String runDescriptor = reqVal(args, "--run-descriptor");
+        List<String> extraFiles = optVals(args, "--extra-file");
+        Job job = new Job();
+        job.setFlavour(flavour);
+        job.setLocality(optVal(args, "--locality", null));
+        // attempt to read descriptors from URIs
+        UrlValidator urlValidator = new UrlValidator();
+        if (Files.exists(Paths.get(imageDescriptor))){
+            // if we're dealing with a local file
+            job.setContainerImageDescriptor(FileUtils.readFileToString(new File(imageDescriptor), StandardCharsets.UTF_8));
+        } else if (urlValidator.isValid(imageDescriptor)){
+            // if we're dealing with a URL
+            URL jobURL = new URL(imageDescriptor);
+            final Path tempFile = Files.createTempFile("image", "cwl");
+            FileUtils.copyURLToFile(jobURL, tempFile.toFile());
+            job.setContainerImageDescriptor(FileUtils.readFileToString(tempFile.toFile(), StandardCharsets.UTF_8));
+        } else{
+            // if we're dealing with a Dockstore id
+            String toolDockstoreID = optVal(args, "--tool-dockstore-id", null);
+            String workflowDockstoreID = optVal(args, "--workflow-dockstore-id", null);
+            Client client = new Client();
+            try {
+                client.setupClientEnvironment(Lists.newArrayList());
+            } catch (ConfigurationException e) {
+                kill("consonance: need dockstore config file to schedule dockstore entries");
+            }
+            final File tempDir = Files.createTempDirectory("tmp").toFile();
+            AbstractEntryClient actualClient = null;
+            if (toolDockstoreID != null){
+                actualClient = client.getToolClient();
+            } else if (workflowDockstoreID != null){
+                actualClient = client.getWorkflowClient();
+            } else{
+                kill("consonance: missing required parameter for scheduling jobs");
+            }
+            // TODO: this should determine whether we want to launch a cwl or wdl version of a tool
+            final SourceFile cwlFromServer = actualClient.getDescriptorFromServer(toolDockstoreID, "cwl");
+            job.setContainerImageDescriptor(cwlFromServer.getContent());
+            final List<SourceFile> descriptors = actualClient.downloadDescriptors(toolDockstoreID, "cwl", tempDir);
+            for(SourceFile file : descriptors) {
+                ExtraFile extraFile = new ExtraFile();
+                extraFile.setContents(file.getContent());
+                extraFile.setKeep(true);
+                job.getExtraFiles().put(file.getPath(), extraFile);
+            }
+        }
+
+        if (Files.exists(Paths.get(runDescriptor))){
+            // if we're dealing with a local file
+            job.setContainerRuntimeDescriptor(FileUtils.readFileToString(new File(runDescriptor), StandardCharsets.UTF_8));
+        } else if (urlValidator.isValid(imageDescriptor)){
+            // if we're dealing with a URL
+            URL runURL = new URL(runDescriptor);
+            final Path tempFile = Files.createTempFile("run", "json");
+            FileUtils.copyURLToFile(runURL, tempFile.toFile());
+            job.setContainerRuntimeDescriptor(FileUtils.readFileToString(tempFile.toFile(), StandardCharsets.UTF_8));
+        }
+
+        // grab extra files from this run
+        for(String extraFile : extraFiles){
+            parseExtraFiles(job, extraFile);
+        }
+        // grab globally defined extra files
+        CONFIG.setListDelimiter(',');
+        final String[] extraFilesGlobal = CONFIG.getStringArray(Constants.WEBSERVICE_EXTRA_FILES);
+        for(String extraFile : extraFilesGlobal){
+            parseExtraFiles(job, extraFile);
+        }
+
+        return job;
+    }
+
     private static void parseExtraFiles(Job job, String extraFile) throws IOException {
         String[] values = extraFile.split("=");
         final int lengthOfValues = 3;
@@ -421,7 +523,7 @@ public class Main {
                     case "update":
                         throw new OperationNotSupportedException("Not implemented yet");
                     case "run":
-                        jobSchedule(args, new OrderApi(client));
+                        jobSchedule(args, new OrderApi(client), client);
                         break;
                     default:
                         invalid(cmd);
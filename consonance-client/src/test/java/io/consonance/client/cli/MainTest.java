@@ -28,8 +28,13 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * These tests mock up a DropWizard instance in order to unit test the client.
@@ -100,4 +105,22 @@ public class MainTest {
         assertTrue(stream.toString().contains("foobar"));
     }
 
+    @Test
+    public void testBatchSize() {
+        assertEquals(Main.MAX_BATCH_SIZE, Main.batchSize(args("--batch-size", String.valueOf(Main.MAX_BATCH_SIZE))));
+        assertEquals(1, Main.batchSize(args("--batch-size", "1")));
+        assertTrue(Main.batchSize(args()) > 0);
+        for (String invalid : new String[] { "0", "-1", String.valueOf(Main.MAX_BATCH_SIZE + 1), "many" }) {
+            try {
+                Main.batchSize(args("--batch-size", invalid));
+                fail("accepted a batch size of " + invalid);
+            } catch (Main.Kill expected) {
+                // rejected as a usage error
+            }
+        }
+    }
+
+    private static List<String> args(String... args) {
+        return new ArrayList<>(Arrays.asList(args));
+    }
 }
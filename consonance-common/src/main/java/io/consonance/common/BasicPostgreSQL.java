@@ -33,6 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Properties;
 
@@ -102,7 +103,7 @@ public class BasicPostgreSQL {
      * This clears the data base for testing and creates an admin user
      */
     public void clearDatabase() {
-        this.runUpdateStatement("delete from extra_files; delete from provision_ansibleplaybooks; delete from provision; delete from job; delete from consonance_user");
+        this.runUpdateStatement("delete from job_log_chunk; delete from extra_files; delete from provision_ansibleplaybooks; delete from provision; delete from job; delete from consonance_user");
     }
 
     protected <T> T runSelectStatement(String query, ResultSetHandler<T> handler, Object... params) {
@@ -123,6 +124,69 @@ public class BasicPostgreSQL {
         }
     }
 
+    /**
+     * Run the same statement over many sets of parameters as a single JDBC batch inside one transaction.
+     *
+     * @param query the statement to run
+     * @param params one row of parameters per execution of the statement
+     * @return the update counts for each row of parameters
+     */
+    protected int[] runBatchUpdateStatement(String query, Object[][] params) {
+        try (Connection connection = dataSource.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                QueryRunner run = new QueryRunner();
+                int[] counts = run.batch(connection, query, params);
+                connection.commit();
+                return counts;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Work done on a single connection inside one transaction.
+     *
+     * @param <T> what the work returns
+     */
+    @FunctionalInterface
+    protected interface TransactionWork<T> {
+        T run(QueryRunner run, Connection connection) throws SQLException;
+    }
+
+    /**
+     * Run several statements inside one transaction, which is rolled back if any of them fails.
+     *
+     * @param work the statements to run, given a query runner and the connection to pass to it
+     * @param <T> what the work returns
+     * @return what the work returned
+     */
+    protected <T> T runInTransaction(TransactionWork<T> work) {
+        try (Connection connection = dataSource.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(new QueryRunner(), connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     protected boolean runUpdateStatement(String query, Object... params) {
         try {
             QueryRunner run = new QueryRunner(dataSource);
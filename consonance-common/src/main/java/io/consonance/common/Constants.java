@@ -27,24 +27,41 @@ public class Constants {
     public static final String WEBSERVICE_BASE_PATH = "webservice.base_path";
     public static final String WEBSERVICE_TOKEN = "webservice.token";
     public static final String WEBSERVICE_EXTRA_FILES = "webservice.extra_files";
+    public static final String WEBSERVICE_PUBLISH_CHANNELS = "webservice.publish_channels";
 
     public static final String POSTGRES_HOST = "database.postgresHost";
     public static final String POSTGRES_USERNAME = "database.postgresUser";
     public static final String POSTGRES_PASSWORD = "database.postgresPass";
     public static final String POSTGRES_DBNAME = "database.postgresDBName";
     public static final String POSTGRES_MAX_CONNECTIONS = "database.maxConnections";
+    public static final String DATABASE_LOG_CODEC = "database.logCodec";
 
     public static final String RABBIT_HOST = "rabbit.rabbitMQHost";
     public static final String RABBIT_USERNAME = "rabbit.rabbitMQUser";
     public static final String RABBIT_PASSWORD = "rabbit.rabbitMQPass";
     public static final String RABBIT_QUEUE_NAME = "rabbit.rabbitMQQueueName";
+    public static final String RABBIT_PORT = "rabbit.rabbitMQPort";
+    public static final String RABBIT_CONNECTIONS = "rabbit.rabbitMQConnections";
+    public static final String RABBIT_MAX_CHANNELS = "rabbit.rabbitMQMaxChannels";
+    public static final String RABBIT_MESSAGE_FORMAT = "rabbit.rabbitMQMessageFormat";
+    public static final String RABBIT_LOCALITY_WAIT_MILLIS = "rabbit.rabbitMQLocalityWaitMillis";
 
     public static final String PROVISION_MAX_RUNNING_CONTAINERS = "provision.max_running_containers";
     public static final String PROVISION_REAP_FAILED_WORKERS = "provision.reap_failed_workers";
     public static final String PROVISION_YOUXIA_DEPLOYER = "provision.youxia_deployer_parameters";
     public static final String PROVISION_YOUXIA_REAPER = "provision.youxia_reaper_parameters";
+    public static final String PROVISION_DEMAND_WINDOW_MILLIS = "provision.demand_window_millis";
+    public static final String PROVISION_DEMAND_RESYNC_MILLIS = "provision.demand_resync_millis";
+    public static final String PROVISION_FLAVOUR_MAX_CONTAINERS = "provision.flavour_max_containers";
+    public static final String PROVISION_FLAVOUR_WEIGHTS = "provision.flavour_weights";
+    public static final String PROVISION_WARM_POOL_IDLE_MILLIS = "provision.warm_pool_idle_millis";
+    public static final String PROVISION_WARM_POOL_SIZES = "provision.warm_pool_sizes";
 
     public static final String COORDINATOR_SECONDS_BEFORE_LOST = "coordinator.max_seconds_before_lost";
+    public static final String COORDINATOR_ORDER_CONSUMERS = "coordinator.order_consumers";
+    public static final String COORDINATOR_ORDER_PREFETCH = "coordinator.order_prefetch";
+    public static final String COORDINATOR_RESULTS_BATCH_SIZE = "coordinator.results_batch_size";
+    public static final String COORDINATOR_RESULTS_BATCH_MILLIS = "coordinator.results_batch_millis";
 
     public static final String JOB_GENERATOR_CHECK_JOB_HASH = "generator.check_previous_job_hash";
     public static final String JOB_GENERATOR_FILTER_KEYS_IN_HASH = "generator.job_filter_hash_keys";
@@ -57,9 +74,20 @@ public class Constants {
     public static final String WORKER_MAX_RUNS = "worker.max-runs";
     public static final String WORKER_SEQWARE_ENGINE = "worker.seqware-engine";
     public static final String WORKER_SEQWARE_SETTINGS_FILE = "worker.seqware-settings-file";
+    public static final String WORKER_PERSISTENT_CHANNEL = "worker.persistentChannel";
+    public static final String WORKER_PREFETCH = "worker.prefetch";
+    public static final String WORKER_SLOTS = "worker.slots";
+    public static final String WORKER_SLOT_CORES = "worker.slotCores";
+    public static final String WORKER_SLOT_MEMORY_GB = "worker.slotMemoryGb";
+    public static final String WORKER_SANDBOX_ROOT = "worker.sandboxRoot";
+    public static final String WORKER_KEEP_SANDBOX = "worker.keepSandbox";
+    public static final String WORKER_LOG_BUFFER_LINES = "worker.logBufferLines";
+    public static final String WORKER_LOG_SPILL_DIRECTORY = "worker.logSpillDirectory";
+    public static final String WORKER_LOCALITY_KEYS = "worker.localityKeys";
 
     public static final String REPORT_NAMESPACE = "report.namespace";
     public static final String REPORT_TOKEN = "report.slack_token";
+    public static final String REPORT_COUNT_CACHE_SECONDS = "report.count_cache_seconds";
     public static final String SEQWARE_WHITESTAR_ENGINE = "whitestar";
 
 }
@@ -26,8 +26,9 @@ import io.cloudbindle.youxia.listing.AbstractInstanceListing;
 import io.cloudbindle.youxia.listing.ListingFactory;
 import io.consonance.arch.Base;
 import io.consonance.arch.CloudTypes;
-import io.consonance.arch.beans.Job;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.MessageCodec;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.arch.beans.Status;
@@ -53,7 +54,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.TimeoutException;
 
 /**
  * The Arch3ReportImpl implements calls that are specific to arch3 for retrieving reporting. This means that this means that this class will
@@ -70,34 +70,43 @@ public class Arch3ReportImpl implements ReportAPI {
 
     private final HierarchicalINIConfiguration settings;
     private final PostgreSQL db;
+    /**
+     * State counts are served from a snapshot for this long, zero (the default) always goes to the database.
+     */
+    private final long countCacheMillis;
+    private Map<JobState, Long> jobStateCounts = null;
+    private long jobStateCountsExpiry = 0;
+    private Map<ProvisionState, Long> vmStateCounts = null;
+    private long vmStateCountsExpiry = 0;
 
     public Arch3ReportImpl(HierarchicalINIConfiguration config, PostgreSQL postgres) {
         this.settings = config;
         this.db = postgres;
+        this.countCacheMillis = config.getLong(Constants.REPORT_COUNT_CACHE_SECONDS, 0) * Base.ONE_SECOND_IN_MILLISECONDS;
     }
 
     @Override
     public Map<ProvisionState, Long> getVMStateCounts() {
-        Map<ProvisionState, Long> map = new HashMap<>();
-        for (ProvisionState state : ProvisionState.values()) {
-            long provisionCount = db.getProvisionCount(state);
-            if (provisionCount > 0) {
-                map.put(state, provisionCount);
+        synchronized (this) {
+            if (vmStateCounts == null || System.currentTimeMillis() >= vmStateCountsExpiry) {
+                vmStateCounts = db.getProvisionStateCounts();
+                vmStateCountsExpiry = System.currentTimeMillis() + countCacheMillis;
             }
+            return new HashMap<>(vmStateCounts);
         }
-        return map;
     }
 
     @Override
     public Map<JobState, Integer> getJobStateCounts() {
-        Map<JobState, Integer> map = new HashMap<>();
-        for (JobState state : JobState.values()) {
-            List<Job> jobs = db.getJobs(state);
-            if (jobs.size() > 0) {
-                map.put(state, jobs.size());
+        synchronized (this) {
+            if (jobStateCounts == null || System.currentTimeMillis() >= jobStateCountsExpiry) {
+                jobStateCounts = db.getJobStateCounts();
+                jobStateCountsExpiry = System.currentTimeMillis() + countCacheMillis;
             }
+            Map<JobState, Integer> map = new HashMap<>();
+            jobStateCounts.forEach((state, count) -> map.put(state, count.intValue()));
+            return map;
         }
-        return map;
     }
 
     @Override
@@ -118,7 +127,7 @@ public class Arch3ReportImpl implements ReportAPI {
                 QueueingConsumer resultsConsumer = new QueueingConsumer(resultsChannel);
                 resultsChannel.basicConsume(resultsQueue, false, resultsConsumer);
 
-                int messagesToCache = db.getJobs(JobState.RUNNING).size();
+                int messagesToCache = db.getJobStateCounts().getOrDefault(JobState.RUNNING, 0L).intValue();
                 Map<String, Status> cache = new TreeMap<>();
 
                 int loop = 0;
@@ -128,9 +137,7 @@ public class Arch3ReportImpl implements ReportAPI {
                     if (delivery == null) {
                         continue;
                     }
-                    String messageFromQueue = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    // now parse it as JSONObj
-                    Status status = new Status().fromJSON(messageFromQueue);
+                    Status status = MessageCodec.forProperties(delivery.getProperties()).decodeStatus(delivery.getBody());
                     cache.put(status.getIpAddress(), status);
                 } while (loop < LOOP_LIMIT && cache.size() < messagesToCache);
 
@@ -143,14 +150,10 @@ public class Arch3ReportImpl implements ReportAPI {
                     if (resultsQueue != null && resultsChannel != null) {
                         resultsChannel.queueDelete(resultsQueue);
                     }
-                    if (resultsChannel != null) {
-
-                        resultsChannel.close();
-                        resultsChannel.getConnection().close();
-                    }
-                } catch (IOException | TimeoutException ex) {
-                    System.err.println("Could not close channel");
+                } catch (IOException ex) {
+                    System.err.println("Could not delete queue");
                 }
+                CommonServerTestUtilities.closeChannel(resultsChannel);
             }
         }
     }
@@ -209,12 +212,12 @@ public class Arch3ReportImpl implements ReportAPI {
     public Map<String, Map<String, String>> getJobInfo() {
         Map<String, Map<String, String>> map = new TreeMap<>();
         for (JobState state : JobState.values()) {
-            List<Job> jobs = db.getJobs(state);
+            List<JobSummary> jobs = db.getJobSummaries(state);
             Date now = new Date();
             Timestamp currentTimestamp = new java.sql.Timestamp(now.getTime());
             long time = currentTimestamp.getTime();
             DecimalFormat df = new DecimalFormat("#.00");
-            for (Job job : jobs) {
+            for (JobSummary job : jobs) {
                 Map<String, String> jobMap = new TreeMap<>();
                 jobMap.put("status", job.getState().toString());
                 long lastSeen = job.getUpdateTimestamp().getTime();
@@ -19,10 +19,6 @@
 
 package io.consonance.arch.beans;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
@@ -43,15 +39,7 @@ import java.sql.Timestamp;
         private Timestamp updateTimestamp;
 
         public String toJSON() {
-                ObjectMapper mapper = new ObjectMapper();
-                mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
-                mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-                try {
-                        return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this);
-                } catch (JsonProcessingException e) {
-                        e.printStackTrace();
-                        return null;
-                }
+                return MessageCodec.toPrettyJSON(this);
         }
 
         /**
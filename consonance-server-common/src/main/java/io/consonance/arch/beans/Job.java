@@ -19,11 +19,11 @@
 
 package io.consonance.arch.beans;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
 import io.swagger.annotations.ApiModel;
@@ -42,12 +42,14 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.MapKeyColumn;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -58,7 +60,9 @@ import java.util.UUID;
  * @author dyuen
  */
 @Entity
-@Table(name= "job")
+@Table(name= "job", indexes = { @Index(name = "job_status_update_timestamp_idx", columnList = "status,update_timestamp"),
+        @Index(name = "job_end_user_job_id_idx", columnList = "end_user,job_id"),
+        @Index(name = "job_job_uuid_idx", columnList = "job_uuid") })
 @JsonIgnoreProperties(ignoreUnknown = true)
 @ApiModel(value="Job", description="Describes jobs running in Consonance")
 @NamedQueries({
@@ -167,6 +171,12 @@ public class Job extends BaseBean{
     @ApiModelProperty(value = "stderr from the job run")
     @Column(columnDefinition="text")
     private String stderr;
+    @JsonIgnore
+    @Column(name="stdout_offset")
+    private Long stdoutOffset;
+    @JsonIgnore
+    @Column(name="stderr_offset")
+    private Long stderrOffset;
     @JsonProperty("container_image_descriptor")
     @ApiModelProperty(value = "credentials or other files needed by your workflow, specify pairs of path=content")
     @Column(name="container_image_descriptor",columnDefinition="text")
@@ -181,6 +191,10 @@ public class Job extends BaseBean{
     @ApiModelProperty(value = "indicates the flavour of VM for a job", required=true)
     @Column(columnDefinition="text")
     private String flavour = null;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @ApiModelProperty(value = "a key for data the job reads, such as a reference data set, to prefer workers that have it cached")
+    @Column(columnDefinition="text")
+    private String locality = null;
 
     public Job(String jobHash) {
         this.jobHash = jobHash;
@@ -196,11 +210,8 @@ public class Job extends BaseBean{
      * @return
      */
     public Job fromJSON(String json) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         try {
-            return mapper.readValue(json, Job.class);
+            return MessageCodec.JSON.decodeJob(json.getBytes(StandardCharsets.UTF_8));
         } catch (JsonParseException e) {
             log.error("JSON parsing error: ", e.getMessage());
             return null;
@@ -228,6 +239,14 @@ public class Job extends BaseBean{
         this.flavour = flavour;
     }
 
+    public String getLocality() {
+        return locality;
+    }
+
+    public void setLocality(String locality) {
+        this.locality = locality;
+    }
+
 
     public String getUuid() {
         return uuid;
@@ -309,6 +328,36 @@ public class Job extends BaseBean{
         this.stderr = stderr;
     }
 
+    /**
+     * @return how many bytes of the worker's stdout stream have been appended to stdout, null for logs stored as snapshots
+     */
+    public Long getStdoutOffset() {
+        return stdoutOffset;
+    }
+
+    /**
+     * @param stdoutOffset
+     *            the stdoutOffset to set
+     */
+    public void setStdoutOffset(Long stdoutOffset) {
+        this.stdoutOffset = stdoutOffset;
+    }
+
+    /**
+     * @return how many bytes of the worker's stderr stream have been appended to stderr, null for logs stored as snapshots
+     */
+    public Long getStderrOffset() {
+        return stderrOffset;
+    }
+
+    /**
+     * @param stderrOffset
+     *            the stderrOffset to set
+     */
+    public void setStderrOffset(Long stderrOffset) {
+        this.stderrOffset = stderrOffset;
+    }
+
     public int getJobId() {
         return jobId;
     }
@@ -333,7 +382,7 @@ public class Job extends BaseBean{
     @Override
     public int hashCode() {
         return Objects.hash(jobId, state, uuid, vmUuid, messageType, extraFiles, stdout, stderr, containerImageDescriptor,
-                containerRuntimeDescriptor, endUser, flavour);
+                containerRuntimeDescriptor, endUser, flavour, locality);
     }
 
     @Override
@@ -351,6 +400,7 @@ public class Job extends BaseBean{
                 && Objects.equals(this.stderr, other.stderr)
                 && Objects.equals(this.containerImageDescriptor, other.containerImageDescriptor)
                 && Objects.equals(this.containerRuntimeDescriptor, other.containerRuntimeDescriptor)
-                && Objects.equals(this.endUser, other.endUser) && Objects.equals(this.flavour, other.flavour);
+                && Objects.equals(this.endUser, other.endUser) && Objects.equals(this.flavour, other.flavour)
+                && Objects.equals(this.locality, other.locality);
     }
 }
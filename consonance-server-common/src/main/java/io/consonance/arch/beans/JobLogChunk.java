@@ -0,0 +1,175 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.beans;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A piece of a job's stdout or stderr. Chunks are only ever appended, in seq order, and each one records where its bytes sit in the
+ * stream the worker wrote so that a log can be read from any offset without loading all of it.
+ *
+ * @author dyuen
+ */
+@Entity
+@Table(name = "job_log_chunk")
+@IdClass(JobLogChunk.Key.class)
+public class JobLogChunk {
+
+    public static final String STDOUT = "stdout";
+    public static final String STDERR = "stderr";
+
+    @Id
+    @Column(name = "job_uuid", columnDefinition = "text")
+    private String jobUuid;
+    @Id
+    @Column(name = "stream", columnDefinition = "text")
+    private String stream;
+    @Id
+    @Column(name = "seq")
+    private int seq;
+    @Column(name = "byte_offset", nullable = false)
+    private long byteOffset;
+    @Column(name = "byte_length", nullable = false)
+    private int byteLength;
+    @Enumerated(EnumType.STRING)
+    @Column(name = "codec", columnDefinition = "text", nullable = false)
+    private LogCodec codec = LogCodec.IDENTITY;
+    @Column(name = "bytes", columnDefinition = "bytea", nullable = false)
+    private byte[] bytes;
+
+    /**
+     * The primary key of a chunk.
+     */
+    public static class Key implements Serializable {
+        private String jobUuid;
+        private String stream;
+        private int seq;
+
+        public Key() {
+        }
+
+        public Key(String jobUuid, String stream, int seq) {
+            this.jobUuid = jobUuid;
+            this.stream = stream;
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return Objects.equals(this.jobUuid, other.jobUuid) && Objects.equals(this.stream, other.stream) && this.seq == other.seq;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(jobUuid, stream, seq);
+        }
+    }
+
+    /**
+     * @return the job the output belongs to
+     */
+    public String getJobUuid() {
+        return jobUuid;
+    }
+
+    public void setJobUuid(String jobUuid) {
+        this.jobUuid = jobUuid;
+    }
+
+    /**
+     * @return either {@link #STDOUT} or {@link #STDERR}
+     */
+    public String getStream() {
+        return stream;
+    }
+
+    public void setStream(String stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * @return the position of this chunk among the chunks of its stream, starting at 0
+     */
+    public int getSeq() {
+        return seq;
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * @return where the first byte of this chunk sits in the stream
+     */
+    public long getByteOffset() {
+        return byteOffset;
+    }
+
+    public void setByteOffset(long byteOffset) {
+        this.byteOffset = byteOffset;
+    }
+
+    /**
+     * @return how many bytes of the stream this chunk holds once decoded
+     */
+    public int getByteLength() {
+        return byteLength;
+    }
+
+    public void setByteLength(int byteLength) {
+        this.byteLength = byteLength;
+    }
+
+    /**
+     * @return how bytes is encoded
+     */
+    public LogCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(LogCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @return the encoded bytes
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(byte[] bytes) {
+        this.bytes = bytes;
+    }
+}
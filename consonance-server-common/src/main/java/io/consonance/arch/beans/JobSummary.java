@@ -0,0 +1,137 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.beans;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * A lightweight view of a job that carries only what the scheduler and reporting need.
+ *
+ * Unlike {@link Job} this leaves out the logs and descriptors, which can be large.
+ *
+ * @author dyuen
+ */
+@ApiModel(value = "JobSummary", description = "Summarizes jobs running in Consonance without their logs and descriptors")
+public class JobSummary extends BaseBean {
+
+    @ApiModelProperty(value = "job id, pass the last one seen to page through listings")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int jobId;
+    @JsonProperty("job_uuid")
+    @ApiModelProperty(value = "consonance will assign a uuid to jobs")
+    private String uuid;
+    @JsonProperty("vm_uuid")
+    @ApiModelProperty(value = "the cloud instance-id assigned to run a job")
+    private String vmUuid;
+    @ApiModelProperty(value = "the type of instance needed to run a job")
+    private String flavour;
+    @JsonProperty
+    @ApiModelProperty(value = "the state of the job")
+    private JobState state;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @ApiModelProperty(value = "the user that submitted a job")
+    private String endUser;
+
+    /**
+     * @return the jobId
+     */
+    public int getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @param jobId the jobId to set
+     */
+    public void setJobId(int jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @return the uuid
+     */
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @param uuid the uuid to set
+     */
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    /**
+     * @return the vmUuid
+     */
+    public String getVmUuid() {
+        return vmUuid;
+    }
+
+    /**
+     * @param vmUuid the vmUuid to set
+     */
+    public void setVmUuid(String vmUuid) {
+        this.vmUuid = vmUuid;
+    }
+
+    /**
+     * @return the flavour
+     */
+    public String getFlavour() {
+        return flavour;
+    }
+
+    /**
+     * @param flavour the flavour to set
+     */
+    public void setFlavour(String flavour) {
+        this.flavour = flavour;
+    }
+
+    /**
+     * @return the state
+     */
+    public JobState getState() {
+        return state;
+    }
+
+    /**
+     * @param state the state to set
+     */
+    public void setState(JobState state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the endUser
+     */
+    public String getEndUser() {
+        return endUser;
+    }
+
+    /**
+     * @param endUser the endUser to set
+     */
+    public void setEndUser(String endUser) {
+        this.endUser = endUser;
+    }
+}
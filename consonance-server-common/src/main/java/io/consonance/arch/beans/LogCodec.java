@@ -0,0 +1,106 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.beans;
+
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the bytes of a stored log chunk are encoded.
+ *
+ * @author dyuen
+ */
+public enum LogCodec {
+    /**
+     * Stored as written.
+     */
+    IDENTITY {
+        @Override
+        public byte[] encode(byte[] bytes) {
+            return bytes;
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) {
+            return encoded;
+        }
+    },
+    /**
+     * Compressed with gzip, logs tend to be repetitive and shrink well.
+     */
+    GZIP {
+        @Override
+        public byte[] encode(byte[] bytes) throws IOException {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            try (OutputStream gzip = new GZIPOutputStream(encoded)) {
+                gzip.write(bytes);
+            }
+            return encoded.toByteArray();
+        }
+
+        @Override
+        public InputStream decode(InputStream encoded) throws IOException {
+            return new GZIPInputStream(encoded);
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogCodec.class);
+
+    /**
+     * @param settings consonance config file
+     * @return the codec new chunks are stored with, identity unless database.logCodec names another
+     */
+    public static LogCodec fromSettings(HierarchicalINIConfiguration settings) {
+        final String codec = settings.getString(Constants.DATABASE_LOG_CODEC, null);
+        if (codec == null) {
+            return IDENTITY;
+        }
+        try {
+            return valueOf(codec.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            // each chunk records its own codec, so storing chunks as written is always readable
+            LOG.warn("Unknown log codec " + codec + ", storing logs as written");
+            return IDENTITY;
+        }
+    }
+
+    /**
+     * @param bytes the bytes as written
+     * @return the bytes to store
+     * @throws IOException when the bytes cannot be encoded
+     */
+    public abstract byte[] encode(byte[] bytes) throws IOException;
+
+    /**
+     * @param encoded the stored bytes
+     * @return the bytes as written
+     * @throws IOException when the stored bytes cannot be decoded
+     */
+    public abstract InputStream decode(InputStream encoded) throws IOException;
+}
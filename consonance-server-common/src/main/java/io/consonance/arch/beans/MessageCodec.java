@@ -0,0 +1,209 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.beans;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Turns the messages that go over the queues into bytes and back.
+ *
+ * The mappers behind each format are built once and only used through readers and writers, which are immutable and safe to share
+ * between threads. Publishers pick a format with rabbit.rabbitMQMessageFormat and tag each message with its content type. Consumers decode by
+ * that content type, so a consumer handles both formats and messages from publishers that predate this (text/plain) are read as JSON.
+ *
+ * Jobs, provisions and orders use the same property names as the webservice. Statuses keep the field names they always had.
+ *
+ * @author dyuen
+ */
+public enum MessageCodec {
+    /**
+     * Plain JSON without whitespace.
+     */
+    JSON("application/json", new JsonFactory()),
+    /**
+     * Smile, a binary encoding of JSON that is smaller and quicker to read and write.
+     */
+    SMILE("application/x-jackson-smile", new SmileFactory());
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageCodec.class);
+
+    private final String contentType;
+    private final AMQP.BasicProperties persistentProperties;
+    private final ObjectMapper beanMapper;
+    private final ObjectWriter beanWriter;
+    private final ObjectWriter prettyBeanWriter;
+    private final ObjectReader jobReader;
+    private final ObjectReader provisionReader;
+    private final ObjectWriter statusWriter;
+    private final ObjectWriter prettyStatusWriter;
+    private final ObjectReader statusReader;
+
+    MessageCodec(String contentType, JsonFactory factory) {
+        this.contentType = contentType;
+        this.persistentProperties = MessageProperties.PERSISTENT_BASIC.builder().contentType(contentType).build();
+
+        // each mapper needs a factory of its own
+        beanMapper = new ObjectMapper(factory.copy());
+        beanMapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+        beanMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        beanWriter = beanMapper.writer();
+        prettyBeanWriter = beanMapper.writerWithDefaultPrettyPrinter();
+        jobReader = beanMapper.readerFor(Job.class);
+        provisionReader = beanMapper.readerFor(Provision.class);
+
+        // statuses were written from their fields by Gson, keep the same names and leniency
+        ObjectMapper statusMapper = new ObjectMapper(factory.copy());
+        statusMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        statusMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        statusMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        statusMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        statusWriter = statusMapper.writerFor(Status.class);
+        prettyStatusWriter = statusWriter.withDefaultPrettyPrinter();
+        statusReader = statusMapper.readerFor(Status.class);
+    }
+
+    /**
+     * @param settings the config, rabbit.rabbitMQMessageFormat may be json (the default) or smile
+     * @return the codec to publish messages with
+     */
+    public static MessageCodec fromSettings(HierarchicalINIConfiguration settings) {
+        final String format = settings.getString(Constants.RABBIT_MESSAGE_FORMAT, null);
+        if (format == null) {
+            return JSON;
+        }
+        try {
+            return valueOf(format.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            // every consumer reads JSON, so it is always safe to fall back to it
+            LOG.warn("Unknown message format " + format + ", using json");
+            return JSON;
+        }
+    }
+
+    /**
+     * @param properties the properties of a delivery, may be null
+     * @return the codec to decode the delivery with, JSON unless its content type says otherwise
+     */
+    public static MessageCodec forProperties(AMQP.BasicProperties properties) {
+        return properties != null && SMILE.contentType.equals(properties.getContentType()) ? SMILE : JSON;
+    }
+
+    /**
+     * @return the content type messages in this format are tagged with
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return properties for a persistent message in this format
+     */
+    public AMQP.BasicProperties persistentProperties() {
+        return persistentProperties;
+    }
+
+    public byte[] encode(BaseBean bean) {
+        return write(beanWriter, bean);
+    }
+
+    public byte[] encode(Status status) {
+        return write(statusWriter, status);
+    }
+
+    public byte[] encode(Order order) {
+        return write(beanWriter, toTree(order));
+    }
+
+    public Job decodeJob(byte[] message) throws IOException {
+        return jobReader.readValue(message);
+    }
+
+    public Provision decodeProvision(byte[] message) throws IOException {
+        return provisionReader.readValue(message);
+    }
+
+    public Status decodeStatus(byte[] message) throws IOException {
+        return statusReader.readValue(message);
+    }
+
+    public Order decodeOrder(byte[] message) throws IOException {
+        JsonNode node = beanMapper.readTree(message);
+        Order order = new Order();
+        order.setOrderUUID(node.path("order_uuid").asText(null));
+        order.setJob(jobReader.readValue(node.path("job")));
+        order.setProvision(provisionReader.readValue(node.path("provision")));
+        return order;
+    }
+
+    /**
+     * @return the bean as indented JSON, for logs and people rather than queues
+     */
+    static String toPrettyJSON(BaseBean bean) {
+        return new String(write(JSON.prettyBeanWriter, bean), StandardCharsets.UTF_8);
+    }
+
+    static String toPrettyJSON(Status status) {
+        return new String(write(JSON.prettyStatusWriter, status), StandardCharsets.UTF_8);
+    }
+
+    static String toPrettyJSON(Order order) {
+        return new String(write(JSON.prettyBeanWriter, JSON.toTree(order)), StandardCharsets.UTF_8);
+    }
+
+    private ObjectNode toTree(Order order) {
+        ObjectNode node = beanMapper.createObjectNode();
+        node.put("message_type", "order");
+        node.put("order_uuid", order.getOrderUUID());
+        node.set("job", beanMapper.valueToTree(order.getJob()));
+        node.set("provision", beanMapper.valueToTree(order.getProvision()));
+        return node;
+    }
+
+    private static byte[] write(ObjectWriter writer, Object value) {
+        try {
+            return writer.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            // only our own beans are written, this is a bug rather than bad input
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -19,9 +19,8 @@
 
 package io.consonance.arch.beans;
 
-import io.consonance.arch.utils.CommonServerTestUtilities;
-import org.json.simple.JSONObject;
-
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 /**
@@ -32,30 +31,37 @@ import java.util.UUID;
  */
 public class Order {
 
-    CommonServerTestUtilities u = new CommonServerTestUtilities();
     private Job job = null;
     private Provision provision = null;
-    String orderUUID = UUID.randomUUID().toString().toLowerCase();
+    private String orderUUID = UUID.randomUUID().toString().toLowerCase();
 
     public Order() {
         super();
     }
 
     public String toJSON() {
-        String json = "{ \n" + "  \"message_type\": \"order\",\n" + "  \"order_uuid\": \"" + orderUUID + "\",\n" + "  \"job\": "
-                + job.toJSON() + ",\n" + "  \"provision\": " + provision.toJSON() + "\n" + "}";
-        return json;
+        return MessageCodec.toPrettyJSON(this);
     }
 
     public Order fromJSON(String json) {
-
-        JSONObject obj = u.parseJob(json);
-        job = new Job().fromJSON(obj.get("job").toString());
-        provision = new Provision().fromJSON(obj.get("provision").toString());
-        orderUUID = (String) obj.get("order_uuid");
-
+        final Order order;
+        try {
+            order = MessageCodec.JSON.decodeOrder(json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not an order: " + e.getMessage(), e);
+        }
+        job = order.getJob();
+        provision = order.getProvision();
+        orderUUID = order.getOrderUUID();
         return this;
+    }
+
+    public String getOrderUUID() {
+        return orderUUID;
+    }
 
+    public void setOrderUUID(String orderUUID) {
+        this.orderUUID = orderUUID;
     }
 
     public Provision getProvision() {
@@ -23,7 +23,6 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
 import io.swagger.annotations.ApiModel;
@@ -42,6 +41,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -109,11 +109,8 @@ public class Provision extends BaseBean{
      * @return
      */
     public Provision fromJSON(String json) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         try {
-            return mapper.readValue(json, Provision.class);
+            return MessageCodec.JSON.decodeProvision(json.getBytes(StandardCharsets.UTF_8));
         } catch (JsonParseException e) {
             log.error("JSON parsing error: ", e.getMessage());
             return null;
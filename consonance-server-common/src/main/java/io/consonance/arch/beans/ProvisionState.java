@@ -23,5 +23,7 @@ package io.consonance.arch.beans;
  * @author dyuen
  */
 public enum ProvisionState {
-    START, PENDING, RUNNING, SUCCESS, FAILED
+    START, PENDING, RUNNING, SUCCESS, FAILED,
+    /** the job succeeded and its VM is kept in the warm pool, it becomes SUCCESS once the VM is reaped */
+    IDLE
 }
@@ -19,8 +19,8 @@
 
 package io.consonance.arch.beans;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This represents a Status which is a message sent to the Results/Status queue. Created by boconnor on 2015-04-22.
@@ -35,6 +35,12 @@ public class Status {
     private String stderr = null;
     private String stdout = null;
     private String ipAddress = null;
+    /** when set, stdout holds only the bytes of the worker's stdout stream starting at this offset */
+    private Long stdoutOffset = null;
+    /** when set, stderr holds only the bytes of the worker's stderr stream starting at this offset */
+    private Long stderrOffset = null;
+    /** counts up with each status that ships output for a job */
+    private Long sequence = null;
 
     public Status(String vmUuid, String jobUuid, StatusState state, String type, String message, String ipAddress) {
         this.vmUuid = vmUuid;
@@ -50,13 +56,22 @@ public class Status {
     }
 
     public String toJSON() {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        return gson.toJson(this);
+        return MessageCodec.toPrettyJSON(this);
+    }
+
+    /**
+     * @return this status as JSON without any whitespace, for messages that are sent often
+     */
+    public String toCompactJSON() {
+        return new String(MessageCodec.JSON.encode(this), StandardCharsets.UTF_8);
     }
 
     public Status fromJSON(String json) {
-        Gson gson = new Gson();
-        return gson.fromJson(json, Status.class);
+        try {
+            return MessageCodec.JSON.decodeStatus(json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not a status: " + e.getMessage(), e);
+        }
     }
 
     public String getType() {
@@ -115,6 +130,37 @@ public class Status {
         this.stdout = stdout;
     }
 
+    public Long getStdoutOffset() {
+        return stdoutOffset;
+    }
+
+    public void setStdoutOffset(Long stdoutOffset) {
+        this.stdoutOffset = stdoutOffset;
+    }
+
+    public Long getStderrOffset() {
+        return stderrOffset;
+    }
+
+    public void setStderrOffset(Long stderrOffset) {
+        this.stderrOffset = stderrOffset;
+    }
+
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return whether this status carries output as deltas to append rather than as snapshots to replace what was stored
+     */
+    public boolean hasLogDeltas() {
+        return stdoutOffset != null || stderrOffset != null;
+    }
+
     /**
      * @return the ipAddress
      */
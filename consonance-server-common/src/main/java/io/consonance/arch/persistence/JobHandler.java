@@ -0,0 +1,55 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.persistence;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import org.apache.commons.dbutils.handlers.AbstractListHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps rows straight into {@link Job} objects with their state, hash and output, without building intermediate maps.
+ *
+ * Queries using this handler should select the columns in {@link #COLUMNS}.
+ *
+ * @author dyuen
+ */
+public class JobHandler extends AbstractListHandler<Job> {
+
+    /**
+     * The columns needed to build a job.
+     */
+    public static final String COLUMNS = "job_uuid, status, job_hash, stdout, stderr, flavour, create_timestamp, update_timestamp";
+
+    @Override
+    protected Job handleRow(ResultSet rs) throws SQLException {
+        Job job = new Job();
+        job.setState(Enum.valueOf(JobState.class, rs.getString("status")));
+        job.setUuid(rs.getString("job_uuid"));
+        job.setJobHash(rs.getString("job_hash"));
+        job.setStdout(rs.getString("stdout"));
+        job.setStderr(rs.getString("stderr"));
+        job.setFlavour(rs.getString("flavour"));
+        job.setCreateTimestamp(rs.getTimestamp("create_timestamp"));
+        job.setUpdateTimestamp(rs.getTimestamp("update_timestamp"));
+        return job;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.persistence;
+
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import org.apache.commons.dbutils.handlers.AbstractListHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps rows straight into {@link JobSummary} objects without building intermediate maps.
+ *
+ * Queries using this handler should select the columns in {@link #COLUMNS}.
+ *
+ * @author dyuen
+ */
+public class JobSummaryHandler extends AbstractListHandler<JobSummary> {
+
+    /**
+     * The columns needed to build a summary.
+     */
+    public static final String COLUMNS = "job_uuid, provision_uuid, flavour, status, create_timestamp, update_timestamp";
+
+    @Override
+    protected JobSummary handleRow(ResultSet rs) throws SQLException {
+        JobSummary summary = new JobSummary();
+        summary.setUuid(rs.getString("job_uuid"));
+        summary.setVmUuid(rs.getString("provision_uuid"));
+        summary.setFlavour(rs.getString("flavour"));
+        summary.setState(Enum.valueOf(JobState.class, rs.getString("status")));
+        summary.setCreateTimestamp(rs.getTimestamp("create_timestamp"));
+        summary.setUpdateTimestamp(rs.getTimestamp("update_timestamp"));
+        return summary;
+    }
+}
@@ -20,19 +20,29 @@
 package io.consonance.arch.persistence;
 
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobLogChunk;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.LogCodec;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.common.BasicPostgreSQL;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.dbutils.handlers.ArrayHandler;
+import org.apache.commons.dbutils.handlers.ColumnListHandler;
 import org.apache.commons.dbutils.handlers.KeyedHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -46,8 +56,16 @@ public class PostgreSQL extends BasicPostgreSQL{
 
     protected static final Logger LOG = LoggerFactory.getLogger(PostgreSQL.class);
 
+    /**
+     * How many characters from the end of each stream are kept in a job's stdout and stderr, the full output is in job_log_chunk.
+     */
+    public static final int LOG_TAIL_CHARS = 64 * 1024;
+
+    private final LogCodec logCodec;
+
     public PostgreSQL(HierarchicalINIConfiguration settings) {
         super(settings);
+        this.logCodec = LogCodec.fromSettings(settings);
     }
 
     public long getDesiredNumberOfVMs() {
@@ -76,6 +94,70 @@ public class PostgreSQL extends BasicPostgreSQL{
         runUpdateStatement("update job set stdout = ?, stderr = ?, update_timestamp = NOW() where job_uuid = ?", stdout, stderr, uuid);
     }
 
+    /**
+     * Append output that a worker shipped as deltas to what is stored for a job.
+     *
+     * Each delta carries the byte offset in the worker's stream that it starts at. Bytes that are already stored are skipped, so deltas
+     * that are delivered twice or out of order do not duplicate output. What is new goes into job_log_chunk as one more chunk, and the
+     * end of each stream is kept in the job's stdout and stderr for listings. When a delta starts past what is stored, the missing bytes
+     * were lost on the worker and the delta is appended anyway.
+     *
+     * @param uuid the job
+     * @param stdout new stdout, ignored when stdoutOffset is null
+     * @param stdoutOffset where stdout starts in the worker's stdout stream
+     * @param stderr new stderr, ignored when stderrOffset is null
+     * @param stderrOffset where stderr starts in the worker's stderr stream
+     */
+    public void appendJobLogs(String uuid, String stdout, Long stdoutOffset, String stderr, Long stderrOffset) {
+        if (stdoutOffset != null) {
+            appendJobLog(uuid, JobLogChunk.STDOUT, stdout == null ? "" : stdout, stdoutOffset);
+        }
+        if (stderrOffset != null) {
+            appendJobLog(uuid, JobLogChunk.STDERR, stderr == null ? "" : stderr, stderrOffset);
+        }
+    }
+
+    /**
+     * @param stream either stdout or stderr, which is also the column holding its tail, the offset is kept in the column of the same name
+     *               with an _offset suffix
+     */
+    private void appendJobLog(String uuid, String stream, String text, long offset) {
+        final String offsetColumn = stream + "_offset";
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        runInTransaction((run, connection) -> {
+            // the row lock keeps seq and the offset consistent if the same job is appended to from two places
+            Object[] job = run.query(connection, "select coalesce(" + offsetColumn + ", 0) from job where job_uuid = ? for update",
+                    new ArrayHandler(), uuid);
+            if (job == null || job.length == 0) {
+                LOG.warn("Dropping " + stream + " for unknown job " + uuid);
+                return null;
+            }
+            final long stored = ((Number)job[0]).longValue();
+            final long end = offset + bytes.length;
+            if (end <= stored) {
+                return null;
+            }
+            if (offset > stored) {
+                LOG.warn((offset - stored) + " bytes of " + stream + " from job " + uuid + " were lost on the worker");
+            }
+            final int skip = (int)Math.max(0, stored - offset);
+            final byte[] fresh = Arrays.copyOfRange(bytes, skip, bytes.length);
+            final byte[] encoded;
+            try {
+                encoded = logCodec.encode(fresh);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Number seq = run.query(connection, "select coalesce(max(seq) + 1, 0) from job_log_chunk where job_uuid = ? and stream = ?",
+                    new ScalarHandler<>(), uuid, stream);
+            run.update(connection, "insert into job_log_chunk (job_uuid, stream, seq, byte_offset, byte_length, codec, bytes) values (?,?,?,?,?,?,?)",
+                    uuid, stream, seq.intValue(), offset + skip, fresh.length, logCodec.toString(), encoded);
+            run.update(connection, "update job set " + stream + " = right(coalesce(" + stream + ", '') || ?, ?), " + offsetColumn
+                    + " = ?, update_timestamp = NOW() where job_uuid = ?", new String(fresh, StandardCharsets.UTF_8), LOG_TAIL_CHARS, end, uuid);
+            return null;
+        });
+    }
+
     public void finishJob(String uuid) {
         runUpdateStatement("update job set status = ? , update_timestamp = NOW() where job_uuid = ?", JobState.SUCCESS.toString(), uuid);
     }
@@ -85,6 +167,52 @@ public class PostgreSQL extends BasicPostgreSQL{
                 vmUuid, uuid);
     }
 
+    /**
+     * Update the state of many jobs as one JDBC batch in a single transaction.
+     *
+     * The provision uuid of a job is left alone when the job does not carry one.
+     *
+     * @param jobs jobs carrying a uuid, state and (optionally) a vm uuid
+     */
+    public void updateJobs(Collection<Job> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        Object[][] params = new Object[jobs.size()][];
+        int i = 0;
+        for (Job job : jobs) {
+            params[i] = new Object[] { job.getState().toString(), job.getVmUuid(), job.getUuid() };
+            i++;
+        }
+        runBatchUpdateStatement("update job set status = ?, provision_uuid = coalesce(?, provision_uuid), update_timestamp = NOW() where job_uuid = ?",
+                params);
+    }
+
+    /**
+     * Flag every running job that has not been heard from in the given number of seconds as lost in one statement.
+     *
+     * @param secondsBeforeLost how long a running job can go without an update
+     * @return the uuids of the jobs that were flagged
+     */
+    public List<String> flagLostJobs(long secondsBeforeLost) {
+        return runSelectStatement(
+                "update job set status = ?, update_timestamp = NOW() where status = ? and update_timestamp < NOW() - (cast(? as integer) * interval '1 second') returning job_uuid",
+                new ColumnListHandler<>("job_uuid"), JobState.LOST.toString(), JobState.RUNNING.toString(), secondsBeforeLost);
+    }
+
+    /**
+     * Work out when the next running job can become lost, this is driven by the oldest update timestamp among running jobs.
+     *
+     * @param secondsBeforeLost how long a running job can go without an update
+     * @return seconds until the next running job can be flagged (negative if one is already overdue) or null if nothing is running
+     */
+    public Double getSecondsUntilNextLostJob(long secondsBeforeLost) {
+        Number seconds = runSelectStatement(
+                "select extract(epoch from (min(update_timestamp) + cast(? as integer) * interval '1 second' - NOW())) from job where status = ?",
+                new ScalarHandler<>(), secondsBeforeLost, JobState.RUNNING.toString());
+        return seconds == null ? null : seconds.doubleValue();
+    }
+
     public void updateProvisionByProvisionUUID(String provisionUuid, String jobUuid, ProvisionState status, String ipAddress) {
         runUpdateStatement(
                 "update provision set status = ? , job_uuid = ? , update_timestamp = NOW(), ip_address = ? where provision_uuid = ?",
@@ -101,6 +229,36 @@ public class PostgreSQL extends BasicPostgreSQL{
         return this.runSelectStatement("select count(*) from provision where status = ?", new ScalarHandler<>(), status.toString());
     }
 
+    /**
+     * Count jobs in every state with a single query.
+     *
+     * @return the number of jobs in each state, states with no jobs are left out
+     */
+    public Map<JobState, Long> getJobStateCounts() {
+        return runSelectStatement("select status, count(*) from job where status is not null group by status", rs -> {
+            Map<JobState, Long> counts = new EnumMap<>(JobState.class);
+            while (rs.next()) {
+                counts.put(Enum.valueOf(JobState.class, rs.getString(1)), rs.getLong(2));
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * Count provisions in every state with a single query.
+     *
+     * @return the number of provisions in each state, states with no provisions are left out
+     */
+    public Map<ProvisionState, Long> getProvisionStateCounts() {
+        return runSelectStatement("select status, count(*) from provision where status is not null group by status", rs -> {
+            Map<ProvisionState, Long> counts = new EnumMap<>(ProvisionState.class);
+            while (rs.next()) {
+                counts.put(Enum.valueOf(ProvisionState.class, rs.getString(1)), rs.getLong(2));
+            }
+            return counts;
+        });
+    }
+
     public Integer createProvision(Provision p) {
         Map<Object, Map<String, Object>> map = this.runInsertStatement(
                 "INSERT INTO provision (status, provision_uuid, cores, mem_gb, storage_gb, job_uuid, ip_address) VALUES (?,?,?,?,?,?,?)",
@@ -128,7 +286,6 @@ public class PostgreSQL extends BasicPostgreSQL{
 
     public List<Provision> getProvisions(ProvisionState status) {
 
-        List<Provision> provisions = new ArrayList<>();
         Map<Object, Map<String, Object>> map;
         if (status != null) {
             map = this
@@ -141,6 +298,24 @@ public class PostgreSQL extends BasicPostgreSQL{
                     new KeyedHandler<>("provision_uuid"));
         }
 
+        return toProvisions(map);
+    }
+
+    /**
+     * Read the VMs that were kept in the warm pool after their jobs, for a provisioner that starts up again.
+     *
+     * @return the newest idle provision of each VM that was not reaped, leaving out VMs with a provision that is still going or failed
+     */
+    public List<Provision> getIdleProvisions() {
+        // jobs can finish on a VM in another order than their provisions were created, so the newest is the last updated
+        return toProvisions(runSelectStatement("select distinct on (provision_uuid) * from provision p where status = ? and not exists "
+                + "(select 1 from provision o where o.provision_uuid = p.provision_uuid and o.status <> ? and o.status <> ?) "
+                + "order by provision_uuid, update_timestamp desc nulls last", new KeyedHandler<>("provision_uuid"),
+                ProvisionState.IDLE.toString(), ProvisionState.IDLE.toString(), ProvisionState.SUCCESS.toString()));
+    }
+
+    private List<Provision> toProvisions(Map<Object, Map<String, Object>> map) {
+        List<Provision> provisions = new ArrayList<>();
         //TODO: this can be done more cleanly with a custom row processor
         for (Entry<Object, Map<String, Object>> entry : map.entrySet()) {
             Provision p = new Provision();
@@ -165,38 +340,37 @@ public class PostgreSQL extends BasicPostgreSQL{
         return provisions;
     }
 
-    public List<Job> getJobs(JobState status) {
-
-        List<Job> jobs = new ArrayList<>();
-        Map<Object, Map<String, Object>> map;
+    /**
+     * Read jobs without their logs or descriptors.
+     *
+     * @param status only return jobs in this state, or all jobs if null
+     * @return summaries of the matching jobs
+     */
+    public List<JobSummary> getJobSummaries(JobState status) {
         if (status != null) {
-            map = this.runSelectStatement("select * from job where status = ?", new KeyedHandler<>("job_uuid"), status.toString());
-        } else {
-            map = this.runSelectStatement("select * from job", new KeyedHandler<>("job_uuid"));
+            return runSelectStatement("select " + JobSummaryHandler.COLUMNS + " from job where status = ?", new JobSummaryHandler(),
+                    status.toString());
         }
+        return runSelectStatement("select " + JobSummaryHandler.COLUMNS + " from job", new JobSummaryHandler());
+    }
 
-        //TODO: this can be done more cleanly with a custom row processor
-        for (Entry<Object, Map<String, Object>> entry : map.entrySet()) {
-
-            Job j = new Job();
-            j.setState(Enum.valueOf(JobState.class, (String) entry.getValue().get("status")));
-            j.setUuid((String) entry.getValue().get("job_uuid"));
-            j.setJobHash((String) entry.getValue().get("job_hash"));
-            j.setStdout((String) entry.getValue().get("stdout"));
-            j.setStderr((String) entry.getValue().get("stderr"));
-            j.setFlavour((String) entry.getValue().get("flavour"));
-
-            // timestamp
-            Timestamp createTs = (Timestamp) entry.getValue().get("create_timestamp");
-            Timestamp updateTs = (Timestamp) entry.getValue().get("update_timestamp");
-            j.setCreateTimestamp(createTs);
-            j.setUpdateTimestamp(updateTs);
-
-            jobs.add(j);
+    /**
+     * Read one job without its logs or descriptors.
+     *
+     * @param uuid the job to read
+     * @return a summary of the job, or null if there is no such job
+     */
+    public JobSummary getJobSummary(String uuid) {
+        List<JobSummary> jobs = runSelectStatement("select " + JobSummaryHandler.COLUMNS + " from job where job_uuid = ?",
+                new JobSummaryHandler(), uuid);
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
 
+    public List<Job> getJobs(JobState status) {
+        if (status != null) {
+            return runSelectStatement("select " + JobHandler.COLUMNS + " from job where status = ?", new JobHandler(), status.toString());
         }
-
-        return jobs;
+        return runSelectStatement("select " + JobHandler.COLUMNS + " from job", new JobHandler());
     }
 
     public boolean previouslyRun(String hash) {
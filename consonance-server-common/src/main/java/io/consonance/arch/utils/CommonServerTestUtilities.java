@@ -20,8 +20,7 @@
 package io.consonance.arch.utils;
 
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownSignalException;
 import io.consonance.arch.persistence.PostgreSQL;
 import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
@@ -36,7 +35,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 /**
  * A kitchen sink of utility methods.
@@ -46,6 +48,11 @@ import java.util.concurrent.TimeoutException;
 public class CommonServerTestUtilities {
 
     public static final long ONE_MINUTE_IN_MILLISECONDS = 60000;
+    public static final long ONE_HOUR_IN_MILLISECONDS = 60 * ONE_MINUTE_IN_MILLISECONDS;
+    public static final long DEFAULT_LOCALITY_WAIT_MILLIS = 30000;
+    /** the longest locality key, it becomes part of a queue name which AMQP limits to 255 bytes */
+    public static final int MAX_LOCALITY_LENGTH = 64;
+    private static final Pattern LOCALITY_PATTERN = Pattern.compile("[A-Za-z0-9._:-]{1," + MAX_LOCALITY_LENGTH + "}");
 
     protected static final Logger LOG = LoggerFactory.getLogger(CommonServerTestUtilities.class);
     // TODO: These really should be refactored out to an enum
@@ -79,21 +86,13 @@ public class CommonServerTestUtilities {
         // clean up the database
         postgres.clearDatabase();
 
-        String server = parseConfig.getString(Constants.RABBIT_HOST);
-        String user = parseConfig.getString(Constants.RABBIT_USERNAME);
-        String pass = parseConfig.getString(Constants.RABBIT_PASSWORD);
-
         Channel channel;
-
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(server);
-        factory.setUsername(user);
-        factory.setPassword(pass);
-        factory.setAutomaticRecoveryEnabled(true);
-        Connection connection = factory.newConnection();
-        channel = connection.createChannel();
-        channel.basicQos(1);
-        channel.confirmSelect();
+        try {
+            channel = RabbitConnectionManager.getInstance(parseConfig).openChannel();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
 
         String prefix = parseConfig.getString(Constants.RABBIT_QUEUE_NAME);
         String[] queues = { prefix + "_jobs", prefix + "_orders", prefix + "_vms", prefix + "_for_CleanupJobs", prefix + "_for_CleanupVMs" };
@@ -104,6 +103,7 @@ public class CommonServerTestUtilities {
                 Log.info("Could not delete " + queue);
             }
         }
+        closeChannel(channel);
     }
 
     /**
@@ -116,24 +116,18 @@ public class CommonServerTestUtilities {
     public static Channel setupQueue(HierarchicalINIConfiguration settings, String queue) throws InterruptedException {
 
         String server = settings.getString(Constants.RABBIT_HOST);
-        String user = settings.getString(Constants.RABBIT_USERNAME);
-        String pass = settings.getString(Constants.RABBIT_PASSWORD);
 
-        Channel channel;
+        Channel channel = null;
 
         while(true) {
             try {
-                ConnectionFactory factory = new ConnectionFactory();
-                factory.setHost(server);
-                factory.setUsername(user);
-                factory.setPassword(pass);
-                factory.setAutomaticRecoveryEnabled(true);
-                Connection connection = factory.newConnection();
-                channel = connection.createChannel();
+                channel = RabbitConnectionManager.getInstance(settings).openChannel();
                 channel.basicQos(1);
                 channel.queueDeclare(queue, true, false, false, null);
                 channel.confirmSelect();
             } catch (IOException | TimeoutException ex) {
+                closeChannel(channel);
+                channel = null;
                 LOG.error("Error setting up queue connections to queue:" + queue + " on host: " + server + "; error is: " + ex.getMessage(),
                         ex);
                 Thread.sleep(ONE_MINUTE_IN_MILLISECONDS);
@@ -164,25 +158,16 @@ public class CommonServerTestUtilities {
      */
     public static Channel setupExchange(HierarchicalINIConfiguration settings, String exchange, String exchangeType) throws InterruptedException {
 
-        String server = settings.getString(Constants.RABBIT_HOST);
-        String user = settings.getString(Constants.RABBIT_USERNAME);
-        String pass = settings.getString(Constants.RABBIT_PASSWORD);
-
-        Channel channel;
+        Channel channel = null;
 
         while(true) {
             try {
-
-                ConnectionFactory factory = new ConnectionFactory();
-                factory.setHost(server);
-                factory.setUsername(user);
-                factory.setPassword(pass);
-                factory.setAutomaticRecoveryEnabled(true);
-                Connection connection = factory.newConnection();
-                channel = connection.createChannel();
+                channel = RabbitConnectionManager.getInstance(settings).openChannel();
                 channel.exchangeDeclare(exchange, exchangeType, true, false, null);
                 channel.confirmSelect();
             } catch (IOException | TimeoutException ex) {
+                closeChannel(channel);
+                channel = null;
                 LOG.error("Error setting up exchange connections, retrying: " + ex.getMessage(), ex);
                 Thread.sleep(ONE_MINUTE_IN_MILLISECONDS);
                 continue;
@@ -200,6 +185,74 @@ public class CommonServerTestUtilities {
         }
     }
 
+    /**
+     * Set up the queue for jobs of a flavour that would rather run on a worker that has their locality key cached, and bind it to the
+     * job exchange. Jobs that no such worker takes within the wait are dead-lettered back onto the exchange with the flavour as the
+     * routing key, where any worker of that flavour can take them. The queue goes away once nobody has used it for an hour on top of
+     * twice the wait, so declare it again before use. Everyone declaring it has to agree on the wait.
+     *
+     * @param channel a channel on the job exchange
+     * @param queue the prefix for job queues
+     * @param exchange the job exchange
+     * @param flavour the flavour of the jobs
+     * @param locality the locality key of the jobs
+     * @param waitMillis how long a job waits for a worker with the key cached
+     * @return the name of the queue
+     * @throws IOException thrown when the queue cannot be declared or bound
+     */
+    public static String setupLocalityQueueOnExchange(Channel channel, String queue, String exchange, String flavour, String locality,
+            long waitMillis) throws IOException {
+        final String routingKey = localityRoutingKey(flavour, locality);
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("x-message-ttl", waitMillis);
+        arguments.put("x-dead-letter-exchange", exchange);
+        arguments.put("x-dead-letter-routing-key", flavour);
+        arguments.put("x-expires", 2 * waitMillis + ONE_HOUR_IN_MILLISECONDS);
+        try {
+            final String name = channel.queueDeclare(queue + "_for_" + routingKey, true, false, false, arguments).getQueue();
+            channel.queueBind(name, exchange, routingKey);
+            return name;
+        } catch (IOException ex) {
+            LOG.error("Error setting up locality queue on exchange: " + ex.getMessage(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * @param flavour the flavour of a job
+     * @param locality the locality key of the job
+     * @return the routing key for jobs that prefer workers with that key cached
+     */
+    public static String localityRoutingKey(String flavour, String locality) {
+        return flavour + "@" + locality;
+    }
+
+    /**
+     * @param locality the locality key of a job
+     * @return true if the key is short enough and only has letters, digits, dots, colons, dashes and underscores
+     */
+    public static boolean isValidLocality(String locality) {
+        return locality != null && LOCALITY_PATTERN.matcher(locality).matches();
+    }
+
+    /**
+     * Close a channel from {@link #setupQueue} or {@link #setupExchange}, returning it to the shared connection manager.
+     *
+     * The connection behind the channel is shared and is left open.
+     *
+     * @param channel the channel to close, may be null or already closed
+     */
+    public static void closeChannel(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException | TimeoutException | ShutdownSignalException ex) {
+            LOG.debug("Channel was already closed: " + ex.getMessage());
+        }
+    }
+
     public JSONObject parseJob(String job) {
         return parseJSONStr(job);
     }
@@ -0,0 +1,130 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Tracks asynchronous publisher confirms for a single channel in confirm mode.
+ *
+ * Each publish made through the tracker returns a future that completes when the broker acks the message and completes exceptionally
+ * when the broker nacks it or the channel goes away. This lets callers pipeline publishes instead of blocking on waitForConfirms().
+ *
+ * Publishing through a tracker is not thread-safe, a channel (and so its tracker) should only be used by one publishing thread at a time.
+ *
+ * @author dyuen
+ */
+public class PublishConfirmTracker implements ConfirmListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishConfirmTracker.class);
+    private final Channel channel;
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+
+    /**
+     * Attach a new tracker to a channel, the channel should already be in confirm mode.
+     *
+     * @param channel a channel with confirmSelect() already called
+     */
+    public PublishConfirmTracker(Channel channel) {
+        this.channel = channel;
+        channel.addConfirmListener(this);
+        channel.addShutdownListener(cause -> failAll(new IOException("channel shut down with unconfirmed publishes", cause)));
+    }
+
+    /**
+     * Publish a message and track its confirm.
+     *
+     * @param exchange the exchange to publish to
+     * @param routingKey the routing key
+     * @param props message properties
+     * @param body message body
+     * @return a future that completes once the broker has confirmed the message
+     * @throws IOException thrown when the publish itself fails
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        final long seqNo = channel.getNextPublishSeqNo();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        outstanding.put(seqNo, future);
+        try {
+            channel.basicPublish(exchange, routingKey, props, body);
+        } catch (IOException | RuntimeException e) {
+            outstanding.remove(seqNo);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of publishes that are still waiting on a confirm
+     */
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        for (CompletableFuture<Void> future : confirmed(deliveryTag, multiple)) {
+            future.complete(null);
+        }
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        LOG.error("Broker nacked publish " + deliveryTag + (multiple ? " and earlier" : "") + " on channel " + channel.getChannelNumber());
+        for (CompletableFuture<Void> future : confirmed(deliveryTag, multiple)) {
+            future.completeExceptionally(new IOException("broker nacked publish " + deliveryTag));
+        }
+    }
+
+    private Iterable<CompletableFuture<Void>> confirmed(long deliveryTag, boolean multiple) {
+        if (multiple) {
+            ConcurrentNavigableMap<Long, CompletableFuture<Void>> head = outstanding.headMap(deliveryTag, true);
+            Map<Long, CompletableFuture<Void>> copy = new ConcurrentSkipListMap<>(head);
+            head.clear();
+            return copy.values();
+        }
+        CompletableFuture<Void> future = outstanding.remove(deliveryTag);
+        return future == null ? Collections.emptyList() : Collections.singletonList(future);
+    }
+
+    private void failAll(Throwable cause) {
+        while (!outstanding.isEmpty()) {
+            Map.Entry<Long, CompletableFuture<Void>> entry = outstanding.pollFirstEntry();
+            if (entry != null) {
+                entry.getValue().completeExceptionally(cause);
+            }
+        }
+    }
+}
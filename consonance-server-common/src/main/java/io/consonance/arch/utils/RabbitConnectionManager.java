@@ -0,0 +1,409 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide RabbitMQ connections.
+ *
+ * Rather than opening a TCP connection per channel, each broker gets one manager holding a small number of long-lived connections with
+ * automatic connection and topology recovery. Channels are leased from those connections in round-robin order and the number of open
+ * leases is bounded. A lease is returned when the channel is closed, or when the broker closes the channel itself.
+ *
+ * Channels handed out are wrapped so that publishes, deliveries, acks and rejects can be counted per channel, see
+ * {@link #getChannelMetrics()}. Callers should close channels, never the connection behind them.
+ *
+ * The connection threads are daemons and connections are closed by a shutdown hook, so an idle manager does not keep a JVM alive.
+ *
+ * @author dyuen
+ */
+public final class RabbitConnectionManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RabbitConnectionManager.class);
+    private static final ConcurrentMap<String, RabbitConnectionManager> MANAGERS = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_CONNECTIONS = 2;
+    private static final int DEFAULT_MAX_CHANNELS = 256;
+    private static final int NETWORK_RECOVERY_INTERVAL_IN_MILLISECONDS = 5000;
+    private static final int REQUESTED_HEARTBEAT_IN_SECONDS = 30;
+    private static final long CHANNEL_LEASE_TIMEOUT_IN_MILLISECONDS = 60000;
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final Semaphore channelLeases;
+    private final long leaseTimeoutMillis;
+    private final ConcurrentMap<Channel, ChannelMetrics> openChannels = new ConcurrentHashMap<>();
+
+    private RabbitConnectionManager(String name, HierarchicalINIConfiguration settings) {
+        this(name, createFactory(settings), settings.getInt(Constants.RABBIT_CONNECTIONS, DEFAULT_CONNECTIONS),
+                settings.getInt(Constants.RABBIT_MAX_CHANNELS, DEFAULT_MAX_CHANNELS), CHANNEL_LEASE_TIMEOUT_IN_MILLISECONDS);
+    }
+
+    /**
+     * @param name what the broker is called in log messages
+     * @param factory makes connections to the broker
+     * @param connections the number of connections to spread channels over
+     * @param maxChannels the most channels that can be leased at once
+     * @param leaseTimeoutMillis how long to wait for a lease before giving up
+     */
+    RabbitConnectionManager(String name, ConnectionFactory factory, int connections, int maxChannels, long leaseTimeoutMillis) {
+        this.name = name;
+        this.factory = factory;
+        this.connections = new Connection[Math.max(1, connections)];
+        this.channelLeases = new Semaphore(Math.max(1, maxChannels), true);
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+    }
+
+    private static ConnectionFactory createFactory(HierarchicalINIConfiguration settings) {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(settings.getString(Constants.RABBIT_HOST));
+        factory.setUsername(settings.getString(Constants.RABBIT_USERNAME));
+        factory.setPassword(settings.getString(Constants.RABBIT_PASSWORD));
+        if (settings.containsKey(Constants.RABBIT_PORT)) {
+            factory.setPort(settings.getInt(Constants.RABBIT_PORT));
+        }
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        factory.setNetworkRecoveryInterval(NETWORK_RECOVERY_INTERVAL_IN_MILLISECONDS);
+        factory.setRequestedHeartbeat(REQUESTED_HEARTBEAT_IN_SECONDS);
+        factory.setThreadFactory(runnable -> {
+            Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        return factory;
+    }
+
+    /**
+     * Get the manager for the broker described in a config file, creating it on first use.
+     *
+     * @param settings consonance config file
+     * @return the manager shared by everything in this process that talks to the same broker as the same user
+     */
+    public static RabbitConnectionManager getInstance(HierarchicalINIConfiguration settings) {
+        String key = settings.getString(Constants.RABBIT_USERNAME) + "@" + settings.getString(Constants.RABBIT_HOST) + ":"
+                + settings.getString(Constants.RABBIT_PORT, String.valueOf(ConnectionFactory.DEFAULT_AMQP_PORT));
+        return MANAGERS.computeIfAbsent(key, k -> {
+            RabbitConnectionManager manager = new RabbitConnectionManager(k, settings);
+            Runtime.getRuntime().addShutdownHook(new Thread(manager::close, "rabbit-connection-manager-shutdown"));
+            return manager;
+        });
+    }
+
+    /**
+     * Lease a channel, blocking while the maximum number of channels are open.
+     *
+     * @return a channel on one of the shared connections
+     * @throws IOException thrown when no lease becomes available in time or the broker cannot be reached
+     * @throws TimeoutException thrown when connecting to the broker times out
+     * @throws InterruptedException thrown when interrupted while waiting for a lease
+     */
+    public Channel openChannel() throws IOException, TimeoutException, InterruptedException {
+        if (!channelLeases.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IOException("Timed out waiting for one of " + openChannels.size() + " open channels to " + name + " to close");
+        }
+        try {
+            int index = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+            Channel delegate = getConnection(index).createChannel();
+            if (delegate == null) {
+                throw new IOException("No channels left on connection " + index + " to " + name);
+            }
+            ChannelMetrics metrics = new ChannelMetrics(index, delegate.getChannelNumber());
+            LeasedChannel handler = new LeasedChannel(delegate, metrics);
+            Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class }, handler);
+            handler.proxy = channel;
+            delegate.addConfirmListener(metrics);
+            // channels closed by the broker are not recovered, connection failures are recovered along with their channels
+            delegate.addShutdownListener(cause -> {
+                if (!cause.isHardError()) {
+                    handler.release();
+                }
+            });
+            openChannels.put(channel, metrics);
+            return channel;
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            channelLeases.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a snapshot of the metrics for every open channel
+     */
+    public List<ChannelMetrics> getChannelMetrics() {
+        return new ArrayList<>(openChannels.values());
+    }
+
+    /**
+     * @return the number of channels currently leased
+     */
+    public int getOpenChannelCount() {
+        return openChannels.size();
+    }
+
+    private synchronized Connection getConnection(int index) throws IOException, TimeoutException {
+        // recovering connections are left alone, only connections that were never made or were closed for good are replaced
+        if (connections[index] == null) {
+            LOG.info("Opening connection " + index + " to " + name);
+            connections[index] = factory.newConnection();
+            final int closedIndex = index;
+            connections[index].addShutdownListener(cause -> {
+                if (cause.isInitiatedByApplication()) {
+                    forgetConnection(closedIndex);
+                }
+            });
+        }
+        return connections[index];
+    }
+
+    private synchronized void forgetConnection(int index) {
+        connections[index] = null;
+    }
+
+    private synchronized void close() {
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[i];
+            connections[i] = null;
+            if (connection != null && connection.isOpen()) {
+                try {
+                    connection.close();
+                } catch (IOException | ShutdownSignalException e) {
+                    LOG.warn("Could not close connection " + i + " to " + name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Counters for a single leased channel.
+     *
+     * Confirms are counted per callback, a single broker ack can cover several publishes.
+     */
+    public static final class ChannelMetrics implements ConfirmListener {
+        private final int connectionIndex;
+        private final int channelNumber;
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong confirmAcks = new AtomicLong();
+        private final AtomicLong confirmNacks = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong acked = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        ChannelMetrics(int connectionIndex, int channelNumber) {
+            this.connectionIndex = connectionIndex;
+            this.channelNumber = channelNumber;
+        }
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            confirmAcks.incrementAndGet();
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            confirmNacks.incrementAndGet();
+        }
+
+        public int getConnectionIndex() {
+            return connectionIndex;
+        }
+
+        public int getChannelNumber() {
+            return channelNumber;
+        }
+
+        public long getPublished() {
+            return published.get();
+        }
+
+        public long getConfirmAcks() {
+            return confirmAcks.get();
+        }
+
+        public long getConfirmNacks() {
+            return confirmNacks.get();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        public long getAcked() {
+            return acked.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        @Override
+        public String toString() {
+            return "connection " + connectionIndex + " channel " + channelNumber + ": published=" + published + " confirmAcks=" + confirmAcks
+                    + " confirmNacks=" + confirmNacks + " delivered=" + delivered + " acked=" + acked + " rejected=" + rejected;
+        }
+    }
+
+    /**
+     * Forwards to the real channel, counting traffic and returning the lease when the channel is closed.
+     */
+    private final class LeasedChannel implements InvocationHandler {
+        private final Channel delegate;
+        private final ChannelMetrics metrics;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private Channel proxy;
+
+        LeasedChannel(Channel delegate, ChannelMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "basicConsume":
+                    wrapConsumer(args);
+                    break;
+                default:
+                    break;
+            }
+            try {
+                Object result = method.invoke(delegate, args);
+                count(method.getName());
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if ("close".equals(method.getName()) || "abort".equals(method.getName())) {
+                    release();
+                }
+            }
+        }
+
+        private void count(String methodName) {
+            switch (methodName) {
+                case "basicPublish":
+                    metrics.published.incrementAndGet();
+                    break;
+                case "basicAck":
+                    metrics.acked.incrementAndGet();
+                    break;
+                case "basicNack":
+                case "basicReject":
+                    metrics.rejected.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void wrapConsumer(Object[] args) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof Consumer) {
+                    args[i] = new CountingConsumer((Consumer) args[i], metrics);
+                }
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                openChannels.remove(proxy);
+                channelLeases.release();
+            }
+        }
+    }
+
+    /**
+     * Counts deliveries on the way to the real consumer.
+     */
+    private static final class CountingConsumer implements Consumer {
+        private final Consumer delegate;
+        private final ChannelMetrics metrics;
+
+        CountingConsumer(Consumer delegate, ChannelMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handleConsumeOk(String consumerTag) {
+            delegate.handleConsumeOk(consumerTag);
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            delegate.handleCancelOk(consumerTag);
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) throws IOException {
+            delegate.handleCancel(consumerTag);
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            delegate.handleShutdownSignal(consumerTag, sig);
+        }
+
+        @Override
+        public void handleRecoverOk(String consumerTag) {
+            delegate.handleRecoverOk(consumerTag);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            metrics.delivered.incrementAndGet();
+            delegate.handleDelivery(consumerTag, envelope, properties, body);
+        }
+    }
+}
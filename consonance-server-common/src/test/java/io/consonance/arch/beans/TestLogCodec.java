@@ -0,0 +1,78 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.arch.beans;
+
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestLogCodec {
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append("[INFO] step ").append(i).append(" of 1000 finished\n");
+        }
+        final byte[] written = log.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] stored = LogCodec.GZIP.encode(written);
+        assertTrue("repetitive output should shrink", stored.length < written.length);
+        assertArrayEquals(written, decode(LogCodec.GZIP, stored));
+        assertArrayEquals(new byte[0], decode(LogCodec.GZIP, LogCodec.GZIP.encode(new byte[0])));
+    }
+
+    @Test
+    public void testIdentityRoundTrip() throws IOException {
+        final byte[] written = "hello\n".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(written, LogCodec.IDENTITY.encode(written));
+        assertArrayEquals(written, decode(LogCodec.IDENTITY, written));
+    }
+
+    @Test
+    public void testFromSettings() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        assertEquals(LogCodec.IDENTITY, LogCodec.fromSettings(settings));
+        settings.setProperty(Constants.DATABASE_LOG_CODEC, " gzip ");
+        assertEquals(LogCodec.GZIP, LogCodec.fromSettings(settings));
+        // an unknown codec should not stop the provisioner from starting
+        settings.setProperty(Constants.DATABASE_LOG_CODEC, "zstd");
+        assertEquals(LogCodec.IDENTITY, LogCodec.fromSettings(settings));
+    }
+
+    private static byte[] decode(LogCodec codec, byte[] stored) throws IOException {
+        try (InputStream in = codec.decode(new ByteArrayInputStream(stored))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
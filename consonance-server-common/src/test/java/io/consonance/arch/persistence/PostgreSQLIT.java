@@ -19,12 +19,18 @@
 package io.consonance.arch.persistence;
 
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobLogChunk;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.LogCodec;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.beans.ProvisionState;
 import io.consonance.common.CommonTestUtilities;
+import io.consonance.common.Constants;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -33,8 +39,12 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -159,6 +169,57 @@ public class PostgreSQLIT {
         Assert.assertTrue("found jobs, incorrect number " + jobs3.size(), jobs3.isEmpty());
     }
 
+    /**
+     * Test of updateJobs method, of class PostgreSQL.
+     */
+    @Test
+    public void testUpdateJobs() {
+        String assigned = postgres.createJob(createJob());
+        String unassigned = postgres.createJob(createJob());
+        postgres.updateJob(assigned, "provision_uuid", JobState.PENDING);
+
+        List<Job> updates = new ArrayList<>();
+        // a status without a VM, for example from the coordinator, keeps the VM the job already has
+        updates.add(jobUpdate(assigned, null, JobState.RUNNING));
+        updates.add(jobUpdate(unassigned, "other_uuid", JobState.RUNNING));
+        postgres.updateJobs(updates);
+
+        JobSummary kept = postgres.getJobSummary(assigned);
+        assertEquals(JobState.RUNNING, kept.getState());
+        assertEquals("provision_uuid", kept.getVmUuid());
+        JobSummary set = postgres.getJobSummary(unassigned);
+        assertEquals(JobState.RUNNING, set.getState());
+        assertEquals("other_uuid", set.getVmUuid());
+    }
+
+    private static Job jobUpdate(String uuid, String vmUuid, JobState state) {
+        Job job = new Job();
+        job.setUuid(uuid);
+        job.setVmUuid(vmUuid);
+        job.setState(state);
+        return job;
+    }
+
+    /**
+     * Test of flagLostJobs method, of class PostgreSQL.
+     */
+    @Test
+    public void testFlagLostJobs() throws InterruptedException {
+        String runningUuid = postgres.createJob(createJob());
+        String pendingUuid = postgres.createJob(createJob());
+        postgres.updateJob(runningUuid, "provision_uuid", JobState.RUNNING);
+        postgres.updateJob(pendingUuid, "provision_uuid", JobState.PENDING);
+        Assert.assertTrue("nothing should be lost yet", postgres.flagLostJobs(60).isEmpty());
+        Double secondsUntilNext = postgres.getSecondsUntilNextLostJob(60);
+        Assert.assertTrue("next expiry should be within a minute " + secondsUntilNext, secondsUntilNext != null && secondsUntilNext <= 60);
+
+        Thread.sleep(1500);
+        List<String> lost = postgres.flagLostJobs(1);
+        Assert.assertTrue("only the running job should be lost " + lost, lost.size() == 1 && lost.get(0).equals(runningUuid));
+        Assert.assertTrue("job should be flagged lost", postgres.getJobs(JobState.LOST).size() == 1);
+        Assert.assertTrue("nothing is running any more", postgres.getSecondsUntilNextLostJob(1) == null);
+    }
+
     /**
      * Test of updateProvisionByProvisionUUID method, of class PostgreSQL.
      */
@@ -193,6 +254,34 @@ public class PostgreSQLIT {
         Assert.assertTrue("could not update provisions " + result, result == 1);
     }
 
+    /**
+     * Test of getIdleProvisions method, of class PostgreSQL.
+     */
+    @Test
+    public void testGetIdleProvisions() {
+        // vm1 is idle after two jobs, vm2 picked up another job, vm3 was reaped
+        createProvision("a", "vm1", ProvisionState.IDLE);
+        createProvision("b", "vm1", ProvisionState.IDLE);
+        createProvision("c", "vm2", ProvisionState.IDLE);
+        createProvision("d", "vm2", ProvisionState.RUNNING);
+        createProvision("e", "vm3", ProvisionState.IDLE);
+        postgres.finishContainer("vm3");
+
+        List<Provision> idle = postgres.getIdleProvisions();
+        assertEquals(1, idle.size());
+        assertEquals("vm1", idle.get(0).getProvisionUUID());
+        assertEquals("b", idle.get(0).getJobUUID());
+        assertEquals("9.9.9.9", idle.get(0).getIpAddress());
+    }
+
+    private void createProvision(String jobUuid, String vmUuid, ProvisionState state) {
+        Provision p = createProvision();
+        p.setJobUUID(jobUuid);
+        p.setState(ProvisionState.PENDING);
+        postgres.createProvision(p);
+        postgres.updateProvisionByJobUUID(jobUuid, vmUuid, state, "9.9.9.9");
+    }
+
     /**
      * Test of getProvisionCount method, of class PostgreSQL.
      */
@@ -267,6 +356,27 @@ public class PostgreSQLIT {
 
     }
 
+    /**
+     * Test of getJobSummaries method, of class PostgreSQL.
+     */
+    @Test
+    public void testGetJobSummaries() {
+        postgres.createJob(createJob());
+        Job createJob = createJob();
+        createJob.setState(JobState.PENDING);
+        String uuid = postgres.createJob(createJob);
+        postgres.updateJob(uuid, "provision_uuid", JobState.PENDING);
+        List<JobSummary> summaries = postgres.getJobSummaries(null);
+        Assert.assertTrue("found summaries, incorrect number " + summaries.size(), summaries.size() == 2);
+        List<JobSummary> pending = postgres.getJobSummaries(JobState.PENDING);
+        Assert.assertTrue("found summaries, incorrect number " + pending.size(), pending.size() == 1);
+        JobSummary summary = pending.get(0);
+        assertEquals(uuid, summary.getUuid());
+        assertEquals("provision_uuid", summary.getVmUuid());
+        assertEquals(JobState.PENDING, summary.getState());
+        Assert.assertNotNull("update timestamp should be set", summary.getUpdateTimestamp());
+    }
+
     /**
      * Test of previouslyRun method, of class PostgreSQL.
      */
@@ -354,6 +464,72 @@ public class PostgreSQLIT {
         Assert.assertTrue("job stdout and stderr incorrect", jobs.get(0).getStdout().equals("oof") && jobs.get(0).getStderr().equals("oh"));
     }
 
+    /**
+     * Test of appendJobLogs method, of class PostgreSQL.
+     */
+    @Test
+    public void testAppendJobLogs() {
+        System.out.println("appendJobLogs");
+        Job createJob = createJob();
+        createJob.setState(JobState.START);
+        String uuid = postgres.createJob(createJob);
+        postgres.appendJobLogs(uuid, "one\n", 0L, "oh\n", 0L);
+        // sent again with the next line, only the new line is kept
+        postgres.appendJobLogs(uuid, "one\ntwo\n", 0L, null, null);
+        // arrives late, already stored
+        postgres.appendJobLogs(uuid, "two\n", 4L, "", 3L);
+        postgres.appendJobLogs(uuid, "thr\u00e9e\n", 8L, null, null);
+        List<Job> jobs = postgres.getJobs(JobState.START);
+        Assert.assertEquals("one\ntwo\nthr\u00e9e\n", jobs.get(0).getStdout());
+        Assert.assertEquals("oh\n", jobs.get(0).getStderr());
+    }
+
+    /**
+     * The chunks of a stream should add up to exactly what the worker wrote, with the job's tail matching their end, however the deltas
+     * overlap or repeat.
+     */
+    @Test
+    public void testJobLogChunksMatchTail() throws IOException {
+        File configFile = FileUtils.getFile("src", "test", "resources", "config");
+        HierarchicalINIConfiguration parseConfig = CommonTestUtilities.parseConfig(configFile.getAbsolutePath());
+        parseConfig.setProperty(Constants.DATABASE_LOG_CODEC, "gzip");
+        ChunkReader gzipped = new ChunkReader(parseConfig);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < PostgreSQL.LOG_TAIL_CHARS + PostgreSQL.LOG_TAIL_CHARS / 2; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        final String full = builder.toString();
+        final int third = full.length() / 3;
+
+        Job createJob = createJob();
+        createJob.setState(JobState.START);
+        String uuid = gzipped.createJob(createJob);
+        gzipped.appendJobLogs(uuid, full.substring(0, 2 * third), 0L, null, null);
+        // overlaps what is stored, then arrives a second time
+        gzipped.appendJobLogs(uuid, full.substring(third, full.length() - 10), (long)third, null, null);
+        gzipped.appendJobLogs(uuid, full.substring(third, full.length() - 10), (long)third, null, null);
+        gzipped.appendJobLogs(uuid, full.substring(full.length() - 10), (long)(full.length() - 10), null, null);
+
+        List<Object[]> chunks = gzipped.getChunks(uuid, JobLogChunk.STDOUT);
+        assertEquals(3, chunks.size());
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        for (Object[] chunk : chunks) {
+            assertEquals("chunks should follow on from each other", stored.size(), ((Number)chunk[0]).longValue());
+            assertEquals(LogCodec.GZIP.toString(), chunk[2]);
+            byte[] decoded;
+            try (InputStream in = LogCodec.valueOf((String)chunk[2]).decode(new ByteArrayInputStream((byte[])chunk[3]))) {
+                decoded = IOUtils.toByteArray(in);
+            }
+            assertEquals(((Number)chunk[1]).intValue(), decoded.length);
+            stored.write(decoded);
+        }
+        assertEquals(full, new String(stored.toByteArray(), StandardCharsets.UTF_8));
+
+        List<Job> jobs = gzipped.getJobs(JobState.START);
+        assertEquals(full.substring(full.length() - PostgreSQL.LOG_TAIL_CHARS), jobs.get(0).getStdout());
+    }
+
     /**
      * Test of getProvisions method, of class PostgreSQL.
      */
@@ -384,4 +560,21 @@ public class PostgreSQLIT {
         result = postgres.getProvisions(ProvisionState.RUNNING);
         Assert.assertTrue("found RUNNING addresses, incorrect number " + result.size(), result.size() == 1);
     }
+
+    /**
+     * Reads back the stored chunks of a stream, which only the webservice needs outside of tests.
+     */
+    private static final class ChunkReader extends PostgreSQL {
+        ChunkReader(HierarchicalINIConfiguration settings) {
+            super(settings);
+        }
+
+        /**
+         * @return the byte offset, byte length, codec and bytes of each chunk in order
+         */
+        List<Object[]> getChunks(String uuid, String stream) {
+            return runSelectStatement("select byte_offset, byte_length, codec, bytes from job_log_chunk where job_uuid = ? and stream = ? "
+                    + "order by seq", new ArrayListHandler(), uuid, stream);
+        }
+    }
 }
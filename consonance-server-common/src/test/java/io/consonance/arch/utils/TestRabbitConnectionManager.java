@@ -0,0 +1,184 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.arch.utils;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author dyuen
+ */
+public class TestRabbitConnectionManager {
+
+    private static final long LEASE_TIMEOUT = 100;
+
+    private ConnectionFactory factory;
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Channel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException, TimeoutException {
+        factory = mock(ConnectionFactory.class);
+        when(factory.newConnection()).thenAnswer(invocation -> {
+            Connection connection = mock(Connection.class);
+            when(connection.createChannel()).thenAnswer(create -> {
+                Channel channel = mock(Channel.class);
+                when(channel.getChannelNumber()).thenReturn(channels.size() + 1);
+                channels.add(channel);
+                return channel;
+            });
+            connections.add(connection);
+            return connection;
+        });
+    }
+
+    /**
+     * No more channels than the limit are leased, closing one hands its lease to the next caller.
+     */
+    @Test
+    public void testChannelLimit() throws Exception {
+        RabbitConnectionManager manager = new RabbitConnectionManager("test", factory, 1, 2, LEASE_TIMEOUT);
+        Channel first = manager.openChannel();
+        manager.openChannel();
+        assertEquals(2, manager.getOpenChannelCount());
+        try {
+            manager.openChannel();
+            fail("a third channel should not be leased");
+        } catch (IOException e) {
+            // expected, both leases are taken
+        }
+
+        first.close();
+        first.close();
+        assertEquals(1, manager.getOpenChannelCount());
+        manager.openChannel();
+        assertEquals(2, manager.getOpenChannelCount());
+        verify(channels.get(0), times(2)).close();
+    }
+
+    /**
+     * Channels are spread over the connections in turn, and traffic on them is counted.
+     */
+    @Test
+    public void testRoundRobinAndMetrics() throws Exception {
+        RabbitConnectionManager manager = new RabbitConnectionManager("test", factory, 2, 10, LEASE_TIMEOUT);
+        Channel first = manager.openChannel();
+        manager.openChannel();
+        manager.openChannel();
+        assertEquals(2, connections.size());
+        verify(connections.get(0), times(2)).createChannel();
+        verify(connections.get(1), times(1)).createChannel();
+
+        first.basicPublish("exchange", "key", null, new byte[0]);
+        first.basicAck(1, false);
+        first.basicReject(2, true);
+        long published = 0;
+        long acked = 0;
+        long rejected = 0;
+        for (RabbitConnectionManager.ChannelMetrics metrics : manager.getChannelMetrics()) {
+            published += metrics.getPublished();
+            acked += metrics.getAcked();
+            rejected += metrics.getRejected();
+        }
+        assertEquals(1, published);
+        assertEquals(1, acked);
+        assertEquals(1, rejected);
+    }
+
+    /**
+     * A channel closed by the broker returns its lease, a connection failure leaves it for automatic recovery.
+     */
+    @Test
+    public void testBrokerClosesChannel() throws Exception {
+        RabbitConnectionManager manager = new RabbitConnectionManager("test", factory, 1, 1, LEASE_TIMEOUT);
+        manager.openChannel();
+        ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+        verify(channels.get(0)).addShutdownListener(listener.capture());
+
+        listener.getValue().shutdownCompleted(new ShutdownSignalException(true, false, null, null));
+        assertEquals(1, manager.getOpenChannelCount());
+
+        listener.getValue().shutdownCompleted(new ShutdownSignalException(false, false, null, null));
+        assertEquals(0, manager.getOpenChannelCount());
+        manager.openChannel();
+    }
+
+    /**
+     * A connection closed for good is replaced on the next lease, one that is recovering is kept.
+     */
+    @Test
+    public void testConnectionRecovery() throws Exception {
+        RabbitConnectionManager manager = new RabbitConnectionManager("test", factory, 1, 10, LEASE_TIMEOUT);
+        manager.openChannel().close();
+        ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+        verify(connections.get(0)).addShutdownListener(listener.capture());
+
+        // a network failure is recovered by the client library
+        listener.getValue().shutdownCompleted(new ShutdownSignalException(true, false, null, null));
+        manager.openChannel().close();
+        assertEquals(1, connections.size());
+
+        listener.getValue().shutdownCompleted(new ShutdownSignalException(true, true, null, null));
+        manager.openChannel().close();
+        assertEquals(2, connections.size());
+        assertNotSame(connections.get(0), connections.get(1));
+        verify(connections.get(1)).addShutdownListener(any(ShutdownListener.class));
+    }
+
+    /**
+     * A failure to create a channel does not use up a lease.
+     */
+    @Test
+    public void testFailedChannelReturnsLease() throws Exception {
+        RabbitConnectionManager manager = new RabbitConnectionManager("test", factory, 1, 1, LEASE_TIMEOUT);
+        manager.openChannel().close();
+        Channel replacement = mock(Channel.class);
+        doThrow(new IOException("broken")).doReturn(replacement).when(connections.get(0)).createChannel();
+        try {
+            manager.openChannel();
+            fail("creating the channel should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        manager.openChannel();
+        assertEquals(1, manager.getOpenChannelCount());
+    }
+}
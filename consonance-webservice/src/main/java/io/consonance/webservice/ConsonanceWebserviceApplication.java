@@ -21,11 +21,16 @@ package io.consonance.webservice;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobLogChunk;
 import io.consonance.arch.beans.Provision;
+import io.consonance.common.CommonTestUtilities;
 import io.consonance.webservice.core.ConsonanceUser;
 import io.consonance.webservice.jdbi.ConsonanceUserDAO;
 import io.consonance.webservice.jdbi.JobDAO;
+import io.consonance.webservice.jdbi.JobLogChunkDAO;
 import io.consonance.webservice.jdbi.ProvisionDAO;
+import io.consonance.webservice.messaging.LogFollowerHub;
+import io.consonance.webservice.messaging.OrderPublisher;
 import io.consonance.webservice.resources.ConfigurationResource;
 import io.consonance.webservice.resources.OrderResource;
 import io.consonance.webservice.resources.TemplateHealthCheck;
@@ -76,7 +81,7 @@ public class ConsonanceWebserviceApplication extends Application<ConsonanceWebse
     }
 
     private final HibernateBundle<ConsonanceWebserviceConfiguration> hibernate = new HibernateBundle<ConsonanceWebserviceConfiguration>(
-            Job.class, Provision.class, ConsonanceUser.class) {
+            Job.class, JobLogChunk.class, Provision.class, ConsonanceUser.class) {
         @Override
         public DataSourceFactory getDataSourceFactory(ConsonanceWebserviceConfiguration configuration) {
             return configuration.getDataSourceFactory();
@@ -124,6 +129,7 @@ public class ConsonanceWebserviceApplication extends Application<ConsonanceWebse
 
         final JobDAO dao = new JobDAO(hibernate.getSessionFactory());
         final ProvisionDAO provisionDAO = new ProvisionDAO(hibernate.getSessionFactory());
+        final JobLogChunkDAO chunkDAO = new JobLogChunkDAO(hibernate.getSessionFactory());
         final ConsonanceUserDAO userDAO = new ConsonanceUserDAO(hibernate.getSessionFactory());
 
         environment.getObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
@@ -131,7 +137,12 @@ public class ConsonanceWebserviceApplication extends Application<ConsonanceWebse
         environment.getObjectMapper().enable(SerializationFeature.WRITE_ENUMS_USING_TO_STRING);
         environment.getObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
 
-        final OrderResource orderResource = new OrderResource(dao, provisionDAO, configuration.getConsonanceConfig());
+        final OrderPublisher orderPublisher = new OrderPublisher(CommonTestUtilities.parseConfig(configuration.getConsonanceConfig()));
+        environment.lifecycle().manage(orderPublisher);
+        final LogFollowerHub logFollowerHub = new LogFollowerHub(CommonTestUtilities.parseConfig(configuration.getConsonanceConfig()), dao);
+        environment.lifecycle().manage(logFollowerHub);
+        final OrderResource orderResource = new OrderResource(dao, provisionDAO, chunkDAO, configuration.getConsonanceConfig(),
+                orderPublisher, logFollowerHub, environment.getObjectMapper());
         environment.jersey().register(orderResource);
         environment.jersey().register(new UserResource(userDAO));
         environment.jersey().register(new ConfigurationResource(configuration));
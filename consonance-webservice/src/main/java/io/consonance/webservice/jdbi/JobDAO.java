@@ -19,18 +19,52 @@
 package io.consonance.webservice.jdbi;
 
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
 import io.dropwizard.hibernate.AbstractDAO;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.StatelessSession;
 
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
  * @author dyuen
  */
 public class JobDAO extends AbstractDAO<Job> {
+
+    /**
+     * How many rows the driver should pull from the database cursor at a time when streaming.
+     */
+    public static final int STREAM_FETCH_SIZE = 500;
+    private static final String SUMMARY_SELECT = "SELECT j.jobId, j.uuid, j.vmUuid, j.flavour, j.state, j.endUser, j.createTimestamp, "
+            + "j.updateTimestamp FROM Job j WHERE j.jobId > :after";
+
+    private final SessionFactory factory;
+
+    /**
+     * Receives rows one at a time while a listing is streamed.
+     *
+     * @param <T> the type of row
+     */
+    @FunctionalInterface
+    public interface RowSink<T> {
+        void accept(T row) throws IOException;
+    }
+
     public JobDAO(SessionFactory factory) {
         super(factory);
+        this.factory = factory;
     }
 
     public Job findById(int id) {
@@ -41,6 +75,23 @@ public class JobDAO extends AbstractDAO<Job> {
         return persist(job).getJobId();
     }
 
+    /**
+     * Persist many jobs in the current unit of work, flushing every batchSize jobs so that pending statements go out as JDBC batches.
+     *
+     * @param jobs the jobs to persist
+     * @param batchSize how many jobs to persist between flushes
+     */
+    public void createAll(List<Job> jobs, int batchSize) {
+        int count = 0;
+        for (Job job : jobs) {
+            persist(job);
+            count++;
+            if (count % batchSize == 0) {
+                currentSession().flush();
+            }
+        }
+    }
+
     public List<Job> findAll() {
         return list(namedQuery("io.consonance.arch.beans.core.Job.findAll"));
     }
@@ -52,4 +103,129 @@ public class JobDAO extends AbstractDAO<Job> {
     public List<Job> findAll(String endUser) {
         return list(namedQuery("io.consonance.arch.beans.core.Job.findAllByUser").setString("endUser",endUser));
     }
+
+    /**
+     * Get a page of job summaries ordered by job id. Pass the last job id of a page as afterId to get the next page.
+     *
+     * Filters that are null are not applied.
+     *
+     * @param afterId only return jobs with a job id greater than this
+     * @param limit the maximum number of summaries to return
+     * @param state only return jobs in this state
+     * @param endUser only return jobs submitted by this user
+     * @param since only return jobs created at or after this time
+     * @param until only return jobs created before this time
+     * @return a page of job summaries
+     */
+    public List<JobSummary> findSummaries(int afterId, int limit, JobState state, String endUser, Timestamp since, Timestamp until) {
+        Query query = summaryQuery(currentSession(), afterId, state, endUser, since, until).setMaxResults(limit);
+        List<JobSummary> summaries = new ArrayList<>();
+        for (Object row : query.list()) {
+            summaries.add(toSummary((Object[])row));
+        }
+        return summaries;
+    }
+
+    /**
+     * Stream all job summaries matching the filters through a database cursor, so memory use does not grow with the size of the table.
+     *
+     * This uses its own stateless session rather than the current unit of work so it can be called after a resource method returns.
+     *
+     * @param state only return jobs in this state
+     * @param endUser only return jobs submitted by this user
+     * @param since only return jobs created at or after this time
+     * @param until only return jobs created before this time
+     * @param sink receives each summary in job id order
+     * @throws IOException thrown when the sink fails
+     */
+    public void streamSummaries(JobState state, String endUser, Timestamp since, Timestamp until, RowSink<JobSummary> sink)
+            throws IOException {
+        StatelessSession session = factory.openStatelessSession();
+        try {
+            // postgres only uses a cursor for fetch size inside a transaction
+            session.beginTransaction();
+            ScrollableResults results = summaryQuery(session, 0, state, endUser, since, until).setFetchSize(STREAM_FETCH_SIZE)
+                    .setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (results.next()) {
+                    sink.accept(toSummary(results.get()));
+                }
+            } finally {
+                results.close();
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Look up the states of many jobs at once. This uses its own stateless session so it can be called outside a unit of work.
+     *
+     * @param uuids the jobs
+     * @return the state of each job that exists
+     */
+    public Map<String, JobState> findStates(Collection<String> uuids) {
+        Map<String, JobState> states = new HashMap<>();
+        if (uuids.isEmpty()) {
+            return states;
+        }
+        StatelessSession session = factory.openStatelessSession();
+        try {
+            List<?> rows = session.createQuery("SELECT j.uuid, j.state FROM Job j WHERE j.uuid IN (:uuids)")
+                    .setParameterList("uuids", uuids).list();
+            for (Object row : rows) {
+                states.put((String)((Object[])row)[0], (JobState)((Object[])row)[1]);
+            }
+        } finally {
+            session.close();
+        }
+        return states;
+    }
+
+    private static Query summaryQuery(SharedSessionContract session, int afterId, JobState state, String endUser, Timestamp since,
+            Timestamp until) {
+        StringBuilder hql = new StringBuilder(SUMMARY_SELECT);
+        if (state != null) {
+            hql.append(" AND j.state = :state");
+        }
+        if (endUser != null) {
+            hql.append(" AND j.endUser = :endUser");
+        }
+        if (since != null) {
+            hql.append(" AND j.createTimestamp >= :since");
+        }
+        if (until != null) {
+            hql.append(" AND j.createTimestamp < :until");
+        }
+        hql.append(" ORDER BY j.jobId");
+        Query query = session.createQuery(hql.toString()).setInteger("after", afterId);
+        if (state != null) {
+            query.setParameter("state", state);
+        }
+        if (endUser != null) {
+            query.setString("endUser", endUser);
+        }
+        if (since != null) {
+            query.setTimestamp("since", since);
+        }
+        if (until != null) {
+            query.setTimestamp("until", until);
+        }
+        return query;
+    }
+
+    private static JobSummary toSummary(Object[] row) {
+        int column = 0;
+        JobSummary summary = new JobSummary();
+        summary.setJobId((Integer)row[column++]);
+        summary.setUuid((String)row[column++]);
+        summary.setVmUuid((String)row[column++]);
+        summary.setFlavour((String)row[column++]);
+        summary.setState((JobState)row[column++]);
+        summary.setEndUser((String)row[column++]);
+        summary.setCreateTimestamp((Timestamp)row[column++]);
+        summary.setUpdateTimestamp((Timestamp)row[column]);
+        return summary;
+    }
 }
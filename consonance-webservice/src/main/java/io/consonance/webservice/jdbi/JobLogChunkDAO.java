@@ -0,0 +1,82 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.webservice.jdbi;
+
+import io.consonance.arch.beans.JobLogChunk;
+import io.dropwizard.hibernate.AbstractDAO;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+
+import java.io.IOException;
+
+/**
+ * Reads the chunks of job output that the provisioner appends to job_log_chunk.
+ *
+ * @author dyuen
+ */
+public class JobLogChunkDAO extends AbstractDAO<JobLogChunk> {
+
+    /**
+     * How many chunks the driver should pull from the database cursor at a time, chunks can be large so this is kept small.
+     */
+    public static final int CHUNK_FETCH_SIZE = 16;
+
+    private final SessionFactory factory;
+
+    public JobLogChunkDAO(SessionFactory factory) {
+        super(factory);
+        this.factory = factory;
+    }
+
+    /**
+     * Stream the chunks of one of a job's streams that hold bytes in a range, in order, without loading them all at once.
+     *
+     * This uses its own session so that it can be called after the unit of work of a request has ended, while a response is written.
+     *
+     * @param jobUuid the job
+     * @param stream either {@link JobLogChunk#STDOUT} or {@link JobLogChunk#STDERR}
+     * @param from the first byte of the range
+     * @param to the byte just after the range
+     * @param sink receives each chunk
+     * @throws IOException thrown by the sink
+     */
+    public void streamChunks(String jobUuid, String stream, long from, long to, JobDAO.RowSink<JobLogChunk> sink) throws IOException {
+        StatelessSession session = factory.openStatelessSession();
+        try {
+            // postgres only uses a cursor for fetch size inside a transaction
+            session.beginTransaction();
+            ScrollableResults results = session.createQuery("FROM JobLogChunk c WHERE c.jobUuid = :jobUuid AND c.stream = :stream "
+                    + "AND c.byteOffset + c.byteLength > :from AND c.byteOffset < :to ORDER BY c.seq").setString("jobUuid", jobUuid)
+                    .setString("stream", stream).setLong("from", from).setLong("to", to).setFetchSize(CHUNK_FETCH_SIZE).setReadOnly(true)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (results.next()) {
+                    sink.accept((JobLogChunk)results.get(0));
+                }
+            } finally {
+                results.close();
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+}
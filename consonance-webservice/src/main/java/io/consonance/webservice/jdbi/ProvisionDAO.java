@@ -22,6 +22,8 @@ import io.consonance.arch.beans.Provision;
 import io.dropwizard.hibernate.AbstractDAO;
 import org.hibernate.SessionFactory;
 
+import java.util.List;
+
 /**
  *
  * @author dyuen
@@ -39,4 +41,21 @@ public class ProvisionDAO extends AbstractDAO<Provision> {
         return persist(provision).getProvisionId();
     }
 
+    /**
+     * Persist many provisions in the current unit of work, flushing every batchSize provisions.
+     *
+     * @param provisions the provisions to persist
+     * @param batchSize how many provisions to persist between flushes
+     */
+    public void createAll(List<Provision> provisions, int batchSize) {
+        int count = 0;
+        for (Provision provision : provisions) {
+            persist(provision);
+            count++;
+            if (count % batchSize == 0) {
+                currentSession().flush();
+            }
+        }
+    }
+
 }
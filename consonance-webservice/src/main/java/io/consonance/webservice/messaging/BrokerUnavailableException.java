@@ -0,0 +1,38 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.messaging;
+
+import java.io.IOException;
+
+/**
+ * Thrown when orders cannot be published because no channel to the broker could be had, as opposed to the broker refusing them.
+ *
+ * @author dyuen
+ */
+public class BrokerUnavailableException extends IOException {
+
+    public BrokerUnavailableException(String message) {
+        super(message);
+    }
+
+    public BrokerUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
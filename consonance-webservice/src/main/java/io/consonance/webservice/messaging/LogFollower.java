@@ -0,0 +1,310 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.webservice.messaging;
+
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One client following the output of a job as server-sent events.
+ *
+ * Each event holds the lines of one delta, one data field per line, and its id is the byte offset just after them so that a client can
+ * resume with Last-Event-ID. Deltas that overlap what was already written are trimmed, so output replayed from storage and output
+ * arriving live can be mixed freely. Live output that arrives while the backlog is replayed is held back until the replay is done.
+ *
+ * Live output that starts past what was written leaves a hole, for instance when a delta was published before the follower was
+ * registered but only stored after the backlog was read. The follower then holds back live output again and has the hole read from
+ * storage before carrying on. A hole that storage cannot fill either is skipped, those bytes were lost on the worker.
+ *
+ * Events are queued and written to the client by the writer, so that a slow client does not hold up the thread delivering output to
+ * every follower. A client that falls more than {@link #MAX_PENDING_EVENTS} events behind is dropped.
+ *
+ * @author dyuen
+ */
+public class LogFollower {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogFollower.class);
+    /** the most events waiting to be written before the client counts as stalled */
+    static final int MAX_PENDING_EVENTS = 256;
+
+    private final ChunkedOutput<String> output;
+    private final boolean stdout;
+    /** the end of what was written to the client */
+    private long sent;
+    private boolean replaying = true;
+    private final List<Status> held = new ArrayList<>();
+    private boolean closed = false;
+    /** reads what was stored from the end of what was written, in the background */
+    private Runnable refill;
+    /** holes that start before this were already read from storage once */
+    private long refilledTo = -1;
+    /** events waiting to be written to the client */
+    private final Deque<String> outbox = new ArrayDeque<>();
+    private boolean draining = false;
+    /** writes queued events to the client, on the calling thread until a hub takes the follower */
+    private Executor writer = Runnable::run;
+
+    /**
+     * @param output where events are written
+     * @param stdout whether stdout is followed, otherwise stderr
+     * @param from the byte offset to start from
+     */
+    public LogFollower(ChunkedOutput<String> output, boolean stdout, long from) {
+        this.output = output;
+        this.stdout = stdout;
+        this.sent = from;
+    }
+
+    /**
+     * Write output replayed from storage.
+     *
+     * @param offset where the bytes sit in the stream
+     * @param bytes the bytes
+     */
+    public synchronized void replay(long offset, byte[] bytes) {
+        append(offset, bytes);
+    }
+
+    /**
+     * Finish replaying the backlog and write any live output that arrived meanwhile.
+     *
+     * @param finished the state the job had already finished in, null when it is still running
+     */
+    public synchronized void replayed(String finished) {
+        replaying = false;
+        final List<Status> pending = new ArrayList<>(held);
+        held.clear();
+        for (Status status : pending) {
+            // a hole in the held output starts another replay, the rest of it is held back again
+            if (!accept(status)) {
+                break;
+            }
+        }
+        // when held output started another replay, that replay or a later sweep ends the response
+        if (finished != null && !replaying) {
+            end(finished);
+        }
+    }
+
+    /**
+     * Hold back live output so that stored output can be replayed.
+     *
+     * @return false when the follower is closed or already replaying
+     */
+    synchronized boolean holdBack() {
+        if (closed || replaying) {
+            return false;
+        }
+        replaying = true;
+        return true;
+    }
+
+    /**
+     * @return the end of what was written to the client, where a replay from storage should start
+     */
+    public synchronized long getPosition() {
+        return sent;
+    }
+
+    /**
+     * @param refill starts reading stored output from {@link #getPosition()} in the background and calls {@link #replayed} when done,
+     *               run when live output leaves a hole
+     */
+    synchronized void setRefill(Runnable refill) {
+        this.refill = refill;
+    }
+
+    /**
+     * @param writer writes queued events to the client off the thread that hands out output
+     */
+    synchronized void setWriter(Executor writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Handle a status for the job, live from the results exchange.
+     *
+     * @param status the status
+     * @return false once the client should no longer be sent anything
+     */
+    synchronized boolean accept(Status status) {
+        if (replaying && !closed) {
+            held.add(status);
+            return true;
+        }
+        return deliver(status);
+    }
+
+    private boolean deliver(Status status) {
+        if (closed) {
+            return false;
+        }
+        final Long offset = stdout ? status.getStdoutOffset() : status.getStderrOffset();
+        final String text = stdout ? status.getStdout() : status.getStderr();
+        final boolean finished = status.getState() == StatusState.SUCCESS || status.getState() == StatusState.FAILED;
+        if (offset != null && offset > sent && offset > refilledTo && refill != null) {
+            // something between what was written and this delta is missing, it is probably in storage by now
+            refilledTo = offset;
+            replaying = true;
+            held.add(status);
+            refill.run();
+            return true;
+        }
+        if (offset != null) {
+            append(offset, (text == null ? "" : text).getBytes(StandardCharsets.UTF_8));
+        } else if (finished && !status.hasLogDeltas() && text != null && sent == 0) {
+            // older workers only send their output at the end
+            append(0, text.getBytes(StandardCharsets.UTF_8));
+        } else {
+            // nothing new on this stream, a comment lets the client know the job is alive
+            write(":\n\n");
+        }
+        if (finished) {
+            end(status.getState().toString());
+        }
+        return !closed;
+    }
+
+    private void append(long offset, byte[] bytes) {
+        final long end = offset + bytes.length;
+        if (closed || end <= sent) {
+            return;
+        }
+        if (offset > sent) {
+            LOG.warn((offset - sent) + " bytes of output are missing before offset " + offset + ", they were lost on the worker");
+        }
+        final int skip = (int)Math.max(0, sent - offset);
+        final String text = new String(Arrays.copyOfRange(bytes, skip, bytes.length), StandardCharsets.UTF_8);
+        StringBuilder event = new StringBuilder("id: ").append(end).append('\n');
+        // the lines end with \n, so the last piece is empty
+        final String[] lines = text.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            if (i < lines.length - 1 || !lines[i].isEmpty()) {
+                event.append("data: ").append(lines[i]).append('\n');
+            }
+        }
+        write(event.append('\n').toString());
+        sent = end;
+    }
+
+    private void end(String state) {
+        write("event: end\ndata: " + state + "\n\n");
+        close();
+    }
+
+    private void write(String event) {
+        if (closed) {
+            return;
+        }
+        if (outbox.size() >= MAX_PENDING_EVENTS) {
+            LOG.warn("Log follower fell " + outbox.size() + " events behind, dropping it");
+            outbox.clear();
+            close();
+            return;
+        }
+        outbox.add(event);
+        startDraining();
+    }
+
+    private void startDraining() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        try {
+            writer.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // the webservice is stopping
+            draining = false;
+            closed = true;
+            outbox.clear();
+            closeOutput();
+        }
+    }
+
+    /**
+     * Write queued events until there are none left, then end the response if the follower was closed meanwhile.
+     */
+    private void drain() {
+        while (true) {
+            final String event;
+            synchronized (this) {
+                event = outbox.poll();
+                if (event == null) {
+                    draining = false;
+                    if (!closed) {
+                        return;
+                    }
+                }
+            }
+            if (event == null) {
+                closeOutput();
+                return;
+            }
+            try {
+                output.write(event);
+            } catch (IOException e) {
+                LOG.debug("Log follower went away: " + e.getMessage());
+                synchronized (this) {
+                    closed = true;
+                    outbox.clear();
+                }
+            }
+        }
+    }
+
+    private void closeOutput() {
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close log follower: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop following and end the response once the events already queued are written.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!draining) {
+            // nothing is queued, the writer only has to end the response
+            startDraining();
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed || output.isClosed();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package io.consonance.webservice.messaging;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.common.Constants;
+import io.consonance.webservice.jdbi.JobDAO;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans out the output of running jobs to clients following their logs.
+ *
+ * The hub binds one exclusive queue to the results exchange, so it sees every status the workers send just as the provisioner does.
+ * Output in statuses for jobs that someone follows is queued for their responses and written in the background, so that one slow
+ * client does not hold up the others. Live output costs the database nothing no matter how many clients follow a job. Only the
+ * backlog a client asks for when it connects is read from storage.
+ *
+ * Not every job ends with a status, lost jobs just stop reporting, and live output stops altogether when the broker cannot be reached.
+ * So the hub also sweeps its followers every minute. Followers whose client went away are dropped, and followers of jobs that have
+ * finished or were lost get what was stored for them and an end event.
+ *
+ * @author dyuen
+ */
+public class LogFollowerHub implements Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogFollowerHub.class);
+    private static final long SWEEP_INTERVAL_IN_SECONDS = 60;
+
+    private final HierarchicalINIConfiguration settings;
+    private final JobDAO dao;
+    private final String exchangeName;
+    /** the followers of each job, with where to read their job's stored output */
+    private final Map<String, Map<LogFollower, Backlog>> followers = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-follower-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Channel channel;
+    private volatile boolean stopped = false;
+
+    /**
+     * Reads the backlog of a job's output for a follower, from where the follower is at.
+     */
+    @FunctionalInterface
+    public interface Backlog {
+        /**
+         * @param follower the follower to replay output to, starting at {@link LogFollower#getPosition()}
+         * @return the state the job finished in, null when it is still running
+         * @throws IOException when the backlog cannot be read
+         */
+        String replay(LogFollower follower) throws IOException;
+    }
+
+    public LogFollowerHub(HierarchicalINIConfiguration settings, JobDAO dao) {
+        this(settings, dao, Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "log-follower");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param executor where backlogs are replayed, events are written to clients and the broker is connected to
+     */
+    LogFollowerHub(HierarchicalINIConfiguration settings, JobDAO dao, ExecutorService executor) {
+        this.settings = settings;
+        this.dao = dao;
+        this.executor = executor;
+        this.exchangeName = settings.getString(Constants.RABBIT_QUEUE_NAME) + "_results";
+    }
+
+    @Override
+    public void start() {
+        // setting up the exchange retries until the broker is reachable, do not hold up the webservice meanwhile
+        executor.submit(this::connect);
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_IN_SECONDS, SWEEP_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void connect() {
+        try {
+            Channel resultsChannel = CommonServerTestUtilities.setupExchange(settings, exchangeName);
+            // a queue of our own that goes away with the webservice, the connection recovers it if the broker restarts
+            final String queue = resultsChannel.queueDeclare().getQueue();
+            resultsChannel.queueBind(queue, exchangeName, "");
+            resultsChannel.basicConsume(queue, true, new DefaultConsumer(resultsChannel) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                    dispatch(properties, body);
+                }
+            });
+            channel = resultsChannel;
+            if (stopped) {
+                CommonServerTestUtilities.closeChannel(resultsChannel);
+            }
+            LOG.info("Following job output on " + exchangeName);
+        } catch (IOException e) {
+            LOG.error("Could not follow job output on " + exchangeName + ", log followers will only see their backlog", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        sweeper.shutdownNow();
+        executor.shutdownNow();
+        CommonServerTestUtilities.closeChannel(channel);
+        followers.values().forEach(jobFollowers -> jobFollowers.keySet().forEach(LogFollower::close));
+        followers.clear();
+    }
+
+    /**
+     * Start sending a job's output to a follower. The backlog is replayed in the background while live output is held back, then live
+     * output follows until the job finishes or the client goes away.
+     *
+     * @param jobUuid the job
+     * @param follower the follower
+     * @param backlog reads the output the follower has not seen yet from storage
+     */
+    public void follow(String jobUuid, LogFollower follower, Backlog backlog) {
+        follower.setWriter(executor);
+        // registered first, so that nothing arriving during the replay is missed
+        followers.computeIfAbsent(jobUuid, key -> new ConcurrentHashMap<>()).put(follower, backlog);
+        follower.setRefill(() -> replay(jobUuid, follower, backlog, null));
+        replay(jobUuid, follower, backlog, null);
+    }
+
+    /**
+     * Replay stored output to a follower in the background, the follower should be holding back live output.
+     *
+     * @param finalState the state to end the response with, null to go by what the backlog says
+     */
+    private void replay(String jobUuid, LogFollower follower, Backlog backlog, String finalState) {
+        try {
+            executor.submit(() -> {
+                String finished = finalState;
+                try {
+                    final String replayedState = backlog.replay(follower);
+                    finished = finalState == null ? replayedState : finalState;
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Could not replay output of " + jobUuid + ": " + e.getMessage(), e);
+                    follower.close();
+                } finally {
+                    follower.replayed(finished);
+                    if (follower.isClosed()) {
+                        unfollow(jobUuid, follower);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the webservice is stopping
+            follower.close();
+            unfollow(jobUuid, follower);
+        }
+    }
+
+    private void unfollow(String jobUuid, LogFollower follower) {
+        followers.computeIfPresent(jobUuid, (key, jobFollowers) -> {
+            jobFollowers.remove(follower);
+            return jobFollowers.isEmpty() ? null : jobFollowers;
+        });
+    }
+
+    /**
+     * Drop followers whose client went away, and end the responses of followers of jobs that finished or were lost without the hub
+     * seeing their final status.
+     */
+    void sweep() {
+        if (followers.isEmpty()) {
+            return;
+        }
+        final Map<String, JobState> states;
+        try {
+            states = dao.findStates(new ArrayList<>(followers.keySet()));
+        } catch (RuntimeException e) {
+            LOG.error("Could not check the state of followed jobs: " + e.getMessage(), e);
+            return;
+        }
+        for (Map.Entry<String, Map<LogFollower, Backlog>> jobFollowers : followers.entrySet()) {
+            final String jobUuid = jobFollowers.getKey();
+            final JobState state = states.get(jobUuid);
+            for (Map.Entry<LogFollower, Backlog> entry : jobFollowers.getValue().entrySet()) {
+                final LogFollower follower = entry.getKey();
+                if (state == null) {
+                    // the job is gone
+                    follower.close();
+                }
+                if (follower.isClosed()) {
+                    unfollow(jobUuid, follower);
+                } else if (isFinished(state) && follower.holdBack()) {
+                    LOG.info("Job " + jobUuid + " is " + state + " without a final status, ending its log followers");
+                    replay(jobUuid, follower, entry.getValue(), state.toString());
+                }
+            }
+        }
+    }
+
+    private static boolean isFinished(JobState state) {
+        return state == JobState.SUCCESS || state == JobState.FAILED || state == JobState.LOST;
+    }
+
+    private void dispatch(AMQP.BasicProperties properties, byte[] body) {
+        final Status status;
+        try {
+            status = MessageCodec.forProperties(properties).decodeStatus(body);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring result that is not a status: " + e.getMessage());
+            return;
+        }
+        if (status == null || status.getJobUuid() == null || !CommonServerTestUtilities.JOB_MESSAGE_TYPE.equals(status.getType())) {
+            return;
+        }
+        Map<LogFollower, Backlog> jobFollowers = followers.get(status.getJobUuid());
+        if (jobFollowers == null) {
+            return;
+        }
+        for (LogFollower follower : jobFollowers.keySet()) {
+            if (!follower.accept(status)) {
+                unfollow(status.getJobUuid(), follower);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.messaging;
+
+import com.rabbitmq.client.Channel;
+import io.consonance.arch.beans.MessageCodec;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.arch.utils.PublishConfirmTracker;
+import io.consonance.arch.utils.RabbitConnectionManager;
+import io.consonance.common.Constants;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes orders to the order queue from any number of request threads.
+ *
+ * Channels are not thread-safe, so each publish borrows a channel from a small pool for the length of the publish only. Confirms are
+ * tracked asynchronously, so a request thread waiting on its confirm does not stop other threads from publishing on the same channel.
+ * Channels are opened lazily, up to webservice.publish_channels. Opening one is tried once per publish, so that request threads fail
+ * with a {@link BrokerUnavailableException} rather than wait for the broker to come back.
+ *
+ * @author dyuen
+ */
+public class OrderPublisher implements Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OrderPublisher.class);
+    private static final int DEFAULT_CHANNELS = 4;
+    private static final long BORROW_TIMEOUT_IN_SECONDS = 30;
+
+    private final HierarchicalINIConfiguration settings;
+    private final String queueName;
+    private final int maxChannels;
+    private final MessageCodec codec;
+    private final BlockingQueue<PublishConfirmTracker> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean stopped = false;
+
+    public OrderPublisher(HierarchicalINIConfiguration settings) {
+        this.settings = settings;
+        this.queueName = settings.getString(Constants.RABBIT_QUEUE_NAME) + "_orders";
+        this.maxChannels = Math.max(1, settings.getInt(Constants.WEBSERVICE_PUBLISH_CHANNELS, DEFAULT_CHANNELS));
+        this.codec = MessageCodec.fromSettings(settings);
+    }
+
+    /**
+     * Publish an order.
+     *
+     * @param order the order to publish
+     * @return a future that completes when the broker has confirmed the order and fails if the broker rejects it
+     */
+    public CompletableFuture<Void> publish(Order order) {
+        final byte[] body = codec.encode(order);
+        PublishConfirmTracker tracker = null;
+        try {
+            tracker = borrow();
+            return tracker.publish("", queueName, codec.persistentProperties(), body);
+        } catch (IOException | RuntimeException e) {
+            return failed(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(e);
+        } finally {
+            giveBack(tracker);
+        }
+    }
+
+    /**
+     * Publish many orders on one channel so that they share a confirm window.
+     *
+     * @param orders the orders to publish
+     * @return one future per order, in the same order as the orders
+     */
+    public List<CompletableFuture<Void>> publishAll(List<Order> orders) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(orders.size());
+        PublishConfirmTracker tracker = null;
+        try {
+            tracker = borrow();
+            for (Order order : orders) {
+                futures.add(tracker.publish("", queueName, codec.persistentProperties(), codec.encode(order)));
+            }
+        } catch (IOException | RuntimeException e) {
+            fillFailed(futures, orders.size(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fillFailed(futures, orders.size(), e);
+        } finally {
+            giveBack(tracker);
+        }
+        return futures;
+    }
+
+    @Override
+    public void start() {
+        // channels are opened on demand so that the webservice can start before the broker is reachable
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        List<PublishConfirmTracker> trackers = new ArrayList<>();
+        idle.drainTo(trackers);
+        for (PublishConfirmTracker tracker : trackers) {
+            if (tracker.getOutstanding() > 0) {
+                LOG.warn("Closing order channel with " + tracker.getOutstanding() + " unconfirmed orders");
+            }
+            CommonServerTestUtilities.closeChannel(tracker.getChannel());
+        }
+    }
+
+    private PublishConfirmTracker borrow() throws InterruptedException, IOException {
+        if (stopped) {
+            throw new BrokerUnavailableException("Order publisher has been stopped");
+        }
+        while (true) {
+            PublishConfirmTracker tracker = idle.poll();
+            if (tracker == null && opened.incrementAndGet() <= maxChannels) {
+                try {
+                    return openTracker();
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            } else if (tracker == null) {
+                opened.decrementAndGet();
+                tracker = idle.poll(BORROW_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+                if (tracker == null) {
+                    throw new BrokerUnavailableException("Timed out waiting for one of " + maxChannels + " order channels");
+                }
+            }
+            if (tracker.getChannel().isOpen()) {
+                return tracker;
+            }
+            // the broker closed this channel, drop it and open another
+            opened.decrementAndGet();
+            CommonServerTestUtilities.closeChannel(tracker.getChannel());
+        }
+    }
+
+    /**
+     * Open a new channel in confirm mode on the order queue, trying only once.
+     *
+     * @return a tracker for the new channel
+     * @throws IOException thrown when the broker cannot be reached or the queue cannot be declared
+     * @throws InterruptedException thrown when interrupted while waiting for a channel
+     */
+    PublishConfirmTracker openTracker() throws IOException, InterruptedException {
+        Channel channel = null;
+        try {
+            channel = RabbitConnectionManager.getInstance(settings).openChannel();
+            channel.queueDeclare(queueName, true, false, false, null);
+            channel.confirmSelect();
+            return new PublishConfirmTracker(channel);
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            CommonServerTestUtilities.closeChannel(channel);
+            throw new BrokerUnavailableException("Could not open a channel for " + queueName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void giveBack(PublishConfirmTracker tracker) {
+        if (tracker == null) {
+            return;
+        }
+        if (stopped) {
+            CommonServerTestUtilities.closeChannel(tracker.getChannel());
+        } else if (!idle.offer(tracker)) {
+            LOG.error("Could not return order channel to the pool");
+        }
+    }
+
+    private static void fillFailed(List<CompletableFuture<Void>> futures, int size, Throwable cause) {
+        while (futures.size() < size) {
+            futures.add(failed(cause));
+        }
+    }
+
+    private static CompletableFuture<Void> failed(Throwable cause) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
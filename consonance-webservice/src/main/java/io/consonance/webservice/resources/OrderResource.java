@@ -19,10 +19,14 @@
 package io.consonance.webservice.resources;
 
 import com.codahale.metrics.annotation.Timed;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobLogChunk;
 import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
 import io.consonance.arch.beans.Order;
 import io.consonance.arch.beans.Provision;
 import io.consonance.arch.utils.CommonServerTestUtilities;
@@ -30,7 +34,12 @@ import io.consonance.common.CommonTestUtilities;
 import io.consonance.common.Constants;
 import io.consonance.webservice.core.ConsonanceUser;
 import io.consonance.webservice.jdbi.JobDAO;
+import io.consonance.webservice.jdbi.JobLogChunkDAO;
 import io.consonance.webservice.jdbi.ProvisionDAO;
+import io.consonance.webservice.messaging.BrokerUnavailableException;
+import io.consonance.webservice.messaging.LogFollower;
+import io.consonance.webservice.messaging.LogFollowerHub;
+import io.consonance.webservice.messaging.OrderPublisher;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.hibernate.UnitOfWork;
 import io.swagger.annotations.Api;
@@ -40,29 +49,43 @@ import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import io.swagger.annotations.Authorization;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
+import org.glassfish.jersey.server.ChunkedOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 /**
@@ -78,19 +101,38 @@ public class OrderResource {
     public static final int DEFAULT_DISKSPACE = 1024;
     public static final int DEFAULT_MEMORY = 128;
     public static final int DEFAULT_NUM_CORES = 8;
+    public static final long PUBLISH_CONFIRM_TIMEOUT_IN_SECONDS = 30;
+    public static final int BATCH_FLUSH_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int MAX_BATCH_SIZE = 1000;
+    private static final String BYTES_UNIT = "bytes=";
+    private static final String SERVER_SENT_EVENTS = "text/event-stream";
+    private static final String LAST_EVENT_ID = "Last-Event-ID";
     private final JobDAO dao;
     private final HierarchicalINIConfiguration settings;
     private final String queueName;
     private final ProvisionDAO provisionDAO;
-    private Channel jchannel = null;
+    private final OrderPublisher orderPublisher;
+    private final ObjectWriter streamWriter;
+    private final JobLogChunkDAO chunkDAO;
+    private final LogFollowerHub logFollowerHub;
+    private long publishConfirmTimeoutMillis = TimeUnit.SECONDS.toMillis(PUBLISH_CONFIRM_TIMEOUT_IN_SECONDS);
 
     private static final Logger LOG = LoggerFactory.getLogger(OrderResource.class);
 
-    public OrderResource(JobDAO dao, ProvisionDAO provisionDAO, String consonanceConfigFile) {
+    public OrderResource(JobDAO dao, ProvisionDAO provisionDAO, JobLogChunkDAO chunkDAO, String consonanceConfigFile,
+            OrderPublisher orderPublisher, LogFollowerHub logFollowerHub, ObjectMapper mapper) {
         this.dao = dao;
+        this.chunkDAO = chunkDAO;
+        this.logFollowerHub = logFollowerHub;
         this.provisionDAO = provisionDAO;
         this.settings = CommonTestUtilities.parseConfig(consonanceConfigFile);
         this.queueName = settings.getString(Constants.RABBIT_QUEUE_NAME);
+        this.orderPublisher = orderPublisher;
+        // streamed listings are written one element at a time, indenting them would only bloat the response and flushing after
+        // every element would send one tiny chunk per row, the generator's buffer is flushed as it fills instead
+        this.streamWriter = mapper.writer().without(SerializationFeature.INDENT_OUTPUT)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
     }
 
     @GET
@@ -113,6 +155,79 @@ public class OrderResource {
         throw new WebApplicationException(HttpStatus.SC_FORBIDDEN);
     }
 
+    @GET
+    @Path("/summary")
+    @Timed
+    @UnitOfWork
+    @ApiOperation(value = "List a page of job summaries", notes = "Summaries leave out logs, descriptors and extra files. Pass the job_id "
+            + "of the last summary as after to get the next page. Users that are not admins only see their own jobs.",
+            response = JobSummary.class, responseContainer = "List", authorizations = @Authorization(value = "api_key"))
+    public List<JobSummary> listWorkflowRunSummaries(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser,
+            @ApiParam(value = "only list jobs with a job_id greater than this") @QueryParam("after") @DefaultValue("0") int after,
+            @ApiParam(value = "the maximum number of jobs to list, at most " + MAX_PAGE_SIZE) @QueryParam("limit") @DefaultValue("100") int limit,
+            @ApiParam(value = "only list jobs in this state") @QueryParam("state") JobState state,
+            @ApiParam(value = "only list jobs submitted by this user") @QueryParam("user") String user,
+            @ApiParam(value = "only list jobs created at or after this ISO-8601 instant") @QueryParam("since") String since,
+            @ApiParam(value = "only list jobs created before this ISO-8601 instant") @QueryParam("until") String until) {
+        if (limit < 1) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
+        return dao.findSummaries(after, Math.min(limit, MAX_PAGE_SIZE), state, visibleUser(consonanceUser, user), parseInstant(since),
+                parseInstant(until));
+    }
+
+    @GET
+    @Path("/summary/stream")
+    @Timed
+    @ApiOperation(value = "Stream all job summaries", notes = "Streams every matching summary as one JSON array straight from a database "
+            + "cursor. Users that are not admins only see their own jobs.", response = JobSummary.class, responseContainer = "List",
+            authorizations = @Authorization(value = "api_key"))
+    public Response streamWorkflowRunSummaries(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser,
+            @ApiParam(value = "only list jobs in this state") @QueryParam("state") JobState state,
+            @ApiParam(value = "only list jobs submitted by this user") @QueryParam("user") String user,
+            @ApiParam(value = "only list jobs created at or after this ISO-8601 instant") @QueryParam("since") String since,
+            @ApiParam(value = "only list jobs created before this ISO-8601 instant") @QueryParam("until") String until) {
+        final String endUser = visibleUser(consonanceUser, user);
+        final Timestamp sinceTimestamp = parseInstant(since);
+        final Timestamp untilTimestamp = parseInstant(until);
+        StreamingOutput stream = os -> {
+            try (JsonGenerator generator = streamWriter.getFactory().createGenerator(os)) {
+                generator.writeStartArray();
+                dao.streamSummaries(state, endUser, sinceTimestamp, untilTimestamp, summary -> streamWriter.writeValue(generator, summary));
+                generator.writeEndArray();
+            }
+        };
+        return Response.ok(stream, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Work out whose jobs a user may list. Admins may list anyone's jobs, other users only their own.
+     *
+     * @param consonanceUser the logged-in user
+     * @param requested the user asked for, may be null
+     * @return the user to filter on, null for all users
+     */
+    private static String visibleUser(ConsonanceUser consonanceUser, String requested) {
+        if (consonanceUser.isAdmin()) {
+            return requested;
+        }
+        if (requested != null && !requested.equals(consonanceUser.getName())) {
+            throw new WebApplicationException(HttpStatus.SC_FORBIDDEN);
+        }
+        return consonanceUser.getName();
+    }
+
+    private static Timestamp parseInstant(String instant) {
+        if (instant == null) {
+            return null;
+        }
+        try {
+            return Timestamp.from(Instant.parse(instant));
+        } catch (DateTimeParseException e) {
+            throw new WebApplicationException(e, HttpStatus.SC_BAD_REQUEST);
+        }
+    }
+
     @GET
     @Path("/{jobUUID}")
     @Timed
@@ -132,29 +247,237 @@ public class OrderResource {
     @Path("/{jobUUID}/log")
     @Timed
     @UnitOfWork
-    @ApiOperation(value = "List a specific job", notes = "List a specific job", response = Job.class, authorizations = @Authorization(value = "api_key"))
-    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Invalid ID supplied"),
+    @Produces(MediaType.TEXT_PLAIN)
+    @ApiOperation(value = "Stream the output of a job", notes = "Streams stdout, or stderr, straight from storage a chunk at a time. Pass "
+            + "offset to read from a byte onwards, or a Range header such as bytes=1024- or bytes=0-1023 for a partial response.",
+            response = String.class, authorizations = @Authorization(value = "api_key"))
+    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Invalid stream supplied"),
+            @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Job not found"),
+            @ApiResponse(code = HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, message = "Range starts past the end of the output") })
+    public Response getWorkflowRunStreamingLog(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser,
+            @ApiParam(value = "UUID of job that needs to be fetched", required = true) @PathParam("jobUUID") String uuid,
+            @ApiParam(value = "which output to read", allowableValues = "stdout,stderr") @QueryParam("stream")
+            @DefaultValue(JobLogChunk.STDOUT) String stream,
+            @ApiParam(value = "the byte to start reading from") @QueryParam("offset") @DefaultValue("0") long offset,
+            @ApiParam(hidden = true) @HeaderParam(HttpHeaders.RANGE) String range) {
+        final Job jobByUUID = dao.findJobByUUID(uuid);
+        if (jobByUUID == null || !(consonanceUser.isAdmin() || consonanceUser.getName().equals(jobByUUID.getEndUser()))) {
+            throw new WebApplicationException(HttpStatus.SC_NOT_FOUND);
+        }
+        final boolean stdout = JobLogChunk.STDOUT.equals(stream);
+        if (!stdout && !JobLogChunk.STDERR.equals(stream)) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
+        final Long stored = stdout ? jobByUUID.getStdoutOffset() : jobByUUID.getStderrOffset();
+        // jobs run by older workers only have the output from their final status, in the job itself
+        final String snapshot = stdout ? jobByUUID.getStdout() : jobByUUID.getStderr();
+        final byte[] legacy = stored != null ? null : (snapshot == null ? "" : snapshot).getBytes(StandardCharsets.UTF_8);
+        final long length = stored != null ? stored : legacy.length;
+
+        final long[] requested = parseRange(range, length);
+        final long from = requested == null ? Math.min(Math.max(offset, 0), length) : requested[0];
+        final long to = requested == null ? length : requested[1];
+        StreamingOutput output = os -> {
+            if (legacy != null) {
+                os.write(legacy, (int)from, (int)(to - from));
+            } else {
+                chunkDAO.streamChunks(uuid, stream, from, to, chunk -> writeChunk(chunk, from, to, os));
+            }
+            os.flush();
+        };
+        if (requested == null) {
+            return Response.ok(output).header(HttpHeaders.ACCEPT_RANGES, "bytes").build();
+        }
+        return Response.status(HttpStatus.SC_PARTIAL_CONTENT).entity(output).header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_RANGE, "bytes " + from + "-" + (to - 1) + "/" + length).build();
+    }
+
+    @GET
+    @Path("/{jobUUID}/log/follow")
+    @Timed
+    @UnitOfWork
+    @Produces(SERVER_SENT_EVENTS)
+    @ApiOperation(value = "Follow the output of a job", notes = "Sends the output of a job as server-sent events as it arrives from the "
+            + "worker, until the job finishes. The id of each event is the byte offset after it, reconnect with Last-Event-ID or offset "
+            + "to resume. An end event carries the state the job finished in.", response = String.class,
+            authorizations = @Authorization(value = "api_key"))
+    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Invalid stream supplied"),
             @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Job not found") })
-    public Response getWorkflowRunStreamingLog(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser, @ApiParam(value = "UUID of job that needs to be fetched", required = true) @PathParam("jobUUID") String uuid) {
+    public Response followWorkflowRunLog(@ApiParam(hidden=true) @Auth ConsonanceUser consonanceUser,
+            @ApiParam(value = "UUID of job that needs to be followed", required = true) @PathParam("jobUUID") String uuid,
+            @ApiParam(value = "which output to follow", allowableValues = "stdout,stderr") @QueryParam("stream")
+            @DefaultValue(JobLogChunk.STDOUT) String stream,
+            @ApiParam(value = "the byte to start from") @QueryParam("offset") @DefaultValue("0") long offset,
+            @ApiParam(hidden = true) @HeaderParam(LAST_EVENT_ID) String lastEventId) {
         final Job jobByUUID = dao.findJobByUUID(uuid);
-        if (consonanceUser.isAdmin() || consonanceUser.getName().equals(jobByUUID.getEndUser())){
-            StreamingOutput stream = os -> {
-                Writer writer = new BufferedWriter(new OutputStreamWriter(os));
-                writer.write(jobByUUID.getStdout() == null? "": jobByUUID.getStdout());
-                writer.flush();
-            };
-            return Response.ok(stream).build();
+        if (jobByUUID == null || !(consonanceUser.isAdmin() || consonanceUser.getName().equals(jobByUUID.getEndUser()))) {
+            throw new WebApplicationException(HttpStatus.SC_NOT_FOUND);
+        }
+        final boolean stdout = JobLogChunk.STDOUT.equals(stream);
+        if (!stdout && !JobLogChunk.STDERR.equals(stream)) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
+        long from = Math.max(offset, 0);
+        if (lastEventId != null) {
+            try {
+                from = Math.max(from, Long.parseLong(lastEventId.trim()));
+            } catch (NumberFormatException e) {
+                LOG.debug("Ignoring Last-Event-ID " + lastEventId);
+            }
+        }
+        final Long stored = stdout ? jobByUUID.getStdoutOffset() : jobByUUID.getStderrOffset();
+        final String snapshot = stdout ? jobByUUID.getStdout() : jobByUUID.getStderr();
+        final JobState state = jobByUUID.getState();
+        final String finished = state == JobState.SUCCESS || state == JobState.FAILED || state == JobState.LOST ? state.toString() : null;
+
+        final ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        final LogFollower follower = new LogFollower(output, stdout, from);
+        logFollowerHub.follow(uuid, follower, replayTo -> {
+            // read from where the follower is at, this is also used to fill holes in the live output, by when a running job may
+            // have stored output even if it had none when the follower connected
+            if (stored != null || finished == null) {
+                chunkDAO.streamChunks(uuid, stream, replayTo.getPosition(), Long.MAX_VALUE, chunk -> {
+                    try (InputStream in = chunk.getCodec().decode(new ByteArrayInputStream(chunk.getBytes()))) {
+                        replayTo.replay(chunk.getByteOffset(), IOUtils.toByteArray(in));
+                    }
+                });
+            } else if (finished != null && snapshot != null) {
+                // jobs run by older workers only have the output from their final status
+                replayTo.replay(0, snapshot.getBytes(StandardCharsets.UTF_8));
+            }
+            return finished;
+        });
+        return Response.ok(output).header(HttpHeaders.CACHE_CONTROL, "no-cache").build();
+    }
+
+    /**
+     * Work out which bytes a Range header asks for. Only a single range is supported, other headers are ignored as allowed by RFC 7233.
+     *
+     * @param range the Range header, may be null
+     * @param length how many bytes there are
+     * @return the first byte and the byte just after the range, null to send everything
+     */
+    static long[] parseRange(String range, long length) {
+        if (range == null || !range.startsWith(BYTES_UNIT) || range.contains(",")) {
+            return null;
+        }
+        final String spec = range.substring(BYTES_UNIT.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        final String first = spec.substring(0, dash).trim();
+        final String last = spec.substring(dash + 1).trim();
+        final long from;
+        final long to;
+        try {
+            if (first.isEmpty()) {
+                // a suffix, the last n bytes
+                from = Math.max(0, length - Long.parseLong(last));
+                to = length;
+            } else {
+                from = Long.parseLong(first);
+                to = last.isEmpty() ? length : Math.min(length, Long.parseLong(last) + 1);
+                if (!last.isEmpty() && Long.parseLong(last) < from) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (from >= to) {
+            throw new WebApplicationException(Response.status(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length).build());
+        }
+        return new long[] { from, to };
+    }
+
+    /**
+     * Write the part of a chunk that falls inside a range, decoding it as it goes.
+     */
+    private static void writeChunk(JobLogChunk chunk, long from, long to, OutputStream os) throws IOException {
+        final long skip = Math.max(0, from - chunk.getByteOffset());
+        final long end = Math.min(chunk.getByteLength(), to - chunk.getByteOffset());
+        try (InputStream in = chunk.getCodec().decode(new ByteArrayInputStream(chunk.getBytes()))) {
+            IOUtils.copyLarge(in, os, skip, end - skip);
         }
-        throw new WebApplicationException(HttpStatus.SC_NOT_FOUND);
     }
 
     @POST
     @Timed
     @UnitOfWork
     @ApiOperation(value = "Schedule a new order")
-    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_METHOD_NOT_ALLOWED, message = "Invalid input") })
+    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_METHOD_NOT_ALLOWED, message = "Invalid input"),
+            @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Invalid locality key"),
+            @ApiResponse(code = HttpStatus.SC_SERVICE_UNAVAILABLE, message = "The broker cannot be reached") })
     public Job addOrder(@ApiParam(hidden = true) @Auth ConsonanceUser consonanceUser,
             @ApiParam(value = "Order that needs to be added to the store", required = true) Job job) {
+        Order newOrder = createOrder(consonanceUser, job);
+        return persistAndPublishJob(job, newOrder, newOrder.getProvision());
+    }
+
+    @POST
+    @Path("/batch")
+    @Timed
+    @UnitOfWork
+    @ApiOperation(value = "Schedule many new orders at once", response = Job.class, responseContainer = "List")
+    @ApiResponses(value = { @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Missing list of orders or invalid locality key"),
+            @ApiResponse(code = HttpStatus.SC_REQUEST_TOO_LONG, message = "More than " + MAX_BATCH_SIZE + " orders in one batch"),
+            @ApiResponse(code = HttpStatus.SC_SERVICE_UNAVAILABLE, message = "The broker cannot be reached") })
+    public List<Job> addOrders(@ApiParam(hidden = true) @Auth ConsonanceUser consonanceUser,
+            @ApiParam(value = "Orders that need to be added to the store, at most " + MAX_BATCH_SIZE, required = true) List<Job> jobs) {
+        if (jobs == null) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
+        if (jobs.size() > MAX_BATCH_SIZE) {
+            throw new WebApplicationException(HttpStatus.SC_REQUEST_TOO_LONG);
+        }
+        if (jobs.isEmpty()) {
+            return jobs;
+        }
+        List<Order> orders = new ArrayList<>(jobs.size());
+        List<Provision> provisions = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            Order newOrder = createOrder(consonanceUser, job);
+            orders.add(newOrder);
+            provisions.add(newOrder.getProvision());
+        }
+
+        dao.createAll(jobs, BATCH_FLUSH_SIZE);
+        provisionDAO.createAll(provisions, BATCH_FLUSH_SIZE);
+        LOG.info("Created " + jobs.size() + " jobs, sending orders to " + queueName + "_orders");
+
+        final List<CompletableFuture<Void>> confirms = orderPublisher.publishAll(orders);
+        try {
+            CompletableFuture.allOf(confirms.toArray(new CompletableFuture[confirms.size()])).get(publishConfirmTimeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            LOG.error("Batch of " + orders.size() + " orders was not confirmed by the broker", ex);
+            throw publishFailure(ex);
+        } catch (TimeoutException ex) {
+            LOG.error("Batch of " + orders.size() + " orders was not confirmed by the broker", ex);
+            throw new InternalServerErrorException();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerErrorException();
+        }
+
+        jobs.forEach(this::censorExtraFiles);
+        return jobs;
+    }
+
+    /**
+     * Prepare a job submitted by a user for scheduling.
+     *
+     * @param consonanceUser the user submitting the job
+     * @param job the job
+     * @return the order for the job, with a provision request attached
+     */
+    private Order createOrder(ConsonanceUser consonanceUser, Job job) {
+        // the locality key becomes part of a queue name
+        if (job.getLocality() != null && !CommonServerTestUtilities.isValidLocality(job.getLocality())) {
+            throw new WebApplicationException(HttpStatus.SC_BAD_REQUEST);
+        }
         // enforce that users schedule jobs as themselves
         job.setEndUser(consonanceUser.getName());
 
@@ -171,11 +494,41 @@ public class OrderResource {
         Provision provision = new Provision(cores, memGb, storageGb, a);
         newOrder.setProvision(provision);
         newOrder.getProvision().setJobUUID(newOrder.getJob().getUuid());
+        return newOrder;
+    }
 
-        return persistAndPublishJob(job, newOrder, provision);
+    /**
+     * @param ex why an order was not published
+     * @return 503 when the broker could not be reached, 500 otherwise
+     */
+    private static WebApplicationException publishFailure(ExecutionException ex) {
+        if (ex.getCause() instanceof BrokerUnavailableException) {
+            return new ServiceUnavailableException();
+        }
+        return new InternalServerErrorException();
+    }
+
+    /**
+     * @param publishConfirmTimeoutMillis how long a request waits for the broker to confirm its orders
+     */
+    void setPublishConfirmTimeoutMillis(long publishConfirmTimeoutMillis) {
+        this.publishConfirmTimeoutMillis = publishConfirmTimeoutMillis;
     }
 
     /**
+     * Censor extra files tagged with keep=false, this should only happen after the order is sent.
+     *
+     * @param job a job in the current unit of work
+     */
+    private void censorExtraFiles(Job job) {
+        job.setExtraFiles(job.getExtraFiles().entrySet().stream().filter(e -> e.getValue().isKeep())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+
+    /**
+     * Store a job and publish its order, returning once the broker has confirmed the order.
+     *
+     * If the order is not confirmed the request fails and the job is rolled back with the rest of the unit of work.
      *
      * @param job
      * @param newOrder
@@ -184,34 +537,28 @@ public class OrderResource {
      */
     protected Job persistAndPublishJob(@ApiParam(value = "Order that needs to be added to the store", required = true) Job job,
             Order newOrder, Provision provision) {
-        if (jchannel == null || !jchannel.isOpen()) {
-            try {
-                this.jchannel = CommonServerTestUtilities.setupQueue(settings, queueName + "_orders");
-            } catch (InterruptedException ex) {
-                throw new InternalServerErrorException();
-            }
-        }
-
         final int jobId = dao.create(job);
         Job createdJob = dao.findById(jobId);
         provisionDAO.create(provision);
         LOG.debug("created job with " + createdJob.getExtraFiles().size() + " entries");
 
         try {
-            LOG.info("\nSENDING JOB:\n '" + job + "'\n" + this.jchannel + " \n");
-            this.jchannel.basicPublish("", queueName + "_orders", MessageProperties.PERSISTENT_TEXT_PLAIN,
-                    newOrder.toJSON().getBytes(StandardCharsets.UTF_8));
-            jchannel.waitForConfirms();
-
-            // censor the extra files with isKeep set to false after the message is sent
-            // censor extra files tagged with keep=false
-            job.setExtraFiles(job.getExtraFiles().entrySet().stream().filter(e -> e.getValue().isKeep())
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
-            LOG.debug("job in DB should be updated to " + job.getExtraFiles().size() + " entries");
-
-        } catch (IOException | InterruptedException ex) {
-            LOG.error(ex.toString());
+            LOG.info("\nSENDING JOB:\n '" + job + "'\n to " + queueName + "_orders \n");
+            orderPublisher.publish(newOrder).get(publishConfirmTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            LOG.error("Order for job " + job.getUuid() + " was not confirmed by the broker", ex);
+            throw publishFailure(ex);
+        } catch (TimeoutException ex) {
+            LOG.error("Order for job " + job.getUuid() + " was not confirmed by the broker", ex);
+            throw new InternalServerErrorException();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerErrorException();
         }
+
+        // censor the extra files with isKeep set to false after the message is sent
+        censorExtraFiles(job);
+        LOG.debug("job in DB should be updated to " + job.getExtraFiles().size() + " entries");
         return createdJob;
     }
 
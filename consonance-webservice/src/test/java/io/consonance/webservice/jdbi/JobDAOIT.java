@@ -0,0 +1,172 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.jdbi;
+
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.common.CommonTestUtilities;
+import io.consonance.webservice.ConsonanceWebserviceApplication;
+import io.consonance.webservice.ConsonanceWebserviceConfiguration;
+import io.dropwizard.testing.ResourceHelpers;
+import io.dropwizard.testing.junit.DropwizardAppRule;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test job summary paging and streaming against a real database.
+ *
+ * @author dyuen
+ */
+public class JobDAOIT {
+
+    @ClassRule
+    public static final DropwizardAppRule<ConsonanceWebserviceConfiguration> RULE =
+            new DropwizardAppRule<>(ConsonanceWebserviceApplication.class, ResourceHelpers.resourceFilePath("run-fox.yml"));
+
+    private SessionFactory factory;
+    private JobDAO dao;
+
+    @Before
+    public void setUp() throws IOException, TimeoutException {
+        CommonTestUtilities.clearState();
+        factory = RULE.<ConsonanceWebserviceApplication>getApplication().getHibernate().getSessionFactory();
+        dao = new JobDAO(factory);
+        inTransaction(() -> {
+            dao.createAll(jobs("player1", JobState.START, 3), 2);
+            dao.createAll(jobs("player2", JobState.RUNNING, 2), 2);
+            dao.createAll(jobs("player1", JobState.SUCCESS, 2), 2);
+            return null;
+        });
+    }
+
+    @Test
+    public void testStreamFilters() throws IOException {
+        assertThat(stream(null, null, null, null)).hasSize(7);
+        assertThat(stream(JobState.START, null, null, null)).hasSize(3);
+        assertThat(stream(null, "player2", null, null)).hasSize(2);
+
+        List<JobSummary> filtered = stream(JobState.SUCCESS, "player1", null, null);
+        assertThat(filtered).hasSize(2);
+        for (JobSummary summary : filtered) {
+            assertThat(summary.getState()).isEqualTo(JobState.SUCCESS);
+            assertThat(summary.getEndUser()).isEqualTo("player1");
+            assertThat(summary.getUuid()).isNotEmpty();
+            assertThat(summary.getCreateTimestamp()).isNotNull();
+        }
+
+        Timestamp past = Timestamp.from(Instant.now().minus(1, ChronoUnit.DAYS));
+        Timestamp future = Timestamp.from(Instant.now().plus(1, ChronoUnit.DAYS));
+        assertThat(stream(null, null, past, future)).hasSize(7);
+        assertThat(stream(null, null, future, null)).isEmpty();
+        assertThat(stream(null, null, null, past)).isEmpty();
+    }
+
+    @Test
+    public void testStreamIsOrderedLikePages() throws IOException {
+        List<Integer> streamed = stream(null, null, null, null).stream().map(JobSummary::getJobId).collect(Collectors.toList());
+        assertThat(streamed).isSorted();
+
+        // walking the pages with the after cursor should visit the same jobs in the same order
+        List<Integer> paged = new ArrayList<>();
+        List<JobSummary> page = page(0, 3, null);
+        while (!page.isEmpty()) {
+            assertThat(page.size()).isLessThanOrEqualTo(3);
+            page.forEach(summary -> paged.add(summary.getJobId()));
+            page = page(page.get(page.size() - 1).getJobId(), 3, null);
+        }
+        assertThat(paged).isEqualTo(streamed);
+    }
+
+    @Test
+    public void testPageFilters() {
+        List<JobSummary> running = page(0, 10, "player2");
+        assertThat(running).hasSize(2);
+        for (JobSummary summary : running) {
+            assertThat(summary.getState()).isEqualTo(JobState.RUNNING);
+        }
+        assertThat(page(running.get(1).getJobId(), 10, "player2")).isEmpty();
+    }
+
+    @Test
+    public void testFindStates() throws IOException {
+        List<String> uuids = stream(null, "player2", null, null).stream().map(JobSummary::getUuid).collect(Collectors.toList());
+        uuids.add("not a job");
+        Map<String, JobState> states = dao.findStates(uuids);
+        assertThat(states).hasSize(2);
+        assertThat(states.values()).containsOnly(JobState.RUNNING);
+        assertThat(dao.findStates(new ArrayList<>())).isEmpty();
+    }
+
+    private List<JobSummary> stream(JobState state, String endUser, Timestamp since, Timestamp until) throws IOException {
+        List<JobSummary> summaries = new ArrayList<>();
+        dao.streamSummaries(state, endUser, since, until, summaries::add);
+        return summaries;
+    }
+
+    private List<JobSummary> page(int after, int limit, String endUser) {
+        return inTransaction(() -> dao.findSummaries(after, limit, null, endUser, null, null));
+    }
+
+    private <T> T inTransaction(Supplier<T> work) {
+        Session session = factory.openSession();
+        ManagedSessionContext.bind(session);
+        try {
+            session.beginTransaction();
+            T result = work.get();
+            session.getTransaction().commit();
+            return result;
+        } finally {
+            ManagedSessionContext.unbind(factory);
+            session.close();
+        }
+    }
+
+    private static List<Job> jobs(String endUser, JobState state, int count) {
+        List<Job> jobs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Job job = new Job();
+            job.setUuid(UUID.randomUUID().toString());
+            job.setEndUser(endUser);
+            job.setState(state);
+            job.setFlavour("m1.xlarge");
+            jobs.add(job);
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.messaging;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import io.consonance.common.Constants;
+import io.consonance.webservice.jdbi.JobDAO;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that the hub lets go of followers, with replays run on the calling thread.
+ *
+ * @author dyuen
+ */
+public class LogFollowerHubTest {
+
+    private static final String JOB = "42";
+    private JobDAO dao;
+    private LogFollowerHub hub;
+    private RecordingOutput output;
+    private LogFollower follower;
+    /** what storage holds for the job */
+    private String stored = "one\n";
+
+    @Before
+    public void setUp() {
+        HierarchicalINIConfiguration settings = new HierarchicalINIConfiguration();
+        settings.setProperty(Constants.RABBIT_QUEUE_NAME, "consonance_arch");
+        dao = mock(JobDAO.class);
+        hub = new LogFollowerHub(settings, dao, MoreExecutors.newDirectExecutorService());
+        output = new RecordingOutput();
+        follower = new LogFollower(output, true, 0);
+        hub.follow(JOB, follower, replayTo -> {
+            replayTo.replay(0, stored.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        hub.stop();
+    }
+
+    /**
+     * Lost jobs never send a final status, the sweep has to end their followers.
+     */
+    @Test
+    public void testSweepEndsLostJob() {
+        assertThat(output.getEvents()).containsExactly("id: 4\ndata: one\n\n");
+        // the last output was stored but never seen live
+        stored = "one\ntwo\n";
+        when(dao.findStates(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap(JOB, JobState.LOST));
+
+        hub.sweep();
+        assertThat(output.getEvents()).containsExactly("id: 4\ndata: one\n\n", "id: 8\ndata: two\n\n", "event: end\ndata: LOST\n\n");
+        assertThat(output.isClosed()).isTrue();
+
+        // nothing is followed any more
+        hub.sweep();
+        verify(dao, times(1)).findStates(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testSweepKeepsRunningJob() {
+        when(dao.findStates(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap(JOB, JobState.RUNNING));
+        hub.sweep();
+        hub.sweep();
+        assertThat(output.isClosed()).isFalse();
+        assertThat(output.getEvents()).hasSize(1);
+        verify(dao, times(2)).findStates(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testSweepDropsClientsThatWentAway() {
+        when(dao.findStates(anyCollectionOf(String.class))).thenReturn(Collections.singletonMap(JOB, JobState.RUNNING));
+        output.close();
+        hub.sweep();
+        hub.sweep();
+        verify(dao, times(1)).findStates(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testSweepClosesDeletedJob() {
+        when(dao.findStates(anyCollectionOf(String.class))).thenReturn(Collections.emptyMap());
+        hub.sweep();
+        assertThat(output.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testNoFollowersNoQuery() {
+        LogFollowerHub idle = new LogFollowerHub(new HierarchicalINIConfiguration(), dao, MoreExecutors.newDirectExecutorService());
+        idle.sweep();
+        verify(dao, never()).findStates(anyCollectionOf(String.class));
+    }
+
+    /**
+     * A hole in the live output is filled from storage through the same backlog.
+     */
+    @Test
+    public void testHoleIsRefilledFromBacklog() {
+        stored = "one\ntwo\n";
+        Status status = new Status();
+        status.setState(StatusState.RUNNING);
+        status.setStdout("three\n");
+        status.setStdoutOffset(8L);
+        assertThat(follower.accept(status)).isTrue();
+        assertThat(output.getEvents()).containsExactly("id: 4\ndata: one\n\n", "id: 8\ndata: two\n\n", "id: 14\ndata: three\n\n");
+        verify(dao, never()).findStates(anyCollectionOf(String.class));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.messaging;
+
+import io.consonance.arch.beans.Status;
+import io.consonance.arch.beans.StatusState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests how a log follower frames, trims and holds back output.
+ *
+ * @author dyuen
+ */
+public class LogFollowerTest {
+
+    private RecordingOutput output;
+    private LogFollower follower;
+
+    @Before
+    public void setUp() {
+        output = new RecordingOutput();
+        follower = new LogFollower(output, true, 0);
+    }
+
+    @Test
+    public void testEventFraming() {
+        follower.replay(0, bytes("one\ntwo\n"));
+        follower.replayed(null);
+        assertThat(output.getEvents()).containsExactly("id: 8\ndata: one\ndata: two\n\n");
+
+        // a blank line is still a data field, a line without a newline yet is sent as is
+        follower.accept(delta("\nthree", 8L));
+        assertThat(output.getEvents().get(1)).isEqualTo("id: 14\ndata: \ndata: three\n\n");
+    }
+
+    @Test
+    public void testOverlapIsTrimmed() {
+        follower.replay(0, bytes("one\ntwo\n"));
+        // the same bytes again from storage, then live output that starts part way through what was sent
+        follower.replay(0, bytes("one\n"));
+        follower.replayed(null);
+        follower.accept(delta("two\nthree\n", 4L));
+        assertThat(output.getEvents()).containsExactly("id: 8\ndata: one\ndata: two\n\n", "id: 14\ndata: three\n\n");
+        assertThat(follower.getPosition()).isEqualTo(14);
+    }
+
+    @Test
+    public void testStartsFromOffset() {
+        follower = new LogFollower(output, true, 4);
+        follower.replay(0, bytes("one\ntwo\n"));
+        follower.replayed(null);
+        assertThat(output.getEvents()).containsExactly("id: 8\ndata: two\n\n");
+    }
+
+    @Test
+    public void testLiveOutputIsHeldBackDuringReplay() {
+        // arrives live while the backlog is still being read
+        assertThat(follower.accept(delta("two\n", 4L))).isTrue();
+        assertThat(output.getEvents()).isEmpty();
+
+        follower.replay(0, bytes("one\n"));
+        follower.replayed(null);
+        assertThat(output.getEvents()).containsExactly("id: 4\ndata: one\n\n", "id: 8\ndata: two\n\n");
+    }
+
+    @Test
+    public void testFinalStatusEndsResponse() {
+        follower.replayed(null);
+        Status finished = delta("done\n", 0L);
+        finished.setState(StatusState.SUCCESS);
+        assertThat(follower.accept(finished)).isFalse();
+        assertThat(output.getEvents()).containsExactly("id: 5\ndata: done\n\n", "event: end\ndata: SUCCESS\n\n");
+        assertThat(output.isClosed()).isTrue();
+        assertThat(follower.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testHeartbeatWithoutOutput() {
+        follower.replayed(null);
+        Status heartbeat = new Status();
+        heartbeat.setState(StatusState.RUNNING);
+        assertThat(follower.accept(heartbeat)).isTrue();
+        assertThat(output.getEvents()).containsExactly(":\n\n");
+    }
+
+    @Test
+    public void testOlderWorkerFinalOutput() {
+        follower.replayed(null);
+        Status finished = new Status();
+        finished.setState(StatusState.FAILED);
+        finished.setStdout("all of it\n");
+        follower.accept(finished);
+        assertThat(output.getEvents()).containsExactly("id: 10\ndata: all of it\n\n", "event: end\ndata: FAILED\n\n");
+    }
+
+    @Test
+    public void testHoleIsReadFromStorage() {
+        final int[] refills = {0};
+        follower.setRefill(() -> refills[0]++);
+        follower.replay(0, bytes("one\n"));
+        follower.replayed(null);
+
+        // the delta for two was published before the follower was registered and stored after the backlog was read
+        follower.accept(delta("three\n", 8L));
+        follower.accept(delta("four\n", 14L));
+        assertThat(refills[0]).isEqualTo(1);
+        assertThat(output.getEvents()).containsExactly("id: 4\ndata: one\n\n");
+
+        // the refill reads from where the follower is at
+        assertThat(follower.getPosition()).isEqualTo(4);
+        follower.replay(4, bytes("two\n"));
+        follower.replayed(null);
+        assertThat(output.getEvents()).containsExactly("id: 4\ndata: one\n\n", "id: 8\ndata: two\n\n", "id: 14\ndata: three\n\n",
+                "id: 19\ndata: four\n\n");
+    }
+
+    @Test
+    public void testHoleStorageCannotFillIsSkipped() {
+        final int[] refills = {0};
+        follower.setRefill(() -> refills[0]++);
+        follower.replayed(null);
+
+        follower.accept(delta("two\n", 4L));
+        // nothing was stored either, those bytes were lost on the worker
+        follower.replayed(null);
+        assertThat(refills[0]).isEqualTo(1);
+        assertThat(output.getEvents()).containsExactly("id: 8\ndata: two\n\n");
+    }
+
+    @Test
+    public void testClientGoesAway() {
+        follower.replayed(null);
+        output.setBroken(true);
+        assertThat(follower.accept(delta("one\n", 0L))).isFalse();
+        assertThat(follower.isClosed()).isTrue();
+    }
+
+    /**
+     * Events wait for the writer, the end event is written before the response ends.
+     */
+    @Test
+    public void testEventsAreWrittenByTheWriter() {
+        List<Runnable> writes = new ArrayList<>();
+        follower.setWriter(writes::add);
+        follower.replayed(null);
+        Status finished = delta("done\n", 0L);
+        finished.setState(StatusState.SUCCESS);
+        assertThat(follower.accept(finished)).isFalse();
+        assertThat(output.getEvents()).isEmpty();
+        assertThat(output.isClosed()).isFalse();
+
+        // one write drains everything that was queued
+        assertThat(writes).hasSize(1);
+        writes.get(0).run();
+        assertThat(output.getEvents()).containsExactly("id: 5\ndata: done\n\n", "event: end\ndata: SUCCESS\n\n");
+        assertThat(output.isClosed()).isTrue();
+    }
+
+    /**
+     * A client that stops reading is dropped once too many events wait for it, without anything being written on the caller's thread.
+     */
+    @Test
+    public void testStalledClientIsDropped() {
+        List<Runnable> writes = new ArrayList<>();
+        follower.setWriter(writes::add);
+        follower.replayed(null);
+        for (int i = 0; i < LogFollower.MAX_PENDING_EVENTS; i++) {
+            assertThat(follower.accept(delta("x", (long) i))).isTrue();
+        }
+        assertThat(follower.accept(delta("x", (long) LogFollower.MAX_PENDING_EVENTS))).isFalse();
+        assertThat(follower.isClosed()).isTrue();
+        assertThat(output.getEvents()).isEmpty();
+
+        // the writer only ends the response
+        writes.get(0).run();
+        assertThat(output.getEvents()).isEmpty();
+        assertThat(output.isClosed()).isTrue();
+    }
+
+    private static Status delta(String stdout, Long offset) {
+        Status status = new Status();
+        status.setState(StatusState.RUNNING);
+        status.setStdout(stdout);
+        status.setStdoutOffset(offset);
+        return status;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.messaging;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.utils.PublishConfirmTracker;
+import io.consonance.common.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the order publisher against mocked channels.
+ *
+ * @author dyuen
+ */
+public class OrderPublisherTest {
+
+    private HierarchicalINIConfiguration settings;
+    private List<PublishConfirmTracker> trackers;
+    private OrderPublisher publisher;
+
+    @Before
+    public void setUp() {
+        settings = new HierarchicalINIConfiguration();
+        settings.setProperty(Constants.RABBIT_QUEUE_NAME, "consonance_arch");
+        settings.setProperty(Constants.WEBSERVICE_PUBLISH_CHANNELS, 1);
+        trackers = new ArrayList<>();
+        publisher = new OrderPublisher(settings) {
+            @Override
+            PublishConfirmTracker openTracker() {
+                Channel channel = mock(Channel.class);
+                when(channel.isOpen()).thenReturn(true);
+                when(channel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L, 4L, 5L);
+                PublishConfirmTracker tracker = new PublishConfirmTracker(channel);
+                trackers.add(tracker);
+                return tracker;
+            }
+        };
+    }
+
+    @Test
+    public void testPublishAllCompletesOnAck() throws Exception {
+        List<CompletableFuture<Void>> confirms = publisher.publishAll(Arrays.asList(order(), order(), order()));
+        assertThat(confirms).hasSize(3);
+        assertThat(trackers).hasSize(1);
+        Channel channel = trackers.get(0).getChannel();
+        verify(channel, times(3)).basicPublish(eq(""), eq("consonance_arch_orders"), any(AMQP.BasicProperties.class), any(byte[].class));
+        assertThat(confirms.stream().anyMatch(CompletableFuture::isDone)).isFalse();
+
+        trackers.get(0).handleAck(3, true);
+        for (CompletableFuture<Void> confirm : confirms) {
+            assertThat(confirm.isDone()).isTrue();
+            assertThat(confirm.isCompletedExceptionally()).isFalse();
+        }
+        assertThat(trackers.get(0).getOutstanding()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNackFailsOnlyThatOrder() throws Exception {
+        List<CompletableFuture<Void>> confirms = publisher.publishAll(Arrays.asList(order(), order()));
+        trackers.get(0).handleNack(1, false);
+        trackers.get(0).handleAck(2, false);
+        assertThat(confirms.get(0).isCompletedExceptionally()).isTrue();
+        assertThat(confirms.get(1).isCompletedExceptionally()).isFalse();
+        assertThat(confirms.get(1).isDone()).isTrue();
+    }
+
+    @Test
+    public void testChannelIsReused() throws Exception {
+        publisher.publish(order());
+        publisher.publishAll(Arrays.asList(order(), order()));
+        publisher.publish(order());
+        assertThat(trackers).hasSize(1);
+    }
+
+    @Test
+    public void testClosedChannelIsReplaced() throws Exception {
+        publisher.publish(order());
+        Channel closed = trackers.get(0).getChannel();
+        when(closed.isOpen()).thenReturn(false);
+
+        CompletableFuture<Void> confirm = publisher.publish(order());
+        assertThat(trackers).hasSize(2);
+        verify(closed).close();
+        trackers.get(1).handleAck(1, false);
+        assertThat(confirm.isDone()).isTrue();
+    }
+
+    @Test
+    public void testPublishFailureFailsEveryOrder() throws Exception {
+        publisher.publish(order());
+        Channel channel = trackers.get(0).getChannel();
+        doThrow(new IOException("connection reset")).when(channel)
+                .basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+
+        List<CompletableFuture<Void>> confirms = publisher.publishAll(Arrays.asList(order(), order(), order()));
+        assertThat(confirms).hasSize(3);
+        for (CompletableFuture<Void> confirm : confirms) {
+            assertThat(confirm.isCompletedExceptionally()).isTrue();
+        }
+        assertThat(trackers.get(0).getOutstanding()).isEqualTo(1);
+    }
+
+    @Test
+    public void testStopClosesChannelsAndRejectsPublishes() throws Exception {
+        publisher.publish(order());
+        publisher.stop();
+        verify(trackers.get(0).getChannel()).close();
+
+        CompletableFuture<Void> confirm = publisher.publish(order());
+        try {
+            confirm.get();
+            fail("publishing after stop should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(BrokerUnavailableException.class);
+        }
+        assertThat(trackers).hasSize(1);
+    }
+
+    @Test
+    public void testUnreachableBrokerFailsFast() throws Exception {
+        final boolean[] reachable = {false};
+        OrderPublisher flaky = new OrderPublisher(settings) {
+            @Override
+            PublishConfirmTracker openTracker() throws IOException, InterruptedException {
+                if (!reachable[0]) {
+                    throw new BrokerUnavailableException("connection refused");
+                }
+                return publisher.openTracker();
+            }
+        };
+        try {
+            flaky.publish(order()).get();
+            fail("publishing without a broker should fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(BrokerUnavailableException.class);
+        }
+
+        // the failed attempt does not use up the only channel
+        reachable[0] = true;
+        CompletableFuture<Void> confirm = flaky.publish(order());
+        assertThat(trackers).hasSize(1);
+        trackers.get(0).handleAck(1, false);
+        assertThat(confirm.isDone()).isTrue();
+    }
+
+    private static Order order() {
+        Order order = new Order();
+        Job job = new Job();
+        job.setUuid("42");
+        order.setJob(job);
+        order.setProvision(new Provision(1, 1, 1, new ArrayList<>()));
+        return order;
+    }
+}
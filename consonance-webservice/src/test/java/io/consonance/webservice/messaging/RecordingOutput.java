@@ -0,0 +1,70 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.messaging;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the events written to a client following a log instead of sending them.
+ *
+ * @author dyuen
+ */
+class RecordingOutput extends ChunkedOutput<String> {
+    private final List<String> events = new ArrayList<>();
+    private boolean closed = false;
+    private boolean broken = false;
+
+    RecordingOutput() {
+        super(String.class);
+    }
+
+    @Override
+    public void write(String chunk) throws IOException {
+        if (broken) {
+            throw new IOException("connection reset");
+        }
+        events.add(chunk);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    List<String> getEvents() {
+        return events;
+    }
+
+    /**
+     * @param broken whether writes should fail as if the client went away
+     */
+    void setBroken(boolean broken) {
+        this.broken = broken;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *     Consonance - workflow software for multiple clouds
+ *     Copyright (C) 2016 OICR
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package io.consonance.webservice.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.consonance.arch.beans.Job;
+import io.consonance.arch.beans.JobState;
+import io.consonance.arch.beans.JobSummary;
+import io.consonance.arch.beans.Order;
+import io.consonance.arch.beans.Provision;
+import io.consonance.arch.utils.CommonServerTestUtilities;
+import io.consonance.webservice.core.ConsonanceUser;
+import io.consonance.webservice.jdbi.JobDAO;
+import io.consonance.webservice.jdbi.JobLogChunkDAO;
+import io.consonance.webservice.jdbi.ProvisionDAO;
+import io.consonance.webservice.messaging.BrokerUnavailableException;
+import io.consonance.webservice.messaging.LogFollowerHub;
+import io.consonance.webservice.messaging.OrderPublisher;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.ResourceHelpers;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests scheduling a batch of orders with the database and the broker mocked out.
+ *
+ * @author dyuen
+ */
+public class OrderResourceTest {
+
+    private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+    private JobDAO jobDAO;
+    private ProvisionDAO provisionDAO;
+    private OrderPublisher orderPublisher;
+    private OrderResource resource;
+    private ConsonanceUser user;
+
+    @Before
+    public void setUp() {
+        jobDAO = mock(JobDAO.class);
+        provisionDAO = mock(ProvisionDAO.class);
+        orderPublisher = mock(OrderPublisher.class);
+        resource = new OrderResource(jobDAO, provisionDAO, mock(JobLogChunkDAO.class), ResourceHelpers.resourceFilePath("config"),
+                orderPublisher, mock(LogFollowerHub.class), Jackson.newObjectMapper());
+        user = new ConsonanceUser();
+        user.setName("Player1");
+    }
+
+    @Test
+    public void testAddOrders() {
+        List<Job> jobs = jobs(3);
+        jobs.get(0).getExtraFiles().put("secret.txt", new Job.ExtraFile("password", false));
+        jobs.get(0).getExtraFiles().put("kept.txt", new Job.ExtraFile("kept", true));
+        when(orderPublisher.publishAll(anyListOf(Order.class))).thenAnswer(invocation -> {
+            List<?> orders = (List<?>) invocation.getArguments()[0];
+            return orders.stream().map(o -> CompletableFuture.<Void>completedFuture(null)).collect(Collectors.toList());
+        });
+
+        List<Job> scheduled = resource.addOrders(user, jobs);
+
+        assertThat(scheduled).hasSize(3);
+        for (Job job : scheduled) {
+            assertThat(job.getEndUser()).isEqualTo("Player1");
+            assertThat(job.getState()).isEqualTo(JobState.START);
+            assertThat(job.getUuid()).isNotEmpty();
+        }
+        assertThat(scheduled.stream().map(Job::getUuid).distinct().count()).isEqualTo(3);
+        assertThat(scheduled.get(0).getExtraFiles()).containsOnlyKeys("kept.txt");
+        verify(jobDAO).createAll(jobs, OrderResource.BATCH_FLUSH_SIZE);
+        verify(provisionDAO).createAll(anyListOf(Provision.class), eq(OrderResource.BATCH_FLUSH_SIZE));
+        verify(orderPublisher).publishAll(anyListOf(Order.class));
+    }
+
+    @Test
+    public void testAddNoOrders() {
+        assertThat(resource.addOrders(user, Collections.emptyList())).isEmpty();
+        verifyZeroInteractions(jobDAO, provisionDAO, orderPublisher);
+    }
+
+    @Test
+    public void testAddOrdersWithoutBody() {
+        try {
+            resource.addOrders(user, null);
+            fail("a missing body should be rejected");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(HttpStatus.SC_BAD_REQUEST);
+        }
+        verifyZeroInteractions(jobDAO, provisionDAO, orderPublisher);
+    }
+
+    @Test
+    public void testAddTooManyOrders() {
+        try {
+            resource.addOrders(user, jobs(OrderResource.MAX_BATCH_SIZE + 1));
+            fail("an oversized batch should be rejected");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(HttpStatus.SC_REQUEST_TOO_LONG);
+        }
+        verifyZeroInteractions(jobDAO, provisionDAO, orderPublisher);
+    }
+
+    @Test
+    public void testAddOrdersWithInvalidLocality() {
+        List<Job> jobs = jobs(2);
+        jobs.get(0).setLocality("hg19");
+        jobs.get(1).setLocality(String.join("", Collections.nCopies(CommonServerTestUtilities.MAX_LOCALITY_LENGTH + 1, "x")));
+        try {
+            resource.addOrders(user, jobs);
+            fail("a locality key that does not fit in a queue name should be rejected");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(HttpStatus.SC_BAD_REQUEST);
+        }
+        verifyZeroInteractions(jobDAO, provisionDAO, orderPublisher);
+    }
+
+    @Test(expected = InternalServerErrorException.class)
+    public void testAddOrdersConfirmTimeout() {
+        // the broker never confirms
+        when(orderPublisher.publishAll(anyListOf(Order.class))).thenReturn(Collections.singletonList(new CompletableFuture<>()));
+        resource.setPublishConfirmTimeoutMillis(10);
+        resource.addOrders(user, jobs(1));
+    }
+
+    @Test(expected = InternalServerErrorException.class)
+    public void testAddOrdersNacked() {
+        CompletableFuture<Void> nacked = new CompletableFuture<>();
+        nacked.completeExceptionally(new IOException("broker nacked publish 1"));
+        when(orderPublisher.publishAll(anyListOf(Order.class))).thenReturn(Collections.singletonList(nacked));
+        resource.addOrders(user, jobs(1));
+    }
+
+    @Test(expected = ServiceUnavailableException.class)
+    public void testAddOrdersBrokerUnavailable() {
+        CompletableFuture<Void> unavailable = new CompletableFuture<>();
+        unavailable.completeExceptionally(new BrokerUnavailableException("connection refused"));
+        when(orderPublisher.publishAll(anyListOf(Order.class))).thenReturn(Collections.singletonList(unavailable));
+        resource.addOrders(user, jobs(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamSummaries() throws Exception {
+        doAnswer(invocation -> {
+            JobDAO.RowSink<JobSummary> sink = (JobDAO.RowSink<JobSummary>) invocation.getArguments()[4];
+            for (int i = 1; i <= 3; i++) {
+                JobSummary summary = new JobSummary();
+                summary.setJobId(i);
+                summary.setState(JobState.RUNNING);
+                summary.setEndUser("Player1");
+                sink.accept(summary);
+            }
+            return null;
+        }).when(jobDAO).streamSummaries(eq(JobState.RUNNING), eq("Player1"), any(Timestamp.class), isNull(Timestamp.class),
+                any(JobDAO.RowSink.class));
+
+        Response response = resource.streamWorkflowRunSummaries(user, JobState.RUNNING, null, "2016-01-01T00:00:00Z", null);
+        FlushCountingStream out = new FlushCountingStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+
+        JsonNode summaries = MAPPER.readTree(out.toByteArray());
+        assertThat(summaries.isArray()).isTrue();
+        assertThat(summaries.size()).isEqualTo(3);
+        assertThat(summaries.get(2).get("jobId").asInt()).isEqualTo(3);
+        // rows are buffered by the generator rather than flushed one at a time
+        assertThat(out.flushes).isLessThanOrEqualTo(1);
+        verify(jobDAO).streamSummaries(eq(JobState.RUNNING), eq("Player1"), eq(Timestamp.from(Instant.parse("2016-01-01T00:00:00Z"))),
+                isNull(Timestamp.class), any(JobDAO.RowSink.class));
+    }
+
+    @Test
+    public void testStreamOtherUsersSummaries() {
+        try {
+            resource.streamWorkflowRunSummaries(user, null, "somebody else", null, null);
+            fail("users should only stream their own jobs");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(HttpStatus.SC_FORBIDDEN);
+        }
+    }
+
+    @Test
+    public void testStreamMalformedInstant() {
+        try {
+            resource.streamWorkflowRunSummaries(user, null, null, "yesterday", null);
+            fail("a malformed instant should be rejected");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(HttpStatus.SC_BAD_REQUEST);
+        }
+    }
+
+    @Test
+    public void testParseRange() {
+        assertThat(OrderResource.parseRange("bytes=100-", 1000)).containsExactly(100, 1000);
+        assertThat(OrderResource.parseRange("bytes=0-99", 1000)).containsExactly(0, 100);
+        // the end of a range may run past the end of the log
+        assertThat(OrderResource.parseRange("bytes=900-2000", 1000)).containsExactly(900, 1000);
+        // suffixes ask for the last n bytes
+        assertThat(OrderResource.parseRange("bytes=-100", 1000)).containsExactly(900, 1000);
+        assertThat(OrderResource.parseRange("bytes=-5000", 1000)).containsExactly(0, 1000);
+    }
+
+    @Test
+    public void testParseRangeNotSatisfiable() {
+        for (String range : new String[] { "bytes=1000-", "bytes=5000-6000", "bytes=-0" }) {
+            try {
+                OrderResource.parseRange(range, 1000);
+                fail(range + " starts past the end of the log");
+            } catch (WebApplicationException e) {
+                assertThat(e.getResponse().getStatus()).isEqualTo(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                assertThat(e.getResponse().getHeaderString(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes */1000");
+            }
+        }
+    }
+
+    @Test
+    public void testParseRangeIgnoresMalformed() {
+        // RFC 7233 lets a server ignore ranges it does not understand and send everything
+        assertThat(OrderResource.parseRange(null, 1000)).isNull();
+        assertThat(OrderResource.parseRange("lines=0-10", 1000)).isNull();
+        assertThat(OrderResource.parseRange("bytes=0-10,20-30", 1000)).isNull();
+        assertThat(OrderResource.parseRange("bytes=10", 1000)).isNull();
+        assertThat(OrderResource.parseRange("bytes=-", 1000)).isNull();
+        assertThat(OrderResource.parseRange("bytes=ten-", 1000)).isNull();
+        assertThat(OrderResource.parseRange("bytes=20-10", 1000)).isNull();
+    }
+
+    /**
+     * Counts how often a response is flushed.
+     */
+    private static final class FlushCountingStream extends ByteArrayOutputStream {
+        private int flushes = 0;
+
+        @Override
+        public void flush() throws IOException {
+            flushes++;
+            super.flush();
+        }
+    }
+
+    private static List<Job> jobs(int count) {
+        List<Job> jobs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Job job = new Job();
+            // users should not be able to schedule jobs as somebody else
+            job.setEndUser("somebody else");
+            Map<String, Job.ExtraFile> extraFiles = new HashMap<>();
+            job.setExtraFiles(extraFiles);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+}
@@ -44,6 +44,7 @@ public enum StateEnum {
   private String stderr = null;
   private String endUser = null;
   private String flavour = null;
+  private String locality = null;
   private String jobUuid = null;
   private String vmUuid = null;
   private String containerImageDescriptor = null;
@@ -191,6 +192,19 @@ public enum StateEnum {
   }
 
   
+  /**
+   * a key for data the job reads, such as a reference data set, to prefer workers that have it cached
+   **/
+  @ApiModelProperty(value = "a key for data the job reads, such as a reference data set, to prefer workers that have it cached")
+  @JsonProperty("locality")
+  public String getLocality() {
+    return locality;
+  }
+  public void setLocality(String locality) {
+    this.locality = locality;
+  }
+
+  
   /**
    * consonance will assign a uuid to jobs
    **/
@@ -260,6 +274,7 @@ public enum StateEnum {
     sb.append("    stderr: ").append(StringUtil.toIndentedString(stderr)).append("\n");
     sb.append("    endUser: ").append(StringUtil.toIndentedString(endUser)).append("\n");
     sb.append("    flavour: ").append(StringUtil.toIndentedString(flavour)).append("\n");
+    sb.append("    locality: ").append(StringUtil.toIndentedString(locality)).append("\n");
     sb.append("    jobUuid: ").append(StringUtil.toIndentedString(jobUuid)).append("\n");
     sb.append("    vmUuid: ").append(StringUtil.toIndentedString(vmUuid)).append("\n");
     sb.append("    containerImageDescriptor: ").append(StringUtil.toIndentedString(containerImageDescriptor)).append("\n");